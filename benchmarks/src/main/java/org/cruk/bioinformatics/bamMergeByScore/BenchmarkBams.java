@@ -0,0 +1,78 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic name-sorted BAM files for the benchmarks, so that they run anywhere
+ * without test data. Files are made by SyntheticBamGenerator, once, into a
+ * cache directory (system property "bench.dir", by default
+ * bamMergeByScore-bench under java.io.tmpdir) and reused by later runs.
+ *
+ * Every read is unpaired with a single hit. When there are several inputs,
+ * three quarters of the reads are in all of them. Names are padded, so they sort the same way in every
+ * ReadNameOrder.
+ */
+final class BenchmarkBams {
+
+  private BenchmarkBams() {
+  }
+
+  static Path directory() throws IOException {
+    Path dir = Paths.get(System.getProperty("bench.dir",
+        Paths.get(System.getProperty("java.io.tmpdir"), "bamMergeByScore-bench").toString()));
+    Files.createDirectories(dir);
+    return dir;
+  }
+
+  static SyntheticBamGenerator generator(long reads, int count) throws IOException {
+    SyntheticBamGenerator g = new SyntheticBamGenerator();
+    g.outputDir = directory();
+    g.prefix = "bench-" + reads + "x" + count;
+    g.reads = reads;
+    g.inputs = count;
+    g.overlap = 0.75;
+    g.pad = true;
+    g.readLength = 50;
+    g.compressionLevel = 1;
+    return g;
+  }
+
+  /**
+   * Name of the i'th read in the inputs.
+   *
+   * @param i the read number
+   * @return the read name
+   */
+  static String readName(long i) throws IOException {
+    return generator(0, 1).readName(i);
+  }
+
+  /**
+   * Return the inputs for a benchmark, writing them if they aren't cached yet.
+   *
+   * @param reads the number of distinct reads
+   * @param count the number of inputs
+   * @return the input paths
+   * @throws IOException if a file can't be written
+   */
+  static List<Path> inputs(long reads, int count) throws IOException {
+    SyntheticBamGenerator g = generator(reads, count);
+    List<Path> paths = new ArrayList<Path>();
+    boolean cached = true;
+    for (int n = 0; n < count; n++) {
+      paths.add(g.outputPath(n));
+      cached &= Files.exists(g.outputPath(n));
+    }
+    Path done = directory().resolve(g.prefix + ".done");
+    if (!cached || !Files.exists(done)) {
+      g.generate();
+      Files.createFile(done);
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,29 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Run the JMH benchmarks, writing the results as JSON (to jmh-result.json,
+ * unless "-rf" or "-rff" say otherwise) so that runs from different releases
+ * can be compared. Any other JMH options are passed through, e.g. "-p
+ * reads=1000000" to run at one size only.
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+    if (!jmhArgs.contains("-rf")) {
+      jmhArgs.add("-rf");
+      jmhArgs.add("json");
+    }
+    if (!jmhArgs.contains("-rff")) {
+      jmhArgs.add("-rff");
+      jmhArgs.add("jmh-result.json");
+    }
+    Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+  }
+}
@@ -0,0 +1,88 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end merge of two synthetic name-sorted inputs (see BenchmarkBams) into
+ * one output, with each merge engine. The inputs are written on first use and
+ * cached, which for the largest size takes a while and several GB of disk.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MergeBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Inputs {
+    @Param({ "streaming", "randomAccess" })
+    public String engine;
+
+    @Param({ "1000000", "5000000", "50000000" })
+    public long reads;
+
+    List<Path> bams;
+    Path output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      bams = BenchmarkBams.inputs(reads, 2);
+      output = BenchmarkBams.directory().resolve("merged-" + engine + "-" + reads + ".bam");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+      Files.deleteIfExists(output);
+    }
+  }
+
+  /**
+   * Records written per second, reported alongside the merge time.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Written {
+    public double recordsPerSecond;
+  }
+
+  @Benchmark
+  public long merge(Inputs inputs, Written written) throws IOException {
+    long start = System.nanoTime();
+    long n;
+    if ("streaming".equals(inputs.engine)) {
+      StreamingMerge merge = new StreamingMerge(inputs.bams, inputs.output);
+      merge.open();
+      merge.merge();
+      merge.close();
+      n = merge.recordsWritten();
+    } else {
+      RandomAccessMerge merge = new RandomAccessMerge(inputs.bams, inputs.output);
+      merge.open();
+      merge.merge();
+      merge.close();
+      n = merge.recordsWritten();
+    }
+    written.recordsPerSecond = n * 1e9 / (System.nanoTime() - start);
+    return n;
+  }
+}
@@ -0,0 +1,162 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load throughput, lookup latency and memory per read for each SampleData
+ * implementation, on a synthetic input (see BenchmarkBams).
+ *
+ * Memory is measured as the growth of the heap over a load (after a full GC
+ * either side), plus the off-heap memory the implementation reports, so it is
+ * comparable between the heap and off-heap implementations.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SampleDataBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Input {
+    @Param({ "map", "trie", "bamTrie", "offHeap" })
+    public String impl;
+
+    @Param({ "100000", "1000000" })
+    public long reads;
+
+    Path bam;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      bam = BenchmarkBams.inputs(reads, 1).get(0);
+    }
+
+    SampleData create() {
+      if ("map".equals(impl)) {
+        return new SampleDataMap(bam);
+      } else if ("trie".equals(impl)) {
+        return new SampleDataTrie(bam);
+      } else if ("bamTrie".equals(impl)) {
+        return new SampleDataBamTrie(bam);
+      }
+      return new SampleDataOffHeap(bam);
+    }
+  }
+
+  /**
+   * A loaded SampleData, and names to look up in it: every other one present,
+   * the rest absent.
+   */
+  @State(Scope.Benchmark)
+  public static class Loaded {
+    SampleData data;
+    String[] names;
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup(Input input) throws IOException {
+      data = input.create();
+      data.load();
+      names = new String[4096];
+      for (int i = 0; i < names.length; i++) {
+        long r = (i * 2654435761L) % input.reads;
+        String name = BenchmarkBams.readName(r);
+        names[i] = (i & 1) == 0 ? name : name + ":absent";
+      }
+    }
+
+    String nextName() {
+      String n = names[next];
+      next = (next + 1) & (names.length - 1);
+      return n;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      if (data instanceof SampleDataOffHeap) {
+        ((SampleDataOffHeap) data).release();
+      }
+    }
+  }
+
+  /**
+   * Memory per read of the last load, reported alongside the load time. The
+   * heap is measured before and after each iteration, so the full GCs fall
+   * outside the timed load; the loaded data is held here until then.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Footprint {
+    public double bytesPerRead;
+    long before;
+    SampleData data = null;
+    int reads = 0;
+
+    @Setup(Level.Iteration)
+    public void before() {
+      data = null;
+      before = heapUsed();
+    }
+
+    @TearDown(Level.Iteration)
+    public void after() {
+      long used = heapUsed() - before;
+      if (data instanceof SampleDataOffHeap) {
+        used += ((SampleDataOffHeap) data).memory();
+        ((SampleDataOffHeap) data).release();
+      }
+      bytesPerRead = (double) used / reads;
+      data = null;
+    }
+  }
+
+  private static long heapUsed() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public SampleData load(Input input, Footprint footprint) throws IOException {
+    SampleData data = input.create();
+    footprint.reads = data.load();
+    footprint.data = data;
+    return data;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int getScore(Loaded loaded) {
+    return loaded.data.getScore(loaded.nextName());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public boolean hasRead(Loaded loaded) {
+    return loaded.data.hasRead(loaded.nextName());
+  }
+}
@@ -0,0 +1,106 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * The ScoringPolicy: a ScoreModel for single hits, and whether mates are
+ * scored separately and summed. The presets capture what each aligner puts in
+ * its records:
+ *
+ * <ul>
+ * <li>bwa-mem, bowtie2 and minimap2 give each mate its own AS, so a pair's
+ * score is the sum of its mates' best. (bowtie2's end-to-end scores are
+ * negative, which UNSCORED allows for.)</li>
+ * <li>STAR's AS is already the score of the whole pair, and both mates carry
+ * it, so summing would count it twice.</li>
+ * </ul>
+ *
+ * The class is final, and presets are instances of it, to keep the call sites
+ * in the merge monomorphic (see ScoringPolicy).
+ */
+final class AlignerScoring implements ScoringPolicy {
+  static final AlignerScoring DEFAULT = new AlignerScoring("default", ScoreModel.AS, false);
+  static final AlignerScoring BWA_MEM = new AlignerScoring("bwa-mem", ScoreModel.AS, true);
+  static final AlignerScoring BOWTIE2 = new AlignerScoring("bowtie2", ScoreModel.AS, true);
+  static final AlignerScoring STAR = new AlignerScoring("star", ScoreModel.AS, false);
+  static final AlignerScoring MINIMAP2 = new AlignerScoring("minimap2", ScoreModel.AS, true);
+
+  private static final AlignerScoring[] PRESETS = { BWA_MEM, BOWTIE2, STAR, MINIMAP2 };
+
+  private final String name;
+  private final ScoreModel model;
+  private final boolean pairAware;
+
+  /**
+   * Constructor.
+   *
+   * @param name name for messages
+   * @param model how single hits are scored
+   * @param pairAware whether mate scores are summed
+   */
+  AlignerScoring(String name, ScoreModel model, boolean pairAware) {
+    this.name = name;
+    this.model = model;
+    this.pairAware = pairAware;
+  }
+
+  /**
+   * Look up a preset by aligner name ("bwa-mem", "bowtie2", "star",
+   * "minimap2").
+   *
+   * @param aligner the aligner, in any case
+   * @return the preset
+   * @throws IllegalArgumentException if there is no preset for the aligner
+   */
+  static AlignerScoring forAligner(String aligner) {
+    for (AlignerScoring p : PRESETS) {
+      if (p.name.equalsIgnoreCase(aligner.trim())) {
+        return p;
+      }
+    }
+    throw new IllegalArgumentException("no scoring preset for aligner " + aligner);
+  }
+
+  /**
+   * Return a copy of this policy with a different score model.
+   *
+   * @param m the score model
+   * @return the new policy
+   */
+  AlignerScoring withModel(ScoreModel m) {
+    return new AlignerScoring(name + "/" + m.name().toLowerCase(), m, pairAware);
+  }
+
+  /**
+   * Return a copy of this policy with mate summing on or off.
+   *
+   * @param sum whether to sum mate scores
+   * @return the new policy
+   */
+  AlignerScoring withPairAware(boolean sum) {
+    return new AlignerScoring(name + (sum ? "/paired" : "/unpaired"), model, sum);
+  }
+
+  ScoreModel model() {
+    return model;
+  }
+
+  public int score(RawBamRecord rec) {
+    return model.score(rec);
+  }
+
+  public boolean pairAware() {
+    return pairAware;
+  }
+
+  public int combine(int first, int second) {
+    if (first == UNSCORED) {
+      return second;
+    } else if (second == UNSCORED) {
+      return first;
+    }
+    return first + second;
+  }
+
+  public String toString() {
+    return name;
+  }
+}
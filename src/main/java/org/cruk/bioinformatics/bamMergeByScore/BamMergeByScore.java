@@ -1,7 +1,13 @@
 package org.cruk.bioinformatics.bamMergeByScore;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -12,6 +18,9 @@ import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
 /**
  * Merge BAM-formatted files, keeping the highest-scoring hits. Given two or
  * more BAM files in which the same source reads have been aligned to multiple
@@ -23,11 +32,56 @@ import org.apache.logging.log4j.Logger;
  * 
  * To ease space requirements, the package assumes that the files are sorted by
  * read name. If they are not, the merge will abort and inform the user of the
- * issue. Experiments with HashMap, tries, and custom-coded tries that take
- * advantage of the structure of read names revealed that they are too
- * memory-intensive for use with large BAM files. See classes SampleDataMap,
- * SampleDataTrie, and SampleDataBamTrie for examples, and SampleDataTest for
- * test cases.
+ * issue, unless "--sort-if-needed" is given, in which case such inputs are
+ * sorted on the way in, within "--max-memory" (see SortedReadCursor).
+ * Experiments with HashMap, tries, and custom-coded tries that take advantage
+ * of the structure of read names revealed that they are too memory-intensive
+ * for use with large BAM files. See classes SampleDataMap, SampleDataTrie, and
+ * SampleDataBamTrie for examples, and SampleDataTest for test cases. For
+ * unsorted files, "--random-access" indexes every read in an off-heap hash
+ * table instead (see SampleDataOffHeap and RandomAccessMerge), which is far
+ * smaller than those, but still proportional to the input. With
+ * "--index-cache", those tables are kept in a file beside each input and
+ * memory-mapped on later runs (see SampleDataMapped). "--two-pass" decides the
+ * winners from a sorted index of names and scores spilled to disk, then streams
+ * the inputs again in their own order (see TwoPassMerge), so coordinate-sorted
+ * "--split" outputs stay sorted. "--shards" splits a streaming merge into
+ * ranges of read names, merged in parallel and joined without recompressing
+ * (see ShardedMerge).
+ * 
+ * With "--output", the input headers are merged (see HeaderMerger): contigs
+ * whose names clash are renamed after their input's file, or every contig is
+ * given its input's "--contig-prefixes" prefix. Every output header gets a
+ * @PG line recording the command line.
+ * 
+ * A read that scores best in more than one input is resolved by
+ * "--tie-policy" (see TiePolicy): by default, one of those inputs is chosen
+ * by a hash of the read name and "--seed", so the choice is random but
+ * repeatable, and the same however the merge is split up (see TieBreaker).
+ * With "--decision-log", what was decided for every read, and the read's
+ * score in each input, is written to a compact binary file on a thread of its
+ * own (see DecisionLog); DecisionLogReader summarises it.
+ * 
+ * With "--checkpoint", a streaming merge records where it has got to every
+ * "--checkpoint-interval" seconds, and "--resume" carries on from there after
+ * an interruption, cutting the outputs back to the checkpoint (see
+ * Checkpoint).
+ * 
+ * Inputs are decompressed on a pool of threads ("--threads"), a few blocks
+ * ahead of the merge ("--read-ahead"), see ParallelBamReader. Outputs are
+ * compressed on the same pool, see ParallelBamWriter.
+ * 
+ * The merge runs as a pipeline: each input is split into records on a thread
+ * of its own, and each output written on another, passing batches of
+ * "--batch-size" records to and from the merging thread through queues of
+ * "--queue-capacity" batches (see PipelinedReader and PipelinedWriter). A
+ * stage that falls behind fills its queue and so holds back the others.
+ * Those threads are virtual threads, carried by "--io-carriers" platform
+ * threads, while inflating and deflating stay on the "--threads" pool.
+ * 
+ * Each stage is instrumented (see MergeMetrics): the counters are published
+ * through JMX, logged every "--progress" seconds, and with "--metrics", written
+ * to a JSON file at the end.
  * 
  * This class will also work for files that have been aligned to the same
  * reference, but that's not the original purpose. It would be a bit odd to do
@@ -47,6 +101,31 @@ public class BamMergeByScore {
   protected List<String> inputs = null;
   protected String mergedOutput = null;
   protected int primary = -1;
+  protected TieBreaker ties = TieBreaker.DEFAULT;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected ReadNameOrder nameOrder = null;
+  protected boolean randomAccess = false;
+  protected boolean indexCache = false;
+  protected boolean sortIfNeeded = false;
+  protected boolean twoPass = false;
+  protected int shards = 1;
+  protected long maxMemory = Runtime.getRuntime().maxMemory() / 4;
+  protected String tempDir = System.getProperty("java.io.tmpdir");
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
+  protected int threads = -1;
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = RecordBatch.DEFAULT_SIZE;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected int ioCarriers = WorkerPools.DEFAULT_IO_CARRIERS;
+  protected int progressSeconds = 60;
+  protected String metricsFile = null;
+  protected String decisionLog = null;
+  protected String checkpoint = null;
+  protected int checkpointSeconds = 300;
+  protected boolean resume = false;
 
   protected void configureOptions() {
     OptionGroup og = new OptionGroup();
@@ -58,8 +137,106 @@ public class BamMergeByScore {
     o = new Option("s", "split", false, "keep output in separate files, named based on input");
     og.addOption(o);
     options.addOptionGroup(og);
-    o = new Option("p", "primary", true, "n'th input file is primary in case of ties (random if not specified)");
-    o.setType(Integer.class);
+    o = new Option("p", "primary", true,
+        "n'th input file (from 1) is primary in case of ties (implies --tie-policy primary-file)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "tie-policy", true, "how to resolve reads scoring best in more than one input: "
+        + "primary-file, hash-random, keep-all or drop-ambiguous (default hash-random, or with --primary, primary-file)");
+    options.addOption(o);
+    o = new Option(null, "seed", true, "seed for --tie-policy hash-random (default 0)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "contig-prefixes", true,
+        "comma-separated prefixes for the contig names of each input in the merged header, e.g. hs_,mm_");
+    options.addOption(o);
+    o = new Option("n", "name-order", true,
+        "read name order of the inputs: htsjdk, natural (samtools) or byte (detected from headers if not specified)");
+    options.addOption(o);
+    o = new Option("r", "random-access", false,
+        "inputs need not be sorted by read name; index every read's score in memory first");
+    options.addOption(o);
+    o = new Option(null, "index-cache", false,
+        "with --random-access, keep each input's index in a .msi file beside it, and reuse it while the input "
+            + "is unchanged");
+    options.addOption(o);
+    o = new Option(null, "sort-if-needed", false,
+        "sort inputs that aren't sorted by read name, rather than stopping (not with --random-access)");
+    options.addOption(o);
+    o = new Option(null, "two-pass", false,
+        "inputs need not be sorted by read name; index names and scores on disk, then stream each input again in its "
+            + "own order (not with --random-access or --sort-if-needed)");
+    options.addOption(o);
+    o = new Option(null, "shards", true,
+        "split the merge into this many ranges of read names, merged in parallel (default 1; not with "
+            + "--random-access, --two-pass or --sort-if-needed)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "max-memory", true,
+        "memory to sort each input with (for --two-pass, all inputs together) before spilling to disk, e.g. 512m "
+            + "or 4g (default a quarter of the heap)");
+    options.addOption(o);
+    o = new Option(null, "tmp-dir", true, "directory for sort spill files (default java.io.tmpdir)");
+    o.setType(File.class);
+    options.addOption(o);
+    o = new Option("a", "aligner", true,
+        "scoring preset for the aligner that made the inputs: bwa-mem, bowtie2, star or minimap2");
+    options.addOption(o);
+    o = new Option(null, "score", true,
+        "how to score hits: as (AS tag, else matches from MD; the default), md, cigar (aligned bases less MD "
+            + "mismatches), nm (read length less NM) or mapq-as (AS, then MAPQ)");
+    options.addOption(o);
+    o = new Option(null, "pair-aware", false, "score each mate separately, and sum the mates' best scores");
+    options.addOption(o);
+    o = new Option("t", "threads", true,
+        "threads to decompress inputs and compress outputs with, shared by all files (default: one per processor; 0: none)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "read-ahead", true,
+        "BGZF blocks (64KB each) to decompress ahead of the merge, per input (default "
+            + ParallelBgzfInputStream.DEFAULT_READ_AHEAD + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option("l", "compression-level", true,
+        "output compression level, 0 to 9 (default " + ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "batch-size", true, "records passed between pipeline stages at a time (default "
+        + RecordBatch.DEFAULT_SIZE + "; 0: no pipeline, one thread reads, merges and writes)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "queue-capacity", true,
+        "batches that may wait between two pipeline stages (default " + SpscRing.DEFAULT_CAPACITY + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "io-carriers", true, "platform threads to run the reading and writing threads on (default "
+        + WorkerPools.DEFAULT_IO_CARRIERS + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "progress", true, "seconds between progress lines in the log (default 60; 0: none)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "metrics", true, "write throughput and timing of each stage to this file, as JSON");
+    o.setType(File.class);
+    options.addOption(o);
+    o = new Option(null, "decision-log", true,
+        "record the winner and each input's score of every read in this file (not with --random-access); "
+            + "summarise it with DecisionLogReader");
+    o.setType(File.class);
+    options.addOption(o);
+    o = new Option(null, "checkpoint", true, "checkpoint the merge to this file, so that it can be resumed "
+        + "(streaming merges only; not with --random-access, --two-pass, --sort-if-needed or --shards)");
+    o.setType(File.class);
+    options.addOption(o);
+    o = new Option(null, "checkpoint-interval", true, "seconds between checkpoints (default 300)");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "resume", false,
+        "carry on from the --checkpoint file, if there is one, rather than starting again; the other options "
+            + "must be as they were");
+    options.addOption(o);
+    o = new Option(null, "deflater", true,
+        "class name of an htsjdk DeflaterFactory to compress with, e.g. com.intel.gkl.compression.IntelDeflaterFactory");
     options.addOption(o);
   }
 
@@ -77,6 +254,7 @@ public class BamMergeByScore {
     try {
       cli = new DefaultParser().parse(options, args);
       inputs = cli.getArgList();
+      commandLine = HeaderMerger.PROGRAM_NAME + " " + String.join(" ", args);
       if (inputs.size() < 1) {
         log.error("Expecting at least one input argument; got {}.", inputs.size());
         rc = -1;
@@ -84,8 +262,193 @@ public class BamMergeByScore {
       if (cli.hasOption("output")) {
         mergedOutput = cli.getOptionValue("output");
       }
+      if (cli.hasOption("contig-prefixes")) {
+        contigPrefixes = Arrays.asList(cli.getOptionValue("contig-prefixes").split(",", -1));
+        if (!cli.hasOption("output")) {
+          log.error("Option --contig-prefixes needs --output.");
+          rc = -1;
+        } else if (contigPrefixes.size() != inputs.size()) {
+          log.error("Expecting one contig prefix per input ({}); got {}.", inputs.size(), contigPrefixes.size());
+          rc = -1;
+        }
+      }
       if (cli.hasOption("primary")) {
-        primary = ((Integer) cli.getParsedOptionValue("primary")).intValue();
+        primary = ((Number) cli.getParsedOptionValue("primary")).intValue();
+        if (primary < 1 || primary > inputs.size()) {
+          log.error("Primary input must be from 1 to {}; got {}.", inputs.size(), primary);
+          rc = -1;
+        }
+      }
+      TiePolicy tiePolicy = primary > 0 ? TiePolicy.PRIMARY_FILE : TiePolicy.HASH_RANDOM;
+      if (cli.hasOption("tie-policy")) {
+        try {
+          tiePolicy = TiePolicy.fromName(cli.getOptionValue("tie-policy"));
+        } catch (IllegalArgumentException iae) {
+          log.error("Unknown tie policy: {}", cli.getOptionValue("tie-policy"));
+          rc = -1;
+        }
+        if (primary > 0 && tiePolicy != TiePolicy.PRIMARY_FILE) {
+          log.error("Option --primary needs --tie-policy primary-file.");
+          rc = -1;
+        }
+      }
+      long seed = 0;
+      if (cli.hasOption("seed")) {
+        seed = ((Number) cli.getParsedOptionValue("seed")).longValue();
+      }
+      ties = new TieBreaker(tiePolicy, primary - 1, seed);
+      randomAccess = cli.hasOption("random-access");
+      indexCache = cli.hasOption("index-cache");
+      if (indexCache && !randomAccess) {
+        log.error("Option --index-cache needs --random-access.");
+        rc = -1;
+      }
+      sortIfNeeded = cli.hasOption("sort-if-needed");
+      if (sortIfNeeded && randomAccess) {
+        log.error("Options --sort-if-needed and --random-access can't be used together.");
+        rc = -1;
+      }
+      twoPass = cli.hasOption("two-pass");
+      if (twoPass && (randomAccess || sortIfNeeded)) {
+        log.error("Option --two-pass can't be used with --random-access or --sort-if-needed.");
+        rc = -1;
+      }
+      if (cli.hasOption("shards")) {
+        shards = ((Number) cli.getParsedOptionValue("shards")).intValue();
+        if (shards < 1) {
+          log.error("Shard count must be at least one; got {}.", shards);
+          rc = -1;
+        } else if (shards > 1 && (randomAccess || twoPass || sortIfNeeded)) {
+          log.error("Option --shards can't be used with --random-access, --two-pass or --sort-if-needed.");
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("max-memory")) {
+        try {
+          maxMemory = parseMemory(cli.getOptionValue("max-memory"));
+        } catch (NumberFormatException nfe) {
+          log.error("Memory size not understood: {}", cli.getOptionValue("max-memory"));
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("tmp-dir")) {
+        tempDir = cli.getOptionValue("tmp-dir");
+      }
+      AlignerScoring policy = AlignerScoring.DEFAULT;
+      if (cli.hasOption("aligner")) {
+        try {
+          policy = AlignerScoring.forAligner(cli.getOptionValue("aligner"));
+        } catch (IllegalArgumentException iae) {
+          log.error("Unknown aligner: {}", cli.getOptionValue("aligner"));
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("score")) {
+        try {
+          policy = policy.withModel(ScoreModel.fromName(cli.getOptionValue("score")));
+        } catch (IllegalArgumentException iae) {
+          log.error("Unknown score model: {}", cli.getOptionValue("score"));
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("pair-aware")) {
+        policy = policy.withPairAware(true);
+      }
+      scoring = policy;
+      if (cli.hasOption("threads")) {
+        threads = ((Number) cli.getParsedOptionValue("threads")).intValue();
+        if (threads < 0) {
+          log.error("Thread count must not be negative; got {}.", threads);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("read-ahead")) {
+        readAhead = ((Number) cli.getParsedOptionValue("read-ahead")).intValue();
+        if (readAhead < 1) {
+          log.error("Read-ahead must be at least one block; got {}.", readAhead);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("name-order")) {
+        try {
+          nameOrder = ReadNameOrder.valueOf(cli.getOptionValue("name-order").toUpperCase());
+        } catch (IllegalArgumentException iae) {
+          log.error("Unknown read name order: {}", cli.getOptionValue("name-order"));
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("compression-level")) {
+        compressionLevel = ((Number) cli.getParsedOptionValue("compression-level")).intValue();
+        if (compressionLevel < 0 || compressionLevel > 9) {
+          log.error("Compression level must be from 0 to 9; got {}.", compressionLevel);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("batch-size")) {
+        batchSize = ((Number) cli.getParsedOptionValue("batch-size")).intValue();
+        if (batchSize < 0) {
+          log.error("Batch size must not be negative; got {}.", batchSize);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("queue-capacity")) {
+        queueCapacity = ((Number) cli.getParsedOptionValue("queue-capacity")).intValue();
+        if (queueCapacity < 1) {
+          log.error("Queue capacity must be at least one batch; got {}.", queueCapacity);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("io-carriers")) {
+        ioCarriers = ((Number) cli.getParsedOptionValue("io-carriers")).intValue();
+        if (ioCarriers < 1) {
+          log.error("I/O carrier count must be at least one; got {}.", ioCarriers);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("progress")) {
+        progressSeconds = ((Number) cli.getParsedOptionValue("progress")).intValue();
+        if (progressSeconds < 0) {
+          log.error("Progress interval must not be negative; got {}.", progressSeconds);
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("metrics")) {
+        metricsFile = cli.getOptionValue("metrics");
+      }
+      if (cli.hasOption("decision-log")) {
+        decisionLog = cli.getOptionValue("decision-log");
+        if (randomAccess) {
+          log.error("Option --decision-log can't be used with --random-access.");
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("checkpoint")) {
+        checkpoint = cli.getOptionValue("checkpoint");
+        if (randomAccess || twoPass || sortIfNeeded || shards > 1) {
+          log.error("Option --checkpoint can't be used with --random-access, --two-pass, --sort-if-needed or "
+              + "--shards.");
+          rc = -1;
+        }
+      }
+      if (cli.hasOption("checkpoint-interval")) {
+        checkpointSeconds = ((Number) cli.getParsedOptionValue("checkpoint-interval")).intValue();
+        if (checkpointSeconds < 1) {
+          log.error("Checkpoint interval must be at least one second; got {}.", checkpointSeconds);
+          rc = -1;
+        }
+      }
+      resume = cli.hasOption("resume");
+      if (resume && !cli.hasOption("checkpoint")) {
+        log.error("Option --resume needs --checkpoint.");
+        rc = -1;
+      }
+      if (cli.hasOption("deflater")) {
+        try {
+          deflaterFactory = loadDeflaterFactory(cli.getOptionValue("deflater"));
+        } catch (ReflectiveOperationException | ClassCastException e) {
+          log.error("Unable to load deflater {}: {}", cli.getOptionValue("deflater"), e.toString());
+          rc = -1;
+        }
       }
     } catch (ParseException pe) {
       log.error("Command line parsing failed: " + pe.toString());
@@ -94,8 +457,181 @@ public class BamMergeByScore {
     return rc;
   }
 
+  /**
+   * Parse a memory size: a number of bytes, optionally followed by k, m or g
+   * (in any case) for kilobytes, megabytes or gigabytes.
+   * 
+   * @param size the size, e.g. "512m"
+   * @return the size in bytes
+   * @throws NumberFormatException if the size can't be parsed
+   */
+  static long parseMemory(String size) {
+    String s = size.trim().toLowerCase();
+    int shift = 0;
+    if (s.endsWith("k")) {
+      shift = 10;
+    } else if (s.endsWith("m")) {
+      shift = 20;
+    } else if (s.endsWith("g")) {
+      shift = 30;
+    }
+    if (shift > 0) {
+      s = s.substring(0, s.length() - 1);
+    }
+    long n = Long.parseLong(s);
+    if (n <= 0) {
+      throw new NumberFormatException("memory size must be positive: " + size);
+    }
+    return n << shift;
+  }
+
+  /**
+   * Instantiate a DeflaterFactory by class name, so that a faster deflate
+   * implementation on the classpath can be used without a compile-time
+   * dependency on it.
+   * 
+   * @param className the fully-qualified name of a DeflaterFactory subclass
+   * @return a new instance of the class
+   * @throws ReflectiveOperationException if the class can't be instantiated
+   */
+  static DeflaterFactory loadDeflaterFactory(String className) throws ReflectiveOperationException {
+    return Class.forName(className).asSubclass(DeflaterFactory.class).getConstructor().newInstance();
+  }
+
+  /**
+   * Merge the inputs, streaming through them in read-name order (see
+   * StreamingMerge, or with "--shards", ShardedMerge), or if "--random-access"
+   * or "--two-pass" is set, by indexing them first (see RandomAccessMerge and
+   * TwoPassMerge).
+   * 
+   * @return zero if successful, non-zero otherwise
+   */
   protected int processFile() {
-    return 0;
+    int rc = 0;
+    List<Path> paths = new ArrayList<Path>(inputs.size());
+    for (String fn : inputs) {
+      paths.add(Paths.get(fn));
+    }
+    Path out = mergedOutput == null ? null : Paths.get(mergedOutput);
+    StreamingMerge merge = null;
+    RandomAccessMerge raMerge = null;
+    TwoPassMerge tpMerge = null;
+    ShardedMerge shMerge = null;
+    ExecutorService pool = null;
+    WorkerPools.setIoCarriers(ioCarriers);
+    if (threads < 0) {
+      pool = WorkerPools.defaultPool();
+    } else if (threads > 0) {
+      pool = WorkerPools.newPool(threads, "bgzf");
+    }
+    MergeMetrics metrics = MergeMetrics.global();
+    metrics.reset();
+    metrics.register();
+    if (progressSeconds > 0) {
+      metrics.startProgress(progressSeconds);
+    }
+    try {
+      if (randomAccess) {
+        raMerge = new RandomAccessMerge(paths, out);
+        raMerge.setScoringPolicy(scoring);
+        raMerge.setTieBreaker(ties);
+        raMerge.setIndexCache(indexCache);
+        raMerge.setReaderThreads(pool, readAhead);
+        raMerge.setCompression(pool, compressionLevel, deflaterFactory);
+        raMerge.setPipeline(batchSize, queueCapacity);
+        raMerge.setProgram(commandLine, contigPrefixes);
+        raMerge.open();
+        raMerge.merge();
+        log.info("Wrote {} records.", raMerge.recordsWritten());
+      } else if (twoPass) {
+        tpMerge = new TwoPassMerge(paths, out);
+        tpMerge.setScoringPolicy(scoring);
+        tpMerge.setTieBreaker(ties);
+        tpMerge.setReaderThreads(pool, readAhead);
+        tpMerge.setCompression(pool, compressionLevel, deflaterFactory);
+        tpMerge.setPipeline(batchSize, queueCapacity);
+        tpMerge.setProgram(commandLine, contigPrefixes);
+        if (decisionLog != null) {
+          tpMerge.setDecisionLog(Paths.get(decisionLog));
+        }
+        tpMerge.setSortMemory(maxMemory, Paths.get(tempDir));
+        tpMerge.open();
+        long reads = tpMerge.merge();
+        log.info("Merged {} reads; wrote {} records.", reads, tpMerge.recordsWritten());
+      } else if (shards > 1) {
+        shMerge = new ShardedMerge(paths, out, shards);
+        shMerge.setNameOrder(nameOrder);
+        shMerge.setScoringPolicy(scoring);
+        shMerge.setTieBreaker(ties);
+        shMerge.setReaderThreads(pool, readAhead);
+        shMerge.setCompression(pool, compressionLevel, deflaterFactory);
+        shMerge.setPipeline(batchSize, queueCapacity);
+        shMerge.setProgram(commandLine, contigPrefixes);
+        if (decisionLog != null) {
+          shMerge.setDecisionLog(Paths.get(decisionLog));
+        }
+        shMerge.open();
+        long reads = shMerge.merge();
+        log.info("Merged {} reads; wrote {} records.", reads, shMerge.recordsWritten());
+      } else {
+        merge = new StreamingMerge(paths, out);
+        merge.setNameOrder(nameOrder);
+        merge.setScoringPolicy(scoring);
+        merge.setTieBreaker(ties);
+        merge.setReaderThreads(pool, readAhead);
+        merge.setCompression(pool, compressionLevel, deflaterFactory);
+        merge.setPipeline(batchSize, queueCapacity);
+        merge.setProgram(commandLine, contigPrefixes);
+        if (decisionLog != null) {
+          merge.setDecisionLog(Paths.get(decisionLog));
+        }
+        if (sortIfNeeded) {
+          merge.setSortIfNeeded(maxMemory, Paths.get(tempDir));
+        }
+        if (checkpoint != null) {
+          merge.setCheckpoint(Paths.get(checkpoint), checkpointSeconds);
+          merge.setResume(resume);
+        }
+        merge.open();
+        long reads = merge.merge();
+        log.info("Merged {} reads; wrote {} records.", reads, merge.recordsWritten());
+      }
+      log.info("Resolved {} ties by {}.", metrics.getTies(), ties);
+    } catch (IOException | SAMException e) {
+      log.error("Merge failed: " + e.getMessage());
+      rc = -1;
+    } finally {
+      try {
+        if (merge != null) {
+          merge.close();
+        }
+        if (raMerge != null) {
+          raMerge.close();
+        }
+        if (tpMerge != null) {
+          tpMerge.close();
+        }
+        if (shMerge != null) {
+          shMerge.close();
+        }
+      } catch (IOException e) {
+        log.error("Failed to close files: " + e.getMessage());
+        rc = -1;
+      }
+      if (threads > 0) {
+        pool.shutdown();
+      }
+      metrics.stopProgress();
+      if (metricsFile != null) {
+        try {
+          metrics.writeJson(Paths.get(metricsFile));
+        } catch (IOException e) {
+          log.error("Failed to write metrics: " + e.getMessage());
+          rc = -1;
+        }
+      }
+    }
+    return rc;
   }
 
   /**
@@ -110,13 +646,7 @@ public class BamMergeByScore {
     configureOptions();
     rc = parseCmdLine(args);
     if (rc == 0) {
-      // open files, store handles in list
-      // while files are non-empty
-      //   get next read from relevant files (i.e. all with lexicographically lowest
-      //   name)
-      //
-      // What happens if Java's opinion of lexicographic is different from the sort
-      // routine?
+      rc = processFile();
     }
 
     return rc;
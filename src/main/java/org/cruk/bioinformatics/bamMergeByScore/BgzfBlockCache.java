@@ -0,0 +1,192 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Random access to the bytes of a BGZF file by virtual file offset, keeping the
+ * most recently used blocks inflated, so that reading several records from one
+ * block inflates it once. SortedReadCursor reads records in file order, but
+ * skipping some, so a few blocks suffice there. Blocks evicted from the cache
+ * are reused, so a long run of reads allocates nothing.
+ */
+class BgzfBlockCache implements Closeable {
+  /**
+   * Memory per cached block.
+   */
+  static final int BLOCK_MEMORY = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+  /**
+   * An inflated block.
+   */
+  static final class Cached {
+    final byte[] data = new byte[BLOCK_MEMORY];
+    int length;
+    int compressedLength;
+  }
+
+  protected final String source;
+  protected final FileChannel channel;
+  protected final int maxBlocks;
+  protected final LinkedHashMap<Long, Cached> blocks;
+  protected final ArrayDeque<Cached> free = new ArrayDeque<Cached>();
+  protected final ParallelBgzfInputStream.Block scratch = new ParallelBgzfInputStream.Block();
+  protected final ByteBuffer headerBuf = ByteBuffer.allocate(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+  protected long hits = 0;
+  protected long misses = 0;
+
+  /**
+   * Open a BGZF file.
+   *
+   * @param path the file
+   * @param maxMemory memory to cache blocks in (at least a few blocks are kept
+   *          regardless)
+   * @throws IOException if the file can't be opened
+   */
+  BgzfBlockCache(Path path, long maxMemory) throws IOException {
+    this.source = path.getFileName().toString();
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.maxBlocks = (int) Math.max(4, Math.min(Integer.MAX_VALUE, maxMemory / BLOCK_MEMORY));
+    this.blocks = new LinkedHashMap<Long, Cached>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<Long, Cached> eldest) {
+        if (size() > maxBlocks) {
+          free.add(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Return the inflated block at a file offset, reading it if it isn't cached.
+   *
+   * @param address the file offset of the block
+   * @return the block
+   * @throws IOException if the block can't be read
+   */
+  Cached block(long address) throws IOException {
+    Cached c = blocks.get(address);
+    if (c != null) {
+      hits++;
+      return c;
+    }
+    misses++;
+    ParallelBgzfInputStream.Block b = scratch;
+    headerBuf.clear();
+    readFully(headerBuf, address);
+    int size = ParallelBgzfInputStream.blockSize(headerBuf.array(), source, address);
+    System.arraycopy(headerBuf.array(), 0, b.compressed, 0, headerBuf.capacity());
+    readFully(ByteBuffer.wrap(b.compressed, headerBuf.capacity(), size - headerBuf.capacity()),
+        address + headerBuf.capacity());
+    b.compressedLength = size;
+    b.address = address;
+    ParallelBgzfInputStream.inflate(b, source);
+    c = free.isEmpty() ? new Cached() : free.poll();
+    System.arraycopy(b.data, 0, c.data, 0, b.length);
+    c.length = b.length;
+    c.compressedLength = size;
+    blocks.put(address, c);
+    return c;
+  }
+
+  private void readFully(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position);
+      if (n < 0) {
+        throw new EOFException(source + ": truncated BGZF block at " + position);
+      }
+      position += n;
+    }
+  }
+
+  /**
+   * Copy bytes starting at a virtual file offset, following on into later
+   * blocks as needed.
+   *
+   * @param virtualOffset where to start
+   * @param dest the buffer to copy into
+   * @param off offset in dest
+   * @param len number of bytes
+   * @throws IOException if a block can't be read, or the file ends first
+   */
+  void read(long virtualOffset, byte[] dest, int off, int len) throws IOException {
+    long address = virtualOffset >>> 16;
+    int pos = (int) (virtualOffset & 0xffff);
+    while (len > 0) {
+      Cached b = block(address);
+      if (b.length == 0) {
+        throw new EOFException(source + ": record runs past the end of the file");
+      }
+      int n = Math.min(len, b.length - pos);
+      System.arraycopy(b.data, pos, dest, off, n);
+      off += n;
+      len -= n;
+      pos = 0;
+      address += b.compressedLength;
+    }
+  }
+
+  /**
+   * Return the virtual file offset a number of bytes after another, following
+   * on into later blocks as needed.
+   *
+   * @param virtualOffset where to start
+   * @param bytes how far to move
+   * @return the new offset; at the end of the file, that of the empty block
+   *         that ends it
+   * @throws IOException if a block can't be read, or the file ends first
+   */
+  long advance(long virtualOffset, long bytes) throws IOException {
+    long address = virtualOffset >>> 16;
+    long pos = (virtualOffset & 0xffff) + bytes;
+    Cached b = block(address);
+    while (pos >= b.length && b.length > 0) {
+      pos -= b.length;
+      address += b.compressedLength;
+      b = block(address);
+    }
+    if (b.length == 0 && pos > 0) {
+      throw new EOFException(source + ": offset runs past the end of the file");
+    }
+    return address << 16 | pos;
+  }
+
+  /**
+   * Return the length of the file.
+   *
+   * @return bytes
+   * @throws IOException if the file can't be read
+   */
+  long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Return the fraction of block lookups found in the cache.
+   *
+   * @return hit rate, from 0 to 1
+   */
+  double hitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  public void close() throws IOException {
+    channel.close();
+    blocks.clear();
+    free.clear();
+  }
+}
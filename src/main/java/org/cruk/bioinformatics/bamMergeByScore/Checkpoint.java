@@ -0,0 +1,221 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The state of a streaming merge at a point where it can be resumed (see
+ * StreamingMerge.setCheckpoint()): the last read decided, the first read not
+ * yet decided, where to start reading each input again, and how long each
+ * output was once everything before that point had been written.
+ *
+ * Each input offset is a BGZF virtual offset at or before the input's first
+ * record not yet merged; records between it and the next read are skipped on
+ * resuming, as a shard skips records before its range (see
+ * ReadCursor.setRange()). Each output length is at a block boundary, so the
+ * outputs can simply be cut back to it.
+ *
+ * The file is a Java properties file, written to a temporary file beside it,
+ * synced, and moved into place, so a merge killed part way through writing
+ * one, or a machine that loses power just after, leaves a whole checkpoint.
+ * Each input's name and size are recorded too, so that a checkpoint isn't
+ * applied to different inputs.
+ */
+final class Checkpoint {
+  protected ReadNameOrder order;
+  protected byte[] last;
+  protected byte[] next;
+  protected long reads;
+  protected String[] inputNames;
+  protected long[] inputSizes;
+  protected long[] offsets;
+  protected long[] lengths;
+  protected long decisionLogLength = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param order the read name order of the merge
+   * @param last the name of the last read decided
+   * @param next the name of the first read not yet decided
+   * @param reads the number of reads decided
+   * @param inputs the inputs
+   * @param offsets for each input, a virtual offset to read from again
+   * @param lengths the length of each output
+   * @throws IOException if an input's size can't be found
+   */
+  Checkpoint(ReadNameOrder order, byte[] last, byte[] next, long reads, List<Path> inputs, long[] offsets,
+      long[] lengths) throws IOException {
+    this.order = order;
+    this.last = last;
+    this.next = next;
+    this.reads = reads;
+    this.inputNames = new String[inputs.size()];
+    this.inputSizes = new long[inputs.size()];
+    for (int i = 0; i < inputs.size(); i++) {
+      inputNames[i] = inputs.get(i).getFileName().toString();
+      inputSizes[i] = Files.size(inputs.get(i));
+    }
+    this.offsets = offsets;
+    this.lengths = lengths;
+  }
+
+  private Checkpoint() {
+  }
+
+  /**
+   * Record the length of the decision log too (see DecisionLog.sync()).
+   *
+   * @param length the length, or -1 for no log
+   */
+  void setDecisionLogLength(long length) {
+    this.decisionLogLength = length;
+  }
+
+  /**
+   * Write the checkpoint, replacing any earlier one only once it is complete.
+   *
+   * @param file the checkpoint file
+   * @throws IOException if the file can't be written
+   */
+  void write(Path file) throws IOException {
+    Properties p = new Properties();
+    p.setProperty("order", order.name());
+    p.setProperty("last", new String(last, StandardCharsets.ISO_8859_1));
+    p.setProperty("next", new String(next, StandardCharsets.ISO_8859_1));
+    p.setProperty("reads", Long.toString(reads));
+    p.setProperty("inputs", Integer.toString(inputNames.length));
+    for (int i = 0; i < inputNames.length; i++) {
+      p.setProperty("input." + i + ".name", inputNames[i]);
+      p.setProperty("input." + i + ".size", Long.toString(inputSizes[i]));
+      p.setProperty("input." + i + ".offset", Long.toString(offsets[i]));
+    }
+    p.setProperty("outputs", Integer.toString(lengths.length));
+    for (int i = 0; i < lengths.length; i++) {
+      p.setProperty("output." + i + ".length", Long.toString(lengths[i]));
+    }
+    if (decisionLogLength >= 0) {
+      p.setProperty("decisions.length", Long.toString(decisionLogLength));
+    }
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+    try {
+      OutputStream out = Channels.newOutputStream(ch);
+      p.store(out, "bamMergeByScore checkpoint");
+      out.flush();
+      ch.force(true);
+    } finally {
+      ch.close();
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(file.toAbsolutePath().getParent());
+  }
+
+  /**
+   * Put a directory's entries on disk, so that a file just moved into it
+   * stays moved after a crash. Not every platform can open a directory to
+   * sync it (Windows can't), and there a failure is ignored.
+   *
+   * @param dir the directory
+   */
+  private static void syncDirectory(Path dir) {
+    try {
+      FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ);
+      try {
+        ch.force(true);
+      } finally {
+        ch.close();
+      }
+    } catch (IOException ioe) {
+      // the move itself is done; only its durability is in doubt
+    }
+  }
+
+  /**
+   * Read a checkpoint.
+   *
+   * @param file the checkpoint file
+   * @return the checkpoint
+   * @throws IOException if the file can't be read, or isn't a checkpoint
+   */
+  static Checkpoint read(Path file) throws IOException {
+    Properties p = new Properties();
+    InputStream in = Files.newInputStream(file);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    Checkpoint c = new Checkpoint();
+    try {
+      c.order = ReadNameOrder.valueOf(get(p, "order"));
+      c.last = get(p, "last").getBytes(StandardCharsets.ISO_8859_1);
+      c.next = get(p, "next").getBytes(StandardCharsets.ISO_8859_1);
+      c.reads = Long.parseLong(get(p, "reads"));
+      int n = Integer.parseInt(get(p, "inputs"));
+      c.inputNames = new String[n];
+      c.inputSizes = new long[n];
+      c.offsets = new long[n];
+      for (int i = 0; i < n; i++) {
+        c.inputNames[i] = get(p, "input." + i + ".name");
+        c.inputSizes[i] = Long.parseLong(get(p, "input." + i + ".size"));
+        c.offsets[i] = Long.parseLong(get(p, "input." + i + ".offset"));
+      }
+      c.lengths = new long[Integer.parseInt(get(p, "outputs"))];
+      for (int i = 0; i < c.lengths.length; i++) {
+        c.lengths[i] = Long.parseLong(get(p, "output." + i + ".length"));
+      }
+      c.decisionLogLength = Long.parseLong(p.getProperty("decisions.length", "-1"));
+    } catch (IllegalArgumentException iae) {
+      throw new IOException(file.getFileName() + " is not a valid checkpoint: " + iae.getMessage());
+    }
+    return c;
+  }
+
+  private static String get(Properties p, String key) {
+    String v = p.getProperty(key);
+    if (v == null) {
+      throw new IllegalArgumentException("no " + key);
+    }
+    return v;
+  }
+
+  /**
+   * Check that the checkpoint was made for these inputs, unchanged since.
+   *
+   * @param inputs the inputs
+   * @throws IOException if they differ, or an input's size can't be found
+   */
+  void check(List<Path> inputs) throws IOException {
+    if (inputs.size() != inputNames.length) {
+      throw new IOException("the checkpoint is for " + inputNames.length + " inputs, not " + inputs.size());
+    }
+    for (int i = 0; i < inputNames.length; i++) {
+      Path p = inputs.get(i);
+      if (!p.getFileName().toString().equals(inputNames[i]) || Files.size(p) != inputSizes[i]) {
+        throw new IOException("the checkpoint is for input " + inputNames[i] + " (" + inputSizes[i]
+            + " bytes), not " + p.getFileName() + " (" + Files.size(p) + " bytes)");
+      }
+    }
+  }
+
+  /**
+   * Return the name of the last read decided, for messages.
+   *
+   * @return the name
+   */
+  String lastName() {
+    return new String(last, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,341 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * A record of what a merge decided for every read: which input kept it (if
+ * any), why, and the read's score in each input, for checking a merge after
+ * the fact. See DecisionLogReader, which reads the file back and summarises it.
+ *
+ * The file is BGZF, like a BAM file, and holds a header (MAGIC, the number of
+ * inputs and their file names) followed by one entry per read, in the order
+ * the reads were decided:
+ *
+ * <pre>
+ *   u16    name length
+ *   bytes  name
+ *   u8     outcome (the ordinal of an Outcome)
+ *   i16    winning input, from 0, or TieBreaker.KEEP_ALL or TieBreaker.DROP
+ *   i32    score in each input, ABSENT if the input doesn't have the read
+ * </pre>
+ *
+ * all big-endian. Nothing else is stored, so an entry is a few bytes more than
+ * the name, and compresses well besides.
+ *
+ * Logging must not hold up the merge, so entries are packed into chunks on the
+ * merging thread, and a virtual thread of its own (see
+ * WorkerPools.startIoThread()) takes full chunks from a SpscRing and writes
+ * them through a ParallelBgzfOutputStream, as PipelinedWriter does with
+ * records. The chunks go back through a second ring, so the log holds a fixed
+ * amount of memory, and if it falls behind, the merge waits for it.
+ *
+ * Like the outputs of a ShardedMerge, a log may be written in parts, joined
+ * afterwards (see setPart() and ShardedMerge.join()); only the first part has
+ * the header. For a checkpointed merge, sync() and setResume() work as
+ * MergeOutput's do.
+ *
+ * Write errors are raised as htsjdk's RuntimeIOException, one on the writing
+ * thread by the next record() or by close().
+ */
+class DecisionLog implements Closeable {
+  static final byte[] MAGIC = { 'B', 'M', 'D', 'L', 1 };
+  static final int ABSENT = Integer.MIN_VALUE;
+  static final int CHUNK_SIZE = 1 << 16;
+  private static final long PARK_NANOS = 50000;
+
+  /**
+   * Why a read was kept or dropped.
+   */
+  enum Outcome {
+    /**
+     * One input scored best, and kept the read.
+     */
+    WON,
+    /**
+     * Several inputs scored best; the tie policy chose one, or kept all.
+     */
+    TIED,
+    /**
+     * Several inputs scored best, and the tie policy dropped the read.
+     */
+    DROPPED,
+    /**
+     * No input had a hit that scored, the read being unmapped everywhere; it
+     * was kept as any other.
+     */
+    UNMAPPED
+  }
+
+  /**
+   * A chunk of encoded entries.
+   */
+  static final class Chunk {
+    byte[] buf;
+    int length = 0;
+
+    Chunk(int size) {
+      buf = new byte[size];
+    }
+  }
+
+  protected final Path file;
+  protected final List<Path> inputs;
+  protected final ExecutorService pool;
+  protected int part = -1;
+  protected long resumeAt = -1;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected ParallelBgzfOutputStream out = null;
+  protected SpscRing<Chunk> full = null;
+  protected SpscRing<Chunk> free = null;
+  protected Thread thread = null;
+  protected Chunk current = null;
+  protected long entries = 0;
+  protected long sent = 0;
+  protected final AtomicLong written = new AtomicLong();
+  protected volatile Throwable failure = null;
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param file the log file to write
+   * @param inputs the inputs of the merge, in input order
+   * @param pool the threads to deflate on, or null for the log's own thread
+   */
+  DecisionLog(Path file, List<Path> inputs, ExecutorService pool) {
+    this.file = file;
+    this.inputs = inputs;
+    this.pool = pool;
+  }
+
+  /**
+   * Write one part of the log, as one shard of a ShardedMerge: the entries go
+   * to MergeOutput.partName() of the file, and only the first part has the
+   * header. Call before open().
+   *
+   * @param part the part number, from 0
+   */
+  void setPart(int part) {
+    this.part = part;
+  }
+
+  /**
+   * Carry on a log written up to a checkpoint, rather than creating it: the
+   * file is cut back to its length at the checkpoint (see sync()), and
+   * entries are written after it. Call before open().
+   *
+   * @param length the length of the file, as from sync()
+   */
+  void setResume(long length) {
+    this.resumeAt = length;
+  }
+
+  /**
+   * Set the number of full chunks that may wait to be written. Call before
+   * open().
+   *
+   * @param queueCapacity chunks
+   */
+  void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Create the file, write the header, and start the writing thread.
+   *
+   * @throws IOException if the file can't be created
+   */
+  void open() throws IOException {
+    out = new ParallelBgzfOutputStream(part < 0 ? file : MergeOutput.partName(file, part), resumeAt, pool,
+        ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL, new DeflaterFactory());
+    if (part <= 0 && resumeAt < 0) {
+      DataOutputStream h = new DataOutputStream(out);
+      h.write(MAGIC);
+      h.writeInt(inputs.size());
+      for (Path p : inputs) {
+        h.writeUTF(p.getFileName().toString());
+      }
+      h.flush();
+    }
+    full = new SpscRing<Chunk>(queueCapacity);
+    free = new SpscRing<Chunk>(full.capacity() + 2);
+    for (int i = 0; i < full.capacity() + 1; i++) {
+      free.offer(new Chunk(CHUNK_SIZE));
+    }
+    current = new Chunk(CHUNK_SIZE);
+    thread = WorkerPools.startIoThread("decisions-" + file.getFileName(), new Runnable() {
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  /**
+   * Write chunks until the merge closes the queue.
+   */
+  protected void drain() {
+    try {
+      Chunk c;
+      while ((c = full.take()) != null) {
+        out.write(c.buf, 0, c.length);
+        written.incrementAndGet();
+        c.length = 0;
+        if (!free.put(c)) {
+          break;
+        }
+      }
+    } catch (Throwable t) {
+      failure = t;
+      full.close();
+      free.close();
+    }
+  }
+
+  /**
+   * Record the decision for one read.
+   *
+   * @param name buffer holding the read name
+   * @param off offset of the read name
+   * @param len length of the read name
+   * @param scores the read's score in each input, ABSENT where it has none
+   * @param best the best score
+   * @param tied the number of inputs with the best score
+   * @param winner the input that kept the read, or TieBreaker.KEEP_ALL or
+   *          TieBreaker.DROP
+   */
+  void record(byte[] name, int off, int len, int[] scores, int best, int tied, int winner) {
+    Outcome outcome;
+    if (best == ScoringPolicy.UNSCORED) {
+      outcome = Outcome.UNMAPPED;
+    } else if (tied == 1) {
+      outcome = Outcome.WON;
+    } else if (winner == TieBreaker.DROP) {
+      outcome = Outcome.DROPPED;
+    } else {
+      outcome = Outcome.TIED;
+    }
+    int size = 2 + len + 1 + 2 + 4 * scores.length;
+    if (current.buf.length - current.length < size) {
+      next(size);
+    }
+    byte[] b = current.buf;
+    int p = current.length;
+    b[p++] = (byte) (len >>> 8);
+    b[p++] = (byte) len;
+    System.arraycopy(name, off, b, p, len);
+    p += len;
+    b[p++] = (byte) outcome.ordinal();
+    b[p++] = (byte) (winner >>> 8);
+    b[p++] = (byte) winner;
+    for (int s : scores) {
+      b[p++] = (byte) (s >>> 24);
+      b[p++] = (byte) (s >>> 16);
+      b[p++] = (byte) (s >>> 8);
+      b[p++] = (byte) s;
+    }
+    current.length = p;
+    entries++;
+  }
+
+  /**
+   * Hand the current chunk to the writing thread, and take an empty one with
+   * room for at least size bytes.
+   */
+  private void next(int size) {
+    try {
+      if (current.length > 0) {
+        handOver();
+      }
+    } catch (InterruptedIOException ie) {
+      throw new RuntimeIOException(ie);
+    }
+    if (current.buf.length < size) {
+      current.buf = new byte[size];
+    }
+  }
+
+  private void handOver() throws InterruptedIOException {
+    if (!full.put(current) || (current = free.take()) == null) {
+      throw failed();
+    }
+    sent++;
+  }
+
+  /**
+   * Write every entry so far, and wait for it to reach the disk.
+   *
+   * @return the file length, at a block boundary
+   * @throws IOException if the file can't be written
+   */
+  long sync() throws IOException {
+    if (current.length > 0) {
+      handOver();
+    }
+    while (written.get() < sent) {
+      if (failure != null) {
+        throw failed();
+      }
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+    return out.sync();
+  }
+
+  private RuntimeIOException failed() {
+    Throwable t = failure;
+    if (t instanceof RuntimeIOException) {
+      return (RuntimeIOException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new RuntimeIOException("decision log " + file.getFileName() + " stopped", t);
+  }
+
+  /**
+   * Return the number of reads recorded.
+   *
+   * @return entries
+   */
+  long entries() {
+    return entries;
+  }
+
+  /**
+   * Write what is left, stop the writing thread, and close the file.
+   */
+  public void close() throws IOException {
+    if (out == null) {
+      return;
+    }
+    try {
+      if (current != null && current.length > 0) {
+        full.put(current);
+      }
+      full.close();
+      thread.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted stopping " + thread.getName());
+    } finally {
+      current = null;
+      out.close();
+      out = null;
+    }
+    if (failure != null) {
+      Throwable t = failure;
+      if (t instanceof IOException) {
+        throw (IOException) t;
+      }
+      throw new IOException("decision log " + file.getFileName() + " stopped", t);
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Reads back a DecisionLog, one read at a time, and summarises it: how many
+ * reads were won, tied, dropped or unmapped everywhere, how many each input
+ * kept, and for each pair of inputs, a histogram of the difference in score
+ * of the reads both had. A close contest between two aligners shows up as a
+ * histogram bunched around zero.
+ *
+ * Run as a program, it prints the summary of the log named on the command
+ * line:
+ *
+ * <pre>
+ *   DecisionLogReader decisions.bmdl [max-difference]
+ * </pre>
+ *
+ * Differences beyond the maximum (DEFAULT_MAX_DIFF unless given) are counted
+ * in the end bins.
+ */
+class DecisionLogReader implements Closeable {
+  static final int DEFAULT_MAX_DIFF = 50;
+
+  protected final DataInputStream in;
+  protected final List<String> inputs;
+  protected byte[] name = new byte[256];
+  protected int nameLength = 0;
+  protected DecisionLog.Outcome outcome = null;
+  protected int winner = 0;
+  protected final int[] scores;
+
+  /**
+   * Open a log and read its header.
+   *
+   * @param file the log
+   * @throws IOException if the file can't be read, or isn't a decision log
+   */
+  DecisionLogReader(Path file) throws IOException {
+    in = new DataInputStream(new BlockCompressedInputStream(file.toFile()));
+    try {
+      byte[] magic = new byte[DecisionLog.MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, DecisionLog.MAGIC)) {
+        throw new IOException(file.getFileName() + " is not a decision log");
+      }
+      int n = in.readInt();
+      inputs = new ArrayList<String>(n);
+      for (int i = 0; i < n; i++) {
+        inputs.add(in.readUTF());
+      }
+    } catch (IOException ioe) {
+      in.close();
+      throw ioe;
+    }
+    scores = new int[inputs.size()];
+  }
+
+  /**
+   * Return the names of the merge's inputs, in input order.
+   *
+   * @return file names
+   */
+  List<String> inputs() {
+    return inputs;
+  }
+
+  /**
+   * Read the next entry.
+   *
+   * @return false at the end of the log
+   * @throws IOException if the log can't be read, or ends part way through an
+   *           entry
+   */
+  boolean next() throws IOException {
+    int hi = in.read();
+    if (hi < 0) {
+      return false;
+    }
+    nameLength = hi << 8 | in.readUnsignedByte();
+    if (nameLength > name.length) {
+      name = new byte[nameLength];
+    }
+    in.readFully(name, 0, nameLength);
+    int o = in.readUnsignedByte();
+    DecisionLog.Outcome[] all = DecisionLog.Outcome.values();
+    if (o >= all.length) {
+      throw new IOException("unknown outcome " + o + " for read " + name());
+    }
+    outcome = all[o];
+    winner = in.readShort();
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = in.readInt();
+    }
+    return true;
+  }
+
+  /**
+   * Return the current read's name.
+   *
+   * @return the name
+   */
+  String name() {
+    return new String(name, 0, nameLength, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Return why the current read was kept or dropped.
+   *
+   * @return the outcome
+   */
+  DecisionLog.Outcome outcome() {
+    return outcome;
+  }
+
+  /**
+   * Return the input that kept the current read.
+   *
+   * @return the input, from 0, or TieBreaker.KEEP_ALL or TieBreaker.DROP
+   */
+  int winner() {
+    return winner;
+  }
+
+  /**
+   * Return the current read's score in one input.
+   *
+   * @param input the input, from 0
+   * @return the score, ScoringPolicy.UNSCORED if no hit scored, or
+   *         DecisionLog.ABSENT if the input doesn't have the read
+   */
+  int score(int input) {
+    return scores[input];
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Counts over a whole log.
+   */
+  static class Summary {
+    final List<String> inputs;
+    final int maxDiff;
+    final long[] outcomes = new long[DecisionLog.Outcome.values().length];
+    final long[] kept;
+    final long[][][] differences;
+    long reads = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param inputs the names of the inputs
+     * @param maxDiff the largest difference in score counted on its own
+     */
+    Summary(List<String> inputs, int maxDiff) {
+      this.inputs = inputs;
+      this.maxDiff = maxDiff;
+      int n = inputs.size();
+      kept = new long[n];
+      differences = new long[n][n][];
+      for (int i = 0; i < n; i++) {
+        for (int j = i + 1; j < n; j++) {
+          differences[i][j] = new long[2 * maxDiff + 1];
+        }
+      }
+    }
+
+    /**
+     * Count the current entry of a reader.
+     *
+     * @param r the reader
+     */
+    void add(DecisionLogReader r) {
+      reads++;
+      outcomes[r.outcome().ordinal()]++;
+      if (r.winner() >= 0) {
+        kept[r.winner()]++;
+      } else if (r.winner() == TieBreaker.KEEP_ALL) {
+        int best = best(r);
+        for (int i = 0; i < kept.length; i++) {
+          if (r.score(i) == best) {
+            kept[i]++;
+          }
+        }
+      }
+      for (int i = 0; i < kept.length; i++) {
+        if (!scored(r.score(i))) {
+          continue;
+        }
+        for (int j = i + 1; j < kept.length; j++) {
+          if (scored(r.score(j))) {
+            long d = Math.max(-maxDiff, Math.min(maxDiff, (long) r.score(i) - r.score(j)));
+            differences[i][j][(int) d + maxDiff]++;
+          }
+        }
+      }
+    }
+
+    private static boolean scored(int s) {
+      return s != DecisionLog.ABSENT && s != ScoringPolicy.UNSCORED;
+    }
+
+    private int best(DecisionLogReader r) {
+      int best = DecisionLog.ABSENT;
+      for (int i = 0; i < kept.length; i++) {
+        best = Math.max(best, r.score(i));
+      }
+      return best;
+    }
+
+    /**
+     * Return the number of reads with one outcome.
+     *
+     * @param o the outcome
+     * @return reads
+     */
+    long count(DecisionLog.Outcome o) {
+      return outcomes[o.ordinal()];
+    }
+
+    /**
+     * Return one bin of the histogram for a pair of inputs.
+     *
+     * @param i the first input, from 0
+     * @param j a later input
+     * @param diff the score in i less the score in j; the end bins count any
+     *          difference beyond them too
+     * @return reads
+     */
+    long difference(int i, int j, int diff) {
+      return differences[i][j][Math.max(-maxDiff, Math.min(maxDiff, diff)) + maxDiff];
+    }
+
+    /**
+     * Print the summary as tab-separated lines, leaving out empty bins.
+     *
+     * @param out where to print
+     */
+    void print(PrintStream out) {
+      out.println("reads\t" + reads);
+      for (DecisionLog.Outcome o : DecisionLog.Outcome.values()) {
+        out.println(o.name().toLowerCase() + "\t" + count(o));
+      }
+      for (int i = 0; i < kept.length; i++) {
+        out.println("kept by " + inputs.get(i) + "\t" + kept[i]);
+      }
+      for (int i = 0; i < kept.length; i++) {
+        for (int j = i + 1; j < kept.length; j++) {
+          long both = 0;
+          for (long c : differences[i][j]) {
+            both += c;
+          }
+          out.println();
+          out.println("score in " + inputs.get(i) + " less score in " + inputs.get(j) + "\t" + both + " reads");
+          for (int d = -maxDiff; d <= maxDiff; d++) {
+            long c = difference(i, j, d);
+            if (c > 0) {
+              String bin = d == -maxDiff ? "<=" + d : d == maxDiff ? ">=" + d : Integer.toString(d);
+              out.println(bin + "\t" + c);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a whole log and count it.
+   *
+   * @param file the log
+   * @param maxDiff the largest difference in score counted on its own
+   * @return the summary
+   * @throws IOException if the log can't be read
+   */
+  static Summary summarise(Path file, int maxDiff) throws IOException {
+    DecisionLogReader r = new DecisionLogReader(file);
+    try {
+      Summary s = new Summary(r.inputs(), maxDiff);
+      while (r.next()) {
+        s.add(r);
+      }
+      return s;
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Print the summary of a log.
+   *
+   * @param args the log, and optionally the largest difference to count on its
+   *          own
+   */
+  public static void main(String[] args) {
+    Logger log = LogManager.getLogger(DecisionLogReader.class);
+    int rc = 0;
+    if (args.length < 1 || args.length > 2) {
+      log.error("Usage: DecisionLogReader <decision log> [max-difference]");
+      rc = -1;
+    } else {
+      try {
+        int maxDiff = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_DIFF;
+        if (maxDiff < 1) {
+          throw new NumberFormatException("must be at least one");
+        }
+        summarise(Paths.get(args[0]), maxDiff).print(System.out);
+      } catch (NumberFormatException nfe) {
+        log.error("Bad maximum difference {}: {}", args[1], nfe.getMessage());
+        rc = -1;
+      } catch (IOException | RuntimeException e) {
+        log.error("Unable to read {}: {}", args[0], e.toString());
+        rc = -1;
+      }
+    }
+    System.exit(rc);
+  }
+}
@@ -0,0 +1,393 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the records of a file by read name without holding the records: each
+ * is reduced to an entry of its packed name key (see ReadNameCodec), its name
+ * bytes, the virtual file offset it starts at and, optionally, its score.
+ * Entries are collected in memory up to a limit, sorted, and spilled to a
+ * temporary "run" file; at the end, the runs are merged back in a k-way merge
+ * (or if nothing was spilled, the entries are sorted in memory), which yields
+ * the offsets in name order. The caller then reads the records themselves by
+ * seeking (see SortedReadCursor), or decides from the scores alone which to
+ * keep (see TwoPassMerge).
+ *
+ * An entry takes the length of its name plus about 30 bytes in memory, so a
+ * limit of 1GB holds around 15 million entries of Illumina names before
+ * spilling. The name bytes are kept even for packed names, since packed keys
+ * only follow the natural ReadNameOrder.
+ */
+class ExternalNameSort implements Closeable {
+
+  /**
+   * Bytes of memory per entry, besides its name: key, offset and score, name
+   * offset, sort index and the sort's scratch index.
+   */
+  static final int ENTRY_OVERHEAD = 8 + 8 + 4 + 4 + 4 + 4;
+  static final long MIN_MEMORY = 1L << 20;
+
+  protected final ReadNameOrder order;
+  protected final long maxMemory;
+  protected final Path tempDir;
+  protected long[] keys = new long[1024];
+  protected long[] offsets = new long[1024];
+  protected int[] scores = new int[1024];
+  protected int[] nameOffsets = new int[1025];
+  protected byte[] names = new byte[32768];
+  protected int count = 0;
+  protected List<Path> runFiles = new ArrayList<Path>();
+  protected PriorityQueue<Run> queue = null;
+  protected Run current = null;
+  protected long entries = 0;
+
+  /**
+   * An iterator over sorted entries, from memory or from a run file.
+   */
+  abstract static class Run {
+    long key;
+    long offset;
+    int score;
+    byte[] name = new byte[256];
+    int nameLength;
+
+    abstract boolean next() throws IOException;
+
+    void close() throws IOException {
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param order the order to sort names in
+   * @param maxMemory bytes of memory to use for entries before spilling (at
+   *          least MIN_MEMORY is used regardless)
+   * @param tempDir directory for run files
+   */
+  ExternalNameSort(ReadNameOrder order, long maxMemory, Path tempDir) {
+    this.order = order;
+    this.maxMemory = Math.max(maxMemory, MIN_MEMORY);
+    this.tempDir = tempDir;
+  }
+
+  /**
+   * Return the memory held by the entry buffers.
+   *
+   * @return bytes
+   */
+  long memory() {
+    if (keys == null) {
+      return 0;
+    }
+    return (long) keys.length * ENTRY_OVERHEAD + names.length;
+  }
+
+  /**
+   * Add an entry with no score.
+   *
+   * @param key the packed name, or ReadNameCodec.RAW
+   * @param name buffer holding the name
+   * @param off offset of the name
+   * @param len length of the name
+   * @param offset virtual file offset of the record
+   * @throws IOException if a run can't be written
+   */
+  void add(long key, byte[] name, int off, int len, long offset) throws IOException {
+    add(key, name, off, len, offset, 0);
+  }
+
+  /**
+   * Add an entry.
+   *
+   * @param key the packed name, or ReadNameCodec.RAW
+   * @param name buffer holding the name
+   * @param off offset of the name
+   * @param len length of the name
+   * @param offset virtual file offset of the record, or any other long the
+   *          caller wants back with the entry
+   * @param score the record's score
+   * @throws IOException if a run can't be written
+   */
+  void add(long key, byte[] name, int off, int len, long offset, int score) throws IOException {
+    if (count == keys.length || nameOffsets[count] + len > names.length) {
+      if (!grow(len)) {
+        spill();
+      }
+    }
+    int p = nameOffsets[count];
+    System.arraycopy(name, off, names, p, len);
+    keys[count] = key;
+    offsets[count] = offset;
+    scores[count] = score;
+    nameOffsets[++count] = p + len;
+    entries++;
+  }
+
+  /**
+   * Grow whichever buffer is full by half, unless that would take memory over
+   * the limit.
+   */
+  private boolean grow(int len) {
+    int n = keys.length;
+    int bytes = names.length;
+    if (count == n) {
+      n += n >> 1;
+    }
+    while (nameOffsets[count] + len > bytes) {
+      bytes += bytes >> 1;
+    }
+    if ((long) n * ENTRY_OVERHEAD + bytes > maxMemory) {
+      return false;
+    }
+    if (n != keys.length) {
+      keys = Arrays.copyOf(keys, n);
+      offsets = Arrays.copyOf(offsets, n);
+      scores = Arrays.copyOf(scores, n);
+      nameOffsets = Arrays.copyOf(nameOffsets, n + 1);
+    }
+    if (bytes != names.length) {
+      names = Arrays.copyOf(names, bytes);
+    }
+    return true;
+  }
+
+  private int compareEntries(int a, int b) {
+    return order.compare(keys[a], names, nameOffsets[a], nameOffsets[a + 1] - nameOffsets[a], keys[b], names,
+        nameOffsets[b], nameOffsets[b + 1] - nameOffsets[b]);
+  }
+
+  /**
+   * Sort the buffered entries, returning their indices in order. A stable
+   * bottom-up merge sort on ints, so that no Integer need be boxed.
+   */
+  protected int[] sortedIndex() {
+    int[] a = new int[count];
+    int[] b = new int[count];
+    for (int i = 0; i < count; i++) {
+      a[i] = i;
+    }
+    for (int width = 1; width < count; width <<= 1) {
+      for (int lo = 0; lo < count; lo += width << 1) {
+        int mid = Math.min(lo + width, count);
+        int hi = Math.min(lo + (width << 1), count);
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          b[k++] = compareEntries(a[j], a[i]) < 0 ? a[j++] : a[i++];
+        }
+        while (i < mid) {
+          b[k++] = a[i++];
+        }
+        while (j < hi) {
+          b[k++] = a[j++];
+        }
+      }
+      int[] t = a;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  /**
+   * Sort the buffered entries and write them to a new run file.
+   *
+   * @throws IOException if the file can't be written
+   */
+  protected void spill() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    int[] index = sortedIndex();
+    Path p = Files.createTempFile(tempDir, "nameSort", ".run");
+    runFiles.add(p);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p), 1 << 16));
+    try {
+      for (int i : index) {
+        out.writeLong(keys[i]);
+        out.writeLong(offsets[i]);
+        out.writeInt(scores[i]);
+        out.writeShort(nameOffsets[i + 1] - nameOffsets[i]);
+        out.write(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i]);
+      }
+    } finally {
+      out.close();
+    }
+    count = 0;
+  }
+
+  /**
+   * Finish adding entries, and prepare to return them in order. If nothing has
+   * been spilled, the entries are returned from memory. Otherwise the last of
+   * them are spilled too, and the buffers released, so that the memory is free
+   * while the runs are merged (see SortedReadCursor).
+   *
+   * @throws IOException if a run can't be read
+   */
+  void finish() throws IOException {
+    if (!runFiles.isEmpty()) {
+      spill();
+      keys = null;
+      offsets = null;
+      scores = null;
+      nameOffsets = null;
+      names = null;
+    }
+    final int[] index = keys == null ? new int[0] : sortedIndex();
+    Comparator<Run> cmp = new Comparator<Run>() {
+      public int compare(Run a, Run b) {
+        return order.compare(a.key, a.name, 0, a.nameLength, b.key, b.name, 0, b.nameLength);
+      }
+    };
+    queue = new PriorityQueue<Run>(runFiles.size() + 1, cmp);
+    for (Path p : runFiles) {
+      Run r = new FileRun(p);
+      if (r.next()) {
+        queue.add(r);
+      } else {
+        r.close();
+      }
+    }
+    Run r = new Run() {
+      int i = 0;
+
+      boolean next() {
+        if (i == index.length) {
+          return false;
+        }
+        int e = index[i++];
+        key = keys[e];
+        offset = offsets[e];
+        score = scores[e];
+        nameLength = nameOffsets[e + 1] - nameOffsets[e];
+        if (nameLength > name.length) {
+          name = new byte[nameLength];
+        }
+        System.arraycopy(names, nameOffsets[e], name, 0, nameLength);
+        return true;
+      }
+    };
+    if (r.next()) {
+      queue.add(r);
+    }
+  }
+
+  /**
+   * A run file being read back.
+   */
+  static class FileRun extends Run {
+    protected final DataInputStream in;
+
+    FileRun(Path p) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 16));
+    }
+
+    boolean next() throws IOException {
+      try {
+        key = in.readLong();
+      } catch (EOFException eof) {
+        return false;
+      }
+      offset = in.readLong();
+      score = in.readInt();
+      nameLength = in.readUnsignedShort();
+      if (nameLength > name.length) {
+        name = new byte[nameLength];
+      }
+      in.readFully(name, 0, nameLength);
+      return true;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Move to the next entry in name order. Only valid after finish().
+   *
+   * @return true if there is one
+   * @throws IOException if a run can't be read
+   */
+  boolean next() throws IOException {
+    if (current != null) {
+      if (current.next()) {
+        queue.add(current);
+      } else {
+        current.close();
+      }
+    }
+    current = queue.poll();
+    return current != null;
+  }
+
+  long key() {
+    return current.key;
+  }
+
+  long offset() {
+    return current.offset;
+  }
+
+  int score() {
+    return current.score;
+  }
+
+  byte[] name() {
+    return current.name;
+  }
+
+  int nameLength() {
+    return current.nameLength;
+  }
+
+  /**
+   * Return the number of entries added.
+   *
+   * @return entries
+   */
+  long size() {
+    return entries;
+  }
+
+  /**
+   * Return the number of runs spilled to disk.
+   *
+   * @return run files
+   */
+  int runCount() {
+    return runFiles.size();
+  }
+
+  public void close() throws IOException {
+    if (queue != null) {
+      for (Run r : queue) {
+        r.close();
+      }
+      queue = null;
+    }
+    if (current != null) {
+      current.close();
+      current = null;
+    }
+    for (Path p : runFiles) {
+      Files.deleteIfExists(p);
+    }
+    runFiles.clear();
+  }
+}
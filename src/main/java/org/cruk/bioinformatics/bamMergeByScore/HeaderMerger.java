@@ -0,0 +1,329 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Combines the headers of the inputs into the header of a merged output, and
+ * records how each input's reference indices and read group and program IDs
+ * map into it (see HeaderRemap, which applies the mapping to raw records).
+ *
+ * The sequence dictionary is the union of the inputs', in input order. A
+ * contig that appears in several inputs with the same length is taken to be
+ * the same contig; one with the same name as an earlier input's but a
+ * different length (chrM of human and of mouse, say) is renamed with its
+ * input's label ("mouse_chrM"). Contig prefixes (see setContigPrefixes())
+ * rename every contig of an input, which keeps the genomes apart even where
+ * lengths happen to agree. Identical read groups and programs in several
+ * inputs are merged; any others whose ID is already taken are given a
+ * suffix, ".2" for the second input and so on, and program chains (PP) are
+ * renamed to match. Comments are kept, without repeats.
+ *
+ * Finally, a @PG line is added for the merge itself, with the command line
+ * if one is given (see setCommandLine()).
+ *
+ * Unlike htsjdk's SamFileHeaderMerger, which this replaces, the mapping is
+ * worked out once, into one table per input, and never looked up by header
+ * or by name while records are written.
+ */
+class HeaderMerger {
+  static final String PROGRAM_NAME = "bamMergeByScore";
+
+  protected final List<SAMFileHeader> headers;
+  protected final SAMFileHeader.SortOrder sortOrder;
+  protected List<String> labels = null;
+  protected List<String> contigPrefixes = null;
+  protected String commandLine = null;
+  protected SAMFileHeader merged = null;
+  protected int[][] refMap = null;
+  protected List<Map<String, String>> readGroupIds = null;
+  protected List<Map<String, String>> programIds = null;
+
+  /**
+   * Constructor just records the headers.
+   *
+   * @param headers the input headers, in input order
+   * @param sortOrder the sort order to declare in the merged header
+   */
+  HeaderMerger(List<SAMFileHeader> headers, SAMFileHeader.SortOrder sortOrder) {
+    this.headers = headers;
+    this.sortOrder = sortOrder;
+  }
+
+  /**
+   * Set the label of each input, used to rename its contigs where they clash
+   * with an earlier input's. By default, inputs are labelled "input1",
+   * "input2" and so on. Call before merge().
+   *
+   * @param labels one label per input
+   */
+  void setLabels(List<String> labels) {
+    this.labels = labels;
+  }
+
+  /**
+   * Prefix the names of every contig of each input, e.g. "hs_" and "mm_". Call
+   * before merge().
+   *
+   * @param prefixes one prefix per input (which may be empty), or null for
+   *          none
+   */
+  void setContigPrefixes(List<String> prefixes) {
+    this.contigPrefixes = prefixes;
+  }
+
+  /**
+   * Set the command line to record in the merge's @PG line. Call before
+   * merge().
+   *
+   * @param commandLine the command line, or null to leave it out
+   */
+  void setCommandLine(String commandLine) {
+    this.commandLine = commandLine;
+  }
+
+  /**
+   * Build the merged header and the mappings into it.
+   *
+   * @return the merged header
+   * @throws SAMException if the contig prefixes don't match the inputs, or
+   *           leave two different contigs with one name
+   */
+  SAMFileHeader merge() {
+    if (contigPrefixes != null && contigPrefixes.size() != headers.size()) {
+      throw new SAMException("expected " + headers.size() + " contig prefixes, one per input; got "
+          + contigPrefixes.size());
+    }
+    merged = new SAMFileHeader();
+    merged.setSortOrder(sortOrder);
+    String ss = commonSubSort();
+    if (ss != null) {
+      merged.setAttribute("SS", ss);
+    }
+    mergeSequences();
+    readGroupIds = new ArrayList<Map<String, String>>(headers.size());
+    programIds = new ArrayList<Map<String, String>>(headers.size());
+    mergeReadGroups();
+    mergePrograms();
+    Set<String> comments = new LinkedHashSet<String>();
+    for (SAMFileHeader h : headers) {
+      comments.addAll(h.getComments());
+    }
+    for (String c : comments) {
+      merged.addComment(c);
+    }
+    addProgram(merged, commandLine);
+    return merged;
+  }
+
+  /**
+   * Return the sub-sort all inputs declare (the SS tag, see ReadNameOrder), if
+   * they agree and the output keeps their order.
+   */
+  private String commonSubSort() {
+    String ss = null;
+    for (SAMFileHeader h : headers) {
+      String s = h.getAttribute("SS");
+      if (s == null || h.getSortOrder() != sortOrder || (ss != null && !ss.equals(s))) {
+        return null;
+      }
+      ss = s;
+    }
+    return ss;
+  }
+
+  private String label(int i) {
+    return labels != null ? labels.get(i) : "input" + (i + 1);
+  }
+
+  private void mergeSequences() {
+    SAMSequenceDictionary dict = new SAMSequenceDictionary();
+    refMap = new int[headers.size()][];
+    for (int i = 0; i < headers.size(); i++) {
+      List<SAMSequenceRecord> seqs = headers.get(i).getSequenceDictionary().getSequences();
+      String prefix = contigPrefixes == null ? "" : contigPrefixes.get(i);
+      refMap[i] = new int[seqs.size()];
+      for (int r = 0; r < seqs.size(); r++) {
+        SAMSequenceRecord seq = seqs.get(r);
+        String name = prefix + seq.getSequenceName();
+        SAMSequenceRecord existing = dict.getSequence(name);
+        if (existing != null && existing.getSequenceLength() != seq.getSequenceLength()) {
+          name = label(i) + "_" + name;
+          existing = dict.getSequence(name);
+          if (existing != null && existing.getSequenceLength() != seq.getSequenceLength()) {
+            throw new SAMException("contig " + seq.getSequenceName() + " of input " + (i + 1)
+                + " clashes with another of a different length; give contig prefixes");
+          }
+        }
+        if (existing == null) {
+          SAMSequenceRecord copy = new SAMSequenceRecord(name, seq.getSequenceLength());
+          for (Map.Entry<String, String> a : seq.getAttributes()) {
+            copy.setAttribute(a.getKey(), a.getValue());
+          }
+          dict.addSequence(copy);
+          existing = copy;
+        }
+        refMap[i][r] = existing.getSequenceIndex();
+      }
+    }
+    merged.setSequenceDictionary(dict);
+  }
+
+  private void mergeReadGroups() {
+    Map<String, SAMReadGroupRecord> taken = new HashMap<String, SAMReadGroupRecord>();
+    List<SAMReadGroupRecord> groups = new ArrayList<SAMReadGroupRecord>();
+    for (int i = 0; i < headers.size(); i++) {
+      Map<String, String> renamed = new HashMap<String, String>();
+      for (SAMReadGroupRecord rg : headers.get(i).getReadGroups()) {
+        SAMReadGroupRecord other = taken.get(rg.getId());
+        if (other != null && other.equivalent(rg)) {
+          continue;
+        }
+        String id = other == null ? rg.getId() : unique(rg.getId(), i, taken.keySet());
+        SAMReadGroupRecord copy = new SAMReadGroupRecord(id, rg);
+        taken.put(id, copy);
+        groups.add(copy);
+        if (!id.equals(rg.getId())) {
+          renamed.put(rg.getId(), id);
+        }
+      }
+      readGroupIds.add(renamed);
+    }
+    merged.setReadGroups(groups);
+  }
+
+  private void mergePrograms() {
+    Map<String, SAMProgramRecord> taken = new HashMap<String, SAMProgramRecord>();
+    List<SAMProgramRecord> programs = new ArrayList<SAMProgramRecord>();
+    for (int i = 0; i < headers.size(); i++) {
+      Map<String, String> renamed = new HashMap<String, String>();
+      List<SAMProgramRecord> mine = headers.get(i).getProgramRecords();
+      // choose all the IDs first, so that chains can be renamed whatever
+      // order the records are in
+      List<SAMProgramRecord> added = new ArrayList<SAMProgramRecord>();
+      for (SAMProgramRecord pg : mine) {
+        SAMProgramRecord other = taken.get(pg.getId());
+        if (other != null && other.equivalent(pg)) {
+          continue;
+        }
+        String id = other == null ? pg.getId() : unique(pg.getId(), i, taken.keySet());
+        if (!id.equals(pg.getId())) {
+          renamed.put(pg.getId(), id);
+        }
+        SAMProgramRecord copy = new SAMProgramRecord(id, pg);
+        taken.put(id, copy);
+        added.add(copy);
+      }
+      for (SAMProgramRecord copy : added) {
+        String pp = copy.getPreviousProgramGroupId();
+        if (pp != null && renamed.containsKey(pp)) {
+          copy.setPreviousProgramGroupId(renamed.get(pp));
+        }
+      }
+      programs.addAll(added);
+      programIds.add(renamed);
+    }
+    merged.setProgramRecords(programs);
+  }
+
+  private static String unique(String id, int input, Set<String> taken) {
+    String candidate = id + "." + (input + 1);
+    for (int k = 2; taken.contains(candidate); k++) {
+      candidate = id + "." + (input + 1) + "." + k;
+    }
+    return candidate;
+  }
+
+  /**
+   * Add a @PG line for this program to a header, following the last program
+   * of the header's first chain, if there is one. The ID is PROGRAM_NAME, or
+   * if that is taken, PROGRAM_NAME with a suffix.
+   *
+   * @param header the header to add to
+   * @param commandLine the command line, or null to leave it out
+   */
+  static void addProgram(SAMFileHeader header, String commandLine) {
+    Set<String> ids = new HashSet<String>();
+    Set<String> previous = new HashSet<String>();
+    for (SAMProgramRecord pg : header.getProgramRecords()) {
+      ids.add(pg.getId());
+      if (pg.getPreviousProgramGroupId() != null) {
+        previous.add(pg.getPreviousProgramGroupId());
+      }
+    }
+    String id = PROGRAM_NAME;
+    for (int k = 1; ids.contains(id); k++) {
+      id = PROGRAM_NAME + "." + k;
+    }
+    SAMProgramRecord pg = new SAMProgramRecord(id);
+    pg.setProgramName(PROGRAM_NAME);
+    String version = HeaderMerger.class.getPackage().getImplementationVersion();
+    if (version != null) {
+      pg.setProgramVersion(version);
+    }
+    if (commandLine != null) {
+      pg.setCommandLine(commandLine);
+    }
+    for (SAMProgramRecord last : header.getProgramRecords()) {
+      if (!previous.contains(last.getId())) {
+        pg.setPreviousProgramGroupId(last.getId());
+        break;
+      }
+    }
+    header.addProgramRecord(pg);
+  }
+
+  /**
+   * Return the merged header. Only valid after merge().
+   *
+   * @return the header
+   */
+  SAMFileHeader getMergedHeader() {
+    return merged;
+  }
+
+  /**
+   * Return the table from an input's reference indices to the merged header's.
+   * Only valid after merge(); the array must not be modified.
+   *
+   * @param source the input
+   * @return the merged index of each of the input's references
+   */
+  int[] referenceMap(int source) {
+    return refMap[source];
+  }
+
+  /**
+   * Return the read group IDs of an input that were renamed in the merged
+   * header. Only valid after merge().
+   *
+   * @param source the input
+   * @return old ID to new, empty if none were renamed
+   */
+  Map<String, String> renamedReadGroups(int source) {
+    return readGroupIds.get(source);
+  }
+
+  /**
+   * Return the program IDs of an input that were renamed in the merged header.
+   * Only valid after merge().
+   *
+   * @param source the input
+   * @return old ID to new, empty if none were renamed
+   */
+  Map<String, String> renamedPrograms(int source) {
+    return programIds.get(source);
+  }
+}
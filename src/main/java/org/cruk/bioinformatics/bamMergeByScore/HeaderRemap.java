@@ -0,0 +1,108 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Rewrites raw records (see RawBamRecord) from several inputs into a merged
+ * header, in place. The mapping is worked out once, by HeaderMerger, when the
+ * output is opened: a table from each input's reference indices to the merged
+ * ones, and the read group and program IDs that had to be renamed to avoid
+ * collisions. Applying it to a record is then two array lookups, plus a tag
+ * rewrite for records whose RG or PG was renamed, which is rare.
+ *
+ * This is what lets a merged output copy winning records through as bytes
+ * rather than decoding and re-encoding each one.
+ */
+class HeaderRemap {
+  protected final SAMFileHeader mergedHeader;
+  protected final int[][] refMap;
+  protected final byte[][][] rgFrom;
+  protected final byte[][][] rgTo;
+  protected final byte[][][] pgFrom;
+  protected final byte[][][] pgTo;
+
+  /**
+   * Take the mapping from each input into the merged header.
+   *
+   * @param merger the merger that built the merged header
+   * @param headers the input headers, in input order
+   */
+  HeaderRemap(HeaderMerger merger, List<SAMFileHeader> headers) {
+    int n = headers.size();
+    mergedHeader = merger.getMergedHeader();
+    refMap = new int[n][];
+    rgFrom = new byte[n][][];
+    rgTo = new byte[n][][];
+    pgFrom = new byte[n][][];
+    pgTo = new byte[n][][];
+    for (int i = 0; i < n; i++) {
+      refMap[i] = merger.referenceMap(i);
+      Map<String, String> rg = merger.renamedReadGroups(i);
+      rgFrom[i] = toBytes(rg.keySet());
+      rgTo[i] = toBytes(rg.values());
+      Map<String, String> pg = merger.renamedPrograms(i);
+      pgFrom[i] = toBytes(pg.keySet());
+      pgTo[i] = toBytes(pg.values());
+    }
+  }
+
+  private static byte[][] toBytes(Collection<String> ids) {
+    byte[][] b = new byte[ids.size()][];
+    int i = 0;
+    for (String id : ids) {
+      b[i++] = StringUtil.stringToBytes(id);
+    }
+    return b;
+  }
+
+  /**
+   * Return the merged header.
+   *
+   * @return the header the records are remapped into
+   */
+  SAMFileHeader getMergedHeader() {
+    return mergedHeader;
+  }
+
+  /**
+   * Rewrite a record from the given input, in place, to fit the merged header.
+   *
+   * @param source the input the record came from
+   * @param rec the record
+   */
+  void apply(int source, RawBamRecord rec) {
+    int[] map = refMap[source];
+    int ref = rec.referenceIndex();
+    if (ref >= 0) {
+      rec.putInt(4, map[ref]);
+    }
+    int mate = rec.mateReferenceIndex();
+    if (mate >= 0) {
+      rec.putInt(24, map[mate]);
+    }
+    if (rgFrom[source].length > 0) {
+      rename(rec, 'R', 'G', rgFrom[source], rgTo[source]);
+    }
+    if (pgFrom[source].length > 0) {
+      rename(rec, 'P', 'G', pgFrom[source], pgTo[source]);
+    }
+  }
+
+  private static void rename(RawBamRecord rec, char c1, char c2, byte[][] from, byte[][] to) {
+    int p = rec.findTag(c1, c2);
+    if (p < 0 || rec.buffer()[p] != 'Z') {
+      return;
+    }
+    for (int i = 0; i < from.length; i++) {
+      if (rec.stringTagEquals(p, from[i])) {
+        rec.replaceStringTag(p, to[i]);
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,567 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters for each stage of a merge, to tell where the time goes:
+ *
+ * <ul>
+ * <li>read: blocks read from disk, and the time spent reading them</li>
+ * <li>inflate: bytes in and out, and CPU time on the worker threads</li>
+ * <li>decode: batches of records passed from the decode threads to the merge
+ * (see PipelinedReader)</li>
+ * <li>merge: records read per input, read decisions made, and ties resolved
+ * (by TiePolicy)</li>
+ * <li>encode: batches of records passed from the merge to the encode threads
+ * (see PipelinedWriter)</li>
+ * <li>deflate: bytes in and out, and CPU time on the worker threads</li>
+ * <li>write: records written, and the time spent writing blocks</li>
+ * </ul>
+ *
+ * Between the stages are queues: of blocks waiting to be inflated or
+ * deflated, and, when the merge is pipelined, of batches waiting between the
+ * merge and the decode and encode threads. Their depths are gauges, and the
+ * time spent waiting on each queue is counted. Blocks are waited for by the
+ * thread that reads or writes the file: the merge thread, or when the merge
+ * is pipelined, the decode and encode threads. Batches are waited for by the
+ * merge thread. So a merge whose thread mostly waits on decode (or without
+ * the pipeline, on inflate) is limited by inflating or reading, one that
+ * mostly waits on encode (or deflate) is limited by deflating or writing,
+ * and one that waits on neither is limited by the merge itself. GC time and
+ * peak heap come from the JVM.
+ *
+ * There is one set of counters for the process, like WorkerPools' default
+ * pool, so that readers and writers deep in the merge needn't be handed it.
+ * The counters are LongAdders, cheap to update from many threads. They can be
+ * watched through JMX (see register()), logged periodically (see
+ * startProgress()), and written out as JSON at the end (see writeJson()).
+ */
+final class MergeMetrics implements MergeMetricsMXBean {
+  static final String OBJECT_NAME = "org.cruk.bioinformatics.bamMergeByScore:type=MergeMetrics";
+
+  private static final MergeMetrics GLOBAL = new MergeMetrics();
+
+  private final Logger log = LogManager.getLogger(MergeMetrics.class);
+  private final Map<String, LongAdder> recordsByInput = new ConcurrentHashMap<String, LongAdder>();
+  private final LongAdder compressedRead = new LongAdder();
+  private final LongAdder inflated = new LongAdder();
+  private final LongAdder inflateNanos = new LongAdder();
+  private final LongAdder readNanos = new LongAdder();
+  private final LongAdder inflateWaitNanos = new LongAdder();
+  private final AtomicInteger inflateQueue = new AtomicInteger();
+  private final AtomicInteger peakInflateQueue = new AtomicInteger();
+  private final LongAdder decodeWaitNanos = new LongAdder();
+  private final AtomicInteger decodeQueue = new AtomicInteger();
+  private final AtomicInteger peakDecodeQueue = new AtomicInteger();
+  private final LongAdder decisions = new LongAdder();
+  private final LongAdder[] ties = new LongAdder[TiePolicy.values().length];
+  private final LongAdder written = new LongAdder();
+  private final LongAdder encodeWaitNanos = new LongAdder();
+  private final AtomicInteger encodeQueue = new AtomicInteger();
+  private final AtomicInteger peakEncodeQueue = new AtomicInteger();
+  private final LongAdder deflated = new LongAdder();
+  private final LongAdder compressedWritten = new LongAdder();
+  private final LongAdder deflateNanos = new LongAdder();
+  private final LongAdder writeNanos = new LongAdder();
+  private final LongAdder deflateWaitNanos = new LongAdder();
+  private final AtomicInteger deflateQueue = new AtomicInteger();
+  private final AtomicInteger peakDeflateQueue = new AtomicInteger();
+  private volatile long startNanos = System.nanoTime();
+  private volatile long gcCountAtStart = 0;
+  private volatile long gcMillisAtStart = 0;
+  private ScheduledExecutorService progress = null;
+
+  private MergeMetrics() {
+    for (int i = 0; i < ties.length; i++) {
+      ties[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Return the process's metrics.
+   *
+   * @return the metrics
+   */
+  static MergeMetrics global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Zero the counters and start the clock, e.g. at the start of a run.
+   */
+  synchronized void reset() {
+    recordsByInput.clear();
+    for (LongAdder a : new LongAdder[] { compressedRead, inflated, inflateNanos, readNanos, inflateWaitNanos,
+        decodeWaitNanos, decisions, written, encodeWaitNanos, deflated, compressedWritten, deflateNanos, writeNanos,
+        deflateWaitNanos }) {
+      a.reset();
+    }
+    for (LongAdder a : ties) {
+      a.reset();
+    }
+    peakInflateQueue.set(0);
+    peakDecodeQueue.set(0);
+    peakEncodeQueue.set(0);
+    peakDeflateQueue.set(0);
+    long[] gc = gcTotals();
+    gcCountAtStart = gc[0];
+    gcMillisAtStart = gc[1];
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+      }
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Register the metrics with the platform MBean server, under OBJECT_NAME,
+   * unless they already are.
+   */
+  void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException jme) {
+      log.warn("Unable to register metrics with JMX: {}", jme.toString());
+    }
+  }
+
+  /**
+   * Return the counter of records read from an input, for the reader to
+   * increment. Inputs are told apart by their full paths, since inputs in
+   * different directories may have the same file name.
+   *
+   * @param input the input's absolute path
+   * @return the counter
+   */
+  LongAdder recordsRead(String input) {
+    LongAdder a = recordsByInput.get(input);
+    if (a == null) {
+      LongAdder fresh = new LongAdder();
+      a = recordsByInput.putIfAbsent(input, fresh);
+      if (a == null) {
+        a = fresh;
+      }
+    }
+    return a;
+  }
+
+  void blockRead(long nanos) {
+    readNanos.add(nanos);
+  }
+
+  void blockInflated(int compressed, int bytes, long nanos) {
+    compressedRead.add(compressed);
+    inflated.add(bytes);
+    inflateNanos.add(nanos);
+  }
+
+  void inflateQueued() {
+    raise(peakInflateQueue, inflateQueue.incrementAndGet());
+  }
+
+  void inflateTaken(long waitNanos) {
+    inflateQueue.decrementAndGet();
+    inflateWaitNanos.add(waitNanos);
+  }
+
+  void decodeQueued() {
+    raise(peakDecodeQueue, decodeQueue.incrementAndGet());
+  }
+
+  void decodeTaken(long waitNanos) {
+    decodeQueue.decrementAndGet();
+    decodeWaitNanos.add(waitNanos);
+  }
+
+  void decided() {
+    decisions.increment();
+  }
+
+  void tied(TiePolicy policy) {
+    ties[policy.ordinal()].increment();
+  }
+
+  void recordWritten() {
+    written.increment();
+  }
+
+  void encodeQueued() {
+    raise(peakEncodeQueue, encodeQueue.incrementAndGet());
+  }
+
+  void encodeWaited(long waitNanos) {
+    encodeWaitNanos.add(waitNanos);
+  }
+
+  void encodeTaken() {
+    encodeQueue.decrementAndGet();
+  }
+
+  void blockDeflated(int bytes, int compressed, long nanos) {
+    deflated.add(bytes);
+    compressedWritten.add(compressed);
+    deflateNanos.add(nanos);
+  }
+
+  void deflateQueued() {
+    raise(peakDeflateQueue, deflateQueue.incrementAndGet());
+  }
+
+  void deflateTaken(long waitNanos) {
+    deflateQueue.decrementAndGet();
+    deflateWaitNanos.add(waitNanos);
+  }
+
+  void blockWritten(long nanos) {
+    writeNanos.add(nanos);
+  }
+
+  private static void raise(AtomicInteger peak, int depth) {
+    int p = peak.get();
+    while (depth > p && !peak.compareAndSet(p, depth)) {
+      p = peak.get();
+    }
+  }
+
+  private static long millis(LongAdder nanos) {
+    return nanos.sum() / 1000000;
+  }
+
+  /**
+   * Sum collections and collection time over all collectors.
+   */
+  private static long[] gcTotals() {
+    long count = 0;
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] { count, millis };
+  }
+
+  public long getElapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  public long getRecordsRead() {
+    long n = 0;
+    for (LongAdder a : recordsByInput.values()) {
+      n += a.sum();
+    }
+    return n;
+  }
+
+  public Map<String, Long> getRecordsReadByInput() {
+    Map<String, Long> m = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> e : recordsByInput.entrySet()) {
+      m.put(e.getKey(), e.getValue().sum());
+    }
+    return m;
+  }
+
+  public long getCompressedBytesRead() {
+    return compressedRead.sum();
+  }
+
+  public long getBytesInflated() {
+    return inflated.sum();
+  }
+
+  public long getInflateMillis() {
+    return millis(inflateNanos);
+  }
+
+  public long getReadMillis() {
+    return millis(readNanos);
+  }
+
+  public long getInflateWaitMillis() {
+    return millis(inflateWaitNanos);
+  }
+
+  public int getInflateQueueDepth() {
+    return inflateQueue.get();
+  }
+
+  public long getPeakInflateQueueDepth() {
+    return peakInflateQueue.get();
+  }
+
+  public long getDecodeWaitMillis() {
+    return millis(decodeWaitNanos);
+  }
+
+  public int getDecodeQueueDepth() {
+    return decodeQueue.get();
+  }
+
+  public long getPeakDecodeQueueDepth() {
+    return peakDecodeQueue.get();
+  }
+
+  public long getDecisions() {
+    return decisions.sum();
+  }
+
+  public long getTies() {
+    long n = 0;
+    for (LongAdder a : ties) {
+      n += a.sum();
+    }
+    return n;
+  }
+
+  /**
+   * Return the ties resolved by each policy that resolved any.
+   */
+  public Map<String, Long> getTiesByPolicy() {
+    Map<String, Long> m = new TreeMap<String, Long>();
+    for (TiePolicy p : TiePolicy.values()) {
+      long n = ties[p.ordinal()].sum();
+      if (n > 0) {
+        m.put(p.toString(), n);
+      }
+    }
+    return m;
+  }
+
+  public long getRecordsWritten() {
+    return written.sum();
+  }
+
+  public long getEncodeWaitMillis() {
+    return millis(encodeWaitNanos);
+  }
+
+  public int getEncodeQueueDepth() {
+    return encodeQueue.get();
+  }
+
+  public long getPeakEncodeQueueDepth() {
+    return peakEncodeQueue.get();
+  }
+
+  public long getBytesDeflated() {
+    return deflated.sum();
+  }
+
+  public long getCompressedBytesWritten() {
+    return compressedWritten.sum();
+  }
+
+  public long getDeflateMillis() {
+    return millis(deflateNanos);
+  }
+
+  public long getWriteMillis() {
+    return millis(writeNanos);
+  }
+
+  public long getDeflateWaitMillis() {
+    return millis(deflateWaitNanos);
+  }
+
+  public int getDeflateQueueDepth() {
+    return deflateQueue.get();
+  }
+
+  public long getPeakDeflateQueueDepth() {
+    return peakDeflateQueue.get();
+  }
+
+  public long getGcCount() {
+    return gcTotals()[0] - gcCountAtStart;
+  }
+
+  public long getGcMillis() {
+    return gcTotals()[1] - gcMillisAtStart;
+  }
+
+  /**
+   * Return the peak heap use since reset(): the sum of each heap pool's peak,
+   * which is an upper bound, since the pools needn't peak together.
+   */
+  public long getPeakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * Log a progress line every so often, on a daemon thread, until
+   * stopProgress().
+   *
+   * @param seconds the interval
+   */
+  synchronized void startProgress(long seconds) {
+    stopProgress();
+    progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "progress");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    progress.scheduleAtFixedRate(new Runnable() {
+      long lastNanos = System.nanoTime();
+      long lastRead = 0;
+      long lastDecisions = 0;
+      long lastInflated = 0;
+      long lastDeflated = 0;
+
+      public void run() {
+        long now = System.nanoTime();
+        double s = Math.max(1e-9, (now - lastNanos) / 1e9);
+        long read = getRecordsRead();
+        long decided = getDecisions();
+        long in = getBytesInflated();
+        long out = getBytesDeflated();
+        log.info(String.format(
+            "Progress: %,d records read (%,.0f/s), %,d decisions (%,.0f/s), %,d written; inflated %.1f MB/s "
+                + "(queue %d), deflated %.1f MB/s (queue %d); waited %,d ms on inflate, %,d ms on deflate; "
+                + "merge waited %,d ms on decode, %,d ms on encode; heap peak %,d MB, GC %,d ms",
+            read, (read - lastRead) / s, decided, (decided - lastDecisions) / s, getRecordsWritten(),
+            (in - lastInflated) / s / (1 << 20), getInflateQueueDepth(), (out - lastDeflated) / s / (1 << 20),
+            getDeflateQueueDepth(), getInflateWaitMillis(), getDeflateWaitMillis(), getDecodeWaitMillis(),
+            getEncodeWaitMillis(), getPeakHeapBytes() >> 20, getGcMillis()));
+        lastNanos = now;
+        lastRead = read;
+        lastDecisions = decided;
+        lastInflated = in;
+        lastDeflated = out;
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop logging progress.
+   */
+  synchronized void stopProgress() {
+    if (progress != null) {
+      progress.shutdownNow();
+      progress = null;
+    }
+  }
+
+  private static void field(StringBuilder sb, String indent, String name, long value, boolean last) {
+    sb.append(indent).append('"').append(name).append("\": ").append(value).append(last ? "\n" : ",\n");
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Return the metrics as a JSON object.
+   *
+   * @return the JSON text
+   */
+  String toJson() {
+    long elapsed = Math.max(1, getElapsedMillis());
+    StringBuilder sb = new StringBuilder(1024);
+    sb.append("{\n");
+    field(sb, "  ", "elapsedMillis", elapsed, false);
+    sb.append("  \"read\": {\n");
+    field(sb, "    ", "records", getRecordsRead(), false);
+    sb.append("    \"recordsByInput\": {");
+    String sep = "\n";
+    for (Map.Entry<String, Long> e : getRecordsReadByInput().entrySet()) {
+      sb.append(sep).append("      ").append(quote(e.getKey())).append(": ").append(e.getValue());
+      sep = ",\n";
+    }
+    sb.append(sep.equals("\n") ? "},\n" : "\n    },\n");
+    field(sb, "    ", "compressedBytes", getCompressedBytesRead(), false);
+    field(sb, "    ", "readMillis", getReadMillis(), true);
+    sb.append("  },\n  \"inflate\": {\n");
+    field(sb, "    ", "bytes", getBytesInflated(), false);
+    field(sb, "    ", "cpuMillis", getInflateMillis(), false);
+    field(sb, "    ", "waitMillis", getInflateWaitMillis(), false);
+    field(sb, "    ", "peakQueueDepth", getPeakInflateQueueDepth(), true);
+    sb.append("  },\n  \"decode\": {\n");
+    field(sb, "    ", "mergeWaitMillis", getDecodeWaitMillis(), false);
+    field(sb, "    ", "peakQueueDepth", getPeakDecodeQueueDepth(), true);
+    sb.append("  },\n  \"merge\": {\n");
+    field(sb, "    ", "decisions", getDecisions(), false);
+    field(sb, "    ", "decisionsPerSecond", getDecisions() * 1000 / elapsed, false);
+    field(sb, "    ", "ties", getTies(), false);
+    sb.append("    \"tiesByPolicy\": {");
+    sep = "\n";
+    for (Map.Entry<String, Long> e : getTiesByPolicy().entrySet()) {
+      sb.append(sep).append("      ").append(quote(e.getKey())).append(": ").append(e.getValue());
+      sep = ",\n";
+    }
+    sb.append(sep.equals("\n") ? "},\n" : "\n    },\n");
+    field(sb, "    ", "recordsWritten", getRecordsWritten(), true);
+    sb.append("  },\n  \"encode\": {\n");
+    field(sb, "    ", "mergeWaitMillis", getEncodeWaitMillis(), false);
+    field(sb, "    ", "peakQueueDepth", getPeakEncodeQueueDepth(), true);
+    sb.append("  },\n  \"deflate\": {\n");
+    field(sb, "    ", "bytes", getBytesDeflated(), false);
+    field(sb, "    ", "cpuMillis", getDeflateMillis(), false);
+    field(sb, "    ", "waitMillis", getDeflateWaitMillis(), false);
+    field(sb, "    ", "peakQueueDepth", getPeakDeflateQueueDepth(), true);
+    sb.append("  },\n  \"write\": {\n");
+    field(sb, "    ", "compressedBytes", getCompressedBytesWritten(), false);
+    field(sb, "    ", "writeMillis", getWriteMillis(), true);
+    sb.append("  },\n  \"jvm\": {\n");
+    field(sb, "    ", "gcCount", getGcCount(), false);
+    field(sb, "    ", "gcMillis", getGcMillis(), false);
+    field(sb, "    ", "peakHeapBytes", getPeakHeapBytes(), true);
+    sb.append("  }\n}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Write the metrics to a file as JSON.
+   *
+   * @param p the file
+   * @throws IOException if it can't be written
+   */
+  void writeJson(Path p) throws IOException {
+    Files.write(p, toJson().getBytes(StandardCharsets.UTF_8));
+  }
+}
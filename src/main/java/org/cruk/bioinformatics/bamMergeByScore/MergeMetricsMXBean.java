@@ -0,0 +1,75 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Map;
+
+/**
+ * The management interface of MergeMetrics, under the name
+ * MergeMetrics.OBJECT_NAME. Times are totals in milliseconds since the run
+ * started; inflate and deflate times are summed over the worker threads, so
+ * may exceed the elapsed time. Inflate and deflate waits are those of the
+ * threads reading and writing the files, which are the decode and encode
+ * threads when the merge is pipelined; decode and encode waits are the merge
+ * thread's.
+ */
+public interface MergeMetricsMXBean {
+
+  long getElapsedMillis();
+
+  long getRecordsRead();
+
+  Map<String, Long> getRecordsReadByInput();
+
+  long getCompressedBytesRead();
+
+  long getBytesInflated();
+
+  long getInflateMillis();
+
+  long getReadMillis();
+
+  long getInflateWaitMillis();
+
+  int getInflateQueueDepth();
+
+  long getPeakInflateQueueDepth();
+
+  long getDecodeWaitMillis();
+
+  int getDecodeQueueDepth();
+
+  long getPeakDecodeQueueDepth();
+
+  long getDecisions();
+
+  long getTies();
+
+  Map<String, Long> getTiesByPolicy();
+
+  long getRecordsWritten();
+
+  long getEncodeWaitMillis();
+
+  int getEncodeQueueDepth();
+
+  long getPeakEncodeQueueDepth();
+
+  long getBytesDeflated();
+
+  long getCompressedBytesWritten();
+
+  long getDeflateMillis();
+
+  long getWriteMillis();
+
+  long getDeflateWaitMillis();
+
+  int getDeflateQueueDepth();
+
+  long getPeakDeflateQueueDepth();
+
+  long getGcCount();
+
+  long getGcMillis();
+
+  long getPeakHeapBytes();
+}
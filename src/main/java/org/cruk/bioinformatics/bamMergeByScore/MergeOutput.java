@@ -0,0 +1,308 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * The output side of a merge: either one merged file, or one filtered file per
+ * input (named by splitOutputName()). In the merged case, the input headers are
+ * combined by a HeaderMerger and each record is remapped into the merged
+ * header as it is written. Raw records (see RawBamRecord) are copied through
+ * as bytes in either case; for a merged output, HeaderRemap rewrites the few
+ * fields that differ. Every output's header gets a @PG line for the merge (see
+ * setProgram()).
+ *
+ * Files are written by ParallelBamWriter; all of them compress on one shared
+ * pool of threads. With a pipeline set (see setPipeline()), each file is
+ * written on a thread of its own, from batches of raw records queued by the
+ * merging thread (see PipelinedWriter).
+ *
+ * For checkpoints, sync() puts everything written so far on disk and gives
+ * the length of each file, and setResume() carries on files cut back to
+ * those lengths.
+ */
+class MergeOutput implements Closeable {
+
+  static final String SPLIT_SUFFIX = ".filtered.bam";
+
+  protected List<Path> inputs;
+  protected List<SAMFileHeader> headers;
+  protected Path mergedOutput;
+  protected ParallelBamWriter[] writers = null;
+  protected PipelinedWriter[] pipes = null;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = 0;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected int part = -1;
+  protected long[] resumeAt = null;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected HeaderMerger headerMerger = null;
+  protected HeaderRemap remap = null;
+  protected SAMFileHeader.SortOrder sortOrder;
+  protected long recordsWritten = 0;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param inputs the input files
+   * @param headers the headers of the input files, in the same order
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   * @param sortOrder the sort order to declare in the merged header
+   */
+  public MergeOutput(List<Path> inputs, List<SAMFileHeader> headers, Path mergedOutput,
+      SAMFileHeader.SortOrder sortOrder) {
+    this.inputs = inputs;
+    this.headers = headers;
+    this.mergedOutput = mergedOutput;
+    this.sortOrder = sortOrder;
+  }
+
+  /**
+   * Set how the outputs are compressed. Call before open().
+   *
+   * @param pool the threads to deflate on, shared by all outputs, or null to
+   *             deflate on the writing thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   */
+  void setCompression(ExecutorService pool, int level, DeflaterFactory deflaterFactory) {
+    this.pool = pool;
+    this.compressionLevel = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Set what goes into the output headers: the command line for the @PG line
+   * of the merge, and for a merged output, a prefix for the contig names of
+   * each input (see HeaderMerger). Call before open().
+   *
+   * @param commandLine the command line, or null to leave it out
+   * @param contigPrefixes one prefix per input, or null for none
+   */
+  void setProgram(String commandLine, List<String> contigPrefixes) {
+    this.commandLine = commandLine;
+    this.contigPrefixes = contigPrefixes;
+  }
+
+  /**
+   * Write each output on a thread of its own, from batches of raw records (see
+   * PipelinedWriter). Records can then only be written raw. Call before
+   * open().
+   *
+   * @param batchSize records per batch, or 0 to write on the merging thread
+   * @param queueCapacity batches that may wait to be written, per output
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Write part of each output rather than the whole (see ShardedMerge): the
+   * records go to partName() of each output file, and only the first part
+   * has the header. Call before open().
+   *
+   * @param part the part number, from 0
+   */
+  void setPart(int part) {
+    this.part = part;
+  }
+
+  /**
+   * Carry on output files written up to a checkpoint, rather than creating
+   * them: each is cut back to its length at the checkpoint (see sync()), and
+   * records are written after it. The headers must be as they were. Call
+   * before open().
+   *
+   * @param lengths the length of each output file, as from sync()
+   */
+  void setResume(long[] lengths) {
+    this.resumeAt = lengths;
+  }
+
+  /**
+   * Return the names of the output files, whole.
+   *
+   * @param inputs the input files
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   * @return the merged output, or one filtered file per input
+   */
+  static List<Path> outputNames(List<Path> inputs, Path mergedOutput) {
+    List<Path> names = new ArrayList<Path>();
+    if (mergedOutput != null) {
+      names.add(mergedOutput);
+    } else {
+      for (Path p : inputs) {
+        names.add(splitOutputName(p));
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Derive the name of one part of an output file, e.g. "merged.bam" part 3 is
+   * "merged.bam.part3".
+   *
+   * @param output the output file
+   * @param part the part number
+   * @return the part file
+   */
+  static Path partName(Path output, int part) {
+    return output.resolveSibling(output.getFileName().toString() + ".part" + part);
+  }
+
+  /**
+   * Derive the name of a "--split" output file from its input, e.g.
+   * "sample.bam" becomes "sample.filtered.bam" in the same directory.
+   *
+   * @param input the input file
+   * @return the corresponding output file
+   */
+  static Path splitOutputName(Path input) {
+    String fn = input.getFileName().toString();
+    if (fn.endsWith(".bam")) {
+      fn = fn.substring(0, fn.length() - 4);
+    }
+    return input.resolveSibling(fn + SPLIT_SUFFIX);
+  }
+
+  /**
+   * Create the output file(s) and write their headers.
+   *
+   * @throws IOException if a file can't be created
+   */
+  void open() throws IOException {
+    List<Path> names = outputNames(inputs, mergedOutput);
+    if (part >= 0) {
+      for (int i = 0; i < names.size(); i++) {
+        names.set(i, partName(names.get(i), part));
+      }
+    }
+    boolean withHeader = part <= 0;
+    if (mergedOutput != null) {
+      headerMerger = new HeaderMerger(headers, sortOrder);
+      List<String> labels = new ArrayList<String>(inputs.size());
+      for (Path p : inputs) {
+        String fn = p.getFileName().toString();
+        labels.add(fn.endsWith(".bam") ? fn.substring(0, fn.length() - 4) : fn);
+      }
+      headerMerger.setLabels(labels);
+      headerMerger.setContigPrefixes(contigPrefixes);
+      headerMerger.setCommandLine(commandLine);
+      headerMerger.merge();
+      remap = new HeaderRemap(headerMerger, headers);
+      writers = new ParallelBamWriter[] { openWriter(names, 0, headerMerger.getMergedHeader(), withHeader) };
+    } else {
+      writers = new ParallelBamWriter[headers.size()];
+      for (int i = 0; i < headers.size(); i++) {
+        SAMFileHeader h = headers.get(i).clone();
+        HeaderMerger.addProgram(h, commandLine);
+        writers[i] = openWriter(names, i, h, withHeader);
+      }
+    }
+    if (batchSize > 0) {
+      pipes = new PipelinedWriter[writers.length];
+      for (int i = 0; i < writers.length; i++) {
+        pipes[i] = new PipelinedWriter(writers[i], names.get(i).getFileName().toString(), batchSize, queueCapacity);
+      }
+    }
+  }
+
+  private ParallelBamWriter openWriter(List<Path> names, int i, SAMFileHeader header, boolean withHeader)
+      throws IOException {
+    if (resumeAt != null) {
+      if (resumeAt.length != names.size()) {
+        throw new IOException("expected " + names.size() + " output lengths to resume from; got " + resumeAt.length);
+      }
+      return ParallelBamWriter.resume(names.get(i), resumeAt[i], header, pool, compressionLevel, deflaterFactory);
+    }
+    return new ParallelBamWriter(names.get(i), header, pool, compressionLevel, deflaterFactory, withHeader);
+  }
+
+  /**
+   * Write a raw record to the appropriate output, without decoding it. For a
+   * merged output, the record is first remapped into the merged header (in
+   * place, so it no longer matches its input's header afterwards).
+   *
+   * @param source the input the record came from
+   * @param rec the record to write
+   */
+  void write(int source, RawBamRecord rec) {
+    int i = source;
+    if (remap != null) {
+      remap.apply(source, rec);
+      i = 0;
+    }
+    if (pipes != null) {
+      pipes[i].addAlignment(rec);
+    } else {
+      writers[i].addAlignment(rec);
+    }
+    recordsWritten++;
+    metrics.recordWritten();
+  }
+
+  /**
+   * Write everything so far to the disk, so that each file ends at a block
+   * boundary with every record written before this call.
+   *
+   * @return the length of each output file
+   * @throws IOException if a file can't be written
+   */
+  long[] sync() throws IOException {
+    long[] lengths = new long[writers.length];
+    for (int i = 0; i < writers.length; i++) {
+      lengths[i] = pipes != null ? pipes[i].sync() : writers[i].sync();
+    }
+    return lengths;
+  }
+
+  /**
+   * Return the number of records written to all outputs.
+   *
+   * @return records written
+   */
+  long recordsWritten() {
+    return recordsWritten;
+  }
+
+  public void close() throws IOException {
+    if (pipes != null) {
+      // closing each pipe closes its writer
+      IOException failure = null;
+      for (PipelinedWriter p : pipes) {
+        try {
+          p.close();
+        } catch (IOException ioe) {
+          failure = failure == null ? ioe : failure;
+        }
+      }
+      pipes = null;
+      writers = null;
+      if (failure != null) {
+        throw failure;
+      }
+    }
+    if (writers != null) {
+      for (ParallelBamWriter w : writers) {
+        if (w != null) {
+          w.close();
+        }
+      }
+      writers = null;
+    }
+  }
+}
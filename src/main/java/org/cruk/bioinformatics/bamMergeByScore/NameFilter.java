@@ -0,0 +1,98 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * A Bloom filter of read names, for telling cheaply that an input does not
+ * have a read. It is blocked: each name sets (and a lookup tests) NUM_BITS bits
+ * within one 512-bit block, a single cache line, so a lookup costs one cache
+ * miss rather than one per bit. At BITS_PER_NAME bits per name this gives
+ * around 1-2% false positives, a little worse than an unblocked filter of the
+ * same size.
+ *
+ * Names are hashed from their bytes (see hash()), not their packed keys, so
+ * that a filter doesn't depend on the codec of the index it was made from.
+ */
+final class NameFilter {
+  static final int BITS_PER_NAME = 10;
+  static final int NUM_BITS = 6;
+  static final int BLOCK_WORDS = 8;
+
+  private final long[] words;
+  private final long blocks;
+
+  /**
+   * Create an empty filter.
+   *
+   * @param expected the number of names it will hold
+   */
+  NameFilter(long expected) {
+    long b = Math.max(1, (expected * BITS_PER_NAME + 511) / 512);
+    if (b * BLOCK_WORDS > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("too many names for a filter: " + expected);
+    }
+    blocks = b;
+    words = new long[(int) (b * BLOCK_WORDS)];
+  }
+
+  /**
+   * Hash a name for the filter. This is the hash ScoreTable stores, so that
+   * its names can be added without being hashed again.
+   *
+   * @param b buffer holding the name
+   * @param off offset of the name
+   * @param len length of the name
+   * @return the hash
+   */
+  static long hash(byte[] b, int off, int len) {
+    return ScoreTable.nonZero(NameHash.hash64(b, off, len));
+  }
+
+  /**
+   * Find a hash's block from its high bits; its bits within the block come
+   * from the low bits, remixed.
+   */
+  private int block(long hash) {
+    return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+  }
+
+  /**
+   * Add a name, by its hash.
+   *
+   * @param hash the name's hash (see hash())
+   */
+  void add(long hash) {
+    int base = block(hash);
+    long h = hash * 0x9e3779b97f4a7c15L;
+    for (int i = 0; i < NUM_BITS; i++) {
+      int bit = (int) (h >>> (i * 9)) & 511;
+      words[base + (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Report whether a name may have been added. False means it certainly
+   * wasn't.
+   *
+   * @param hash the name's hash (see hash())
+   * @return true if it may be present
+   */
+  boolean mightContain(long hash) {
+    int base = block(hash);
+    long h = hash * 0x9e3779b97f4a7c15L;
+    for (int i = 0; i < NUM_BITS; i++) {
+      int bit = (int) (h >>> (i * 9)) & 511;
+      if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return the memory held by the filter.
+   *
+   * @return bytes
+   */
+  long memory() {
+    return (long) words.length * 8;
+  }
+}
@@ -0,0 +1,61 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * 64-bit hashing of read names, directly from their bytes. This is FNV-1a
+ * followed by the MurmurHash3 finalizer, which spreads FNV's weak low bits;
+ * names differing only in their last few digits (which is most of them) still
+ * land far apart. It is not cryptographic, and doesn't need to be.
+ */
+final class NameHash {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private NameHash() {
+  }
+
+  /**
+   * Hash a name.
+   *
+   * @param b   buffer holding the name
+   * @param off offset of the name
+   * @param len length of the name
+   * @return the hash
+   */
+  static long hash64(byte[] b, int off, int len) {
+    return hash64(b, off, len, 0L);
+  }
+
+  /**
+   * Hash a name with a seed, so that different seeds give independent hashes.
+   *
+   * @param b    buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @param seed the seed
+   * @return the hash
+   */
+  static long hash64(byte[] b, int off, int len, long seed) {
+    long h = FNV_OFFSET ^ seed;
+    for (int i = off, end = off + len; i < end; i++) {
+      h ^= b[i] & 0xff;
+      h *= FNV_PRIME;
+    }
+    return mix64(h);
+  }
+
+  /**
+   * MurmurHash3's 64-bit finalizer: every input bit affects every output bit.
+   *
+   * @param h the value to mix
+   * @return the mixed value
+   */
+  static long mix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,205 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.SAMFormatException;
+
+/**
+ * Samples the read names of a BAM file, with the virtual file offset of each
+ * sampled record, without reading the file through: it seeks to evenly spaced
+ * points, finds the next BGZF block there, and then the first record that
+ * starts in that block. ShardedMerge uses the samples to split name-sorted
+ * inputs into ranges of names, and to start reading each range near its
+ * beginning. A name-sorted file has no usable index (".bai" and ".csi" index
+ * coordinates), so this is the only way in.
+ *
+ * Neither block nor record boundaries are marked in a BGZF file. A block
+ * start is recognised by its header, and confirmed by inflating the block; a
+ * record start by its fixed fields being plausible (see isRecord()) for
+ * several records in a row, as each record's length leads to the next.
+ */
+final class NameSampler {
+  static final int RECORDS_TO_CHECK = 3;
+  static final int MAX_RECORD_SIZE = 1 << 28;
+
+  /**
+   * A sampled record: its name and where it starts.
+   */
+  static final class Sample {
+    final byte[] name;
+    final long offset;
+
+    Sample(byte[] name, long offset) {
+      this.name = name;
+      this.offset = offset;
+    }
+  }
+
+  private NameSampler() {
+  }
+
+  /**
+   * Sample the names of a file at evenly spaced points. Points that fall in
+   * the header, or in the same block as an earlier point, give no sample, so
+   * there may be fewer samples than asked for; they are in file order.
+   *
+   * @param bam the file
+   * @param count the number of points to sample at
+   * @param references the number of reference sequences in the header
+   * @param firstRecord the virtual offset of the first record
+   * @return the samples
+   * @throws IOException if the file can't be read
+   */
+  static List<Sample> sample(Path bam, int count, int references, long firstRecord) throws IOException {
+    List<Sample> samples = new ArrayList<Sample>(count);
+    BgzfBlockCache cache = new BgzfBlockCache(bam, 0);
+    try {
+      long size = cache.size();
+      long last = -1;
+      for (int k = 0; k < count; k++) {
+        long address = nextBlock(cache, size * k / count);
+        if (address <= last) {
+          continue;
+        }
+        last = address;
+        Sample s = firstRecord(cache, address, references);
+        if (s != null && s.offset >= firstRecord
+            && (samples.isEmpty() || s.offset > samples.get(samples.size() - 1).offset)) {
+          samples.add(s);
+        }
+      }
+    } finally {
+      cache.close();
+    }
+    return samples;
+  }
+
+  /**
+   * Find the first BGZF block that starts at or after a file offset.
+   *
+   * @return its address, or -1 if there is none
+   */
+  static long nextBlock(BgzfBlockCache cache, long from) throws IOException {
+    ByteBuffer window = ByteBuffer.allocate(BgzfBlockCache.BLOCK_MEMORY + 18);
+    long position = from;
+    while (window.hasRemaining()) {
+      int n = cache.channel.read(window, position);
+      if (n < 0) {
+        break;
+      }
+      position += n;
+    }
+    byte[] b = window.array();
+    int end = window.position() - 18;
+    for (int i = 0; i <= end; i++) {
+      if (b[i] == 0x1f && (b[i + 1] & 0xff) == 0x8b && b[i + 2] == 8 && b[i + 3] == 4 && b[i + 10] == 6
+          && b[i + 11] == 0 && b[i + 12] == 'B' && b[i + 13] == 'C' && b[i + 14] == 2 && b[i + 15] == 0) {
+        try {
+          cache.block(from + i);
+          return from + i;
+        } catch (SAMFormatException | EOFException e) {
+          // the bytes only looked like a block header
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first record that starts in a block.
+   *
+   * @return the record's name and offset, or null if none is found
+   */
+  static Sample firstRecord(BgzfBlockCache cache, long address, int references) throws IOException {
+    int length = cache.block(address).length;
+    byte[] fixed = new byte[RawBamRecord.NAME_OFFSET + 256];
+    for (int off = 0; off < length; off++) {
+      long start = address << 16 | off;
+      byte[] name = null;
+      long vo = start;
+      int r = 0;
+      try {
+        for (; r < RECORDS_TO_CHECK; r++) {
+          if (cache.block(vo >>> 16).length == 0) {
+            break;
+          }
+          cache.read(vo, fixed, 0, RawBamRecord.NAME_OFFSET);
+          int nameLength = fixed[12] & 0xff;
+          if (!isRecord(fixed, references)) {
+            break;
+          }
+          cache.read(vo, fixed, 0, RawBamRecord.NAME_OFFSET + nameLength);
+          if (!isName(fixed, RawBamRecord.NAME_OFFSET, nameLength)) {
+            break;
+          }
+          if (r == 0) {
+            name = new byte[nameLength - 1];
+            System.arraycopy(fixed, RawBamRecord.NAME_OFFSET, name, 0, nameLength - 1);
+          }
+          vo = cache.advance(vo, 4L + getInt(fixed, 0));
+        }
+      } catch (SAMFormatException | EOFException e) {
+        continue;
+      }
+      // a record is accepted if those following it check out, or the file
+      // ends cleanly after them
+      if (r == RECORDS_TO_CHECK || (r > 0 && cache.block(vo >>> 16).length == 0)) {
+        return new Sample(name, start);
+      }
+    }
+    return null;
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+  }
+
+  private static int getUShort(byte[] b, int off) {
+    return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+  }
+
+  /**
+   * Check that the fixed fields of a record (block_size to tlen) are
+   * consistent: references in range, positions not below -1, and a block
+   * size large enough for the name, CIGAR, sequence and qualities.
+   */
+  static boolean isRecord(byte[] b, int references) {
+    long blockSize = getInt(b, 0);
+    int refId = getInt(b, 4);
+    int pos = getInt(b, 8);
+    int nameLength = b[12] & 0xff;
+    int cigarOps = getUShort(b, 16);
+    long seqLength = getInt(b, 20);
+    int mateRefId = getInt(b, 24);
+    int matePos = getInt(b, 28);
+    if (blockSize < 32 || blockSize > MAX_RECORD_SIZE || nameLength < 2 || seqLength < 0) {
+      return false;
+    }
+    if (refId < -1 || refId >= references || mateRefId < -1 || mateRefId >= references || pos < -1
+        || matePos < -1) {
+      return false;
+    }
+    return 32 + nameLength + 4L * cigarOps + (seqLength + 1) / 2 + seqLength <= blockSize;
+  }
+
+  /**
+   * Check that a read name is NUL-terminated, and otherwise made of the
+   * characters the SAM specification allows ('!' to '~', but not '@').
+   */
+  static boolean isName(byte[] b, int off, int length) {
+    if (b[off + length - 1] != 0) {
+      return false;
+    }
+    for (int i = off; i < off + length - 1; i++) {
+      if (b[i] < '!' || b[i] > '~' || b[i] == '@') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,208 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * Open-addressing hash table from packed read name (see ReadNameCodec) to
+ * score, held off-heap like ScoreTable. Since a packed key is the name, there
+ * is no hash to store and no name arena to check against: each slot is just the
+ * key (8 bytes, in one buffer) and the score (4 bytes, in another), and a
+ * lookup is a single long comparison per probe.
+ *
+ * Keys are stored plus one, so that zero can mark an empty slot.
+ */
+class PackedScoreTable {
+  static final double MAX_LOAD = 0.8;
+  static final int MIN_SLOTS = 1024;
+
+  protected PagedBuffer keys = null;
+  protected PagedBuffer scores = null;
+  protected long slotCount = 0;
+  protected long size = 0;
+
+  /**
+   * Create an empty table.
+   */
+  PackedScoreTable() {
+    this(MIN_SLOTS);
+  }
+
+  /**
+   * Create an empty table, sized to hold the given number of keys without
+   * growing.
+   *
+   * @param expected the expected number of keys
+   */
+  PackedScoreTable(long expected) {
+    allocate(Math.max(MIN_SLOTS, (long) (expected / MAX_LOAD) + 1));
+  }
+
+  /**
+   * Wrap existing buffers as a table, e.g. ones mapped from a file (see
+   * SampleDataMapped). A table over read-only buffers can't be added to.
+   *
+   * @param keys the key slots
+   * @param scores the score slots
+   * @param slotCount the number of slots
+   * @param size the number of keys
+   */
+  PackedScoreTable(PagedBuffer keys, PagedBuffer scores, long slotCount, long size) {
+    this.keys = keys;
+    this.scores = scores;
+    this.slotCount = slotCount;
+    this.size = size;
+  }
+
+  private void allocate(long count) {
+    if (count >= (1L << 32)) {
+      throw new IllegalStateException("too many names for a score table: " + size);
+    }
+    keys = new PagedBuffer();
+    keys.allocateExact(count * 8);
+    scores = new PagedBuffer();
+    scores.allocateExact(count * 4);
+    slotCount = count;
+  }
+
+  private long home(long key) {
+    return ((NameHash.mix64(key) >>> 32) * slotCount) >>> 32;
+  }
+
+  /**
+   * Find the slot holding a key, or the empty slot where it would go.
+   *
+   * @return the slot index
+   */
+  private long probe(long stored) {
+    long i = home(stored);
+    while (true) {
+      long k = keys.getLong(i << 3);
+      if (k == 0 || k == stored) {
+        return i;
+      }
+      if (++i == slotCount) {
+        i = 0;
+      }
+    }
+  }
+
+  private void grow() {
+    PagedBuffer oldKeys = keys;
+    PagedBuffer oldScores = scores;
+    long oldCount = slotCount;
+    allocate(oldCount + oldCount / 2);
+    for (long i = 0; i < oldCount; i++) {
+      long k = oldKeys.getLong(i << 3);
+      if (k != 0) {
+        long to = probe(k);
+        keys.putLong(to << 3, k);
+        scores.putInt(to << 2, oldScores.getInt(i << 2));
+      }
+    }
+    oldKeys.clear();
+    oldScores.clear();
+  }
+
+  /**
+   * Record a score for a key, keeping the higher score if it is already present.
+   *
+   * @param key   a packed name, not RAW
+   * @param score the score
+   * @return true if the key was new
+   */
+  boolean put(long key, int score) {
+    long stored = key + 1;
+    long i = probe(stored);
+    if (keys.getLong(i << 3) == stored) {
+      if (score > scores.getInt(i << 2)) {
+        scores.putInt(i << 2, score);
+      }
+      return false;
+    }
+    if (size + 1 > slotCount * MAX_LOAD) {
+      grow();
+      i = probe(stored);
+    }
+    keys.putLong(i << 3, stored);
+    scores.putInt(i << 2, score);
+    size++;
+    return true;
+  }
+
+  /**
+   * Look up the score for a key.
+   *
+   * @param key     a packed name, not RAW
+   * @param missing value to return if the key is absent
+   * @return the score, or missing
+   */
+  int getScore(long key, int missing) {
+    long stored = key + 1;
+    long i = probe(stored);
+    return keys.getLong(i << 3) == stored ? scores.getInt(i << 2) : missing;
+  }
+
+  /**
+   * Report whether a key is present.
+   *
+   * @param key a packed name, not RAW
+   * @return true if present
+   */
+  boolean contains(long key) {
+    long stored = key + 1;
+    return keys.getLong(probe(stored) << 3) == stored;
+  }
+
+  /**
+   * Find the slot holding a key.
+   *
+   * @param key a packed name, not RAW
+   * @return the slot index, or -1 if the key is absent
+   */
+  long slotOf(long key) {
+    long stored = key + 1;
+    long i = probe(stored);
+    return keys.getLong(i << 3) == stored ? i : -1;
+  }
+
+  /**
+   * Return the key stored in a slot, for iterating over the keys.
+   *
+   * @param slot the slot index, from 0 to slotCount() - 1
+   * @return the key, or ReadNameCodec.RAW if the slot is empty
+   */
+  long keyAt(long slot) {
+    long k = keys.getLong(slot << 3);
+    return k == 0 ? ReadNameCodec.RAW : k - 1;
+  }
+
+  long slotCount() {
+    return slotCount;
+  }
+
+  /**
+   * Return the number of keys.
+   *
+   * @return the number of keys
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Return the off-heap memory allocated.
+   *
+   * @return memory in bytes
+   */
+  long memory() {
+    return keys.capacity() + scores.capacity();
+  }
+
+  /**
+   * Release the memory. The table must not be used afterwards.
+   */
+  void clear() {
+    keys.clear();
+    scores.clear();
+    size = 0;
+    slotCount = 0;
+  }
+}
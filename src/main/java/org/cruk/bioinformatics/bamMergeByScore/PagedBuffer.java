@@ -0,0 +1,237 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap memory addressed by a long offset. A single ByteBuffer is limited to
+ * 2GB, so the memory is held as a list of direct buffers ("pages") of a fixed
+ * power-of-two size, allocated as the buffer grows. Callers are expected to lay
+ * out their data so that no value straddles a page boundary, e.g. by keeping
+ * fixed-size slots aligned, or by starting a variable-length entry on a new
+ * page if it won't fit in the current one (see fitsInPage()).
+ *
+ * A buffer can be written to a file and mapped back from it (see writeTo() and
+ * map()); the pages are then mapped regions of the file, read-only, which
+ * processes mapping the same file share through the page cache.
+ *
+ * Nothing here is synchronized.
+ */
+class PagedBuffer {
+  static final int DEFAULT_PAGE_BITS = 26;
+
+  protected final int pageBits;
+  protected final int pageMask;
+  protected ByteBuffer[] pages = new ByteBuffer[0];
+
+  /**
+   * Create an empty buffer with the default page size (64MB).
+   */
+  PagedBuffer() {
+    this(DEFAULT_PAGE_BITS);
+  }
+
+  /**
+   * Create an empty buffer.
+   *
+   * @param pageBits log2 of the page size
+   */
+  PagedBuffer(int pageBits) {
+    this.pageBits = pageBits;
+    this.pageMask = (1 << pageBits) - 1;
+  }
+
+  /**
+   * Return the size of one page.
+   *
+   * @return the page size in bytes
+   */
+  int pageSize() {
+    return 1 << pageBits;
+  }
+
+  /**
+   * Make sure that at least the given number of bytes is addressable. New memory
+   * is zero-filled.
+   *
+   * @param bytes the capacity required
+   */
+  void ensureCapacity(long bytes) {
+    int needed = (int) ((bytes + pageMask) >>> pageBits);
+    if (needed > pages.length) {
+      ByteBuffer[] grown = new ByteBuffer[needed];
+      System.arraycopy(pages, 0, grown, 0, pages.length);
+      for (int i = pages.length; i < needed; i++) {
+        grown[i] = ByteBuffer.allocateDirect(pageSize()).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      pages = grown;
+    }
+  }
+
+  /**
+   * Allocate exactly the given number of bytes, for a buffer that will not grow:
+   * the last page is cut short rather than rounded up. Any existing contents are
+   * discarded.
+   *
+   * @param bytes the capacity required
+   */
+  void allocateExact(long bytes) {
+    int full = (int) (bytes >>> pageBits);
+    int rest = (int) (bytes & pageMask);
+    pages = new ByteBuffer[full + (rest > 0 ? 1 : 0)];
+    for (int i = 0; i < full; i++) {
+      pages[i] = ByteBuffer.allocateDirect(pageSize()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (rest > 0) {
+      pages[full] = ByteBuffer.allocateDirect(rest).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Write the first bytes of the buffer to a file, at the channel's position.
+   *
+   * @param ch the file
+   * @param bytes how many bytes to write
+   * @throws IOException if the file can't be written
+   */
+  void writeTo(FileChannel ch, long bytes) throws IOException {
+    long left = bytes;
+    for (int i = 0; i < pages.length && left > 0; i++) {
+      ByteBuffer b = pages[i].duplicate();
+      b.clear();
+      b.limit((int) Math.min(b.capacity(), left));
+      left -= b.remaining();
+      while (b.hasRemaining()) {
+        ch.write(b);
+      }
+    }
+  }
+
+  /**
+   * Map a buffer written by writeTo() back from its file, read-only. The page
+   * size must be the one it was written with, so that entries laid out not to
+   * cross pages still don't.
+   *
+   * @param ch the file
+   * @param position where the buffer starts in the file
+   * @param bytes the length of the buffer
+   * @param pageBits log2 of the page size
+   * @return the mapped buffer
+   * @throws IOException if the file can't be mapped
+   */
+  static PagedBuffer map(FileChannel ch, long position, long bytes, int pageBits) throws IOException {
+    PagedBuffer b = new PagedBuffer(pageBits);
+    int n = (int) ((bytes + b.pageMask) >>> pageBits);
+    b.pages = new ByteBuffer[n];
+    for (int i = 0; i < n; i++) {
+      long off = (long) i << pageBits;
+      b.pages[i] = ch.map(FileChannel.MapMode.READ_ONLY, position + off, Math.min(b.pageSize(), bytes - off))
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return b;
+  }
+
+  /**
+   * Return the number of bytes currently allocated.
+   *
+   * @return the capacity in bytes
+   */
+  long capacity() {
+    long total = 0;
+    for (ByteBuffer page : pages) {
+      total += page.capacity();
+    }
+    return total;
+  }
+
+  /**
+   * Report whether an entry of the given length, starting at pos, lies within a
+   * single page.
+   *
+   * @param pos the start of the entry
+   * @param len the length of the entry
+   * @return true if it doesn't cross a page boundary
+   */
+  boolean fitsInPage(long pos, int len) {
+    return (pos & pageMask) + len <= pageSize();
+  }
+
+  /**
+   * Release the memory, leaving the buffer empty. Direct buffers are only
+   * freed when collected, so this just drops the references.
+   */
+  void clear() {
+    pages = new ByteBuffer[0];
+  }
+
+  byte get(long pos) {
+    return pages[(int) (pos >>> pageBits)].get((int) (pos & pageMask));
+  }
+
+  void put(long pos, byte v) {
+    pages[(int) (pos >>> pageBits)].put((int) (pos & pageMask), v);
+  }
+
+  short getShort(long pos) {
+    return pages[(int) (pos >>> pageBits)].getShort((int) (pos & pageMask));
+  }
+
+  void putShort(long pos, short v) {
+    pages[(int) (pos >>> pageBits)].putShort((int) (pos & pageMask), v);
+  }
+
+  int getInt(long pos) {
+    return pages[(int) (pos >>> pageBits)].getInt((int) (pos & pageMask));
+  }
+
+  void putInt(long pos, int v) {
+    pages[(int) (pos >>> pageBits)].putInt((int) (pos & pageMask), v);
+  }
+
+  long getLong(long pos) {
+    return pages[(int) (pos >>> pageBits)].getLong((int) (pos & pageMask));
+  }
+
+  void putLong(long pos, long v) {
+    pages[(int) (pos >>> pageBits)].putLong((int) (pos & pageMask), v);
+  }
+
+  /**
+   * Copy bytes in. The range must lie within one page.
+   *
+   * @param pos where to put them
+   * @param src the bytes
+   * @param off offset in src
+   * @param len number of bytes
+   */
+  void put(long pos, byte[] src, int off, int len) {
+    ByteBuffer page = pages[(int) (pos >>> pageBits)];
+    int p = (int) (pos & pageMask);
+    for (int i = 0; i < len; i++) {
+      page.put(p + i, src[off + i]);
+    }
+  }
+
+  /**
+   * Compare stored bytes with an array. The stored range must lie within one
+   * page.
+   *
+   * @param pos where the stored bytes start
+   * @param b   the bytes to compare with
+   * @param off offset in b
+   * @param len number of bytes
+   * @return true if they are the same
+   */
+  boolean equals(long pos, byte[] b, int off, int len) {
+    ByteBuffer page = pages[(int) (pos >>> pageBits)];
+    int p = (int) (pos & pageMask);
+    for (int i = 0; i < len; i++) {
+      if (page.get(p + i) != b[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
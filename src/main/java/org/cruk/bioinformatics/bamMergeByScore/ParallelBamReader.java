@@ -0,0 +1,271 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Reads a BAM file through a ParallelBgzfInputStream, so that the inflating is
+ * spread over a pool of threads while the caller decodes records. This replaces
+ * SamReader for everything that reads the inputs: htsjdk's reader inflates
+ * each block on the thread that asks for it, which makes a single core the
+ * limit on how fast a file can be scanned.
+ *
+ * Only BAM is supported. Anything else raises SAMFormatException.
+ */
+class ParallelBamReader implements Closeable, Iterable<SAMRecord> {
+  static final byte[] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+
+  protected final Path source;
+  protected final ParallelBgzfInputStream in;
+  protected final SAMFileHeader header;
+  protected final BAMRecordCodec codec;
+  protected final byte[] intBuf = new byte[4];
+  protected long recordCount = 0;
+  protected final LongAdder recordsRead;
+
+  /**
+   * Open a BAM file, inflating on the shared default pool.
+   *
+   * @param source the file
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file can't be read
+   */
+  ParallelBamReader(Path source) throws FileNotFoundException, IOException {
+    this(source, WorkerPools.defaultPool(), ParallelBgzfInputStream.DEFAULT_READ_AHEAD);
+  }
+
+  /**
+   * Open a BAM file and read its header.
+   *
+   * @param source the file
+   * @param pool the threads to inflate on, or null for the calling thread
+   * @param readAhead the number of blocks to inflate ahead of the reader
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file can't be read
+   */
+  ParallelBamReader(Path source, ExecutorService pool, int readAhead) throws FileNotFoundException, IOException {
+    if (!Files.exists(source)) {
+      throw new FileNotFoundException("unable to find " + source.getFileName().toString());
+    }
+    this.source = source;
+    this.recordsRead = MergeMetrics.global().recordsRead(source.toAbsolutePath().toString());
+    this.in = new ParallelBgzfInputStream(source, pool, readAhead);
+    try {
+      this.header = readHeader();
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+    this.codec = new BAMRecordCodec(header);
+    codec.setInputStream(in, source.toString());
+  }
+
+  private void readFully(byte[] buf, int off, int len) throws IOException {
+    int got = 0;
+    while (got < len) {
+      int n = in.read(buf, off + got, len - got);
+      if (n < 0) {
+        throw new EOFException(source.getFileName() + ": unexpected end of file");
+      }
+      got += n;
+    }
+  }
+
+  private void readFully(byte[] buf, int len) throws IOException {
+    readFully(buf, 0, len);
+  }
+
+  private int readInt() throws IOException {
+    readFully(intBuf, 4);
+    return (intBuf[0] & 0xff) | ((intBuf[1] & 0xff) << 8) | ((intBuf[2] & 0xff) << 16) | ((intBuf[3] & 0xff) << 24);
+  }
+
+  /**
+   * Read the BAM header: the SAM text, then the binary reference list, which
+   * is used if the text has no @SQ lines.
+   */
+  private SAMFileHeader readHeader() throws IOException {
+    String name = source.getFileName().toString();
+    byte[] magic = new byte[4];
+    readFully(magic, 4);
+    for (int i = 0; i < 4; i++) {
+      if (magic[i] != BAM_MAGIC[i]) {
+        throw new SAMFormatException(name + " is not a BAM file");
+      }
+    }
+    int textLength = readInt();
+    if (textLength < 0) {
+      throw new SAMFormatException(name + ": invalid BAM header length " + textLength);
+    }
+    byte[] text = new byte[textLength];
+    readFully(text, textLength);
+    int end = textLength;
+    while (end > 0 && text[end - 1] == 0) {
+      end--;
+    }
+    SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+    headerCodec.setValidationStringency(ValidationStringency.LENIENT);
+    SAMFileHeader h = headerCodec.decode(BufferedLineReader.fromString(new String(text, 0, end, StandardCharsets.ISO_8859_1)),
+        source.toString());
+
+    int refCount = readInt();
+    List<SAMSequenceRecord> refs = new ArrayList<SAMSequenceRecord>(Math.max(0, refCount));
+    for (int i = 0; i < refCount; i++) {
+      int nameLength = readInt();
+      if (nameLength <= 0) {
+        throw new SAMFormatException(name + ": invalid reference name length " + nameLength);
+      }
+      byte[] refName = new byte[nameLength];
+      readFully(refName, nameLength);
+      int refLength = readInt();
+      refs.add(new SAMSequenceRecord(new String(refName, 0, nameLength - 1, StandardCharsets.ISO_8859_1), refLength));
+    }
+    if (h.getSequenceDictionary().isEmpty() && !refs.isEmpty()) {
+      h.setSequenceDictionary(new SAMSequenceDictionary(refs));
+    } else if (h.getSequenceDictionary().size() != refs.size()) {
+      throw new SAMFormatException(name + ": text header has " + h.getSequenceDictionary().size()
+          + " references but the binary header has " + refs.size());
+    }
+    return h;
+  }
+
+  /**
+   * Return the file's header.
+   *
+   * @return the header
+   */
+  SAMFileHeader getFileHeader() {
+    return header;
+  }
+
+  /**
+   * Return the next record, decoded.
+   *
+   * @return the next record, or null at end of file
+   * @throws IOException if the file can't be read
+   */
+  SAMRecord next() throws IOException {
+    SAMRecord rec = codec.decode();
+    if (rec != null) {
+      recordCount++;
+      recordsRead.increment();
+    }
+    return rec;
+  }
+
+  /**
+   * Read the next record's raw bytes, without decoding it.
+   *
+   * @param rec the record to read into
+   * @return false at end of file
+   * @throws IOException if the file can't be read
+   */
+  boolean next(RawBamRecord rec) throws IOException {
+    int n = in.read(intBuf, 0, 4);
+    if (n < 0) {
+      return false;
+    } else if (n < 4) {
+      readFully(intBuf, n, 4 - n);
+    }
+    int size = (intBuf[0] & 0xff) | ((intBuf[1] & 0xff) << 8) | ((intBuf[2] & 0xff) << 16) | ((intBuf[3] & 0xff) << 24);
+    if (size < RawBamRecord.NAME_OFFSET - 4) {
+      throw new SAMFormatException(source.getFileName() + ": invalid BAM record size " + size);
+    }
+    rec.ensureCapacity(size + 4);
+    System.arraycopy(intBuf, 0, rec.buf, 0, 4);
+    readFully(rec.buf, 4, size);
+    rec.setLength(size + 4);
+    recordCount++;
+    recordsRead.increment();
+    return true;
+  }
+
+  /**
+   * Return the virtual file offset of the next record.
+   *
+   * @return a BGZF virtual file offset
+   * @throws IOException if the file can't be read
+   */
+  long getFilePointer() throws IOException {
+    return in.getFilePointer();
+  }
+
+  /**
+   * Move to the record at a virtual file offset, as from getFilePointer().
+   *
+   * @param virtualOffset the offset of a record
+   * @throws IOException if the file can't be read
+   */
+  void seek(long virtualOffset) throws IOException {
+    in.seek(virtualOffset);
+  }
+
+  /**
+   * Return the number of records read so far.
+   *
+   * @return records read
+   */
+  long recordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Iterate over the remaining records. Read errors surface as the unchecked
+   * exceptions that SamReader iterators throw (htsjdk's RuntimeIOException).
+   */
+  public Iterator<SAMRecord> iterator() {
+    return new Iterator<SAMRecord>() {
+      private SAMRecord pending = null;
+
+      public boolean hasNext() {
+        if (pending == null) {
+          try {
+            pending = ParallelBamReader.this.next();
+          } catch (IOException ioe) {
+            throw new RuntimeIOException(ioe);
+          }
+        }
+        return pending != null;
+      }
+
+      public SAMRecord next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        SAMRecord rec = pending;
+        pending = null;
+        return rec;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,196 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Writes a BAM file through a ParallelBgzfOutputStream, so that compression is
+ * spread over a pool of threads while the caller encodes records. This takes
+ * the place of htsjdk's BAM writer, which deflates every block on the thread
+ * that writes the records.
+ */
+class ParallelBamWriter implements Closeable {
+  static final int DEFAULT_COMPRESSION_LEVEL = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+
+  protected final ParallelBgzfOutputStream out;
+  protected final SAMFileHeader header;
+  protected final BAMRecordCodec codec;
+  protected long recordCount = 0;
+
+  /**
+   * Create a BAM file and write its header.
+   *
+   * @param path the file to create
+   * @param header the header to write
+   * @param pool the threads to deflate on, or null for the calling thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   * @throws IOException if the file can't be written
+   */
+  ParallelBamWriter(Path path, SAMFileHeader header, ExecutorService pool, int level,
+      DeflaterFactory deflaterFactory) throws IOException {
+    this(path, header, pool, level, deflaterFactory, true);
+  }
+
+  /**
+   * Create a BAM file, or with writeHeader false, a part of one: records
+   * only, to be appended to a file that has the header (see ShardedMerge).
+   *
+   * @param path the file to create
+   * @param header the header the records belong to
+   * @param pool the threads to deflate on, or null for the calling thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   * @param writeHeader whether to write the header
+   * @throws IOException if the file can't be written
+   */
+  ParallelBamWriter(Path path, SAMFileHeader header, ExecutorService pool, int level,
+      DeflaterFactory deflaterFactory, boolean writeHeader) throws IOException {
+    this(path, new ParallelBgzfOutputStream(path, pool, level, deflaterFactory), header, writeHeader);
+  }
+
+  private ParallelBamWriter(Path path, ParallelBgzfOutputStream out, SAMFileHeader header, boolean writeHeader)
+      throws IOException {
+    this.header = header;
+    this.out = out;
+    if (writeHeader) {
+      writeHeader();
+    }
+    this.codec = new BAMRecordCodec(header);
+    codec.setOutputStream(out, path.toString());
+  }
+
+  /**
+   * Carry on writing a BAM file that was cut short at a block boundary, as
+   * returned by sync(): the file is cut back to that length, and records are
+   * written after it. No header is written.
+   *
+   * @param path the file to write
+   * @param length the length to keep
+   * @param header the header the file was written with
+   * @param pool the threads to deflate on, or null for the calling thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   * @return the writer
+   * @throws IOException if the file can't be written, or is too short
+   */
+  static ParallelBamWriter resume(Path path, long length, SAMFileHeader header, ExecutorService pool, int level,
+      DeflaterFactory deflaterFactory) throws IOException {
+    return new ParallelBamWriter(path, new ParallelBgzfOutputStream(path, length, pool, level, deflaterFactory),
+        header, false);
+  }
+
+  private void writeInt(byte[] buf, int v) throws IOException {
+    buf[0] = (byte) v;
+    buf[1] = (byte) (v >>> 8);
+    buf[2] = (byte) (v >>> 16);
+    buf[3] = (byte) (v >>> 24);
+    out.write(buf, 0, 4);
+  }
+
+  private void writeHeader() throws IOException {
+    StringWriter sw = new StringWriter();
+    new SAMTextHeaderCodec().encode(sw, header);
+    byte[] text = sw.toString().getBytes(StandardCharsets.ISO_8859_1);
+    byte[] buf = new byte[4];
+    out.write(ParallelBamReader.BAM_MAGIC);
+    writeInt(buf, text.length);
+    out.write(text);
+    writeInt(buf, header.getSequenceDictionary().size());
+    for (SAMSequenceRecord sq : header.getSequenceDictionary().getSequences()) {
+      byte[] name = sq.getSequenceName().getBytes(StandardCharsets.ISO_8859_1);
+      writeInt(buf, name.length + 1);
+      out.write(name);
+      out.write(0);
+      writeInt(buf, sq.getSequenceLength());
+    }
+    out.endBlock();
+  }
+
+  /**
+   * Write a record. The record must belong to this file's header (see
+   * SAMRecord.setHeaderStrict()). Write errors are raised as htsjdk's
+   * RuntimeIOException, as from SAMFileWriter.
+   *
+   * @param rec the record
+   */
+  void addAlignment(SAMRecord rec) {
+    codec.encode(rec);
+    recordCount++;
+  }
+
+  /**
+   * Write a record's raw bytes as they are. The record must be encoded against
+   * this file's header (same reference indices).
+   *
+   * @param rec the record
+   */
+  void addAlignment(RawBamRecord rec) {
+    try {
+      out.write(rec.buffer(), 0, rec.length());
+    } catch (IOException ioe) {
+      throw new RuntimeIOException(ioe);
+    }
+    recordCount++;
+  }
+
+  /**
+   * Write a batch of raw records, as they are, in one go (see
+   * addAlignment(RawBamRecord)).
+   *
+   * @param batch the records
+   */
+  void addAlignments(RecordBatch batch) {
+    try {
+      out.write(batch.buffer(), 0, batch.bytes());
+    } catch (IOException ioe) {
+      throw new RuntimeIOException(ioe);
+    }
+    recordCount += batch.size();
+  }
+
+  /**
+   * Return the number of records written.
+   *
+   * @return records written
+   */
+  long recordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Write everything so far to the disk (see ParallelBgzfOutputStream.sync()).
+   *
+   * @return the file length, at a block boundary
+   * @throws IOException if the file can't be written
+   */
+  long sync() throws IOException {
+    return out.sync();
+  }
+
+  /**
+   * Return the header the file was written with.
+   *
+   * @return the header
+   */
+  SAMFileHeader getFileHeader() {
+    return header;
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,347 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Reads a BGZF file, inflating blocks on a pool of worker threads. The calling
+ * thread reads compressed blocks up to "readAhead" blocks ahead of where it is
+ * consuming, and hands each to the pool to inflate; it then takes the inflated
+ * blocks back in file order. Each BGZF block inflates independently, so with
+ * enough threads the stream runs at the speed of the disk rather than of one
+ * core running inflate.
+ *
+ * Block buffers are recycled once consumed, so a steady-state read allocates
+ * nothing. With no pool, blocks are inflated on the calling thread.
+ *
+ * Each position in the stream has a BGZF virtual file offset (compressed block
+ * address in the top 48 bits, offset within the inflated block in the low 16),
+ * see getFilePointer().
+ */
+class ParallelBgzfInputStream extends InputStream {
+  static final int DEFAULT_READ_AHEAD = 64;
+
+  /**
+   * One BGZF block, compressed and (once inflated) uncompressed.
+   */
+  static final class Block {
+    final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    final byte[] data = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    int compressedLength = 0;
+    int length = 0;
+    long address = 0;
+  }
+
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
+  protected final String source;
+  protected final FileChannel channel;
+  protected final ExecutorService pool;
+  protected final int readAhead;
+  protected final ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+  protected final ArrayDeque<Block> free = new ArrayDeque<Block>();
+  protected final ByteBuffer headerBuf = ByteBuffer.allocate(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+  protected long readAddress = 0;
+  protected boolean endOfFile = false;
+  protected Block current = null;
+  protected int pos = 0;
+  protected long bytesInflated = 0;
+  protected long endPointer = 0;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+
+  /**
+   * Open a BGZF file.
+   *
+   * @param path the file
+   * @param pool the threads to inflate on, or null to inflate on the calling
+   *             thread
+   * @param readAhead the maximum number of blocks read ahead of the consumer
+   * @throws IOException if the file can't be opened
+   */
+  ParallelBgzfInputStream(Path path, ExecutorService pool, int readAhead) throws IOException {
+    this.source = path.getFileName().toString();
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.pool = pool;
+    this.readAhead = Math.max(1, readAhead);
+  }
+
+  /**
+   * Read the next compressed block from the file into a buffer.
+   *
+   * @return false at end of file
+   */
+  private boolean readBlock(Block b) throws IOException {
+    headerBuf.clear();
+    while (headerBuf.hasRemaining()) {
+      if (channel.read(headerBuf) < 0) {
+        if (headerBuf.position() == 0) {
+          return false;
+        } else if (readAddress == 0) {
+          throw new SAMFormatException(source + " is not a BGZF-compressed (BAM) file");
+        }
+        throw new EOFException(source + ": truncated BGZF block header at " + readAddress);
+      }
+    }
+    byte[] h = headerBuf.array();
+    int size = blockSize(h, source, readAddress);
+    System.arraycopy(h, 0, b.compressed, 0, h.length);
+    ByteBuffer rest = ByteBuffer.wrap(b.compressed, h.length, size - h.length);
+    while (rest.hasRemaining()) {
+      if (channel.read(rest) < 0) {
+        throw new EOFException(source + ": truncated BGZF block at " + readAddress);
+      }
+    }
+    b.compressedLength = size;
+    b.address = readAddress;
+    readAddress += size;
+    return true;
+  }
+
+  /**
+   * Check a BGZF block header, and return the size of the whole block.
+   *
+   * @param h the header, BLOCK_HEADER_LENGTH bytes
+   * @param source file name for messages
+   * @param address file offset of the block, for messages
+   * @return the compressed size of the block, header and footer included
+   */
+  static int blockSize(byte[] h, String source, long address) {
+    if (h[0] != BlockCompressedStreamConstants.GZIP_ID1 || (h[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2
+        || h[3] != BlockCompressedStreamConstants.GZIP_FLG || h[10] != BlockCompressedStreamConstants.GZIP_XLEN
+        || h[12] != BlockCompressedStreamConstants.BGZF_ID1 || h[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+      throw new SAMFormatException(source + " is not a BGZF-compressed (BAM) file, or is corrupt at " + address);
+    }
+    return ((h[16] & 0xff) | ((h[17] & 0xff) << 8)) + 1;
+  }
+
+  /**
+   * Inflate a block into its data buffer, checking its length and CRC.
+   */
+  static Block inflate(Block b, String source) throws IOException {
+    long began = System.nanoTime();
+    byte[] c = b.compressed;
+    int n = b.compressedLength;
+    int isize = (c[n - 4] & 0xff) | ((c[n - 3] & 0xff) << 8) | ((c[n - 2] & 0xff) << 16) | ((c[n - 1] & 0xff) << 24);
+    int crc = (c[n - 8] & 0xff) | ((c[n - 7] & 0xff) << 8) | ((c[n - 6] & 0xff) << 16) | ((c[n - 5] & 0xff) << 24);
+    Inflater inf = INFLATER.get();
+    inf.reset();
+    int start = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    inf.setInput(c, start, n - start - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+    try {
+      int got = 0;
+      while (got < isize) {
+        int r = inf.inflate(b.data, got, isize - got);
+        if (r == 0 && (inf.finished() || inf.needsInput())) {
+          break;
+        }
+        got += r;
+      }
+      if (got != isize) {
+        throw new SAMFormatException(source + ": BGZF block at " + b.address + " inflated to " + got
+            + " bytes, expected " + isize);
+      }
+    } catch (DataFormatException dfe) {
+      throw new SAMFormatException(source + ": bad deflate data in block at " + b.address + ": " + dfe.getMessage());
+    }
+    CRC32 check = CRC.get();
+    check.reset();
+    check.update(b.data, 0, isize);
+    if ((int) check.getValue() != crc) {
+      throw new SAMFormatException(source + ": CRC mismatch in BGZF block at " + b.address);
+    }
+    b.length = isize;
+    MergeMetrics.global().blockInflated(n, isize, System.nanoTime() - began);
+    return b;
+  }
+
+  /**
+   * Read and submit blocks until readAhead are outstanding or the file ends.
+   */
+  private void fill() throws IOException {
+    while (!endOfFile && pending.size() < readAhead) {
+      Block b = free.isEmpty() ? new Block() : free.poll();
+      long start = System.nanoTime();
+      boolean read = readBlock(b);
+      metrics.blockRead(System.nanoTime() - start);
+      if (!read) {
+        endOfFile = true;
+        free.add(b);
+        break;
+      }
+      final Block job = b;
+      if (pool == null) {
+        pending.add(new CompletedBlock(inflate(job, source)));
+      } else {
+        pending.add(pool.submit(new Callable<Block>() {
+          public Block call() throws IOException {
+            return inflate(job, source);
+          }
+        }));
+      }
+      metrics.inflateQueued();
+    }
+  }
+
+  /**
+   * Move on to the next non-empty inflated block.
+   *
+   * @return false at end of file
+   */
+  private boolean nextBlock() throws IOException {
+    while (current == null || pos >= current.length) {
+      if (current != null) {
+        // an empty block (as at end of file) is a position in its own right
+        endPointer = (current.length == 0 ? current.address : current.address + current.compressedLength) << 16;
+        free.add(current);
+        current = null;
+      }
+      fill();
+      Future<Block> f = pending.poll();
+      if (f == null) {
+        return false;
+      }
+      long start = System.nanoTime();
+      current = WorkerPools.await(f, "inflating " + source);
+      metrics.inflateTaken(System.nanoTime() - start);
+      pos = 0;
+      bytesInflated += current.length;
+    }
+    return true;
+  }
+
+  public int read() throws IOException {
+    if (!nextBlock()) {
+      return -1;
+    }
+    return current.data[pos++] & 0xff;
+  }
+
+  public int read(byte[] buf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int total = 0;
+    while (total < len && nextBlock()) {
+      int n = Math.min(len - total, current.length - pos);
+      System.arraycopy(current.data, pos, buf, off + total, n);
+      pos += n;
+      total += n;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  /**
+   * Return the virtual file offset of the next byte to be read. At a block
+   * boundary this is the start of the next block; at end of file, the start of
+   * the terminating empty block, as htsjdk reports it.
+   *
+   * @return the BGZF virtual file offset
+   * @throws IOException if the next block can't be read
+   */
+  long getFilePointer() throws IOException {
+    if (!nextBlock()) {
+      return endPointer;
+    }
+    return (current.address << 16) | pos;
+  }
+
+  /**
+   * Move to a virtual file offset (see getFilePointer()), dropping whatever
+   * was read ahead.
+   *
+   * @param virtualOffset where the next byte is to be read from
+   * @throws IOException if the block there can't be read
+   */
+  void seek(long virtualOffset) throws IOException {
+    for (Future<Block> f : pending) {
+      f.cancel(false);
+      metrics.inflateTaken(0);
+    }
+    pending.clear();
+    if (current != null) {
+      free.add(current);
+      current = null;
+    }
+    readAddress = virtualOffset >>> 16;
+    channel.position(readAddress);
+    endOfFile = false;
+    endPointer = readAddress << 16;
+    if (nextBlock()) {
+      pos = (int) (virtualOffset & 0xffff);
+    }
+  }
+
+  /**
+   * Return the number of bytes inflated so far.
+   *
+   * @return uncompressed bytes read
+   */
+  long bytesInflated() {
+    return bytesInflated;
+  }
+
+  public void close() throws IOException {
+    for (Future<Block> f : pending) {
+      f.cancel(false);
+      metrics.inflateTaken(0);
+    }
+    pending.clear();
+    channel.close();
+  }
+
+  /**
+   * A block inflated on the calling thread, wrapped to look like a task result.
+   */
+  private static final class CompletedBlock implements Future<Block> {
+    private final Block block;
+
+    CompletedBlock(Block block) {
+      this.block = block;
+    }
+
+    public boolean cancel(boolean mayInterrupt) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Block get() {
+      return block;
+    }
+
+    public Block get(long timeout, java.util.concurrent.TimeUnit unit) {
+      return block;
+    }
+  }
+}
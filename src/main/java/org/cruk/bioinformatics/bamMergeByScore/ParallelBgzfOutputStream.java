@@ -0,0 +1,314 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Writes a BGZF file, deflating blocks on a pool of worker threads. Data is cut
+ * into blocks of DEFAULT_UNCOMPRESSED_BLOCK_SIZE bytes (so that each fits in a
+ * 64KB BGZF block once compressed); each full block is handed to the pool, and
+ * the compressed blocks are written to the file in order as they complete. At
+ * most MAX_PENDING blocks are in flight per stream, which bounds the memory
+ * used and keeps one busy output from starving others that share the pool.
+ *
+ * Deflaters come from a DeflaterFactory, so a faster implementation (such as
+ * the Intel one in GKL) can be dropped in; each stream keeps a small pool of
+ * them, one per thread that has worked on it. Closing the stream writes the
+ * BGZF end-of-file block.
+ *
+ * A stream can also carry on a file that was cut short (see the resuming
+ * constructor), and make sure what it has written so far is on disk, ending
+ * at a block boundary (see sync()); together, they let a merge be resumed
+ * from a checkpoint.
+ */
+class ParallelBgzfOutputStream extends OutputStream {
+  static final int MAX_PENDING = 64;
+  static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+  /**
+   * One block: the uncompressed data, then the whole compressed BGZF block.
+   */
+  static final class Block {
+    final byte[] data = new byte[BLOCK_SIZE];
+    final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    int length = 0;
+    int compressedLength = 0;
+  }
+
+  private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
+  protected final String target;
+  protected final FileChannel channel;
+  protected final OutputStream out;
+  protected final ExecutorService pool;
+  protected final int level;
+  protected final DeflaterFactory deflaterFactory;
+  protected final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+  protected final ConcurrentLinkedQueue<Deflater> storers = new ConcurrentLinkedQueue<Deflater>();
+  protected final ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+  protected final ArrayDeque<Block> free = new ArrayDeque<Block>();
+  protected Block current = new Block();
+  protected long address = 0;
+  protected boolean closed = false;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+
+  /**
+   * Create a BGZF file.
+   *
+   * @param path the file to create (any existing file is replaced)
+   * @param pool the threads to deflate on, or null to deflate on the calling
+   *             thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   * @throws IOException if the file can't be created
+   */
+  ParallelBgzfOutputStream(Path path, ExecutorService pool, int level, DeflaterFactory deflaterFactory)
+      throws IOException {
+    this(path, -1, pool, level, deflaterFactory);
+  }
+
+  /**
+   * Carry on writing a BGZF file from a block boundary: the file is cut back
+   * to the length given (dropping anything after it, such as the end-of-file
+   * block), and what is written goes after that.
+   *
+   * @param path the file to write
+   * @param resumeAt the length to keep, at a block boundary, or -1 to create
+   *          the file afresh (any existing file is replaced)
+   * @param pool the threads to deflate on, or null to deflate on the calling
+   *             thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   * @throws IOException if the file can't be written, or is shorter than
+   *           resumeAt
+   */
+  ParallelBgzfOutputStream(Path path, long resumeAt, ExecutorService pool, int level,
+      DeflaterFactory deflaterFactory) throws IOException {
+    this.target = path.getFileName().toString();
+    if (resumeAt < 0) {
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE);
+    } else {
+      this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+      if (channel.size() < resumeAt) {
+        long size = channel.size();
+        channel.close();
+        throw new IOException(target + " is " + size + " bytes long; expected at least " + resumeAt);
+      }
+      channel.truncate(resumeAt);
+      channel.position(resumeAt);
+      address = resumeAt;
+    }
+    this.out = Channels.newOutputStream(channel);
+    this.pool = pool;
+    this.level = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Compress a block into a complete BGZF block. If deflate makes the data too
+   * big to fit, as it can for random bytes, the data is stored uncompressed.
+   */
+  private Block deflate(Block b) {
+    long start = System.nanoTime();
+    int hl = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    int room = b.compressed.length - hl - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    Deflater d = deflaters.poll();
+    if (d == null) {
+      d = deflaterFactory.makeDeflater(level, true);
+    }
+    d.reset();
+    d.setInput(b.data, 0, b.length);
+    d.finish();
+    int n = d.deflate(b.compressed, hl, room);
+    boolean fits = d.finished();
+    deflaters.add(d);
+    if (!fits) {
+      Deflater store = storers.poll();
+      if (store == null) {
+        store = new Deflater(Deflater.NO_COMPRESSION, true);
+      }
+      store.reset();
+      store.setInput(b.data, 0, b.length);
+      store.finish();
+      n = store.deflate(b.compressed, hl, room);
+      storers.add(store);
+    }
+    CRC32 crc = CRC.get();
+    crc.reset();
+    crc.update(b.data, 0, b.length);
+    int size = hl + n + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    byte[] c = b.compressed;
+    System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, c, 0,
+        BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+    putShort(c, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, size - 1);
+    putInt(c, hl + n, (int) crc.getValue());
+    putInt(c, hl + n + 4, b.length);
+    b.compressedLength = size;
+    metrics.blockDeflated(b.length, size, System.nanoTime() - start);
+    return b;
+  }
+
+  private static void putShort(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+  }
+
+  private static void putInt(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+    b[off + 2] = (byte) (v >>> 16);
+    b[off + 3] = (byte) (v >>> 24);
+  }
+
+  /**
+   * Write the oldest block in flight to the file, waiting for it if necessary.
+   */
+  private void writeOldest() throws IOException {
+    long start = System.nanoTime();
+    Block b = WorkerPools.await(pending.poll(), "deflating " + target);
+    long written = System.nanoTime();
+    metrics.deflateTaken(written - start);
+    out.write(b.compressed, 0, b.compressedLength);
+    metrics.blockWritten(System.nanoTime() - written);
+    address += b.compressedLength;
+    free.add(b);
+  }
+
+  /**
+   * Hand the current block over to be compressed, and start a new one.
+   */
+  private void submitCurrent() throws IOException {
+    if (current.length == 0) {
+      return;
+    }
+    final Block job = current;
+    if (pool == null) {
+      deflate(job);
+      long start = System.nanoTime();
+      out.write(job.compressed, 0, job.compressedLength);
+      metrics.blockWritten(System.nanoTime() - start);
+      address += job.compressedLength;
+      job.length = 0;
+      return;
+    }
+    while (pending.size() >= MAX_PENDING || (!pending.isEmpty() && pending.peek().isDone())) {
+      writeOldest();
+    }
+    pending.add(pool.submit(new Callable<Block>() {
+      public Block call() {
+        return deflate(job);
+      }
+    }));
+    metrics.deflateQueued();
+    current = free.isEmpty() ? new Block() : free.poll();
+    current.length = 0;
+  }
+
+  public void write(int b) throws IOException {
+    if (current.length == BLOCK_SIZE) {
+      submitCurrent();
+    }
+    current.data[current.length++] = (byte) b;
+  }
+
+  public void write(byte[] buf, int off, int len) throws IOException {
+    while (len > 0) {
+      if (current.length == BLOCK_SIZE) {
+        submitCurrent();
+      }
+      int n = Math.min(len, BLOCK_SIZE - current.length);
+      System.arraycopy(buf, off, current.data, current.length, n);
+      current.length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * End the current block early, so that what follows starts a new block (as
+   * BAM writers do after the header). Does not wait for the data to be
+   * written.
+   *
+   * @throws IOException if an earlier block failed
+   */
+  void endBlock() throws IOException {
+    submitCurrent();
+  }
+
+  /**
+   * Return the number of compressed bytes written to the file so far. Blocks
+   * still being compressed are not counted.
+   *
+   * @return the file length so far
+   */
+  long bytesWritten() {
+    return address;
+  }
+
+  /**
+   * Compress and write everything written so far. This ends the current block.
+   */
+  public void flush() throws IOException {
+    submitCurrent();
+    while (!pending.isEmpty()) {
+      writeOldest();
+    }
+    out.flush();
+  }
+
+  /**
+   * Compress and write everything written so far, and wait for it to reach
+   * the disk. This ends the current block, so the file then ends at a block
+   * boundary.
+   *
+   * @return the file length
+   * @throws IOException if a block can't be written
+   */
+  long sync() throws IOException {
+    flush();
+    channel.force(false);
+    return address;
+  }
+
+  /**
+   * Write out all remaining data and the end-of-file block, and close the file.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+      out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+      address += BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+    } finally {
+      out.close();
+      for (Deflater d : deflaters) {
+        d.end();
+      }
+      for (Deflater d : storers) {
+        d.end();
+      }
+    }
+  }
+}
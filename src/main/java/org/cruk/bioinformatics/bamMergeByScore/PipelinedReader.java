@@ -0,0 +1,182 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * The decode stage of a pipelined merge, for one input: a virtual thread of its
+ * own (see WorkerPools.startIoThread()) reads records from a ParallelBamReader
+ * into batches (see RecordBatch) and passes them to the merging thread through
+ * a SpscRing, so that splitting the input into records overlaps with the merge.
+ * Drained batches go back to the decode thread through a second ring. The
+ * number of batches is fixed at the queue capacity plus the one each side is
+ * working on, so when the merge falls behind, the decode thread stops reading
+ * rather than buffering more.
+ *
+ * The merging thread reads records with next(RawBamRecord), as it would from
+ * the ParallelBamReader; an exception on the decode thread is raised there.
+ * With a batch size of zero, there is no thread, and next() reads from the
+ * ParallelBamReader directly.
+ *
+ * For checkpoints, offset() gives a virtual file offset to seek back to so as
+ * to read the last record returned again: the offset of the first record of
+ * its batch, recorded as the batch was filled (or with no thread, of the
+ * record itself).
+ */
+class PipelinedReader implements Closeable {
+
+  protected final ParallelBamReader reader;
+  protected final SpscRing<RecordBatch> full;
+  protected final SpscRing<RecordBatch> free;
+  protected final Thread thread;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+  protected RecordBatch current = null;
+  protected int pos = 0;
+  protected long offset = -1;
+
+  /**
+   * Constructor; starts the decode thread, if any.
+   *
+   * @param reader the input, already open
+   * @param batchSize records per batch, or 0 to read directly
+   * @param queueCapacity batches that may wait for the merge
+   */
+  PipelinedReader(ParallelBamReader reader, int batchSize, int queueCapacity) {
+    this.reader = reader;
+    if (batchSize == 0) {
+      full = null;
+      free = null;
+      thread = null;
+      return;
+    }
+    full = new SpscRing<RecordBatch>(queueCapacity);
+    free = new SpscRing<RecordBatch>(full.capacity() + 2);
+    for (int i = 0; i < full.capacity() + 2; i++) {
+      free.offer(new RecordBatch(batchSize));
+    }
+    thread = WorkerPools.startIoThread("decode-" + reader.source.getFileName(), new Runnable() {
+      public void run() {
+        decode();
+      }
+    });
+  }
+
+  /**
+   * Fill batches until the input ends or the merge stops taking them.
+   */
+  protected void decode() {
+    RawBamRecord rec = new RawBamRecord();
+    try {
+      RecordBatch b;
+      while ((b = free.take()) != null) {
+        b.clear();
+        b.setOffset(reader.getFilePointer());
+        boolean more = true;
+        while (!b.isFull() && (more = reader.next(rec))) {
+          b.add(rec);
+        }
+        if (b.size() > 0) {
+          metrics.decodeQueued();
+          if (!full.put(b)) {
+            metrics.decodeTaken(0);
+            break;
+          }
+        }
+        if (!more) {
+          break;
+        }
+      }
+      full.close();
+    } catch (Throwable t) {
+      full.fail(t);
+    }
+  }
+
+  /**
+   * Return the input's header.
+   *
+   * @return the header
+   */
+  SAMFileHeader getFileHeader() {
+    return reader.getFileHeader();
+  }
+
+  /**
+   * Read the next record's raw bytes.
+   *
+   * @param rec the record to read into
+   * @return false at end of file
+   * @throws IOException if the file can't be read
+   */
+  boolean next(RawBamRecord rec) throws IOException {
+    if (thread == null) {
+      offset = reader.getFilePointer();
+      return reader.next(rec);
+    }
+    if (current == null || pos == current.size()) {
+      if (current != null) {
+        free.put(current);
+      }
+      long start = System.nanoTime();
+      current = full.take();
+      pos = 0;
+      if (current == null) {
+        rethrow(full.failure());
+        return false;
+      }
+      metrics.decodeTaken(System.nanoTime() - start);
+      offset = current.offset();
+    }
+    current.get(pos++, rec);
+    return true;
+  }
+
+  /**
+   * Return a virtual file offset at or before the last record returned by
+   * next(), from which the file can be read again (see
+   * ParallelBamReader.seek()).
+   *
+   * @return a BGZF virtual file offset, or -1 before the first record
+   */
+  long offset() {
+    return offset;
+  }
+
+  private static void rethrow(Throwable t) throws IOException {
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof RuntimeIOException && t.getCause() instanceof IOException) {
+      throw (IOException) t.getCause();
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    } else if (t != null) {
+      throw new IOException(t);
+    }
+  }
+
+  /**
+   * Stop the decode thread, and close the input.
+   */
+  public void close() throws IOException {
+    if (thread != null) {
+      free.close();
+      full.close();
+      try {
+        thread.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted stopping " + thread.getName());
+      }
+      while (full.poll() != null) {
+        metrics.decodeTaken(0);
+      }
+    }
+    reader.close();
+  }
+}
@@ -0,0 +1,196 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * The encode and write stage of a pipelined merge, for one output: the merging
+ * thread copies the records it keeps into batches (see RecordBatch), and a
+ * virtual thread of its own (see WorkerPools.startIoThread()) takes full
+ * batches from a SpscRing and writes them through a ParallelBamWriter, which
+ * hands the blocks to the deflate pool and writes them out in order. Written
+ * batches go back to the merging thread through a second ring.
+ *
+ * The number of batches is fixed at the queue capacity plus the one each side
+ * is working on, so when an output falls behind (a slow disk, say), the merge
+ * waits for it rather than buffering more. With a batch size of zero, there
+ * is no thread, and records are written on the merging thread.
+ *
+ * sync() waits for the writing thread to catch up, so that everything added
+ * so far is in the file, for a checkpoint.
+ *
+ * As from ParallelBamWriter, write errors are raised as htsjdk's
+ * RuntimeIOException; one on the writing thread is raised by the next
+ * addAlignment() or by close().
+ */
+class PipelinedWriter implements Closeable {
+  private static final long PARK_NANOS = 50000;
+
+  protected final ParallelBamWriter writer;
+  protected final SpscRing<RecordBatch> full;
+  protected final SpscRing<RecordBatch> free;
+  protected final Thread thread;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+  protected RecordBatch current = null;
+  protected long sent = 0;
+  protected final AtomicLong written = new AtomicLong();
+  protected volatile Throwable failure = null;
+
+  /**
+   * Constructor; starts the writing thread, if any.
+   *
+   * @param writer the output, already open
+   * @param name the output's name, for the thread
+   * @param batchSize records per batch, or 0 to write directly
+   * @param queueCapacity batches that may wait to be written
+   */
+  PipelinedWriter(ParallelBamWriter writer, String name, int batchSize, int queueCapacity) {
+    this.writer = writer;
+    if (batchSize == 0) {
+      full = null;
+      free = null;
+      thread = null;
+      return;
+    }
+    full = new SpscRing<RecordBatch>(queueCapacity);
+    free = new SpscRing<RecordBatch>(full.capacity() + 2);
+    for (int i = 0; i < full.capacity() + 1; i++) {
+      free.offer(new RecordBatch(batchSize));
+    }
+    current = new RecordBatch(batchSize);
+    thread = WorkerPools.startIoThread("encode-" + name, new Runnable() {
+      public void run() {
+        encode();
+      }
+    });
+  }
+
+  /**
+   * Write batches until the merge closes the queue.
+   */
+  protected void encode() {
+    try {
+      RecordBatch b;
+      while ((b = full.take()) != null) {
+        metrics.encodeTaken();
+        writer.addAlignments(b);
+        written.incrementAndGet();
+        b.clear();
+        if (!free.put(b)) {
+          break;
+        }
+      }
+    } catch (Throwable t) {
+      failure = t;
+      full.close();
+      free.close();
+    }
+  }
+
+  /**
+   * Write a record's raw bytes as they are (see ParallelBamWriter).
+   *
+   * @param rec the record
+   */
+  void addAlignment(RawBamRecord rec) {
+    if (thread == null) {
+      writer.addAlignment(rec);
+      return;
+    }
+    current.add(rec);
+    if (current.isFull()) {
+      try {
+        send();
+      } catch (InterruptedIOException ie) {
+        throw new RuntimeIOException(ie);
+      }
+    }
+  }
+
+  /**
+   * Pass the current batch to the writing thread, and take a free one,
+   * counting the time the merge waits for either.
+   */
+  private void send() throws InterruptedIOException {
+    long start = System.nanoTime();
+    metrics.encodeQueued();
+    if (!full.put(current)) {
+      metrics.encodeTaken();
+      throw failed();
+    }
+    sent++;
+    if ((current = free.take()) == null) {
+      throw failed();
+    }
+    metrics.encodeWaited(System.nanoTime() - start);
+  }
+
+  private RuntimeIOException failed() {
+    Throwable t = failure;
+    if (t instanceof RuntimeIOException) {
+      return (RuntimeIOException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new RuntimeIOException("writer stopped", t);
+  }
+
+  /**
+   * Write everything added so far, and wait for it to reach the disk (see
+   * ParallelBamWriter.sync()). The writing thread is left idle, waiting for
+   * the next batch, while the file is synced from this thread.
+   *
+   * @return the file length, at a block boundary
+   * @throws IOException if the file can't be written
+   */
+  long sync() throws IOException {
+    if (thread != null) {
+      if (current.size() > 0) {
+        send();
+      }
+      while (written.get() < sent) {
+        if (failure != null) {
+          throw failed();
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+    return writer.sync();
+  }
+
+  /**
+   * Write what is left, stop the writing thread, and close the output.
+   */
+  public void close() throws IOException {
+    if (thread != null) {
+      try {
+        if (current != null && current.size() > 0) {
+          metrics.encodeQueued();
+          if (!full.put(current)) {
+            metrics.encodeTaken();
+          }
+        }
+        full.close();
+        thread.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted stopping " + thread.getName());
+      } finally {
+        current = null;
+      }
+    }
+    writer.close();
+    if (failure != null) {
+      Throwable t = failure;
+      if (t instanceof RuntimeIOException && t.getCause() instanceof IOException) {
+        throw (IOException) t.getCause();
+      }
+      throw new IOException("writer stopped", t);
+    }
+  }
+}
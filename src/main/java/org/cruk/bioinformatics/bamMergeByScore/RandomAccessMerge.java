@@ -0,0 +1,325 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Merge for inputs in any order. Every input is first indexed in full (read
+ * name to best score, in a SampleDataOffHeap), then each input is streamed
+ * again and a record is kept only if its read scores best in that input. Ties
+ * are resolved by a TieBreaker, as in StreamingMerge; since its choice depends
+ * only on the read, every input agrees on it. All indices share one
+ * ReadNameCodec, so each record's name is packed once for all lookups.
+ *
+ * Most reads of a xenograft map to only one genome, so before looking a read
+ * up, the merge checks the other inputs' Bloom filters (see NameFilter); if
+ * none of them may have the read, it is kept without any lookup.
+ *
+ * This needs memory for every distinct read name in every input, so it is only
+ * used when asked for; StreamingMerge needs almost none. With an index cache
+ * (see setIndexCache()), the indices are kept in files beside the inputs and
+ * memory-mapped (see SampleDataMapped), so an input merged again is not
+ * indexed again.
+ */
+class RandomAccessMerge implements Closeable {
+
+  static final int MISSING = Integer.MIN_VALUE;
+
+  protected Logger log = LogManager.getLogger(RandomAccessMerge.class);
+  protected List<Path> inputs;
+  protected Path mergedOutput;
+  protected SampleDataOffHeap[] indices = null;
+  protected NameFilter[] filters = null;
+  protected int[] tied = null;
+  protected long uniqueRecords = 0;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+  protected ReadNameCodec codec = new ReadNameCodec();
+  protected MergeOutput output = null;
+  protected long recordsRead = 0;
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
+  protected TieBreaker ties = TieBreaker.DEFAULT;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected ExecutorService writerPool = WorkerPools.defaultPool();
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = RecordBatch.DEFAULT_SIZE;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected boolean indexCache = false;
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param inputs the BAM files to merge
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   */
+  public RandomAccessMerge(List<Path> inputs, Path mergedOutput) {
+    this.inputs = inputs;
+    this.mergedOutput = mergedOutput;
+  }
+
+  /**
+   * Set how hits are scored and combined.
+   *
+   * @param scoring the scoring policy
+   */
+  void setScoringPolicy(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Set how reads whose best score is shared by several inputs are resolved.
+   *
+   * @param ties the tie breaker
+   */
+  void setTieBreaker(TieBreaker ties) {
+    this.ties = ties;
+  }
+
+  /**
+   * Set the threads used to inflate the inputs, in both passes. Call before
+   * open().
+   *
+   * @param pool the threads to inflate on, or null to inflate on the merging
+   *             thread
+   * @param readAhead the number of blocks to inflate ahead of the reader
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Set how the outputs are compressed (see MergeOutput.setCompression()).
+   * Call before open().
+   *
+   * @param pool the threads to deflate on, or null for the merging thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   */
+  void setCompression(ExecutorService pool, int level, DeflaterFactory deflaterFactory) {
+    this.writerPool = pool;
+    this.compressionLevel = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Run the merging pass as a pipeline: each input is read and each output is
+   * written on a thread of its own, the stages passing batches of records
+   * through bounded queues (see PipelinedReader and PipelinedWriter). Call
+   * before open().
+   *
+   * @param batchSize records per batch, or 0 to do everything on the merging
+   *          thread
+   * @param queueCapacity batches that may wait between two stages
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set what goes into the output headers (see MergeOutput.setProgram()).
+   * Call before open().
+   *
+   * @param commandLine the command line for the merge's @PG line, or null
+   * @param contigPrefixes for a merged output, a prefix for the contig names
+   *          of each input, or null for none
+   */
+  void setProgram(String commandLine, List<String> contigPrefixes) {
+    this.commandLine = commandLine;
+    this.contigPrefixes = contigPrefixes;
+  }
+
+  /**
+   * Keep each input's index in a ".msi" file beside it, and map it from there
+   * while the input is unchanged (see SampleDataMapped). Call before open().
+   *
+   * @param indexCache whether to cache the indices
+   */
+  void setIndexCache(boolean indexCache) {
+    this.indexCache = indexCache;
+  }
+
+  /**
+   * Index all inputs, then open the outputs.
+   *
+   * @throws IOException if an input can't be read
+   */
+  void open() throws IOException {
+    indices = new SampleDataOffHeap[inputs.size()];
+    tied = new int[inputs.size()];
+    List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(inputs.size());
+    for (int i = 0; i < inputs.size(); i++) {
+      indices[i] = indexCache ? new SampleDataMapped(inputs.get(i)) : new SampleDataOffHeap(inputs.get(i));
+      indices[i].setCodec(codec);
+      indices[i].setReaderThreads(pool, readAhead);
+      indices[i].setScoringPolicy(scoring);
+      long start = System.nanoTime();
+      indices[i].load();
+      log.info("{} {}: {} records, {} reads, {} bytes off-heap in {} ms",
+          indices[i] instanceof SampleDataMapped && ((SampleDataMapped) indices[i]).wasReused() ? "Mapped index of"
+              : "Indexed",
+          inputs.get(i), indices[i].size(), indices[i].distinctReads(), indices[i].memory(),
+          (System.nanoTime() - start) / 1000000);
+      headers.add(indices[i].getHeader());
+    }
+    if (inputs.size() > 1) {
+      filters = new NameFilter[inputs.size()];
+      long bytes = 0;
+      for (int i = 0; i < inputs.size(); i++) {
+        filters[i] = indices[i].nameFilter();
+        bytes += filters[i].memory();
+      }
+      log.debug("Name filters take {} bytes", bytes);
+    }
+    output = new MergeOutput(inputs, headers, mergedOutput, SAMFileHeader.SortOrder.unsorted);
+    output.setCompression(writerPool, compressionLevel, deflaterFactory);
+    output.setPipeline(batchSize, queueCapacity);
+    output.setProgram(commandLine, contigPrefixes);
+    output.open();
+  }
+
+  /**
+   * Report whether input "source" holds the best hit for a read. The read
+   * counts as decided (see MergeMetrics.decided()), and as tied if it is, at
+   * its first record in the first input that has it, so that reads are counted
+   * once, as in the other merges, however many records and inputs they have.
+   *
+   * @param source the input the read came from
+   * @param key the packed read name, or ReadNameCodec.RAW
+   * @param name buffer holding the read name
+   * @param off offset of the read name
+   * @param len length of the read name
+   * @return true if no other input scores higher, and if any scores the same,
+   *         the tie goes to this one (or to all)
+   */
+  protected boolean isBest(int source, long key, byte[] name, int off, int len) {
+    if (filters != null && isUnique(source, NameFilter.hash(name, off, len))) {
+      uniqueRecords++;
+      if (indices[source].visit(key, name, off, len)) {
+        metrics.decided();
+      }
+      return true;
+    }
+    int mine = indices[source].getScore(key, name, off, len, MISSING);
+    boolean first = true;
+    int best = mine;
+    int t = 0;
+    for (int j = 0; j < indices.length; j++) {
+      int other = j == source ? mine : indices[j].getScore(key, name, off, len, MISSING);
+      if (j < source && other != MISSING) {
+        first = false;
+      }
+      if (other > best) {
+        best = other;
+        t = 0;
+        tied[t++] = j;
+      } else if (other == best) {
+        tied[t++] = j;
+      }
+    }
+    if (first && indices[source].visit(key, name, off, len)) {
+      metrics.decided();
+      if (t > 1) {
+        metrics.tied(ties.policy());
+      }
+    }
+    if (best > mine) {
+      return false;
+    } else if (t == 1) {
+      return true;
+    }
+    int winner = ties.choose(tied, t, name, off, len);
+    return winner == source || winner == TieBreaker.KEEP_ALL;
+  }
+
+  /**
+   * Report whether no other input can have a read, by their filters.
+   *
+   * @param source the input the read came from
+   * @param hash the read name's hash (see NameFilter.hash())
+   * @return true if the read is certainly in no other input
+   */
+  private boolean isUnique(int source, long hash) {
+    for (int j = 0; j < filters.length; j++) {
+      if (j != source && filters[j].mightContain(hash)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stream each input in turn, keeping the records that win.
+   *
+   * @return the number of records written
+   * @throws IOException if an input can't be read
+   */
+  long merge() throws IOException {
+    for (int i = 0; i < inputs.size(); i++) {
+      PipelinedReader rdr = new PipelinedReader(new ParallelBamReader(inputs.get(i), pool, readAhead), batchSize,
+          queueCapacity);
+      RawBamRecord rec = new RawBamRecord();
+      while (rdr.next(rec)) {
+        recordsRead++;
+        byte[] buf = rec.buffer();
+        int len = rec.nameLength();
+        if (isBest(i, codec.encodeExisting(buf, RawBamRecord.NAME_OFFSET, len), buf, RawBamRecord.NAME_OFFSET, len)) {
+          output.write(i, rec);
+        }
+      }
+      rdr.close();
+    }
+    log.debug("{} of {} records were of reads in one input only", uniqueRecords, recordsRead);
+    return output.recordsWritten();
+  }
+
+  /**
+   * Return the number of records kept without a lookup, because their read
+   * was in no other input.
+   *
+   * @return records
+   */
+  long uniqueRecords() {
+    return uniqueRecords;
+  }
+
+  /**
+   * Return the number of records written to all outputs.
+   *
+   * @return records written
+   */
+  long recordsWritten() {
+    return output.recordsWritten();
+  }
+
+  public void close() throws IOException {
+    if (output != null) {
+      output.close();
+      output = null;
+    }
+    if (indices != null) {
+      for (SampleDataOffHeap d : indices) {
+        if (d != null) {
+          d.release();
+        }
+      }
+      indices = null;
+    }
+    filters = null;
+  }
+}
@@ -0,0 +1,316 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * A BAM record held as its raw bytes, as read from the file (including the
+ * leading block_size field, so that the whole array can be written out again
+ * as is). Fields are read from the bytes on demand; nothing is decoded until
+ * asked for. The merge only needs the read name and score of most records,
+ * and most records lose, so this is much cheaper than building a SAMRecord for
+ * each.
+ *
+ * Scores are computed from the bytes by ScoreModel.
+ *
+ * Instances are reused: ParallelBamReader.next(RawBamRecord) reads the next
+ * record into an existing one, growing its buffer if necessary.
+ */
+class RawBamRecord {
+  /** Offset of the read name: block_size and the 32 bytes of fixed fields. */
+  static final int NAME_OFFSET = 36;
+
+  protected byte[] buf = new byte[512];
+  protected int length = 0;
+  protected int tagsOffset = -1;
+
+  /**
+   * Make room for a record of the given length (including block_size).
+   *
+   * @param size the record length
+   */
+  void ensureCapacity(int size) {
+    if (buf.length < size) {
+      buf = Arrays.copyOf(buf, Math.max(size, buf.length + (buf.length >> 1)));
+    }
+  }
+
+  /**
+   * Note that the buffer holds a new record of the given length.
+   *
+   * @param length the record length, including block_size
+   */
+  void setLength(int length) {
+    this.length = length;
+    this.tagsOffset = -1;
+  }
+
+  /**
+   * Copy another record into this one.
+   *
+   * @param other the record to copy
+   */
+  void copyFrom(RawBamRecord other) {
+    ensureCapacity(other.length);
+    System.arraycopy(other.buf, 0, buf, 0, other.length);
+    setLength(other.length);
+  }
+
+  byte[] buffer() {
+    return buf;
+  }
+
+  /**
+   * Return the length of the record, including the block_size field.
+   *
+   * @return the record length in bytes
+   */
+  int length() {
+    return length;
+  }
+
+  int getInt(int off) {
+    return (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8) | ((buf[off + 2] & 0xff) << 16)
+        | ((buf[off + 3] & 0xff) << 24);
+  }
+
+  int getUShort(int off) {
+    return (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8);
+  }
+
+  void putInt(int off, int v) {
+    buf[off] = (byte) v;
+    buf[off + 1] = (byte) (v >>> 8);
+    buf[off + 2] = (byte) (v >>> 16);
+    buf[off + 3] = (byte) (v >>> 24);
+  }
+
+  int referenceIndex() {
+    return getInt(4);
+  }
+
+  /**
+   * Return the 0-based position (as stored; SAMRecord's is 1-based).
+   */
+  int position() {
+    return getInt(8);
+  }
+
+  int nameLength() {
+    // l_read_name includes the trailing NUL
+    return (buf[12] & 0xff) - 1;
+  }
+
+  int mappingQuality() {
+    return buf[13] & 0xff;
+  }
+
+  int bin() {
+    return getUShort(14);
+  }
+
+  int cigarLength() {
+    return getUShort(16);
+  }
+
+  int flags() {
+    return getUShort(18);
+  }
+
+  /**
+   * Report whether this is the second mate of a pair (flags 0x1 and 0x80).
+   */
+  boolean isSecondOfPair() {
+    return (flags() & 0x81) == 0x81;
+  }
+
+  int readLength() {
+    return getInt(20);
+  }
+
+  int mateReferenceIndex() {
+    return getInt(24);
+  }
+
+  int matePosition() {
+    return getInt(28);
+  }
+
+  int insertSize() {
+    return getInt(32);
+  }
+
+  /**
+   * Return the read name as a String. For diagnostics; the merge works on the
+   * bytes (see NAME_OFFSET and nameLength()).
+   *
+   * @return the read name
+   */
+  String readName() {
+    return StringUtil.bytesToString(buf, NAME_OFFSET, nameLength());
+  }
+
+  int cigarOffset() {
+    return NAME_OFFSET + nameLength() + 1;
+  }
+
+  /**
+   * Return the offset of the first auxiliary tag.
+   */
+  int tagsOffset() {
+    if (tagsOffset < 0) {
+      int lseq = readLength();
+      tagsOffset = cigarOffset() + 4 * cigarLength() + (lseq + 1) / 2 + lseq;
+    }
+    return tagsOffset;
+  }
+
+  /**
+   * Find a tag.
+   *
+   * @param c1 first character of the tag
+   * @param c2 second character of the tag
+   * @return the offset of the tag's type byte, or -1 if absent
+   */
+  int findTag(char c1, char c2) {
+    int p = tagsOffset();
+    while (p + 3 <= length) {
+      byte type = buf[p + 2];
+      if (buf[p] == c1 && buf[p + 1] == c2) {
+        return p + 2;
+      }
+      p += 3;
+      switch (type) {
+      case 'A':
+      case 'c':
+      case 'C':
+        p += 1;
+        break;
+      case 's':
+      case 'S':
+        p += 2;
+        break;
+      case 'i':
+      case 'I':
+      case 'f':
+        p += 4;
+        break;
+      case 'Z':
+      case 'H':
+        while (p < length && buf[p] != 0) {
+          p++;
+        }
+        p++;
+        break;
+      case 'B':
+        int size = elementSize(buf[p]);
+        p += 5 + size * getInt(p + 1);
+        break;
+      default:
+        // corrupt or unknown: give up rather than guess
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static int elementSize(byte subtype) {
+    switch (subtype) {
+    case 'c':
+    case 'C':
+      return 1;
+    case 's':
+    case 'S':
+      return 2;
+    default:
+      return 4;
+    }
+  }
+
+  /**
+   * Return the value of an integer tag, whatever width it is stored as.
+   *
+   * @param c1 first character of the tag
+   * @param c2 second character of the tag
+   * @param missing value to return if the tag is absent or not an integer
+   * @return the tag's value, or missing
+   */
+  long intTag(char c1, char c2, long missing) {
+    int p = findTag(c1, c2);
+    if (p < 0) {
+      return missing;
+    }
+    switch (buf[p]) {
+    case 'c':
+      return buf[p + 1];
+    case 'C':
+      return buf[p + 1] & 0xff;
+    case 's':
+      return (short) getUShort(p + 1);
+    case 'S':
+      return getUShort(p + 1);
+    case 'i':
+      return getInt(p + 1);
+    case 'I':
+      return getInt(p + 1) & 0xffffffffL;
+    default:
+      return missing;
+    }
+  }
+
+  /**
+   * Compare the value of a string tag with the given bytes.
+   *
+   * @param typeOffset offset of the tag's type byte, as from findTag()
+   * @param value the bytes to compare with (no trailing NUL)
+   * @return true if the tag's value is exactly those bytes
+   */
+  boolean stringTagEquals(int typeOffset, byte[] value) {
+    int p = typeOffset + 1;
+    for (int i = 0; i < value.length; i++, p++) {
+      if (p >= length || buf[p] != value[i]) {
+        return false;
+      }
+    }
+    return p < length && buf[p] == 0;
+  }
+
+  /**
+   * Replace the value of a string tag, moving the rest of the record to fit and
+   * updating block_size.
+   *
+   * @param typeOffset offset of the tag's type byte, as from findTag()
+   * @param value the new value (no trailing NUL)
+   */
+  void replaceStringTag(int typeOffset, byte[] value) {
+    int start = typeOffset + 1;
+    int end = start;
+    while (end < length && buf[end] != 0) {
+      end++;
+    }
+    int tail = length - end;
+    int newLength = start + value.length + tail;
+    ensureCapacity(newLength);
+    System.arraycopy(buf, end, buf, start + value.length, tail);
+    System.arraycopy(value, 0, buf, start, value.length);
+    length = newLength;
+    putInt(0, length - 4);
+  }
+
+  /**
+   * Decode the record in full.
+   *
+   * @param header the header of the file the record came from
+   * @return the decoded record
+   */
+  SAMRecord toSAMRecord(SAMFileHeader header) {
+    byte[] rest = Arrays.copyOfRange(buf, NAME_OFFSET, length);
+    return DefaultSAMRecordFactory.getInstance().createBAMRecord(header, referenceIndex(), position() + 1,
+        (short) (buf[12] & 0xff), (short) mappingQuality(), bin(), cigarLength(), flags(), readLength(),
+        mateReferenceIndex(), matePosition() + 1, insertSize(), rest);
+  }
+}
@@ -0,0 +1,288 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+
+/**
+ * A position in one name-sorted input file. The cursor always holds the first
+ * record of the next group (the next run of records sharing a read name), so
+ * that the merge can order cursors by that name without consuming anything.
+ * Only one group is ever held in memory per file.
+ *
+ * If the file turns out not to be sorted by read name (in the ReadNameOrder
+ * given), nextGroup() raises a SAMFormatException rather than silently
+ * producing a wrong merge. The name of the next group is kept as bytes and as
+ * a packed key (see ReadNameCodec), so that cursors can be compared without
+ * going through String, and usually with a single long comparison.
+ *
+ * Records are held raw (see RawBamRecord) and are not decoded. The records of
+ * a group are recycled by the following call to nextGroup() (see ReadGroup),
+ * so a steady-state merge allocates no records at all.
+ */
+class ReadCursor implements Closeable {
+  protected final int index;
+  protected final Path source;
+  protected PipelinedReader reader = null;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected int batchSize = 0;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected RawBamRecord next = null;
+  protected boolean hasNext = false;
+  protected long nextKey = ReadNameCodec.RAW;
+  protected ReadNameCodec codec = new ReadNameCodec();
+  protected ReadNameOrder order = ReadNameOrder.HTSJDK;
+  protected long recordCount = 0;
+  protected long startOffset = -1;
+  protected byte[] rangeFrom = null;
+  protected byte[] rangeTo = null;
+
+  /**
+   * Constructor just records the file and its position in the input list.
+   *
+   * @param index position of this file among the inputs
+   * @param source the BAM file to read
+   */
+  public ReadCursor(int index, Path source) {
+    this.index = index;
+    this.source = source;
+  }
+
+  /**
+   * Open the file and position the cursor on the first record.
+   *
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file can't be read
+   */
+  void open() throws FileNotFoundException, IOException {
+    if (!Files.exists(source)) {
+      throw new FileNotFoundException("unable to find " + source.getFileName().toString());
+    }
+    ParallelBamReader r = new ParallelBamReader(source, pool, readAhead);
+    if (startOffset >= 0) {
+      try {
+        r.seek(startOffset);
+      } catch (IOException | RuntimeException e) {
+        r.close();
+        throw e;
+      }
+    }
+    reader = new PipelinedReader(r, batchSize, queueCapacity);
+    next = new RawBamRecord();
+    advance();
+  }
+
+  protected void advance() throws IOException {
+    hasNext = reader.next(next);
+    if (rangeFrom != null) {
+      while (hasNext && compareName(rangeFrom) < 0) {
+        hasNext = reader.next(next);
+      }
+      // the file is sorted, so nothing later can be before the range
+      rangeFrom = null;
+    }
+    if (hasNext && rangeTo != null && compareName(rangeTo) >= 0) {
+      hasNext = false;
+    }
+    if (hasNext) {
+      nextKey = codec.encode(next.buffer(), RawBamRecord.NAME_OFFSET, next.nameLength());
+      recordCount++;
+    } else {
+      nextKey = ReadNameCodec.RAW;
+    }
+  }
+
+  private int compareName(byte[] name) {
+    return order.compare(next.buffer(), RawBamRecord.NAME_OFFSET, next.nameLength(), name, 0, name.length);
+  }
+
+  /**
+   * Restrict the cursor to a range of read names (see ShardedMerge): records
+   * before the range are skipped, and the cursor ends at the first record
+   * past it. The order must be set first (see setOrder()). Call before open().
+   *
+   * @param start virtual offset of a record at or before the first in the
+   *          range, or -1 to start from the beginning of the file
+   * @param from the first name in the range, or null for no lower bound
+   * @param to the first name after the range, or null for no upper bound
+   */
+  void setRange(long start, byte[] from, byte[] to) {
+    this.startOffset = start;
+    this.rangeFrom = from;
+    this.rangeTo = to;
+  }
+
+  /**
+   * Set the codec used to pack read names. Cursors that are to be compared must
+   * share one. Call before open().
+   *
+   * @param codec the read name codec
+   */
+  void setCodec(ReadNameCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Set the threads used to inflate the file (see ParallelBamReader). Call
+   * before open().
+   *
+   * @param pool the threads to inflate on, or null to inflate on the calling
+   *             thread
+   * @param readAhead the number of blocks to inflate ahead of the merge
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Split the file into records on a thread of its own, a batch ahead of the
+   * merge (see PipelinedReader). Call before open().
+   *
+   * @param batchSize records per batch, or 0 to read on the merging thread
+   * @param queueCapacity batches that may wait for the merge
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set the order the file is expected to be sorted in.
+   *
+   * @param order the read name order
+   */
+  void setOrder(ReadNameOrder order) {
+    this.order = order;
+  }
+
+  /**
+   * Report whether any records remain.
+   *
+   * @return true if there is at least one more group
+   */
+  boolean hasNext() {
+    return hasNext;
+  }
+
+  /**
+   * Return the read name of the next group. Only valid if hasNext() is true.
+   *
+   * @return the name shared by the records of the next group
+   */
+  String name() {
+    return next.readName();
+  }
+
+  /**
+   * Return the buffer holding the read name of the next group, at offset
+   * RawBamRecord.NAME_OFFSET. Only valid if hasNext() is true; the array
+   * belongs to the cursor and must not be modified.
+   *
+   * @return the buffer holding the name of the next group
+   */
+  byte[] nameBuffer() {
+    return next.buffer();
+  }
+
+  /**
+   * Return the length of the read name of the next group. Only valid if
+   * hasNext() is true.
+   *
+   * @return the length of the name, in bytes
+   */
+  int nameLength() {
+    return next.nameLength();
+  }
+
+  /**
+   * Return the packed read name of the next group. Only valid if hasNext() is
+   * true.
+   *
+   * @return the packed name, or ReadNameCodec.RAW
+   */
+  long nameKey() {
+    return nextKey;
+  }
+
+  /**
+   * Move all records of the next group into the supplied group, scoring them
+   * on the way, and leave the cursor on the first record of the following
+   * group. Whatever records the group holds (the previous group from this
+   * cursor) are taken back for reuse, so they must not be used after this
+   * call.
+   *
+   * @param group the group to fill
+   * @return the number of records in the group
+   * @throws IOException if the file can't be read
+   */
+  int nextGroup(ReadGroup group) throws IOException {
+    group.clear();
+    RawBamRecord first = next;
+    long key = nextKey;
+    int off = RawBamRecord.NAME_OFFSET;
+    do {
+      next = group.swap(next);
+      advance();
+    } while (hasNext && ReadNameCodec.sameName(key, first.buffer(), off, first.nameLength(), nextKey, next.buffer(),
+        off, next.nameLength()));
+    if (hasNext && order.compare(key, first.buffer(), off, first.nameLength(), nextKey, next.buffer(), off,
+        next.nameLength()) > 0) {
+      throw new SAMFormatException(source.getFileName().toString() + " is not sorted by read name ("
+          + order + " order): " + next.readName() + " follows " + first.readName());
+    }
+    return group.size();
+  }
+
+  /**
+   * Return a virtual file offset at or before the first record of the next
+   * group, for a checkpoint: a cursor given that offset and the group's name
+   * as its range (see setRange()) carries on from the same group.
+   *
+   * @return a BGZF virtual file offset
+   */
+  long checkpointOffset() {
+    return reader.offset();
+  }
+
+  /**
+   * Return the position of this file among the inputs.
+   *
+   * @return the input index
+   */
+  int index() {
+    return index;
+  }
+
+  /**
+   * Return the number of records read so far.
+   *
+   * @return records read
+   */
+  long recordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Return the header of the underlying file. Only valid after open().
+   *
+   * @return the header
+   */
+  SAMFileHeader getHeader() {
+    return reader.getFileHeader();
+  }
+
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Arrays;
+
+/**
+ * The records of one template from one input, as a streaming merge takes them
+ * from a ReadCursor: primary, secondary and supplementary hits of both mates,
+ * which are kept or dropped together. The template's score is worked out as
+ * the records are added (see TemplateScore), so that deciding between inputs
+ * takes no second pass over the records.
+ *
+ * A group owns its records and is reused from one template to the next:
+ * clear() empties it without letting the records go, and each record added
+ * is swapped for one the group held before (see swap()), so a cursor reading
+ * into a group allocates records only until the group has grown to the size
+ * of the largest template.
+ */
+final class ReadGroup {
+  protected final ScoringPolicy scoring;
+  protected RawBamRecord[] records = new RawBamRecord[4];
+  protected int count = 0;
+  protected final TemplateScore score;
+
+  /**
+   * Constructor.
+   *
+   * @param scoring how the records are scored
+   */
+  ReadGroup(ScoringPolicy scoring) {
+    this.scoring = scoring;
+    this.score = new TemplateScore(scoring);
+  }
+
+  /**
+   * Empty the group, keeping its records for reuse.
+   */
+  void clear() {
+    count = 0;
+    score.clear();
+  }
+
+  /**
+   * Add a record to the group, scoring it, and give back a record for the
+   * caller to read the next one into: one the group held from an earlier
+   * template, or a new one. The record added belongs to the group until it is
+   * cleared.
+   *
+   * @param rec the record to add
+   * @return a record the group no longer uses
+   */
+  RawBamRecord swap(RawBamRecord rec) {
+    if (count == records.length) {
+      records = Arrays.copyOf(records, count * 2);
+    }
+    RawBamRecord old = records[count];
+    records[count++] = rec;
+    score.add(scoring.score(rec), rec.isSecondOfPair());
+    return old == null ? new RawBamRecord() : old;
+  }
+
+  /**
+   * Return the template's score: the best hit, or if the scoring policy is
+   * pair-aware, the best hit of each mate combined.
+   *
+   * @return the score, or ScoringPolicy.UNSCORED
+   */
+  int score() {
+    return score.score();
+  }
+
+  /**
+   * Return the number of records in the group.
+   *
+   * @return records
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Return one of the group's records.
+   *
+   * @param i which record, from 0
+   * @return the record
+   */
+  RawBamRecord get(int i) {
+    return records[i];
+  }
+}
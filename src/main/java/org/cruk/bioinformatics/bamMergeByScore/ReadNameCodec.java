@@ -0,0 +1,320 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Packs Illumina read names into a single long. A name such as
+ * "K00252:335:HWMMGBBXX:2:1101:3204:2545" is an instrument/run/flowcell prefix
+ * shared by millions of reads, followed by four small integers: lane, tile, x
+ * and y. The prefix is interned once in a dictionary, and the key holds its
+ * index along with the four numbers:
+ *
+ * <pre>
+ *   bit 63     always 0
+ *   62..55     prefix index (up to 256 prefixes)
+ *   54..51     lane (0-15)
+ *   50..34     tile (0-131071)
+ *   33..17     x (0-131071)
+ *   16..0      y (0-131071)
+ * </pre>
+ *
+ * Any name that doesn't fit (too few fields, non-numeric or out-of-range
+ * values, leading zeros that wouldn't survive a round trip, or a full
+ * dictionary) encodes as RAW, and callers fall back to the name bytes. A given
+ * name always encodes the same way for a given codec, so two keys that are not
+ * RAW are the same name exactly when they are equal.
+ *
+ * For names with the same prefix, numeric order of keys is samtools' natural
+ * order of names (see ReadNameOrder), since the fields are compared as numbers
+ * from lane to y. It is not byte order: "1101:3204" sorts before "1101:21481"
+ * numerically but after it as bytes.
+ *
+ * Encoding only ever adds to the dictionary, so one codec can be shared by all
+ * inputs of a merge, from several threads.
+ */
+class ReadNameCodec {
+  static final long RAW = -1L;
+  static final int MAX_PREFIXES = 256;
+  static final int PREFIX_SHIFT = 55;
+  static final int LANE_SHIFT = 51;
+  static final int TILE_SHIFT = 34;
+  static final int X_SHIFT = 17;
+  static final long LANE_MAX = 15;
+  static final long COORD_MAX = (1L << 17) - 1;
+
+  protected volatile byte[][] prefixes = new byte[0][];
+
+  /**
+   * Report whether a key is a packed name rather than RAW.
+   *
+   * @param key the key
+   * @return true if packed
+   */
+  static boolean isPacked(long key) {
+    return key != RAW;
+  }
+
+  /**
+   * Report whether two names are the same, comparing keys if either is packed
+   * (since a name always encodes the same way) and bytes otherwise.
+   *
+   * @param ka the first name's key, or RAW
+   * @param a  the first name
+   * @param kb the second name's key, or RAW
+   * @param b  the second name
+   * @return true if the names are equal
+   */
+  static boolean sameName(long ka, byte[] a, long kb, byte[] b) {
+    if (isPacked(ka) || isPacked(kb)) {
+      return ka == kb;
+    }
+    return Arrays.equals(a, b);
+  }
+
+  /**
+   * As sameName(long, byte[], long, byte[]), for names held within larger
+   * buffers.
+   */
+  static boolean sameName(long ka, byte[] a, int aOff, int aLen, long kb, byte[] b, int bOff, int bLen) {
+    if (isPacked(ka) || isPacked(kb)) {
+      return ka == kb;
+    }
+    if (aLen != bLen) {
+      return false;
+    }
+    for (int i = 0; i < aLen; i++) {
+      if (a[aOff + i] != b[bOff + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Report whether two packed keys share a prefix, so that their numeric order
+   * is their natural name order.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return true if the prefixes are the same
+   */
+  static boolean samePrefix(long a, long b) {
+    return (a >>> PREFIX_SHIFT) == (b >>> PREFIX_SHIFT);
+  }
+
+  /**
+   * Parse one numeric field, right to left, ending just before "end".
+   *
+   * @return the value, or -1 if it's not a canonical number within max
+   */
+  private static long field(byte[] name, int start, int end, long max) {
+    int len = end - start;
+    if (len < 1 || len > 6 || (len > 1 && name[start] == '0')) {
+      return -1;
+    }
+    long v = 0;
+    for (int i = start; i < end; i++) {
+      int d = name[i] - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      v = v * 10 + d;
+    }
+    return v <= max ? v : -1;
+  }
+
+  /**
+   * Find a prefix in the dictionary, adding it if asked to.
+   *
+   * @return its index, or -1 if absent (or the dictionary is full)
+   */
+  private int prefixIndex(byte[] name, int off, int len, boolean add) {
+    byte[][] p = prefixes;
+    for (int i = p.length - 1; i >= 0; i--) {
+      if (p[i].length == len && ReadNameOrder.compareBytes(p[i], 0, len, name, off, len) == 0) {
+        return i;
+      }
+    }
+    return add ? addPrefix(name, off, len) : -1;
+  }
+
+  private synchronized int addPrefix(byte[] name, int off, int len) {
+    int found = prefixIndex(name, off, len, false);
+    if (found >= 0 || prefixes.length == MAX_PREFIXES) {
+      return found;
+    }
+    byte[][] grown = Arrays.copyOf(prefixes, prefixes.length + 1);
+    grown[prefixes.length] = Arrays.copyOfRange(name, off, off + len);
+    prefixes = grown;
+    return grown.length - 1;
+  }
+
+  /**
+   * Pack a name, adding its prefix to the dictionary if necessary.
+   *
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @return the packed key, or RAW
+   */
+  long encode(byte[] name, int off, int len) {
+    return encode(name, off, len, true);
+  }
+
+  /**
+   * Pack a name for a lookup. If its prefix is not in the dictionary, no name
+   * with that prefix can have been stored packed, so RAW is returned and the
+   * dictionary is left alone.
+   *
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @return the packed key, or RAW
+   */
+  long encodeExisting(byte[] name, int off, int len) {
+    return encode(name, off, len, false);
+  }
+
+  private long encode(byte[] name, int off, int len, boolean add) {
+    int end = off + len;
+    int fieldEnd = end;
+    long y = -1;
+    long x = -1;
+    long tile = -1;
+    long lane = -1;
+    int field = 0;
+    for (int i = end - 1; i >= off && field < 4; i--) {
+      if (name[i] == ':') {
+        long v = field(name, i + 1, fieldEnd, field == 3 ? LANE_MAX : COORD_MAX);
+        if (v < 0) {
+          return RAW;
+        }
+        switch (field) {
+        case 0:
+          y = v;
+          break;
+        case 1:
+          x = v;
+          break;
+        case 2:
+          tile = v;
+          break;
+        default:
+          lane = v;
+          break;
+        }
+        field++;
+        fieldEnd = i;
+      }
+    }
+    if (field < 4 || fieldEnd == off) {
+      return RAW;
+    }
+    int prefix = prefixIndex(name, off, fieldEnd - off, add);
+    if (prefix < 0) {
+      return RAW;
+    }
+    return ((long) prefix << PREFIX_SHIFT) | (lane << LANE_SHIFT) | (tile << TILE_SHIFT) | (x << X_SHIFT) | y;
+  }
+
+  /**
+   * Pack a name given as a String.
+   *
+   * @param name the name
+   * @return the packed key, or RAW
+   */
+  long encode(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    return encode(b, 0, b.length);
+  }
+
+  /**
+   * Pack a name given as a String, for a lookup; see encodeExisting() above.
+   *
+   * @param name the name
+   * @return the packed key, or RAW
+   */
+  long encodeExisting(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    return encodeExisting(b, 0, b.length);
+  }
+
+  /**
+   * Add a prefix to the dictionary, e.g. to rebuild a codec saved with an
+   * index (see SampleDataMapped).
+   *
+   * @param prefix the prefix, without the ":" before the lane
+   * @return its index, or -1 if the dictionary is full
+   */
+  int intern(byte[] prefix) {
+    return prefixIndex(prefix, 0, prefix.length, true);
+  }
+
+  /**
+   * Return a prefix from the dictionary.
+   *
+   * @param index its index
+   * @return the prefix bytes, which must not be modified
+   */
+  byte[] prefix(int index) {
+    return prefixes[index];
+  }
+
+  /**
+   * Turn a packed key back into its name.
+   *
+   * @param key a key other than RAW
+   * @return the name
+   */
+  String decode(long key) {
+    StringBuilder sb = new StringBuilder(40);
+    sb.append(StringUtil.bytesToString(prefixes[(int) (key >>> PREFIX_SHIFT)]));
+    sb.append(':').append((key >>> LANE_SHIFT) & LANE_MAX);
+    sb.append(':').append((key >>> TILE_SHIFT) & COORD_MAX);
+    sb.append(':').append((key >>> X_SHIFT) & COORD_MAX);
+    sb.append(':').append(key & COORD_MAX);
+    return sb.toString();
+  }
+
+  /**
+   * Turn a packed key back into its name, as bytes, without allocating.
+   *
+   * @param key a key other than RAW
+   * @param buf where to put the name; 256 bytes is always enough
+   * @return the length of the name
+   */
+  int decode(long key, byte[] buf) {
+    byte[] p = prefixes[(int) (key >>> PREFIX_SHIFT)];
+    System.arraycopy(p, 0, buf, 0, p.length);
+    int n = appendField(buf, p.length, (key >>> LANE_SHIFT) & LANE_MAX);
+    n = appendField(buf, n, (key >>> TILE_SHIFT) & COORD_MAX);
+    n = appendField(buf, n, (key >>> X_SHIFT) & COORD_MAX);
+    return appendField(buf, n, key & COORD_MAX);
+  }
+
+  private static int appendField(byte[] buf, int n, long v) {
+    buf[n++] = ':';
+    int start = n;
+    do {
+      buf[n++] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v > 0);
+    for (int i = start, j = n - 1; i < j; i++, j--) {
+      byte t = buf[i];
+      buf[i] = buf[j];
+      buf[j] = t;
+    }
+    return n;
+  }
+
+  /**
+   * Return the number of prefixes in the dictionary.
+   *
+   * @return the number of prefixes
+   */
+  int prefixCount() {
+    return prefixes.length;
+  }
+}
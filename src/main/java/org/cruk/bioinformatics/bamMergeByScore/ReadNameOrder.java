@@ -0,0 +1,220 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMProgramRecord;
+
+/**
+ * The orders in which a file can be "sorted by read name". Different tools
+ * disagree: Picard and htsjdk compare names as Java strings, while samtools
+ * ("sort -n") compares runs of digits numerically, so that "r:9" comes before
+ * "r:10". If the merge uses a different order from the one the inputs were
+ * sorted with, it will see names out of order and either abort or (worse) fail
+ * to pair up the reads. The order is therefore detected from the header of
+ * each input, see fromHeader().
+ *
+ * All comparisons work on the raw name bytes (without the trailing NUL), so no
+ * String need be built per record.
+ */
+enum ReadNameOrder {
+  /**
+   * htsjdk's SAMRecordQueryNameComparator, as used by Picard SortSam. This
+   * compares names with String.compareTo(); since htsjdk decodes names one byte
+   * per char (unsigned), that is the same as comparing unsigned bytes.
+   */
+  HTSJDK {
+    int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+      return compareBytes(a, aOff, aLen, b, bOff, bLen);
+    }
+  },
+  /**
+   * samtools' natural order (strnum_cmp() in bam_sort.c): digit runs compare
+   * numerically, ignoring leading zeros, which only break ties at the end.
+   */
+  NATURAL {
+    int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+      return compareNatural(a, aOff, aLen, b, bOff, bLen);
+    }
+  },
+  /**
+   * Plain byte order, as strcmp(); produced by "samtools sort -N" and recorded
+   * as "SS:queryname:lexicographical".
+   */
+  BYTE {
+    int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+      return compareBytes(a, aOff, aLen, b, bOff, bLen);
+    }
+  };
+
+  /**
+   * Compare two read names.
+   *
+   * @param a    buffer holding the first name
+   * @param aOff offset of the first name
+   * @param aLen length of the first name
+   * @param b    buffer holding the second name
+   * @param bOff offset of the second name
+   * @param bLen length of the second name
+   * @return negative, zero or positive as a sorts before, with or after b
+   */
+  abstract int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen);
+
+  /**
+   * Compare two whole-array read names.
+   *
+   * @param a the first name
+   * @param b the second name
+   * @return negative, zero or positive as a sorts before, with or after b
+   */
+  int compare(byte[] a, byte[] b) {
+    return compare(a, 0, a.length, b, 0, b.length);
+  }
+
+  /**
+   * Compare two read names, using their packed keys (see ReadNameCodec) where
+   * that is enough: equal keys are equal names, and in natural order two keys
+   * with the same prefix compare as numbers. Otherwise the bytes are compared.
+   *
+   * @param ka the first name's key, or RAW
+   * @param a  the first name
+   * @param kb the second name's key, or RAW
+   * @param b  the second name
+   * @return negative, zero or positive as a sorts before, with or after b
+   */
+  int compare(long ka, byte[] a, long kb, byte[] b) {
+    return compare(ka, a, 0, a.length, kb, b, 0, b.length);
+  }
+
+  /**
+   * As compare(long, byte[], long, byte[]), for names held within larger
+   * buffers.
+   */
+  int compare(long ka, byte[] a, int aOff, int aLen, long kb, byte[] b, int bOff, int bLen) {
+    if (ReadNameCodec.isPacked(ka) && ReadNameCodec.isPacked(kb)) {
+      if (ka == kb) {
+        return 0;
+      } else if (this == NATURAL && ReadNameCodec.samePrefix(ka, kb)) {
+        return Long.compare(ka, kb);
+      }
+    }
+    return compare(a, aOff, aLen, b, bOff, bLen);
+  }
+
+  /**
+   * Return the "SS" (sub-sort) header value that records this order, so that
+   * fromHeader() gives back an order that agrees with it. htsjdk order is the
+   * same as byte order, so it is recorded as "lexicographical" too.
+   *
+   * @return the sub-sort, e.g. "queryname:natural"
+   */
+  String subSort() {
+    return this == NATURAL ? "queryname:natural" : "queryname:lexicographical";
+  }
+
+  /**
+   * Report whether two orders sort every name identically, so that files sorted
+   * in one can be merged with files sorted in the other.
+   *
+   * @param other the other order
+   * @return true if the orders agree
+   */
+  boolean agreesWith(ReadNameOrder other) {
+    return this == other || (this != NATURAL && other != NATURAL);
+  }
+
+  static int compareBytes(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+    int n = Math.min(aLen, bLen);
+    for (int i = 0; i < n; i++) {
+      int ca = a[aOff + i] & 0xff;
+      int cb = b[bOff + i] & 0xff;
+      if (ca != cb) {
+        return ca - cb;
+      }
+    }
+    return aLen - bLen;
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  static int compareNatural(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+    int pa = aOff;
+    int pb = bOff;
+    int aEnd = aOff + aLen;
+    int bEnd = bOff + bLen;
+    // a position past the end reads as NUL, as in the C original
+    while (pa < aEnd && pb < bEnd) {
+      int ca = a[pa] & 0xff;
+      int cb = b[pb] & 0xff;
+      if (!isDigit(ca) || !isDigit(cb)) {
+        if (ca != cb) {
+          return ca - cb;
+        }
+        pa++;
+        pb++;
+      } else {
+        while (pa < aEnd && a[pa] == '0') {
+          pa++;
+        }
+        while (pb < bEnd && b[pb] == '0') {
+          pb++;
+        }
+        while (pa < aEnd && pb < bEnd && isDigit(a[pa]) && a[pa] == b[pb]) {
+          pa++;
+          pb++;
+        }
+        int da = pa < aEnd ? a[pa] & 0xff : 0;
+        int db = pb < bEnd ? b[pb] & 0xff : 0;
+        int diff = da - db;
+        while (pa < aEnd && pb < bEnd && isDigit(a[pa]) && isDigit(b[pb])) {
+          pa++;
+          pb++;
+        }
+        boolean moreA = pa < aEnd && isDigit(a[pa]);
+        boolean moreB = pb < bEnd && isDigit(b[pb]);
+        if (moreA) {
+          return 1;
+        } else if (moreB) {
+          return -1;
+        } else if (diff != 0) {
+          return diff;
+        }
+      }
+    }
+    if (pa == aEnd && pb == bEnd) {
+      // equal apart from leading zeros: fewer characters sorts first
+      return Integer.compare(pa - aOff, pb - bOff);
+    }
+    return pa < aEnd ? 1 : -1;
+  }
+
+  /**
+   * Work out which name order a file was sorted with. The "SS" (sub-sort)
+   * header field is definitive if present. Otherwise a queryname-sorted file
+   * whose programs include "samtools sort" is taken to be in natural order,
+   * and anything else in htsjdk order.
+   *
+   * @param header the file's header
+   * @return the detected order
+   */
+  static ReadNameOrder fromHeader(SAMFileHeader header) {
+    String ss = header.getAttribute("SS");
+    if (ss != null) {
+      if (ss.endsWith(":natural")) {
+        return NATURAL;
+      } else if (ss.endsWith(":lexicographical")) {
+        return BYTE;
+      }
+    }
+    if (header.getSortOrder() == SAMFileHeader.SortOrder.queryname) {
+      for (SAMProgramRecord pg : header.getProgramRecords()) {
+        String pn = pg.getProgramName() != null ? pg.getProgramName() : pg.getId();
+        String cl = pg.getCommandLine();
+        if (pn != null && pn.startsWith("samtools") && cl != null && cl.contains(" sort")) {
+          return cl.contains(" -N") ? BYTE : NATURAL;
+        }
+      }
+    }
+    return HTSJDK;
+  }
+}
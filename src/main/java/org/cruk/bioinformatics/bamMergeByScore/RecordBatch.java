@@ -0,0 +1,119 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.util.Arrays;
+
+/**
+ * A run of raw BAM records packed end to end in one buffer, as they are laid
+ * out in a BAM file: the unit passed between the stages of a pipelined merge
+ * (see SpscRing). Handing records over a batch at a time keeps the cost of
+ * the handover small per record, and copying the bytes into the batch frees
+ * the stage that filled it to reuse its own records at once.
+ *
+ * Batches are recycled: each stage returns drained batches to the stage that
+ * fills them, so a fixed number of them circulates and the buffers grow only
+ * to the size of the largest batch.
+ */
+final class RecordBatch {
+  static final int DEFAULT_SIZE = 256;
+
+  protected byte[] data;
+  protected final int[] ends;
+  protected int count = 0;
+  protected long offset = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param records the most records the batch holds
+   */
+  RecordBatch(int records) {
+    ends = new int[records];
+    data = new byte[records * 512];
+  }
+
+  /**
+   * Report whether the batch can take no more records.
+   *
+   * @return true if full
+   */
+  boolean isFull() {
+    return count == ends.length;
+  }
+
+  /**
+   * Return the number of records in the batch.
+   *
+   * @return records
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Return the number of bytes the records take.
+   *
+   * @return bytes
+   */
+  int bytes() {
+    return count == 0 ? 0 : ends[count - 1];
+  }
+
+  byte[] buffer() {
+    return data;
+  }
+
+  /**
+   * Record where in its file the batch's first record was read from, for
+   * checkpoints (see PipelinedReader.offset()).
+   *
+   * @param offset a BGZF virtual file offset
+   */
+  void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * Return where in its file the batch's first record was read from.
+   *
+   * @return a BGZF virtual file offset, or -1 if not known
+   */
+  long offset() {
+    return offset;
+  }
+
+  /**
+   * Copy a record onto the end of the batch. The batch must not be full.
+   *
+   * @param rec the record
+   */
+  void add(RawBamRecord rec) {
+    int start = bytes();
+    int end = start + rec.length();
+    if (end > data.length) {
+      data = Arrays.copyOf(data, Math.max(end, data.length + (data.length >> 1)));
+    }
+    System.arraycopy(rec.buffer(), 0, data, start, rec.length());
+    ends[count++] = end;
+  }
+
+  /**
+   * Copy a record out of the batch.
+   *
+   * @param i the record's position in the batch
+   * @param rec the record to copy into
+   */
+  void get(int i, RawBamRecord rec) {
+    int start = i == 0 ? 0 : ends[i - 1];
+    int length = ends[i] - start;
+    rec.ensureCapacity(length);
+    System.arraycopy(data, start, rec.buf, 0, length);
+    rec.setLength(length);
+  }
+
+  /**
+   * Empty the batch for reuse.
+   */
+  void clear() {
+    count = 0;
+  }
+}
@@ -3,6 +3,7 @@ package org.cruk.bioinformatics.bamMergeByScore;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
 
 import htsjdk.samtools.SAMFileHeader;
 
@@ -20,6 +21,10 @@ abstract class SampleData {
   protected Path source = null;
   protected int entryCount = 0;
   protected SAMFileHeader header = null;
+  protected ReadNameCodec codec = new ReadNameCodec();
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
 
   /**
    * Constructor just sets the path name for this BAM file.
@@ -30,6 +35,49 @@ abstract class SampleData {
     source = fn;
   }
 
+  /**
+   * Set the codec used to pack read names (see ReadNameCodec). Objects that will
+   * be queried with the same packed keys must share one. Call before load().
+   * 
+   * @param codec the read name codec
+   */
+  void setCodec(ReadNameCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Set how records are scored. Call before load().
+   * 
+   * @param scoring the scoring policy
+   */
+  void setScoringPolicy(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Set the threads used to inflate the file while loading it (see
+   * ParallelBamReader). Call before load().
+   * 
+   * @param pool the threads to inflate on, or null to inflate on the loading
+   *             thread
+   * @param readAhead the number of blocks to inflate ahead of the reader
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Open the file for reading, with this object's reader threads.
+   * 
+   * @return the reader, positioned at the first record
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file can't be read
+   */
+  protected ParallelBamReader openReader() throws FileNotFoundException, IOException {
+    return new ParallelBamReader(source, pool, readAhead);
+  }
+
   /**
    * Load the read names and scores for the specified BAM file. Raise exception if
    * file not found, or read error. Should be instantiated (Map, Trie, etc) by
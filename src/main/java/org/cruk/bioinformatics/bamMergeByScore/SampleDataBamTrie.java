@@ -8,10 +8,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import htsjdk.samtools.SAMFormatException;
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
 
 /**
  * Implements a modified trie-like data structure tailored to BAM read names.
@@ -22,7 +18,7 @@ import htsjdk.samtools.ValidationStringency;
  * 
  * NOTA BENE: This supposedly efficient data structure takes more space than a
  * regular Java HashMap. Do not use it. (But it was worth trying, just to find
- * out...)
+ * out...) See SampleDataBenchmark in the benchmarks module for the numbers.
  * 
  * @author Gord Brown
  *
@@ -84,39 +80,6 @@ class SampleDataBamTrie extends SampleData {
     }
   }
 
-  protected int calcScoreFromMD(String md) {
-    String[] nums = md.split("[a-zA-Z^]+");
-    int total = 0;
-    for (String num: nums) {
-      total += Integer.parseInt(num);
-    }
-    return total;
-  }
-
-  /**
-   * Find alignment score. If "AS" attribute is not set, fake it from the CIGAR
-   * string or at worst from the read length and edit distance.
-   * 
-   * @param rec the SAM/BAM record
-   * @return a score, or 0 if no score is calculable
-   */
-  protected int getScore(SAMRecord rec) {
-    int score = -1;
-
-    Integer alnScore = rec.getIntegerAttribute("AS");
-    if (alnScore != null) {
-      score = alnScore.intValue();
-    } else {
-      String mdScore = rec.getStringAttribute("MD");
-      if (mdScore != null) {
-        score = calcScoreFromMD(mdScore);
-      } else {
-        score = -1;
-      }
-    }
-    return score;
-  }
-
   /**
    * Reads the BAM file, storing the read scores by name. Fails if the BAM file
    * doesn't exist or can't be read, or if the htsjdk library can't understand the
@@ -127,12 +90,12 @@ class SampleDataBamTrie extends SampleData {
     if (!Files.exists(source)) {
       throw new FileNotFoundException("unable to find " + source.getFileName().toString());
     }
-    SamReaderFactory srf = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT);
-    SamReader rdr = srf.open(source);
+    ParallelBamReader rdr = openReader();
     header = rdr.getFileHeader();
-    for (SAMRecord rec: rdr) {
-      String name = rec.getReadName();
-      int alnScore = getScore(rec);
+    RawBamRecord rec = new RawBamRecord();
+    while (rdr.next(rec)) {
+      String name = rec.readName();
+      int alnScore = scoring.score(rec);
       assert (data != null);
       assert (name != null);
       addRec(data, split(name), 0, alnScore);
@@ -12,10 +12,6 @@ import java.util.Map;
 
 //import com.sun.management.HotSpotDiagnosticMXBean;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
 
 /**
  * This class holds the data (file name, read scores) from a BAM file. Once a
@@ -24,11 +20,23 @@ import htsjdk.samtools.ValidationStringency;
  * the case of multiple hits within the file, we can select the best score (or a
  * random choice among the best scores).
  * 
+ * Names that pack into a long (see ReadNameCodec) are kept in a second map
+ * keyed by Long, which is a fraction of the size of the String.
+ * 
+ * All the records of a read (secondary and supplementary hits, and both
+ * mates) share its name, so each is folded into the one entry: the best score
+ * is kept, or if the scoring policy is pair-aware, the best score of each mate
+ * (the second mates in a second pair of maps), combined when looked up, as
+ * SampleDataOffHeap does.
+ * 
  * @author Gord Brown
  *
  */
 class SampleDataMap extends SampleData {
   protected Map<String, Integer> score = new HashMap<String, Integer>();
+  protected Map<Long, Integer> packedScore = new HashMap<Long, Integer>();
+  protected Map<String, Integer> score2 = null;
+  protected Map<Long, Integer> packedScore2 = null;
   // protected static Instrumentation instrumentation;
 
   /**
@@ -50,13 +58,23 @@ class SampleDataMap extends SampleData {
     if (!Files.exists(source)) {
       throw new FileNotFoundException("unable to find " + source.getFileName().toString());
     }
-    SamReaderFactory srf = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT);
-    SamReader rdr = srf.open(source);
+    if (scoring.pairAware()) {
+      score2 = new HashMap<String, Integer>();
+      packedScore2 = new HashMap<Long, Integer>();
+    }
+    ParallelBamReader rdr = openReader();
     header = rdr.getFileHeader();
-    for (SAMRecord rec : rdr) {
-      String name = rec.getReadName();
-      Integer alnScore = rec.getIntegerAttribute("AS");
-      score.put(name, alnScore);
+    RawBamRecord rec = new RawBamRecord();
+    while (rdr.next(rec)) {
+      String name = rec.readName();
+      int alnScore = scoring.score(rec);
+      long key = codec.encode(name);
+      boolean second = score2 != null && rec.isSecondOfPair();
+      if (ReadNameCodec.isPacked(key)) {
+        keepBest(second ? packedScore2 : packedScore, key, alnScore);
+      } else {
+        keepBest(second ? score2 : score, name, alnScore);
+      }
       entryCount++;
     }
     rdr.close();
@@ -73,6 +91,13 @@ class SampleDataMap extends SampleData {
   // return total;
   // }
 
+  private static <K> void keepBest(Map<K, Integer> m, K key, int alnScore) {
+    Integer old = m.get(key);
+    if (old == null || alnScore > old) {
+      m.put(key, alnScore);
+    }
+  }
+
   /**
    * Return the alignment score of the named read.
    * 
@@ -80,7 +105,18 @@ class SampleDataMap extends SampleData {
    * @return the score of the read, or 0 if not found
    */
   int getScore(String name) {
-    return score.getOrDefault(name, 0);
+    long key = codec.encodeExisting(name);
+    boolean isPacked = ReadNameCodec.isPacked(key);
+    Integer first = isPacked ? packedScore.get(key) : score.get(name);
+    if (score2 == null) {
+      return first == null ? 0 : first;
+    }
+    Integer second = isPacked ? packedScore2.get(key) : score2.get(name);
+    if (first == null && second == null) {
+      return 0;
+    }
+    return scoring.combine(first == null ? ScoringPolicy.UNSCORED : first,
+        second == null ? ScoringPolicy.UNSCORED : second);
   }
 
   /**
@@ -90,7 +126,11 @@ class SampleDataMap extends SampleData {
    * @return true if read found, false otherwise
    */
   boolean hasRead(String name) {
-    return score.containsKey(name);
+    long key = codec.encodeExisting(name);
+    if (ReadNameCodec.isPacked(key)) {
+      return packedScore.containsKey(key) || (packedScore2 != null && packedScore2.containsKey(key));
+    }
+    return score.containsKey(name) || (score2 != null && score2.containsKey(name));
   }
 
   // public static void premain(String args, Instrumentation inst) {
@@ -0,0 +1,359 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * A SampleDataOffHeap whose tables are kept in a sidecar file next to the BAM
+ * file ("sample.bam.msi"), and memory-mapped from it. The first load() indexes
+ * the BAM file as SampleDataOffHeap does and writes the tables out page for
+ * page; later loads, in this run or another, map the file instead, which takes
+ * milliseconds rather than a pass over the BAM file. Processes that map the
+ * same index share its pages through the page cache rather than each holding
+ * a copy.
+ *
+ * The file records the size and modification time of the BAM file it was made
+ * from, and the scoring policy; if any of these differ, the index is stale and
+ * is rebuilt. The layout is:
+ *
+ * <pre>
+ *   "BMSI", version, header length        (12 bytes)
+ *   header: source size and mtime, scoring policy, record count,
+ *           prefix dictionary, and the size of each table
+ *   the tables' buffers, each 8-byte aligned, little-endian
+ * </pre>
+ *
+ * Packed keys depend on the codec that made them, so the index keeps its own
+ * codec (saved as the prefix dictionary), and keys made by the shared codec
+ * are translated to it on lookup. The translation is a table lookup on the
+ * prefix index; names whose prefix has no translation are re-encoded.
+ *
+ * If the sidecar can't be written (e.g. the directory is read-only), the
+ * tables just built are used from memory instead, with a warning.
+ */
+class SampleDataMapped extends SampleDataOffHeap {
+  static final String SUFFIX = ".msi";
+  static final int MAGIC = 0x49534d42; // "BMSI", little-endian
+  static final int VERSION = 1;
+  static final long LOW_MASK = (1L << ReadNameCodec.PREFIX_SHIFT) - 1;
+
+  protected Logger log = LogManager.getLogger(SampleDataMapped.class);
+  protected ReadNameCodec fileCodec = new ReadNameCodec();
+  protected int[] prefixMap = null;
+  protected boolean reused = false;
+
+  /**
+   * Constructor just sets the path name for this BAM file.
+   *
+   * @param fn the filename to associate with this object
+   */
+  public SampleDataMapped(Path fn) {
+    super(fn);
+  }
+
+  /**
+   * Return the name of the index file for a BAM file.
+   *
+   * @param bam the BAM file
+   * @return the index file beside it
+   */
+  static Path indexPath(Path bam) {
+    return bam.resolveSibling(bam.getFileName().toString() + SUFFIX);
+  }
+
+  /**
+   * Map the index if it is up to date, or build and write it if not.
+   *
+   * @return the number of records indexed
+   */
+  int load() throws FileNotFoundException, IOException {
+    if (!Files.exists(source)) {
+      throw new FileNotFoundException("unable to find " + source.getFileName().toString());
+    }
+    Path index = indexPath(source);
+    ParallelBamReader rdr = openReader();
+    header = rdr.getFileHeader();
+    rdr.close();
+    if (Files.exists(index) && map(index)) {
+      reused = true;
+    } else {
+      build(index);
+    }
+    prefixMap = new int[ReadNameCodec.MAX_PREFIXES];
+    Arrays.fill(prefixMap, -1);
+    for (int i = 0; i < fileCodec.prefixCount(); i++) {
+      int c = codec.intern(fileCodec.prefix(i));
+      if (c >= 0) {
+        prefixMap[c] = i;
+      }
+    }
+    return entryCount;
+  }
+
+  /**
+   * Report whether load() mapped an existing index rather than building one.
+   *
+   * @return true if the index was reused
+   */
+  boolean wasReused() {
+    return reused;
+  }
+
+  /**
+   * Index the BAM file with the index's own codec, and write the index. On
+   * failure to write, keep the tables in memory.
+   */
+  protected void build(Path index) throws IOException {
+    SampleDataOffHeap d = new SampleDataOffHeap(source);
+    d.setCodec(fileCodec);
+    d.setScoringPolicy(scoring);
+    d.setReaderThreads(pool, readAhead);
+    entryCount = d.load();
+    Path tmp = null;
+    try {
+      tmp = Files.createTempFile(index.toAbsolutePath().getParent(), index.getFileName().toString(), ".tmp");
+      write(d, tmp);
+      Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      tmp = null;
+    } catch (IOException ioe) {
+      log.warn("Unable to write index {}: {}; keeping it in memory", index, ioe.toString());
+      packed = d.packed;
+      scores = d.scores;
+      packed2 = d.packed2;
+      scores2 = d.scores2;
+      return;
+    } finally {
+      if (tmp != null) {
+        Files.deleteIfExists(tmp);
+      }
+    }
+    d.release();
+    if (!map(index)) {
+      throw new IOException("index " + index + " was not readable after writing it");
+    }
+  }
+
+  private static long align(long pos) {
+    return (pos + 7) & ~7L;
+  }
+
+  /**
+   * Write the tables of an index to a file.
+   */
+  protected void write(SampleDataOffHeap d, Path p) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream h = new DataOutputStream(bytes);
+    h.writeLong(Files.size(source));
+    h.writeLong(Files.getLastModifiedTime(source).toMillis());
+    h.writeUTF(scoring.toString());
+    h.writeInt(entryCount);
+    h.writeShort(fileCodec.prefixCount());
+    for (int i = 0; i < fileCodec.prefixCount(); i++) {
+      byte[] prefix = fileCodec.prefix(i);
+      h.writeShort(prefix.length);
+      h.write(prefix);
+    }
+    h.writeBoolean(d.packed2 != null);
+    writeSizes(h, d.packed, d.scores);
+    if (d.packed2 != null) {
+      writeSizes(h, d.packed2, d.scores2);
+    }
+    h.close();
+
+    FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      start.putInt(MAGIC).putInt(VERSION).putInt(bytes.size());
+      start.flip();
+      while (start.hasRemaining()) {
+        ch.write(start);
+      }
+      ByteBuffer hb = ByteBuffer.wrap(bytes.toByteArray());
+      while (hb.hasRemaining()) {
+        ch.write(hb);
+      }
+      writeTables(ch, d.packed, d.scores);
+      if (d.packed2 != null) {
+        writeTables(ch, d.packed2, d.scores2);
+      }
+    } finally {
+      ch.close();
+    }
+  }
+
+  private static void writeSizes(DataOutputStream h, PackedScoreTable p, ScoreTable s) throws IOException {
+    h.writeLong(p.slotCount);
+    h.writeLong(p.size);
+    h.writeLong(s.slotCount);
+    h.writeLong(s.size);
+    h.writeLong(s.arenaUsed);
+  }
+
+  private static void writeTables(FileChannel ch, PackedScoreTable p, ScoreTable s) throws IOException {
+    ch.position(align(ch.position()));
+    p.keys.writeTo(ch, p.slotCount * 8);
+    ch.position(align(ch.position()));
+    p.scores.writeTo(ch, p.slotCount * 4);
+    ch.position(align(ch.position()));
+    s.slots.writeTo(ch, s.slotCount * ScoreTable.SLOT_BYTES);
+    ch.position(align(ch.position()));
+    s.arena.writeTo(ch, s.arenaUsed);
+  }
+
+  /**
+   * Map an index, if it was made from the current BAM file with the current
+   * scoring policy.
+   *
+   * @return true if mapped, false if the index is stale or unreadable
+   */
+  protected boolean map(Path p) throws IOException {
+    FileChannel ch = FileChannel.open(p, StandardOpenOption.READ);
+    try {
+      ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(ch, start);
+      if (start.remaining() < 12 || start.getInt() != MAGIC || start.getInt() != VERSION) {
+        log.info("{} is not an index of this version; rebuilding it", p);
+        return false;
+      }
+      int length = start.getInt();
+      if (length < 0 || 12 + (long) length > ch.size()) {
+        log.info("{} is truncated; rebuilding it", p);
+        return false;
+      }
+      ByteBuffer hb = ByteBuffer.allocate(length);
+      readFully(ch, hb);
+      if (hb.remaining() < length) {
+        log.info("{} is truncated; rebuilding it", p);
+        return false;
+      }
+      DataInputStream h = new DataInputStream(new ByteArrayInputStream(hb.array()));
+      long size = h.readLong();
+      long mtime = h.readLong();
+      String policy = h.readUTF();
+      if (size != Files.size(source) || mtime != Files.getLastModifiedTime(source).toMillis()) {
+        log.info("{} is older than {}; rebuilding it", p, source);
+        return false;
+      } else if (!policy.equals(scoring.toString())) {
+        log.info("{} was scored with {}, not {}; rebuilding it", p, policy, scoring);
+        return false;
+      }
+      int records = h.readInt();
+      ReadNameCodec c = new ReadNameCodec();
+      int prefixes = h.readUnsignedShort();
+      for (int i = 0; i < prefixes; i++) {
+        byte[] prefix = new byte[h.readUnsignedShort()];
+        h.readFully(prefix);
+        c.intern(prefix);
+      }
+      boolean paired = h.readBoolean();
+      long[] sizes = new long[paired ? 10 : 5];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = h.readLong();
+      }
+      long pos = 12 + length;
+      long[] next = new long[] { pos };
+      PackedScoreTable p1 = mapPacked(ch, next, sizes, 0);
+      ScoreTable s1 = mapNames(ch, next, sizes, 0);
+      PackedScoreTable p2 = paired ? mapPacked(ch, next, sizes, 5) : null;
+      ScoreTable s2 = paired ? mapNames(ch, next, sizes, 5) : null;
+      if (next[0] > ch.size()) {
+        log.info("{} is truncated; rebuilding it", p);
+        return false;
+      }
+      fileCodec = c;
+      entryCount = records;
+      packed = p1;
+      scores = s1;
+      packed2 = p2;
+      scores2 = s2;
+      return true;
+    } finally {
+      ch.close();
+    }
+  }
+
+  /**
+   * Read until the buffer is full or the file ends, and flip the buffer.
+   */
+  private static void readFully(FileChannel ch, ByteBuffer b) throws IOException {
+    while (b.hasRemaining() && ch.read(b) >= 0) {
+      continue;
+    }
+    b.flip();
+  }
+
+  private static PackedScoreTable mapPacked(FileChannel ch, long[] next, long[] sizes, int i) throws IOException {
+    long slotCount = sizes[i];
+    long keysAt = align(next[0]);
+    long scoresAt = align(keysAt + slotCount * 8);
+    next[0] = scoresAt + slotCount * 4;
+    if (next[0] > ch.size()) {
+      return null;
+    }
+    return new PackedScoreTable(PagedBuffer.map(ch, keysAt, slotCount * 8, PagedBuffer.DEFAULT_PAGE_BITS),
+        PagedBuffer.map(ch, scoresAt, slotCount * 4, PagedBuffer.DEFAULT_PAGE_BITS), slotCount, sizes[i + 1]);
+  }
+
+  private static ScoreTable mapNames(FileChannel ch, long[] next, long[] sizes, int i) throws IOException {
+    long slotCount = sizes[i + 2];
+    long arenaUsed = sizes[i + 4];
+    long slotsAt = align(next[0]);
+    long arenaAt = align(slotsAt + slotCount * ScoreTable.SLOT_BYTES);
+    next[0] = arenaAt + arenaUsed;
+    if (next[0] > ch.size()) {
+      return null;
+    }
+    return new ScoreTable(PagedBuffer.map(ch, slotsAt, slotCount * ScoreTable.SLOT_BYTES,
+        PagedBuffer.DEFAULT_PAGE_BITS), slotCount, sizes[i + 3],
+        PagedBuffer.map(ch, arenaAt, arenaUsed, ScoreTable.ARENA_PAGE_BITS), arenaUsed);
+  }
+
+  /**
+   * Translate a key made by the shared codec into one made by the index's
+   * codec.
+   */
+  protected ReadNameCodec keyCodec() {
+    return fileCodec;
+  }
+
+  private long fileKey(long key, byte[] name, int off, int len) {
+    if (ReadNameCodec.isPacked(key)) {
+      int p = prefixMap[(int) (key >>> ReadNameCodec.PREFIX_SHIFT)];
+      if (p >= 0) {
+        return ((long) p << ReadNameCodec.PREFIX_SHIFT) | (key & LOW_MASK);
+      }
+    }
+    return fileCodec.encodeExisting(name, off, len);
+  }
+
+  int getScore(long key, byte[] name, int off, int len, int missing) {
+    return super.getScore(fileKey(key, name, off, len), name, off, len, missing);
+  }
+
+  boolean visit(long key, byte[] name, int off, int len) {
+    return super.visit(fileKey(key, name, off, len), name, off, len);
+  }
+
+  boolean hasRead(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    return getScore(codec.encodeExisting(b, 0, b.length), b, 0, b.length,
+        RandomAccessMerge.MISSING) != RandomAccessMerge.MISSING;
+  }
+}
@@ -0,0 +1,262 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * This class holds the data (file name, read scores) from a BAM file, in
+ * off-heap hash tables rather than a HashMap. There are no String or Integer
+ * objects per read, and none of it is seen by the garbage collector. Names
+ * that pack into a long (see ReadNameCodec), as Illumina names do, cost a
+ * 12-byte slot in a PackedScoreTable; any others cost a 16-byte slot plus
+ * their bytes in a ScoreTable. This makes it feasible to index every read of
+ * several large files at once, for inputs that aren't sorted by read name.
+ *
+ * In the case of multiple hits within the file, the best score is kept. If
+ * the scoring policy is pair-aware, the best score of each mate is kept (in a
+ * second pair of tables), and the two are combined when looked up.
+ *
+ * A Bloom filter of the names (see nameFilter()) can be made from the tables
+ * once loaded, for a merge to rule out most lookups of reads this file
+ * doesn't have. For a merge that must act once per read rather than once per
+ * record, visit() keeps a bit per slot to mark the reads it has seen.
+ */
+class SampleDataOffHeap extends SampleData {
+  protected PackedScoreTable packed = new PackedScoreTable();
+  protected ScoreTable scores = new ScoreTable();
+  protected PackedScoreTable packed2 = null;
+  protected ScoreTable scores2 = null;
+  protected NameFilter filter = null;
+  protected PagedBuffer visited = null;
+
+  /**
+   * Constructor just sets the path name for this BAM file.
+   *
+   * @param fn the filename to associate with this object
+   */
+  public SampleDataOffHeap(Path fn) {
+    super(fn);
+  }
+
+  /**
+   * Load the read names and scores for the specified BAM file. Raise exception if
+   * file not found, or read error.
+   *
+   * @return the number of reads loaded.
+   */
+  int load() throws FileNotFoundException, IOException {
+    if (!Files.exists(source)) {
+      throw new FileNotFoundException("unable to find " + source.getFileName().toString());
+    }
+    if (scoring.pairAware()) {
+      packed2 = new PackedScoreTable();
+      scores2 = new ScoreTable();
+    }
+    ParallelBamReader rdr = openReader();
+    header = rdr.getFileHeader();
+    RawBamRecord rec = new RawBamRecord();
+    while (rdr.next(rec)) {
+      byte[] buf = rec.buffer();
+      int len = rec.nameLength();
+      long key = codec.encode(buf, RawBamRecord.NAME_OFFSET, len);
+      boolean second = packed2 != null && rec.isSecondOfPair();
+      if (ReadNameCodec.isPacked(key)) {
+        (second ? packed2 : packed).put(key, scoring.score(rec));
+      } else {
+        (second ? scores2 : scores).put(buf, RawBamRecord.NAME_OFFSET, len, scoring.score(rec));
+      }
+      entryCount++;
+    }
+    rdr.close();
+    return entryCount;
+  }
+
+  /**
+   * Return the off-heap memory held by the index.
+   *
+   * @return memory used, in bytes
+   */
+  long memory() {
+    long m = packed.memory() + scores.memory();
+    if (packed2 != null) {
+      m += packed2.memory() + scores2.memory();
+    }
+    if (visited != null) {
+      m += visited.capacity();
+    }
+    return m;
+  }
+
+  /**
+   * Return the number of distinct read names stored (counting each mate
+   * separately, if the scoring policy is pair-aware).
+   *
+   * @return number of names
+   */
+  long distinctReads() {
+    long n = packed.size() + scores.size();
+    if (packed2 != null) {
+      n += packed2.size() + scores2.size();
+    }
+    return n;
+  }
+
+  /**
+   * Return the codec the keys in the tables were packed with.
+   *
+   * @return the codec
+   */
+  protected ReadNameCodec keyCodec() {
+    return codec;
+  }
+
+  /**
+   * Return a Bloom filter of the names loaded, making it on the first call.
+   * Names are hashed from their bytes (see NameFilter.hash()), so packed keys
+   * are unpacked to add them.
+   *
+   * @return the filter
+   */
+  NameFilter nameFilter() {
+    if (filter == null) {
+      NameFilter f = new NameFilter(distinctReads());
+      addNames(f, packed, scores);
+      if (packed2 != null) {
+        addNames(f, packed2, scores2);
+      }
+      filter = f;
+    }
+    return filter;
+  }
+
+  private void addNames(NameFilter f, PackedScoreTable p, ScoreTable s) {
+    ReadNameCodec c = keyCodec();
+    byte[] name = new byte[256];
+    for (long i = 0; i < p.slotCount(); i++) {
+      long key = p.keyAt(i);
+      if (ReadNameCodec.isPacked(key)) {
+        f.add(NameFilter.hash(name, 0, c.decode(key, name)));
+      }
+    }
+    for (long i = 0; i < s.slotCount(); i++) {
+      long h = s.hashAt(i);
+      if (h != 0) {
+        f.add(h);
+      }
+    }
+  }
+
+  /**
+   * Return the alignment score of the named read.
+   *
+   * @param name the read to find a score for
+   * @return the score of the read, or 0 if not found
+   */
+  int getScore(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    return getScore(codec.encodeExisting(b, 0, b.length), b, 0, b.length, 0);
+  }
+
+  /**
+   * Return the alignment score of a read, given its name as bytes and as packed
+   * by this object's codec.
+   *
+   * @param key  the packed name, or ReadNameCodec.RAW
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @param missing value to return if not found
+   * @return the score of the read, or missing
+   */
+  int getScore(long key, byte[] name, int off, int len, int missing) {
+    boolean isPacked = ReadNameCodec.isPacked(key);
+    int first = isPacked ? packed.getScore(key, missing) : scores.getScore(name, off, len, missing);
+    if (packed2 == null) {
+      return first;
+    }
+    int second = isPacked ? packed2.getScore(key, missing) : scores2.getScore(name, off, len, missing);
+    if (first == missing && second == missing) {
+      return missing;
+    }
+    return scoring.combine(first == missing ? ScoringPolicy.UNSCORED : first,
+        second == missing ? ScoringPolicy.UNSCORED : second);
+  }
+
+  /**
+   * Mark a read as visited, reporting whether this is the first time. The
+   * marks are one bit per slot of the tables, allocated on the first call.
+   * With a pair-aware policy, a read is marked in the first mates' tables if
+   * it is there, or else the second mates'.
+   *
+   * @param key  the packed name, or ReadNameCodec.RAW
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @return true if the read is here and wasn't visited before
+   */
+  boolean visit(long key, byte[] name, int off, int len) {
+    if (visited == null) {
+      long bits = packed.slotCount() + scores.slotCount();
+      if (packed2 != null) {
+        bits += packed2.slotCount() + scores2.slotCount();
+      }
+      visited = new PagedBuffer();
+      visited.allocateExact(((bits + 63) >>> 6) << 3);
+    }
+    boolean isPacked = ReadNameCodec.isPacked(key);
+    long base = isPacked ? 0 : packed.slotCount();
+    long slot = isPacked ? packed.slotOf(key) : scores.slotOf(name, off, len);
+    if (slot < 0 && packed2 != null) {
+      base = packed.slotCount() + scores.slotCount() + (isPacked ? 0 : packed2.slotCount());
+      slot = isPacked ? packed2.slotOf(key) : scores2.slotOf(name, off, len);
+    }
+    if (slot < 0) {
+      return false;
+    }
+    long bit = base + slot;
+    long pos = (bit >>> 6) << 3;
+    long word = visited.getLong(pos);
+    long mask = 1L << (bit & 63);
+    if ((word & mask) != 0) {
+      return false;
+    }
+    visited.putLong(pos, word | mask);
+    return true;
+  }
+
+  /**
+   * Report whether the object has a particular read.
+   *
+   * @param name the name of the read to look for
+   * @return true if read found, false otherwise
+   */
+  boolean hasRead(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    long key = codec.encodeExisting(b, 0, b.length);
+    if (ReadNameCodec.isPacked(key)) {
+      return packed.contains(key) || (packed2 != null && packed2.contains(key));
+    }
+    return scores.contains(b, 0, b.length) || (scores2 != null && scores2.contains(b, 0, b.length));
+  }
+
+  /**
+   * Release the off-heap memory. The object must not be queried afterwards.
+   */
+  void release() {
+    filter = null;
+    if (visited != null) {
+      visited.clear();
+      visited = null;
+    }
+    packed.clear();
+    scores.clear();
+    if (packed2 != null) {
+      packed2.clear();
+      scores2.clear();
+    }
+  }
+}
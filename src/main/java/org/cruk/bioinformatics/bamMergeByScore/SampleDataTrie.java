@@ -9,10 +9,6 @@ import java.nio.file.Path;
 
 import org.apache.commons.collections4.trie.PatriciaTrie;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
 
 /**
  * This class holds the data (file name, read scores) from a BAM file. Once a
@@ -22,7 +18,8 @@ import htsjdk.samtools.ValidationStringency;
  * random choice among the best scores).
  * 
  * NOTA BENE: This data structure does not outperform a built-in Java HashMap.
- * There is no benefit to using it. (But I had to try it, to find out!)
+ * There is no benefit to using it. (But I had to try it, to find out!) See
+ * SampleDataBenchmark in the benchmarks module for the numbers.
  * 
  * @author Gord Brown
  *
@@ -50,13 +47,16 @@ class SampleDataTrie extends SampleData {
     if (!Files.exists(source)) {
       throw new FileNotFoundException("unable to find " + source.getFileName().toString());
     }
-    SamReaderFactory srf = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT);
-    SamReader rdr = srf.open(source);
+    ParallelBamReader rdr = openReader();
     header = rdr.getFileHeader();
-    for (SAMRecord rec: rdr) {
-      String name = rec.getReadName();
-      Integer alnScore = rec.getIntegerAttribute("AS");
-      score.put(name, alnScore);
+    RawBamRecord rec = new RawBamRecord();
+    while (rdr.next(rec)) {
+      String name = rec.readName();
+      int alnScore = scoring.score(rec);
+      Integer old = score.get(name);
+      if (old == null || alnScore > old) {
+        score.put(name, alnScore);
+      }
       entryCount++;
     }
     rdr.close();
@@ -0,0 +1,177 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * The ways a hit can be scored. Aligners disagree about what they report: most
+ * emit an "AS" alignment score, but some (TopHat, older BWA) don't, and the
+ * AS of different aligners aren't comparable anyway. A model that uses only
+ * what every aligner emits (CIGAR, MD, NM) can be fairer when the inputs come
+ * from different aligners.
+ *
+ * Every model scores a RawBamRecord by scanning its bytes in place; nothing is
+ * allocated. score() dispatches with a switch rather than per-constant
+ * methods, so the call site in the merge stays monomorphic. Records that can't
+ * be scored (no tags, or unmapped) score UNSCORED; see ScoringPolicy, which
+ * combines the scores of a read's hits.
+ */
+enum ScoreModel {
+  /**
+   * The AS tag; failing that, matches from MD (the original behaviour).
+   */
+  AS,
+  /**
+   * Matching bases from the MD tag: the sum of its numbers.
+   */
+  MD,
+  /**
+   * Aligned bases from the CIGAR ("M" and "=" operations), less the
+   * mismatches recorded in MD, if there is one.
+   */
+  CIGAR,
+  /**
+   * Read length less the edit distance (NM tag).
+   */
+  NM,
+  /**
+   * AS, with mapping quality to break ties: AS * 256 + MAPQ.
+   */
+  MAPQ_AS;
+
+  static final int UNSCORED = ScoringPolicy.UNSCORED;
+
+  private static final int FLAG_UNMAPPED = 0x4;
+
+  /**
+   * Score a record.
+   *
+   * @param rec the record
+   * @return its score, or UNSCORED
+   */
+  int score(RawBamRecord rec) {
+    switch (this) {
+    case AS:
+      long as = rec.intTag('A', 'S', Long.MIN_VALUE);
+      return as != Long.MIN_VALUE ? (int) as : mdMatches(rec);
+    case MD:
+      return mdMatches(rec);
+    case CIGAR:
+      return cigarMatches(rec);
+    case NM:
+      return readLengthLessNM(rec);
+    default:
+      long mas = rec.intTag('A', 'S', Long.MIN_VALUE);
+      return mas == Long.MIN_VALUE ? UNSCORED : (int) mas * 256 + rec.mappingQuality();
+    }
+  }
+
+  /**
+   * Look up a model by its command-line name ("as", "md", "cigar", "nm",
+   * "mapq-as").
+   *
+   * @param name the name, in any case
+   * @return the model
+   * @throws IllegalArgumentException if there is no such model
+   */
+  static ScoreModel fromName(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+
+  /**
+   * Scan an MD string: count matching bases (the sum of its numbers) and
+   * mismatched bases (letters, other than the deleted bases after a "^").
+   *
+   * @param b buffer holding the MD string
+   * @param off offset of the string
+   * @param end offset just past the string (or of its NUL)
+   * @return matches in the high 32 bits, mismatches in the low 32
+   */
+  static long scanMD(byte[] b, int off, int end) {
+    int matches = 0;
+    int mismatches = 0;
+    int run = 0;
+    boolean deletion = false;
+    for (int p = off; p < end; p++) {
+      int c = b[p];
+      if (c >= '0' && c <= '9') {
+        run = run * 10 + (c - '0');
+        deletion = false;
+      } else {
+        matches += run;
+        run = 0;
+        if (c == '^') {
+          deletion = true;
+        } else if (c == 0) {
+          break;
+        } else if (!deletion) {
+          mismatches++;
+        }
+      }
+    }
+    matches += run;
+    return ((long) matches << 32) | (mismatches & 0xffffffffL);
+  }
+
+  private static int mdOffset(RawBamRecord rec) {
+    int p = rec.findTag('M', 'D');
+    return p >= 0 && rec.buffer()[p] == 'Z' ? p + 1 : -1;
+  }
+
+  static int mdMatches(RawBamRecord rec) {
+    int p = mdOffset(rec);
+    if (p < 0) {
+      return UNSCORED;
+    }
+    return (int) (scanMD(rec.buffer(), p, rec.length()) >>> 32);
+  }
+
+  static int cigarMatches(RawBamRecord rec) {
+    if ((rec.flags() & FLAG_UNMAPPED) != 0 || rec.cigarLength() == 0) {
+      return UNSCORED;
+    }
+    byte[] b = rec.buffer();
+    int p = rec.cigarOffset();
+    int aligned = 0;
+    boolean hasM = false;
+    for (int i = 0; i < rec.cigarLength(); i++, p += 4) {
+      int op = rec.getInt(p);
+      int code = op & 0xf;
+      if (code == 0) {
+        // M: match or mismatch
+        aligned += op >>> 4;
+        hasM = true;
+      } else if (code == 7) {
+        // =: match
+        aligned += op >>> 4;
+      }
+    }
+    if (hasM) {
+      int md = mdOffset(rec);
+      if (md >= 0) {
+        aligned -= (int) scanMD(b, md, rec.length());
+      }
+    }
+    return aligned;
+  }
+
+  static int readLengthLessNM(RawBamRecord rec) {
+    if ((rec.flags() & FLAG_UNMAPPED) != 0) {
+      return UNSCORED;
+    }
+    long nm = rec.intTag('N', 'M', Long.MIN_VALUE);
+    if (nm == Long.MIN_VALUE) {
+      return UNSCORED;
+    }
+    int len = rec.readLength();
+    if (len == 0) {
+      // secondary hits often omit SEQ; take the query length from the CIGAR
+      int p = rec.cigarOffset();
+      for (int i = 0; i < rec.cigarLength(); i++, p += 4) {
+        int op = rec.getInt(p);
+        int code = op & 0xf;
+        if (code == 0 || code == 1 || code == 4 || code == 7 || code == 8) {
+          len += op >>> 4;
+        }
+      }
+    }
+    return len - (int) nm;
+  }
+}
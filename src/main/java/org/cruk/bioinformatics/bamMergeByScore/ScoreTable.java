@@ -0,0 +1,271 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * Open-addressing hash table from read name to score, held entirely off-heap
+ * in PagedBuffers, so that it costs the garbage collector nothing and has no
+ * per-entry object overhead.
+ *
+ * Each slot is 16 bytes: the 64-bit hash of the name, the score as a primitive
+ * int, and a reference to the full name in a separate arena, which is used to
+ * confirm a match when two names share a hash. A hash of zero marks an empty
+ * slot. Arena entries are a length byte followed by the name, 4-byte aligned,
+ * so a 32-bit reference covers 16GB of names.
+ *
+ * Slots are found by linear probing from a position scaled from the hash, so
+ * the table size need not be a power of two and can grow by half each time it
+ * exceeds MAX_LOAD.
+ */
+class ScoreTable {
+  static final int SLOT_BYTES = 16;
+  static final int HASH_OFFSET = 0;
+  static final int SCORE_OFFSET = 8;
+  static final int NAME_OFFSET = 12;
+  static final double MAX_LOAD = 0.8;
+  static final int MIN_SLOTS = 1024;
+  static final int ARENA_PAGE_BITS = 20;
+
+  protected PagedBuffer slots = null;
+  protected long slotCount = 0;
+  protected long size = 0;
+  protected PagedBuffer arena = new PagedBuffer(ARENA_PAGE_BITS);
+  protected long arenaUsed = 0;
+
+  /**
+   * Create an empty table.
+   */
+  ScoreTable() {
+    this(MIN_SLOTS);
+  }
+
+  /**
+   * Create an empty table, sized to hold the given number of names without
+   * growing.
+   *
+   * @param expected the expected number of names
+   */
+  ScoreTable(long expected) {
+    allocate(Math.max(MIN_SLOTS, (long) (expected / MAX_LOAD) + 1));
+  }
+
+  /**
+   * Wrap existing buffers as a table, e.g. ones mapped from a file (see
+   * SampleDataMapped). A table over read-only buffers can't be added to.
+   *
+   * @param slots the slots
+   * @param slotCount the number of slots
+   * @param size the number of names
+   * @param arena the names, with pages of 2^ARENA_PAGE_BITS bytes
+   * @param arenaUsed the length of the arena in use
+   */
+  ScoreTable(PagedBuffer slots, long slotCount, long size, PagedBuffer arena, long arenaUsed) {
+    this.slots = slots;
+    this.slotCount = slotCount;
+    this.size = size;
+    this.arena = arena;
+    this.arenaUsed = arenaUsed;
+  }
+
+  private void allocate(long count) {
+    if (count >= (1L << 32)) {
+      throw new IllegalStateException("too many names for a score table: " + size);
+    }
+    slots = new PagedBuffer();
+    slots.allocateExact(count * SLOT_BYTES);
+    slotCount = count;
+  }
+
+  /**
+   * Map a hash onto a starting slot, scaling rather than taking a remainder.
+   */
+  private long home(long hash) {
+    return ((hash >>> 32) * slotCount) >>> 32;
+  }
+
+  static long nonZero(long hash) {
+    return hash == 0 ? 1 : hash;
+  }
+
+  private boolean nameMatches(long slot, byte[] name, int off, int len) {
+    long pos = (slots.getInt(slot + NAME_OFFSET) & 0xffffffffL) << 2;
+    return (arena.get(pos) & 0xff) == len && arena.equals(pos + 1, name, off, len);
+  }
+
+  /**
+   * Find the slot holding a name.
+   *
+   * @return the slot's byte offset, or -1 if the name is absent
+   */
+  private long find(long hash, byte[] name, int off, int len) {
+    long i = home(hash);
+    while (true) {
+      long slot = i * SLOT_BYTES;
+      long h = slots.getLong(slot + HASH_OFFSET);
+      if (h == 0) {
+        return -1;
+      } else if (h == hash && nameMatches(slot, name, off, len)) {
+        return slot;
+      }
+      if (++i == slotCount) {
+        i = 0;
+      }
+    }
+  }
+
+  /**
+   * Find the first empty slot on a hash's probe sequence.
+   */
+  private long findEmpty(long hash) {
+    long i = home(hash);
+    while (slots.getLong(i * SLOT_BYTES + HASH_OFFSET) != 0) {
+      if (++i == slotCount) {
+        i = 0;
+      }
+    }
+    return i * SLOT_BYTES;
+  }
+
+  private int storeName(byte[] name, int off, int len) {
+    if (len > 255) {
+      throw new IllegalArgumentException("read name longer than 255 bytes");
+    }
+    if (!arena.fitsInPage(arenaUsed, len + 1)) {
+      arenaUsed = (arenaUsed + arena.pageSize()) & ~((long) arena.pageSize() - 1);
+    }
+    long pos = arenaUsed;
+    arena.ensureCapacity(pos + len + 1);
+    arena.put(pos, (byte) len);
+    arena.put(pos + 1, name, off, len);
+    arenaUsed = (pos + len + 1 + 3) & ~3L;
+    return (int) (pos >>> 2);
+  }
+
+  private void grow() {
+    PagedBuffer old = slots;
+    long oldCount = slotCount;
+    allocate(oldCount + oldCount / 2);
+    for (long i = 0; i < oldCount; i++) {
+      long from = i * SLOT_BYTES;
+      long h = old.getLong(from + HASH_OFFSET);
+      if (h != 0) {
+        long to = findEmpty(h);
+        slots.putLong(to + HASH_OFFSET, h);
+        slots.putInt(to + SCORE_OFFSET, old.getInt(from + SCORE_OFFSET));
+        slots.putInt(to + NAME_OFFSET, old.getInt(from + NAME_OFFSET));
+      }
+    }
+    old.clear();
+  }
+
+  /**
+   * Record a score for a name. If the name is already present, the higher of
+   * the two scores is kept, so that a read with several hits is represented by
+   * its best one.
+   *
+   * @param name  buffer holding the name
+   * @param off   offset of the name
+   * @param len   length of the name
+   * @param score the score
+   * @return true if the name was new
+   */
+  boolean put(byte[] name, int off, int len, int score) {
+    long hash = nonZero(NameHash.hash64(name, off, len));
+    long slot = find(hash, name, off, len);
+    if (slot >= 0) {
+      if (score > slots.getInt(slot + SCORE_OFFSET)) {
+        slots.putInt(slot + SCORE_OFFSET, score);
+      }
+      return false;
+    }
+    if (size + 1 > slotCount * MAX_LOAD) {
+      grow();
+    }
+    slot = findEmpty(hash);
+    slots.putLong(slot + HASH_OFFSET, hash);
+    slots.putInt(slot + SCORE_OFFSET, score);
+    slots.putInt(slot + NAME_OFFSET, storeName(name, off, len));
+    size++;
+    return true;
+  }
+
+  /**
+   * Look up the score for a name.
+   *
+   * @param name    buffer holding the name
+   * @param off     offset of the name
+   * @param len     length of the name
+   * @param missing value to return if the name is absent
+   * @return the score, or missing
+   */
+  int getScore(byte[] name, int off, int len, int missing) {
+    long slot = find(nonZero(NameHash.hash64(name, off, len)), name, off, len);
+    return slot < 0 ? missing : slots.getInt(slot + SCORE_OFFSET);
+  }
+
+  /**
+   * Report whether a name is present.
+   *
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @return true if present
+   */
+  boolean contains(byte[] name, int off, int len) {
+    return find(nonZero(NameHash.hash64(name, off, len)), name, off, len) >= 0;
+  }
+
+  /**
+   * Find the slot holding a name.
+   *
+   * @param name buffer holding the name
+   * @param off  offset of the name
+   * @param len  length of the name
+   * @return the slot index, or -1 if the name is absent
+   */
+  long slotOf(byte[] name, int off, int len) {
+    long slot = find(nonZero(NameHash.hash64(name, off, len)), name, off, len);
+    return slot < 0 ? -1 : slot / SLOT_BYTES;
+  }
+
+  /**
+   * Return the hash stored in a slot, for iterating over the names.
+   *
+   * @param slot the slot index, from 0 to slotCount() - 1
+   * @return the hash, or 0 if the slot is empty
+   */
+  long hashAt(long slot) {
+    return slots.getLong(slot * SLOT_BYTES + HASH_OFFSET);
+  }
+
+  long slotCount() {
+    return slotCount;
+  }
+
+  /**
+   * Return the number of distinct names.
+   *
+   * @return the number of names
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Return the off-heap memory allocated for slots and names.
+   *
+   * @return memory in bytes
+   */
+  long memory() {
+    return slots.capacity() + arena.capacity();
+  }
+
+  /**
+   * Release the memory. The table must not be used afterwards.
+   */
+  void clear() {
+    slots.clear();
+    arena.clear();
+    size = 0;
+    arenaUsed = 0;
+    slotCount = 0;
+  }
+}
@@ -0,0 +1,48 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * How hits are scored, and how the hits of one read combine into the score
+ * that decides which input keeps the read (see TemplateScore). Everything
+ * works on primitive ints, straight from raw records, so nothing is boxed.
+ *
+ * The merges and every SampleData score through this interface. There is
+ * deliberately one implementation, AlignerScoring, whose presets are instances
+ * rather than subclasses, so that the JIT sees a single receiver type at each
+ * call site and can inline it.
+ */
+interface ScoringPolicy {
+  /**
+   * The score of a hit that can't be scored (no usable tags, or unmapped).
+   * Below every real score, including the negative ones some aligners give
+   * (bowtie2 end-to-end scores are at most 0), but above
+   * RandomAccessMerge.MISSING, which means "no such read".
+   */
+  int UNSCORED = Integer.MIN_VALUE + 1;
+
+  /**
+   * Score one hit.
+   *
+   * @param rec the record
+   * @return its score, or UNSCORED
+   */
+  int score(RawBamRecord rec);
+
+  /**
+   * Report whether the hits of the two mates of a pair are scored separately
+   * and summed (see combine()), rather than the best hit of either standing for
+   * the pair.
+   *
+   * @return true if mate scores are summed
+   */
+  boolean pairAware();
+
+  /**
+   * Combine the best scores of the two mates of a read into the read's score.
+   * A mate with no scored hits contributes nothing. Only used if pairAware().
+   *
+   * @param first the best score of the first mate (or of unpaired hits)
+   * @param second the best score of the second mate
+   * @return the read's score, or UNSCORED if neither mate scored
+   */
+  int combine(int first, int second);
+}
@@ -0,0 +1,418 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * A streaming merge of name-sorted inputs split into shards by ranges of read
+ * names, each merged on a thread of its own. The merge of any one read depends
+ * only on that read's records, and the inputs are sorted, so each range is an
+ * independent StreamingMerge over a contiguous stretch of every input.
+ *
+ * The split points are chosen from read names sampled at evenly spaced points
+ * of each input (see NameSampler), and each shard starts reading an input from
+ * the last sample before its range, skipping the few records before it. Each
+ * shard writes part of each output (see MergeOutput.setPart()), the first with
+ * the header and the rest records only; the parts are then joined by copying
+ * their BGZF blocks, less each part's end-of-file block, so nothing is
+ * compressed twice. The result is the same records in the same order as a
+ * single StreamingMerge would write.
+ *
+ * With a shard per core, the merge is no longer held to the speed of one
+ * thread; inflating and deflating still share one pool.
+ */
+class ShardedMerge implements Closeable {
+  static final int SAMPLES_PER_SHARD = 16;
+
+  protected Logger log = LogManager.getLogger(ShardedMerge.class);
+  protected List<Path> inputs;
+  protected Path mergedOutput;
+  protected int shards;
+  protected ReadNameOrder order = null;
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
+  protected TieBreaker ties = TieBreaker.DEFAULT;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected ExecutorService writerPool = WorkerPools.defaultPool();
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = RecordBatch.DEFAULT_SIZE;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected Path decisionLogFile = null;
+  protected List<byte[]> splits = null;
+  protected StreamingMerge[] merges = null;
+  protected List<Path> outputs = null;
+  protected long recordsWritten = 0;
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param inputs the name-sorted BAM files to merge
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   * @param shards the number of shards to split into (fewer are used if the
+   *               inputs are too small to split that finely)
+   */
+  public ShardedMerge(List<Path> inputs, Path mergedOutput, int shards) {
+    this.inputs = inputs;
+    this.mergedOutput = mergedOutput;
+    this.shards = shards;
+  }
+
+  /**
+   * Force the read name order, rather than detecting it from the input headers.
+   *
+   * @param order the order the inputs are sorted in, or null to detect it
+   */
+  void setNameOrder(ReadNameOrder order) {
+    this.order = order;
+  }
+
+  /**
+   * Set how hits are scored and combined.
+   *
+   * @param scoring the scoring policy
+   */
+  void setScoringPolicy(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Set how ties are resolved (see TieBreaker, whose choices don't depend on
+   * the shard making them).
+   *
+   * @param ties the tie breaker
+   */
+  void setTieBreaker(TieBreaker ties) {
+    this.ties = ties;
+  }
+
+  /**
+   * Set the threads used to inflate the inputs, shared by all shards. Call
+   * before open().
+   *
+   * @param pool the threads to inflate on, or null to inflate on the shards'
+   *             threads
+   * @param readAhead the number of blocks to inflate ahead, per input per shard
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Set how the outputs are compressed (see MergeOutput.setCompression()).
+   * Call before open().
+   *
+   * @param pool the threads to deflate on, shared by all shards, or null for
+   *             the shards' threads
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   */
+  void setCompression(ExecutorService pool, int level, DeflaterFactory deflaterFactory) {
+    this.writerPool = pool;
+    this.compressionLevel = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Set the pipeline of each shard (see StreamingMerge.setPipeline()). Call
+   * before open().
+   *
+   * @param batchSize records per batch, or 0 for no pipeline
+   * @param queueCapacity batches that may wait between two stages
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set what goes into the output headers (see MergeOutput.setProgram()).
+   * Call before open().
+   *
+   * @param commandLine the command line for the merge's @PG line, or null
+   * @param contigPrefixes for a merged output, a prefix for the contig names
+   *          of each input, or null for none
+   */
+  void setProgram(String commandLine, List<String> contigPrefixes) {
+    this.commandLine = commandLine;
+    this.contigPrefixes = contigPrefixes;
+  }
+
+  /**
+   * Record the decision for every read in a DecisionLog. Each shard writes a
+   * part of the log, and the parts are joined as the outputs are. Call before
+   * open().
+   *
+   * @param file the log file, or null for none
+   */
+  void setDecisionLog(Path file) {
+    this.decisionLogFile = file;
+  }
+
+  /**
+   * Sample the inputs, choose the split points, and set up a StreamingMerge
+   * for each shard. Unless the name order was set, it is detected from the
+   * input headers, as StreamingMerge does.
+   *
+   * @throws IOException if an input can't be read
+   */
+  void open() throws IOException {
+    List<List<NameSampler.Sample>> samples = new ArrayList<List<NameSampler.Sample>>(inputs.size());
+    for (Path p : inputs) {
+      ParallelBamReader rdr = new ParallelBamReader(p, null, 1);
+      SAMFileHeader header;
+      long first;
+      try {
+        header = rdr.getFileHeader();
+        first = rdr.getFilePointer();
+      } finally {
+        rdr.close();
+      }
+      if (header.getSortOrder() == SAMFileHeader.SortOrder.queryname) {
+        ReadNameOrder o = ReadNameOrder.fromHeader(header);
+        if (order == null) {
+          order = o;
+        } else if (!order.agreesWith(o)) {
+          throw new SAMFormatException(p.getFileName().toString() + " is sorted in " + o + " name order, but "
+              + inputs.get(0).getFileName().toString() + " in " + order
+              + " order; re-sort one of them, or force the order");
+        }
+      }
+      samples.add(NameSampler.sample(p, shards * SAMPLES_PER_SHARD, header.getSequenceDictionary().size(), first));
+    }
+    if (order == null) {
+      order = ReadNameOrder.HTSJDK;
+    }
+    splits = chooseSplits(samples);
+    merges = new StreamingMerge[splits.size() + 1];
+    for (int s = 0; s < merges.length; s++) {
+      byte[] from = s == 0 ? null : splits.get(s - 1);
+      byte[] to = s == splits.size() ? null : splits.get(s);
+      long[] starts = new long[inputs.size()];
+      for (int i = 0; i < inputs.size(); i++) {
+        starts[i] = from == null ? -1 : startBefore(samples.get(i), from);
+      }
+      StreamingMerge m = new StreamingMerge(inputs, mergedOutput);
+      m.setNameOrder(order);
+      m.setScoringPolicy(scoring);
+      m.setTieBreaker(ties);
+      m.setReaderThreads(pool, readAhead);
+      m.setCompression(writerPool, compressionLevel, deflaterFactory);
+      m.setPipeline(batchSize, queueCapacity);
+      m.setProgram(commandLine, contigPrefixes);
+      m.setDecisionLog(decisionLogFile);
+      m.setShard(s, starts, from, to);
+      merges[s] = m;
+    }
+    outputs = MergeOutput.outputNames(inputs, mergedOutput);
+    if (decisionLogFile != null) {
+      outputs.add(decisionLogFile);
+    }
+    log.info("Merging in {} shards", merges.length);
+  }
+
+  /**
+   * Pool the samples of all inputs, and choose up to shards - 1 distinct names
+   * that divide them evenly.
+   *
+   * @param samples the samples of each input
+   * @return the split points, in order
+   */
+  protected List<byte[]> chooseSplits(List<List<NameSampler.Sample>> samples) {
+    List<byte[]> names = new ArrayList<byte[]>();
+    for (List<NameSampler.Sample> l : samples) {
+      for (NameSampler.Sample s : l) {
+        names.add(s.name);
+      }
+    }
+    Collections.sort(names, new Comparator<byte[]>() {
+      public int compare(byte[] a, byte[] b) {
+        return order.compare(a, b);
+      }
+    });
+    List<byte[]> chosen = new ArrayList<byte[]>();
+    for (int k = 1; k < shards && !names.isEmpty(); k++) {
+      byte[] name = names.get((int) ((long) k * names.size() / shards));
+      if (chosen.isEmpty() || order.compare(chosen.get(chosen.size() - 1), name) < 0) {
+        chosen.add(name);
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Find where to start reading an input for a range: at the last sample
+   * before the range's first name.
+   *
+   * @param samples the input's samples, in file order
+   * @param from the first name of the range
+   * @return a virtual file offset, or -1 for the beginning of the file
+   */
+  protected long startBefore(List<NameSampler.Sample> samples, byte[] from) {
+    long start = -1;
+    for (NameSampler.Sample s : samples) {
+      if (order.compare(s.name, from) >= 0) {
+        break;
+      }
+      start = s.offset;
+    }
+    return start;
+  }
+
+  /**
+   * Run every shard to completion, then join the parts of each output.
+   *
+   * @return the number of distinct reads seen across all inputs
+   * @throws IOException if an input can't be read or an output written
+   */
+  long merge() throws IOException {
+    ExecutorService shardPool = WorkerPools.newPool(merges.length, "shard");
+    List<Future<Long>> results = new ArrayList<Future<Long>>(merges.length);
+    for (final StreamingMerge m : merges) {
+      results.add(shardPool.submit(new Callable<Long>() {
+        public Long call() throws IOException {
+          m.open();
+          return m.merge();
+        }
+      }));
+    }
+    long reads = 0;
+    IOException failure = null;
+    RuntimeException runtimeFailure = null;
+    try {
+      for (int s = 0; s < merges.length; s++) {
+        try {
+          reads += WorkerPools.await(results.get(s), "merging shard " + s);
+          recordsWritten += merges[s].recordsWritten();
+        } catch (IOException ioe) {
+          failure = failure == null ? ioe : failure;
+        } catch (RuntimeException re) {
+          runtimeFailure = runtimeFailure == null ? re : runtimeFailure;
+        }
+      }
+    } finally {
+      shardPool.shutdown();
+    }
+    if (runtimeFailure != null) {
+      throw runtimeFailure;
+    } else if (failure != null) {
+      throw failure;
+    }
+    closeShards();
+    for (Path p : outputs) {
+      join(p, merges.length);
+    }
+    return reads;
+  }
+
+  /**
+   * Join the parts of an output file into the whole, and delete them.
+   *
+   * @param output the output file
+   * @param parts the number of parts
+   * @throws IOException if a part can't be read or the output written
+   */
+  static void join(Path output, int parts) throws IOException {
+    byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+    FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+    try {
+      for (int k = 0; k < parts; k++) {
+        Path part = MergeOutput.partName(output, k);
+        FileChannel in = FileChannel.open(part, StandardOpenOption.READ);
+        try {
+          long length = in.size() - eof.length;
+          ByteBuffer tail = ByteBuffer.allocate(eof.length);
+          if (length >= 0) {
+            in.read(tail, length);
+          }
+          if (length < 0 || !Arrays.equals(tail.array(), eof)) {
+            throw new IOException(part.getFileName() + " does not end with a BGZF end-of-file block");
+          }
+          long done = 0;
+          while (done < length) {
+            done += in.transferTo(done, length - done, out);
+          }
+        } finally {
+          in.close();
+        }
+        Files.delete(part);
+      }
+      out.write(ByteBuffer.wrap(eof));
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Return the split points chosen, in order. Only valid after open().
+   *
+   * @return the first name of each shard after the first
+   */
+  List<byte[]> splits() {
+    return splits;
+  }
+
+  /**
+   * Return the number of records written to all outputs.
+   *
+   * @return records written
+   */
+  long recordsWritten() {
+    return recordsWritten;
+  }
+
+  private void closeShards() throws IOException {
+    IOException failure = null;
+    for (StreamingMerge m : merges) {
+      try {
+        m.close();
+      } catch (IOException ioe) {
+        failure = failure == null ? ioe : failure;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  public void close() throws IOException {
+    if (merges != null) {
+      try {
+        closeShards();
+      } finally {
+        for (Path p : outputs) {
+          for (int k = 0; k < merges.length; k++) {
+            Files.deleteIfExists(MergeOutput.partName(p, k));
+          }
+        }
+        merges = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import htsjdk.samtools.SAMFileHeader;
+
+/**
+ * A ReadCursor over a file that is not sorted by read name (for instance,
+ * sorted by coordinate). open() reads the file once, sorting an entry per
+ * record by name (see ExternalNameSort); the cursor then visits the records in
+ * name order by reading them back from their offsets. Nothing is written but
+ * the small run files, which saves the separate "samtools sort -n" pass that
+ * would otherwise rewrite the whole file.
+ *
+ * Consecutive records in name order are rarely in the same BGZF block, so
+ * reading them back one at a time would inflate a block per record. Instead,
+ * the cursor takes the next batch of entries in name order (as many records
+ * as fit in the memory the sort no longer needs), reads them in file order,
+ * which inflates each block at most once per batch, and then hands them out in
+ * name order. Small files take a single batch; large ones take one pass over
+ * the blocks per batch.
+ */
+class SortedReadCursor extends ReadCursor {
+  static final long MIN_BATCH_MEMORY = 4L << 20;
+
+  protected long maxMemory;
+  protected Path tempDir;
+  protected ExternalNameSort sort = null;
+  protected BgzfBlockCache in = null;
+  protected SAMFileHeader header = null;
+  protected int batchCapacity = 0;
+  protected long[] batchKeys = null;
+  protected long[] batchOffsets = null;
+  protected long[] fileOrder = null;
+  protected int[] fileOrderPos = null;
+  protected byte[] arena = null;
+  protected int batchSize = 0;
+  protected int batchNext = 0;
+  protected int batches = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param index position of this file among the inputs
+   * @param source the BAM file to read
+   * @param maxMemory memory to sort with before spilling runs to disk, and
+   *          then to read records back in
+   * @param tempDir directory for the runs
+   */
+  SortedReadCursor(int index, Path source, long maxMemory, Path tempDir) {
+    super(index, source);
+    this.maxMemory = maxMemory;
+    this.tempDir = tempDir;
+  }
+
+  /**
+   * Sort the file, and position the cursor on its first record in name order.
+   * The order must have been set (see setOrder()).
+   *
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file can't be read or the runs written
+   */
+  void open() throws FileNotFoundException, IOException {
+    if (!Files.exists(source)) {
+      throw new FileNotFoundException("unable to find " + source.getFileName().toString());
+    }
+    sort = new ExternalNameSort(order, maxMemory, tempDir);
+    ParallelBamReader scan = new ParallelBamReader(source, pool, readAhead);
+    long bytes = 0;
+    try {
+      header = scan.getFileHeader().clone();
+      header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+      header.setAttribute("SS", order.subSort());
+      RawBamRecord rec = new RawBamRecord();
+      long offset = scan.getFilePointer();
+      while (scan.next(rec)) {
+        byte[] b = rec.buffer();
+        int len = rec.nameLength();
+        sort.add(codec.encode(b, RawBamRecord.NAME_OFFSET, len), b, RawBamRecord.NAME_OFFSET, len, offset);
+        bytes += rec.length();
+        offset = scan.getFilePointer();
+      }
+    } finally {
+      scan.close();
+    }
+    sort.finish();
+    in = new BgzfBlockCache(source, 0);
+
+    // size the batches by the average record, plus its key and offsets
+    long memory = Math.max(MIN_BATCH_MEMORY, maxMemory - sort.memory());
+    long average = bytes / Math.max(1, sort.size());
+    long n = Math.min(sort.size(), memory / (average + 8 + 8 + 8 + 4));
+    batchCapacity = (int) Math.max(1, Math.min(n, (Integer.MAX_VALUE - (1 << 16)) / Math.max(1, average)));
+    batchKeys = new long[batchCapacity];
+    batchOffsets = new long[batchCapacity];
+    fileOrder = new long[batchCapacity];
+    fileOrderPos = new int[batchCapacity];
+    arena = new byte[(int) (average * batchCapacity + (1 << 16))];
+    next = new RawBamRecord();
+    advance();
+  }
+
+  /**
+   * Take the next batch of entries from the sort and read their records, in
+   * file order, into the arena.
+   */
+  protected void fillBatch() throws IOException {
+    batchSize = 0;
+    batchNext = 0;
+    while (batchSize < batchCapacity && sort.next()) {
+      batchKeys[batchSize] = sort.key();
+      batchOffsets[batchSize] = sort.offset();
+      batchSize++;
+    }
+    if (batchSize == 0) {
+      return;
+    }
+    batches++;
+    System.arraycopy(batchOffsets, 0, fileOrder, 0, batchSize);
+    Arrays.sort(fileOrder, 0, batchSize);
+    int pos = 0;
+    byte[] intBuf = new byte[4];
+    for (int i = 0; i < batchSize; i++) {
+      in.read(fileOrder[i], intBuf, 0, 4);
+      int size = (intBuf[0] & 0xff) | ((intBuf[1] & 0xff) << 8) | ((intBuf[2] & 0xff) << 16)
+          | ((intBuf[3] & 0xff) << 24);
+      if (pos + size + 4 > arena.length) {
+        arena = Arrays.copyOf(arena, Math.max(pos + size + 4, arena.length + (arena.length >> 1)));
+      }
+      in.read(fileOrder[i], arena, pos, size + 4);
+      fileOrderPos[i] = pos;
+      pos += size + 4;
+    }
+  }
+
+  protected void advance() throws IOException {
+    if (batchNext == batchSize) {
+      fillBatch();
+    }
+    hasNext = batchNext < batchSize;
+    if (!hasNext) {
+      nextKey = ReadNameCodec.RAW;
+      return;
+    }
+    int pos = fileOrderPos[Arrays.binarySearch(fileOrder, 0, batchSize, batchOffsets[batchNext])];
+    int size = (arena[pos] & 0xff) | ((arena[pos + 1] & 0xff) << 8) | ((arena[pos + 2] & 0xff) << 16)
+        | ((arena[pos + 3] & 0xff) << 24);
+    next.ensureCapacity(size + 4);
+    System.arraycopy(arena, pos, next.buf, 0, size + 4);
+    next.setLength(size + 4);
+    nextKey = batchKeys[batchNext];
+    batchNext++;
+    recordCount++;
+  }
+
+  /**
+   * Return the number of runs the sort spilled to disk.
+   *
+   * @return run files
+   */
+  int runCount() {
+    return sort == null ? 0 : sort.runCount();
+  }
+
+  /**
+   * Return the number of batches read back so far.
+   *
+   * @return batches
+   */
+  int batchCount() {
+    return batches;
+  }
+
+  /**
+   * Return the header of the file as the cursor presents it: a copy of the
+   * file's own header, but declaring queryname order, with the sub-sort ("SS")
+   * of the name order the cursor sorts by. Only valid after open().
+   *
+   * @return the header
+   */
+  SAMFileHeader getHeader() {
+    return header;
+  }
+
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+    if (sort != null) {
+      sort.close();
+      sort = null;
+    }
+    arena = null;
+    super.close();
+  }
+}
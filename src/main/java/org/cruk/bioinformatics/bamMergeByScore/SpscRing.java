@@ -0,0 +1,201 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue between exactly one producer thread and one consumer thread,
+ * on a ring of slots with no locks. The producer alone advances the tail and
+ * the consumer alone advances the head, so each index needs only an ordered
+ * store (lazySet) for the other thread to see it, and the slot written before
+ * it. This is what links the stages of a pipelined merge (see PipelinedReader
+ * and PipelinedWriter): a full ring stops its producer, which is how a slow
+ * stage holds back the rest without memory growing.
+ *
+ * A thread that must wait spins briefly, then yields, then parks for short
+ * intervals; nothing ever wakes it, so a ring costs nothing when neither side
+ * is waiting. Either side may close the ring: the producer when it has nothing
+ * more to put (optionally with the exception that stopped it), the consumer
+ * when it wants nothing more. After that, put() refuses, and take() drains
+ * what is left and then returns null.
+ *
+ * @param <T> the element type
+ */
+final class SpscRing<T> {
+  static final int DEFAULT_CAPACITY = 8;
+
+  private static final int SPINS = 64;
+  private static final int YIELDS = 64;
+  private static final long PARK_NANOS = 50000;
+
+  private final Object[] slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private long headCache = 0;
+  private long tailCache = 0;
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the most elements held at once; rounded up to a power of
+   *          two
+   */
+  SpscRing(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("ring capacity must be at least one; got " + capacity);
+    }
+    int n = Integer.highestOneBit(capacity);
+    if (n < capacity) {
+      n <<= 1;
+    }
+    slots = new Object[n];
+    mask = n - 1;
+  }
+
+  /**
+   * Return the number of slots.
+   *
+   * @return capacity
+   */
+  int capacity() {
+    return slots.length;
+  }
+
+  /**
+   * Return the number of elements waiting, as last seen. Only a hint from any
+   * thread but the two using the ring.
+   *
+   * @return elements waiting
+   */
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  /**
+   * Add an element if there is room. Producer only.
+   *
+   * @param e the element, not null
+   * @return false if the ring is full or closed
+   */
+  boolean offer(T e) {
+    if (closed) {
+      return false;
+    }
+    long t = tail.get();
+    if (t - headCache == slots.length) {
+      headCache = head.get();
+      if (t - headCache == slots.length) {
+        return false;
+      }
+    }
+    slots[(int) t & mask] = e;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Take the oldest element if there is one. Consumer only.
+   *
+   * @return the element, or null if the ring is empty
+   */
+  @SuppressWarnings("unchecked")
+  T poll() {
+    long h = head.get();
+    if (h == tailCache) {
+      tailCache = tail.get();
+      if (h == tailCache) {
+        return null;
+      }
+    }
+    int i = (int) h & mask;
+    T e = (T) slots[i];
+    slots[i] = null;
+    head.lazySet(h + 1);
+    return e;
+  }
+
+  /**
+   * Add an element, waiting for room. Producer only.
+   *
+   * @param e the element, not null
+   * @return false if the ring was closed instead, and the element not added
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  boolean put(T e) throws InterruptedIOException {
+    int waits = 0;
+    while (!offer(e)) {
+      if (closed) {
+        return false;
+      }
+      waits = idle(waits);
+    }
+    return true;
+  }
+
+  /**
+   * Take the oldest element, waiting for one. Consumer only.
+   *
+   * @return the element, or null once the ring is closed and empty
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  T take() throws InterruptedIOException {
+    int waits = 0;
+    T e;
+    while ((e = poll()) == null) {
+      if (closed) {
+        // an element may have been put just before the ring closed
+        return poll();
+      }
+      waits = idle(waits);
+    }
+    return e;
+  }
+
+  private static int idle(int waits) throws InterruptedIOException {
+    if (waits < SPINS) {
+      // busy wait
+    } else if (waits < SPINS + YIELDS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException("interrupted waiting on a pipeline stage");
+      }
+    }
+    return waits + 1;
+  }
+
+  /**
+   * Close the ring; no more elements can be added.
+   */
+  void close() {
+    closed = true;
+  }
+
+  /**
+   * Close the ring because the producer failed.
+   *
+   * @param t what went wrong
+   */
+  void fail(Throwable t) {
+    failure = t;
+    closed = true;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Return the exception the ring was closed with, if any.
+   *
+   * @return the failure, or null
+   */
+  Throwable failure() {
+    return failure;
+  }
+}
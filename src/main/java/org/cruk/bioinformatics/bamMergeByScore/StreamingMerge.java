@@ -0,0 +1,548 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Streaming k-way merge of name-sorted BAM files. Each input is read through a
+ * ReadCursor; the cursors are kept in a priority queue ordered by the name of
+ * their next group. At each step, every cursor positioned on the lowest name
+ * gives up its group of records, the groups are scored, and the best group is
+ * written out. The others are dropped. Ties are resolved by a TieBreaker.
+ *
+ * A group is every record of one template in one input (primary, secondary
+ * and supplementary hits of both mates), so a read is always kept or dropped
+ * whole, never split between inputs. Each input has one ReadGroup, reused
+ * from read to read and scored as it fills.
+ *
+ * Memory use is bounded by the largest group of records for any one read, not
+ * by the size of the files.
+ *
+ * Names are compared in the ReadNameOrder the inputs were sorted with, detected
+ * from their headers unless set explicitly.
+ *
+ * Inputs that aren't sorted by read name can be sorted on the way in, see
+ * setSortIfNeeded() and SortedReadCursor.
+ *
+ * Output goes either to one merged file (mergedOutput set) or to one file per
+ * input (mergedOutput null); see MergeOutput.
+ *
+ * By default the merge is pipelined: each input is read, and each output
+ * written, on a thread of its own, so that this thread only compares names
+ * and scores (see setPipeline()).
+ *
+ * What was decided for each read, and why, can be logged (see
+ * setDecisionLog()).
+ *
+ * A long merge can checkpoint itself every so often (see setCheckpoint()),
+ * and if it is interrupted, be resumed from the last checkpoint rather than
+ * from the beginning (see setResume() and Checkpoint).
+ */
+class StreamingMerge implements Closeable {
+  /**
+   * Reads between looks at the clock, to see whether a checkpoint is due.
+   */
+  static final int CHECKPOINT_CHECK = 4096;
+
+  protected Logger log = LogManager.getLogger(StreamingMerge.class);
+  protected List<Path> inputs;
+  protected Path mergedOutput;
+  protected ReadCursor[] cursors = null;
+  protected ReadGroup[] groups = null;
+  protected MergeOutput output = null;
+  protected PriorityQueue<ReadCursor> queue = null;
+  protected ReadNameOrder order = null;
+  protected ReadNameCodec codec = new ReadNameCodec();
+  protected long readsMerged = 0;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
+  protected TieBreaker ties = TieBreaker.DEFAULT;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected ExecutorService writerPool = WorkerPools.defaultPool();
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = RecordBatch.DEFAULT_SIZE;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected Path decisionLogFile = null;
+  protected DecisionLog decisions = null;
+  protected boolean sortIfNeeded = false;
+  protected long sortMemory = 0;
+  protected Path sortTempDir = null;
+  protected int shard = -1;
+  protected long[] shardStarts = null;
+  protected byte[] shardFrom = null;
+  protected byte[] shardTo = null;
+  protected Path checkpointFile = null;
+  protected long checkpointNanos = 0;
+  protected boolean resume = false;
+  protected long lastCheckpoint = 0;
+  protected boolean finished = false;
+
+  /**
+   * Order cursors by the name of their next group, then by input position so
+   * that ties are resolved consistently.
+   */
+  static class CursorOrder implements Comparator<ReadCursor> {
+    protected final ReadNameOrder order;
+
+    CursorOrder(ReadNameOrder order) {
+      this.order = order;
+    }
+
+    public int compare(ReadCursor a, ReadCursor b) {
+      int c = order.compare(a.nameKey(), a.nameBuffer(), RawBamRecord.NAME_OFFSET, a.nameLength(), b.nameKey(),
+          b.nameBuffer(), RawBamRecord.NAME_OFFSET, b.nameLength());
+      return c != 0 ? c : Integer.compare(a.index(), b.index());
+    }
+  }
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param inputs the name-sorted BAM files to merge
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   */
+  public StreamingMerge(List<Path> inputs, Path mergedOutput) {
+    this.inputs = inputs;
+    this.mergedOutput = mergedOutput;
+  }
+
+  /**
+   * Force the read name order, rather than detecting it from the input headers.
+   *
+   * @param order the order the inputs are sorted in, or null to detect it
+   */
+  void setNameOrder(ReadNameOrder order) {
+    this.order = order;
+  }
+
+  /**
+   * Set the threads used to inflate the inputs; one pool serves them all. Call
+   * before open().
+   *
+   * @param pool the threads to inflate on, or null to inflate on the merging
+   *             thread
+   * @param readAhead the number of blocks to inflate ahead of the merge, per
+   *                  input
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Set how the outputs are compressed (see MergeOutput.setCompression()).
+   * Call before open().
+   *
+   * @param pool the threads to deflate on, or null for the merging thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   */
+  void setCompression(ExecutorService pool, int level, DeflaterFactory deflaterFactory) {
+    this.writerPool = pool;
+    this.compressionLevel = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Run the merge as a pipeline: each input is read and each output is
+   * written on a thread of its own, the stages passing batches of records
+   * through bounded queues (see PipelinedReader and PipelinedWriter). Call
+   * before open().
+   *
+   * @param batchSize records per batch, or 0 to do everything on the merging
+   *          thread
+   * @param queueCapacity batches that may wait between two stages
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set what goes into the output headers (see MergeOutput.setProgram()).
+   * Call before open().
+   *
+   * @param commandLine the command line for the merge's @PG line, or null
+   * @param contigPrefixes for a merged output, a prefix for the contig names
+   *          of each input, or null for none
+   */
+  void setProgram(String commandLine, List<String> contigPrefixes) {
+    this.commandLine = commandLine;
+    this.contigPrefixes = contigPrefixes;
+  }
+
+  /**
+   * Record the decision for every read in a DecisionLog. Call before open().
+   *
+   * @param file the log file, or null for none
+   */
+  void setDecisionLog(Path file) {
+    this.decisionLogFile = file;
+  }
+
+  /**
+   * Sort inputs that aren't sorted by read name, rather than rejecting them
+   * (see SortedReadCursor). Inputs are sorted one at a time, each within the
+   * memory given. Call before open().
+   *
+   * @param maxMemory memory to sort each input with before spilling runs
+   * @param tempDir directory for the runs
+   */
+  void setSortIfNeeded(long maxMemory, Path tempDir) {
+    this.sortIfNeeded = true;
+    this.sortMemory = maxMemory;
+    this.sortTempDir = tempDir;
+  }
+
+  /**
+   * Merge only one range of read names, as one shard of a ShardedMerge: each
+   * input is read from the offset given, and the records go to part "shard"
+   * of each output (see MergeOutput.setPart()). The name order must be set
+   * (see setNameOrder()). Call before open().
+   *
+   * @param shard the shard number, from 0
+   * @param starts for each input, the virtual offset of a record at or before
+   *          the range, or -1 to read from the beginning
+   * @param from the first name in the range, or null for no lower bound
+   * @param to the first name after the range, or null for no upper bound
+   */
+  void setShard(int shard, long[] starts, byte[] from, byte[] to) {
+    this.shard = shard;
+    this.shardStarts = starts;
+    this.shardFrom = from;
+    this.shardTo = to;
+  }
+
+  /**
+   * Checkpoint the merge every so often: wait for everything decided so far
+   * to be written, sync the outputs to disk, and record where the inputs and
+   * outputs are (see Checkpoint). The checkpoint file is deleted once the
+   * merge is complete and closed. Not for a shard, or inputs that need
+   * sorting. Call before open().
+   *
+   * @param file the checkpoint file, or null for none
+   * @param intervalSeconds the time between checkpoints
+   */
+  void setCheckpoint(Path file, long intervalSeconds) {
+    this.checkpointFile = file;
+    this.checkpointNanos = intervalSeconds * 1000000000L;
+  }
+
+  /**
+   * Resume from the checkpoint file, if there is one (see setCheckpoint()):
+   * the outputs are cut back to their lengths at the checkpoint, and each
+   * input read again from where the checkpoint left it. The merge must be set
+   * up as it was, apart from its threads and pipeline. Call before open().
+   *
+   * @param resume whether to resume
+   */
+  void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Set how hits are scored and combined. Call before open().
+   *
+   * @param scoring the scoring policy
+   */
+  void setScoringPolicy(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Set how reads whose best score is shared by several inputs are resolved.
+   *
+   * @param ties the tie breaker
+   */
+  void setTieBreaker(TieBreaker ties) {
+    this.ties = ties;
+  }
+
+  /**
+   * Return the read name order in use. Only valid after open().
+   *
+   * @return the read name order
+   */
+  ReadNameOrder getNameOrder() {
+    return order;
+  }
+
+  /**
+   * Open all inputs and outputs. Inputs whose header declares a sort order
+   * other than queryname are rejected, or if setSortIfNeeded() was called,
+   * sorted; inputs with no declared order are accepted, and checked record by
+   * record as they are read (or sorted, likewise). Unless the name order was
+   * set, it is detected from the headers of the sorted inputs, which must
+   * agree; if every input needs sorting, they are sorted in htsjdk order.
+   *
+   * @throws IOException if an input can't be opened
+   */
+  void open() throws IOException {
+    Checkpoint from = null;
+    if (resume && checkpointFile != null && Files.exists(checkpointFile)) {
+      from = Checkpoint.read(checkpointFile);
+      from.check(inputs);
+      order = from.order;
+      readsMerged = from.reads;
+      log.info("Resuming from {}, after {} reads, the last {}", checkpointFile, from.reads, from.lastName());
+    } else if (resume) {
+      log.info("No checkpoint in {}; starting from the beginning", checkpointFile);
+    }
+    cursors = new ReadCursor[inputs.size()];
+    groups = new ReadGroup[inputs.size()];
+    boolean detect = order == null;
+    List<Integer> unsorted = new ArrayList<Integer>();
+    for (int i = 0; i < inputs.size(); i++) {
+      cursors[i] = new ReadCursor(i, inputs.get(i));
+      cursors[i].setCodec(codec);
+      cursors[i].setReaderThreads(pool, readAhead);
+      cursors[i].setPipeline(batchSize, queueCapacity);
+      if (shard >= 0) {
+        cursors[i].setOrder(order);
+        cursors[i].setRange(shardStarts[i], shardFrom, shardTo);
+      } else if (from != null) {
+        cursors[i].setOrder(order);
+        cursors[i].setRange(from.offsets[i], from.next, null);
+      }
+      cursors[i].open();
+      groups[i] = new ReadGroup(scoring);
+      SAMFileHeader.SortOrder so = cursors[i].getHeader().getSortOrder();
+      if (sortIfNeeded && so != SAMFileHeader.SortOrder.queryname) {
+        cursors[i].close();
+        unsorted.add(i);
+        continue;
+      }
+      if (so == SAMFileHeader.SortOrder.coordinate || so == SAMFileHeader.SortOrder.duplicate) {
+        throw new SAMFormatException(inputs.get(i).getFileName().toString() + " is sorted by " + so
+            + ", not by read name; sort with \"samtools sort -n\" first");
+      } else if (so != SAMFileHeader.SortOrder.queryname) {
+        log.warn("{} does not declare queryname sort order; checking order while merging", inputs.get(i));
+      }
+      if (detect) {
+        ReadNameOrder o = ReadNameOrder.fromHeader(cursors[i].getHeader());
+        if (order == null) {
+          order = o;
+        } else if (!order.agreesWith(o)) {
+          throw new SAMFormatException(inputs.get(i).getFileName().toString() + " is sorted in " + o
+              + " name order, but " + inputs.get(0).getFileName().toString() + " in " + order
+              + " order; re-sort one of them, or force the order");
+        }
+      }
+    }
+    if (order == null) {
+      order = ReadNameOrder.HTSJDK;
+    }
+    for (int i : unsorted) {
+      log.info("{} is not sorted by read name; sorting it", inputs.get(i));
+      SortedReadCursor c = new SortedReadCursor(i, inputs.get(i), sortMemory, sortTempDir);
+      cursors[i] = c;
+      c.setCodec(codec);
+      c.setReaderThreads(pool, readAhead);
+      c.setOrder(order);
+      c.open();
+      log.debug("Sorted {} records of {} with {} runs on disk", c.sort.size(), inputs.get(i), c.runCount());
+    }
+    log.debug("Comparing read names in {} order", order);
+    queue = new PriorityQueue<ReadCursor>(inputs.size(), new CursorOrder(order));
+    for (ReadCursor c : cursors) {
+      c.setOrder(order);
+      if (c.hasNext()) {
+        queue.add(c);
+      }
+    }
+    List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(cursors.length);
+    for (ReadCursor c : cursors) {
+      headers.add(c.getHeader());
+    }
+    output = new MergeOutput(inputs, headers, mergedOutput, SAMFileHeader.SortOrder.queryname);
+    output.setCompression(writerPool, compressionLevel, deflaterFactory);
+    output.setPipeline(batchSize, queueCapacity);
+    output.setProgram(commandLine, contigPrefixes);
+    if (shard >= 0) {
+      output.setPart(shard);
+    }
+    if (from != null) {
+      output.setResume(from.lengths);
+    }
+    output.open();
+    if (decisionLogFile != null) {
+      decisions = new DecisionLog(decisionLogFile, inputs, writerPool);
+      decisions.setQueueCapacity(queueCapacity);
+      if (shard >= 0) {
+        decisions.setPart(shard);
+      }
+      if (from != null) {
+        if (from.decisionLogLength < 0) {
+          throw new IOException("the checkpoint in " + checkpointFile + " has no decision log to carry on");
+        }
+        decisions.setResume(from.decisionLogLength);
+      }
+      decisions.open();
+    }
+    lastCheckpoint = System.nanoTime();
+  }
+
+  /**
+   * Run the merge to completion.
+   *
+   * @return the number of distinct reads seen across all inputs
+   * @throws IOException if an input can't be read
+   */
+  long merge() throws IOException {
+    ReadCursor[] active = new ReadCursor[cursors.length];
+    int[] tied = new int[cursors.length];
+    int[] scores = new int[cursors.length];
+    Arrays.fill(scores, DecisionLog.ABSENT);
+    while (!queue.isEmpty()) {
+      ReadCursor first = queue.poll();
+      int n = 0;
+      active[n++] = first;
+      while (!queue.isEmpty() && sameName(queue.peek(), first)) {
+        active[n++] = queue.poll();
+      }
+      // the queue yields cursors in input order for equal names, so the
+      // inputs tied are in order
+      int t = 0;
+      int best = Integer.MIN_VALUE;
+      for (int i = 0; i < n; i++) {
+        ReadCursor c = active[i];
+        ReadGroup group = groups[c.index()];
+        c.nextGroup(group);
+        int s = group.score();
+        scores[c.index()] = s;
+        if (t == 0 || s > best) {
+          best = s;
+          t = 0;
+          tied[t++] = c.index();
+        } else if (s == best) {
+          tied[t++] = c.index();
+        }
+      }
+      RawBamRecord named = groups[tied[0]].get(0);
+      int winner = tied[0];
+      if (t == 1) {
+        write(winner, groups[winner]);
+      } else {
+        metrics.tied(ties.policy());
+        winner = ties.choose(tied, t, named.buffer(), RawBamRecord.NAME_OFFSET, named.nameLength());
+        if (winner == TieBreaker.KEEP_ALL) {
+          for (int i = 0; i < t; i++) {
+            write(tied[i], groups[tied[i]]);
+          }
+        } else if (winner != TieBreaker.DROP) {
+          write(winner, groups[winner]);
+        }
+      }
+      if (decisions != null) {
+        decisions.record(named.buffer(), RawBamRecord.NAME_OFFSET, named.nameLength(), scores, best, t, winner);
+      }
+      for (int i = 0; i < n; i++) {
+        scores[active[i].index()] = DecisionLog.ABSENT;
+        if (active[i].hasNext()) {
+          queue.add(active[i]);
+        }
+      }
+      readsMerged++;
+      metrics.decided();
+      if (checkpointFile != null && readsMerged % CHECKPOINT_CHECK == 0 && !queue.isEmpty()
+          && System.nanoTime() - lastCheckpoint >= checkpointNanos) {
+        checkpoint(named);
+      }
+    }
+    finished = true;
+    return readsMerged;
+  }
+
+  /**
+   * Write a checkpoint, between one read and the next.
+   *
+   * @param last a record of the read just decided
+   * @throws IOException if an output or the checkpoint can't be written
+   */
+  protected void checkpoint(RawBamRecord last) throws IOException {
+    long start = System.nanoTime();
+    ReadCursor head = queue.peek();
+    int off = RawBamRecord.NAME_OFFSET;
+    byte[] next = Arrays.copyOfRange(head.nameBuffer(), off, off + head.nameLength());
+    byte[] done = Arrays.copyOfRange(last.buffer(), off, off + last.nameLength());
+    long[] offsets = new long[cursors.length];
+    for (int i = 0; i < cursors.length; i++) {
+      offsets[i] = cursors[i].checkpointOffset();
+    }
+    Checkpoint c = new Checkpoint(order, done, next, readsMerged, inputs, offsets, output.sync());
+    if (decisions != null) {
+      c.setDecisionLogLength(decisions.sync());
+    }
+    c.write(checkpointFile);
+    lastCheckpoint = System.nanoTime();
+    log.debug("Checkpoint after {} reads in {} ms", readsMerged, (lastCheckpoint - start) / 1000000);
+  }
+
+  private static boolean sameName(ReadCursor a, ReadCursor b) {
+    return ReadNameCodec.sameName(a.nameKey(), a.nameBuffer(), RawBamRecord.NAME_OFFSET, a.nameLength(), b.nameKey(),
+        b.nameBuffer(), RawBamRecord.NAME_OFFSET, b.nameLength());
+  }
+
+  /**
+   * Write the winning group to the appropriate output.
+   *
+   * @param source the input the group came from
+   * @param group the records to write
+   */
+  protected void write(int source, ReadGroup group) {
+    for (int i = 0; i < group.size(); i++) {
+      output.write(source, group.get(i));
+    }
+  }
+
+  /**
+   * Return the number of records written to all outputs.
+   *
+   * @return records written
+   */
+  long recordsWritten() {
+    return output.recordsWritten();
+  }
+
+  public void close() throws IOException {
+    if (decisions != null) {
+      decisions.close();
+      decisions = null;
+    }
+    if (output != null) {
+      output.close();
+      output = null;
+      if (finished && checkpointFile != null) {
+        Files.deleteIfExists(checkpointFile);
+      }
+    }
+    if (cursors != null) {
+      for (ReadCursor c : cursors) {
+        if (c != null) {
+          c.close();
+        }
+      }
+      cursors = null;
+    }
+  }
+}
@@ -0,0 +1,450 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Write a set of name-sorted BAM files that share one set of read names, as if
+ * the same reads had been aligned to a different reference for each file. The
+ * tests and benchmarks use these in place of large real files, and they can
+ * reproduce awkward inputs: heavy or light overlap, many secondary or
+ * supplementary hits per read, unmapped reads, negative scores, names that sort
+ * differently in different ReadNameOrders.
+ *
+ * Read names come from a template ("--name-format") with the Illumina fields
+ * {lane}, {tile}, {x} and {y}, which must appear in that order. Reads are
+ * generated in increasing order of those fields. With "--pad" the numbers have
+ * a fixed width, so the files are sorted in every ReadNameOrder; without it,
+ * they are sorted in natural (samtools) order only, and the header says so
+ * ("SS:queryname:natural").
+ *
+ * Each read is present in every input with probability "--overlap", and
+ * otherwise in just one, chosen at random. Each input gives its hits their own
+ * score, drawn from "--scores", as an AS tag. Output is deterministic for a
+ * given "--seed".
+ */
+public class SyntheticBamGenerator {
+
+  static final String DEFAULT_NAME_FORMAT = "SYN:1:HSYNTHXX:{lane}:{tile}:{x}:{y}";
+  static final String[] NAME_FIELDS = { "{lane}", "{tile}", "{x}", "{y}" };
+  static final int CONTIG_LENGTH = 10000000;
+  private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+  /**
+   * A distribution of alignment scores: "fixed:v", "uniform:min:max" (both
+   * inclusive) or "normal:mean:sd".
+   */
+  static class Scores {
+    final String kind;
+    final double a;
+    final double b;
+
+    Scores(String kind, double a, double b) {
+      this.kind = kind;
+      this.a = a;
+      this.b = b;
+    }
+
+    /**
+     * Parse a distribution from its command-line form.
+     *
+     * @param spec e.g. "uniform:0:60"
+     * @return the distribution
+     * @throws IllegalArgumentException if the spec can't be parsed
+     */
+    static Scores parse(String spec) {
+      String[] f = spec.split(":");
+      try {
+        if (f[0].equals("fixed") && f.length == 2) {
+          return new Scores(f[0], Double.parseDouble(f[1]), 0);
+        } else if ((f[0].equals("uniform") || f[0].equals("normal")) && f.length == 3) {
+          return new Scores(f[0], Double.parseDouble(f[1]), Double.parseDouble(f[2]));
+        }
+      } catch (NumberFormatException nfe) {
+        // fall through
+      }
+      throw new IllegalArgumentException("bad score distribution: " + spec);
+    }
+
+    int next(Random random) {
+      if (kind.equals("fixed")) {
+        return (int) a;
+      } else if (kind.equals("uniform")) {
+        return (int) a + random.nextInt((int) (b - a) + 1);
+      }
+      return (int) Math.round(a + random.nextGaussian() * b);
+    }
+  }
+
+  protected Logger log = LogManager.getLogger(SyntheticBamGenerator.class);
+  protected Options options = new Options();
+  protected CommandLine cli = null;
+  protected Path outputDir = Paths.get(".");
+  protected String prefix = "synthetic";
+  protected int inputs = 2;
+  protected long reads = 1000000;
+  protected String nameFormat = DEFAULT_NAME_FORMAT;
+  protected boolean pad = false;
+  protected double overlap = 0.9;
+  protected int secondary = 0;
+  protected int supplementary = 0;
+  protected double unmapped = 0.0;
+  protected Scores scores = Scores.parse("uniform:20:60");
+  protected boolean paired = false;
+  protected int readLength = 100;
+  protected long seed = 1;
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+
+  protected void configureOptions() {
+    Option o;
+    o = new Option("d", "output-dir", true, "directory to write into (default: current directory)");
+    o.setType(File.class);
+    options.addOption(o);
+    o = new Option(null, "prefix", true, "output files are named <prefix>-<n>.bam (default \"" + prefix + "\")");
+    options.addOption(o);
+    o = new Option("i", "inputs", true, "number of files to write (default " + inputs + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option("n", "reads", true, "number of distinct reads (default " + reads + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "name-format", true,
+        "read name template, with fields {lane}, {tile}, {x} and {y} in that order (default \"" + DEFAULT_NAME_FORMAT
+            + "\")");
+    options.addOption(o);
+    o = new Option(null, "pad", false, "zero-pad numbers in names, so that files sort the same in every name order");
+    options.addOption(o);
+    o = new Option(null, "overlap", true,
+        "fraction of reads present in every file; the rest are in one file only (default " + overlap + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "secondary", true, "secondary hits per read (default " + secondary + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "supplementary", true, "supplementary hits per read (default " + supplementary + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "unmapped", true, "fraction of reads unmapped in each file (default " + unmapped + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "scores", true,
+        "AS distribution: fixed:v, uniform:min:max or normal:mean:sd (default uniform:20:60)");
+    options.addOption(o);
+    o = new Option(null, "paired", false, "write pairs of reads rather than single reads");
+    options.addOption(o);
+    o = new Option(null, "read-length", true, "bases per read (default " + readLength + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option(null, "seed", true, "random seed (default " + seed + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+    o = new Option("l", "compression-level", true,
+        "output compression level, 0 to 9 (default " + ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL + ")");
+    o.setType(Number.class);
+    options.addOption(o);
+  }
+
+  /**
+   * Parse the command line.
+   *
+   * @param args command-line arguments to parse
+   * @return zero if successful, non-zero otherwise
+   */
+  protected int parseCmdLine(String[] args) {
+    int rc = 0;
+
+    try {
+      cli = new DefaultParser().parse(options, args);
+      if (cli.hasOption("output-dir")) {
+        outputDir = Paths.get(cli.getOptionValue("output-dir"));
+      }
+      if (cli.hasOption("prefix")) {
+        prefix = cli.getOptionValue("prefix");
+      }
+      if (cli.hasOption("inputs")) {
+        inputs = ((Number) cli.getParsedOptionValue("inputs")).intValue();
+      }
+      if (cli.hasOption("reads")) {
+        reads = ((Number) cli.getParsedOptionValue("reads")).longValue();
+      }
+      if (cli.hasOption("name-format")) {
+        nameFormat = cli.getOptionValue("name-format");
+      }
+      pad = cli.hasOption("pad");
+      if (cli.hasOption("overlap")) {
+        overlap = ((Number) cli.getParsedOptionValue("overlap")).doubleValue();
+      }
+      if (cli.hasOption("secondary")) {
+        secondary = ((Number) cli.getParsedOptionValue("secondary")).intValue();
+      }
+      if (cli.hasOption("supplementary")) {
+        supplementary = ((Number) cli.getParsedOptionValue("supplementary")).intValue();
+      }
+      if (cli.hasOption("unmapped")) {
+        unmapped = ((Number) cli.getParsedOptionValue("unmapped")).doubleValue();
+      }
+      if (cli.hasOption("scores")) {
+        try {
+          scores = Scores.parse(cli.getOptionValue("scores"));
+        } catch (IllegalArgumentException iae) {
+          log.error("Unknown score distribution: {}", cli.getOptionValue("scores"));
+          rc = -1;
+        }
+      }
+      paired = cli.hasOption("paired");
+      if (cli.hasOption("read-length")) {
+        readLength = ((Number) cli.getParsedOptionValue("read-length")).intValue();
+      }
+      if (cli.hasOption("seed")) {
+        seed = ((Number) cli.getParsedOptionValue("seed")).longValue();
+      }
+      if (cli.hasOption("compression-level")) {
+        compressionLevel = ((Number) cli.getParsedOptionValue("compression-level")).intValue();
+      }
+      if (rc == 0) {
+        rc = checkSettings();
+      }
+    } catch (ParseException pe) {
+      log.error("Command line parsing failed: " + pe.toString());
+      rc = -1;
+    }
+    return rc;
+  }
+
+  /**
+   * Check the settings are consistent, whether they came from the command line
+   * or were set directly.
+   *
+   * @return zero if they are, non-zero otherwise
+   */
+  protected int checkSettings() {
+    int rc = 0;
+    if (inputs < 1 || reads < 0) {
+      log.error("Need at least one input and no fewer than zero reads; got {} and {}.", inputs, reads);
+      rc = -1;
+    }
+    if (overlap < 0 || overlap > 1 || unmapped < 0 || unmapped > 1) {
+      log.error("Overlap and unmapped fractions must be from 0 to 1; got {} and {}.", overlap, unmapped);
+      rc = -1;
+    }
+    if (secondary < 0 || supplementary < 0 || readLength < 1) {
+      log.error("Hit counts must not be negative, and reads must have at least one base.");
+      rc = -1;
+    }
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      log.error("Compression level must be from 0 to 9; got {}.", compressionLevel);
+      rc = -1;
+    }
+    int last = -1;
+    for (String field : NAME_FIELDS) {
+      int at = nameFormat.indexOf(field);
+      if (at <= last) {
+        log.error("Name format must contain {}, {}, {} and {} in that order; got \"{}\".", NAME_FIELDS[0],
+            NAME_FIELDS[1], NAME_FIELDS[2], NAME_FIELDS[3], nameFormat);
+        rc = -1;
+        break;
+      }
+      last = at;
+    }
+    return rc;
+  }
+
+  /**
+   * Make the name of the i'th read. Names increase with i in natural order, and
+   * with pad set, in every order.
+   *
+   * @param i the read number
+   * @return the read name
+   */
+  String readName(long i) {
+    long y = 1000 + i % 50000;
+    long x = 1000 + (i / 50000) % 50000;
+    long tile = 1101 + (i / 2500000000L) % 24;
+    long lane = 1 + i / 60000000000L;
+    String fmt = pad ? "%05d" : "%d";
+    return nameFormat.replace("{lane}", Long.toString(lane)).replace("{tile}", Long.toString(tile))
+        .replace("{x}", String.format(fmt, x)).replace("{y}", String.format(fmt, y));
+  }
+
+  /**
+   * Return the path of the n'th output file.
+   *
+   * @param n the file number
+   * @return the path
+   */
+  Path outputPath(int n) {
+    return outputDir.resolve(prefix + "-" + n + ".bam");
+  }
+
+  protected SAMFileHeader makeHeader(int n) {
+    SAMFileHeader header = new SAMFileHeader();
+    header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+    if (!pad) {
+      header.setAttribute("SS", "queryname:natural");
+    }
+    for (int c = 1; c <= 3; c++) {
+      header.addSequence(new SAMSequenceRecord("ref" + n + "_chr" + c, CONTIG_LENGTH));
+    }
+    return header;
+  }
+
+  /**
+   * Write the hits of one read (or pair) to one file.
+   */
+  protected void writeRead(ParallelBamWriter w, SAMFileHeader header, String name, byte[] bases, byte[] quals,
+      Random random) {
+    if (random.nextDouble() < unmapped) {
+      for (int mate = 0; mate < (paired ? 2 : 1); mate++) {
+        SAMRecord rec = new SAMRecord(header);
+        rec.setReadName(name);
+        rec.setFlags(paired ? (mate == 0 ? 0x4d : 0x8d) : 0x4);
+        rec.setReadBases(bases);
+        rec.setBaseQualities(quals);
+        w.addAlignment(rec);
+      }
+      return;
+    }
+    int contig = random.nextInt(header.getSequenceDictionary().size());
+    int pos = 1 + random.nextInt(CONTIG_LENGTH - 2 * readLength - 500);
+    int matePos = pos + readLength + random.nextInt(300);
+    for (int mate = 0; mate < (paired ? 2 : 1); mate++) {
+      int score = scores.next(random);
+      SAMRecord rec = new SAMRecord(header);
+      rec.setReadName(name);
+      rec.setReferenceIndex(contig);
+      rec.setAlignmentStart(mate == 0 ? pos : matePos);
+      rec.setCigarString(readLength + "M");
+      rec.setMappingQuality(60);
+      rec.setReadBases(bases);
+      rec.setBaseQualities(quals);
+      rec.setAttribute("AS", score);
+      if (paired) {
+        rec.setFlags(mate == 0 ? 0x63 : 0x93);
+        rec.setMateReferenceIndex(contig);
+        rec.setMateAlignmentStart(mate == 0 ? matePos : pos);
+        int tlen = matePos + readLength - pos;
+        rec.setInferredInsertSize(mate == 0 ? tlen : -tlen);
+      }
+      w.addAlignment(rec);
+      for (int s = 0; s < supplementary; s++) {
+        SAMRecord supp = extraHit(rec, header, 0x800, score / 2, random);
+        supp.setCigarString((readLength / 2) + "M" + (readLength - readLength / 2) + "S");
+        w.addAlignment(supp);
+      }
+      for (int s = 0; s < secondary; s++) {
+        w.addAlignment(extraHit(rec, header, 0x100, score - 1 - random.nextInt(5), random));
+      }
+    }
+  }
+
+  private SAMRecord extraHit(SAMRecord primary, SAMFileHeader header, int flag, int score, Random random) {
+    SAMRecord rec = primary.deepCopy();
+    rec.setFlags(primary.getFlags() | flag);
+    rec.setReferenceIndex(random.nextInt(header.getSequenceDictionary().size()));
+    rec.setAlignmentStart(1 + random.nextInt(CONTIG_LENGTH - readLength));
+    rec.setMappingQuality(0);
+    rec.setAttribute("AS", score);
+    return rec;
+  }
+
+  /**
+   * Write the files.
+   *
+   * @return the paths written
+   * @throws IOException if a file can't be written
+   */
+  List<Path> generate() throws IOException {
+    Files.createDirectories(outputDir);
+    Random random = new Random(seed);
+    SAMFileHeader[] headers = new SAMFileHeader[inputs];
+    ParallelBamWriter[] writers = new ParallelBamWriter[inputs];
+    List<Path> paths = new ArrayList<Path>(inputs);
+    try {
+      for (int n = 0; n < inputs; n++) {
+        headers[n] = makeHeader(n);
+        paths.add(outputPath(n));
+        writers[n] = new ParallelBamWriter(outputPath(n), headers[n], WorkerPools.defaultPool(), compressionLevel,
+            new DeflaterFactory());
+      }
+      byte[] bases = new byte[readLength];
+      byte[] quals = new byte[readLength];
+      Arrays.fill(quals, (byte) 40);
+      for (long i = 0; i < reads; i++) {
+        String name = readName(i);
+        for (int b = 0; b < readLength; b++) {
+          bases[b] = BASES[random.nextInt(4)];
+        }
+        if (random.nextDouble() < overlap) {
+          for (int n = 0; n < inputs; n++) {
+            writeRead(writers[n], headers[n], name, bases, quals, random);
+          }
+        } else {
+          int n = random.nextInt(inputs);
+          writeRead(writers[n], headers[n], name, bases, quals, random);
+        }
+      }
+    } finally {
+      for (ParallelBamWriter w : writers) {
+        if (w != null) {
+          w.close();
+        }
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Main processing steps: parse the command line, write the files.
+   *
+   * @param args command-line arguments, before parsing
+   * @return zero if successful, non-zero otherwise
+   */
+  protected int run(String[] args) {
+    int rc = 0;
+    configureOptions();
+    rc = parseCmdLine(args);
+    if (rc == 0) {
+      try {
+        for (Path p : generate()) {
+          log.info("Wrote {}.", p);
+        }
+      } catch (IOException | SAMException e) {
+        log.error("Generation failed: " + e.getMessage());
+        rc = -1;
+      }
+    }
+    return rc;
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args the command-line arguments
+   */
+  public static void main(String[] args) {
+    SyntheticBamGenerator g = new SyntheticBamGenerator();
+    int rc = g.run(args);
+    System.exit(rc);
+  }
+}
@@ -0,0 +1,57 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * The score of one template, worked out a hit at a time: the best hit, or if
+ * the scoring policy is pair-aware, the best hit of each mate combined (see
+ * ScoringPolicy.combine()). This is the one place that rule lives; a ReadGroup
+ * adds its records' scores as they arrive, and TwoPassMerge adds the scores
+ * it spilled to disk.
+ *
+ * An instance is reused from one template to the next (see clear()), so
+ * scoring allocates nothing.
+ */
+final class TemplateScore {
+  protected final ScoringPolicy scoring;
+  protected int first = ScoringPolicy.UNSCORED;
+  protected int second = ScoringPolicy.UNSCORED;
+
+  /**
+   * Constructor.
+   *
+   * @param scoring how hits combine
+   */
+  TemplateScore(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Start a new template.
+   */
+  void clear() {
+    first = ScoringPolicy.UNSCORED;
+    second = ScoringPolicy.UNSCORED;
+  }
+
+  /**
+   * Add one hit's score.
+   *
+   * @param score the score, as from ScoringPolicy.score()
+   * @param secondOfPair whether the hit is of the second mate of a pair
+   */
+  void add(int score, boolean secondOfPair) {
+    if (secondOfPair && scoring.pairAware()) {
+      second = Math.max(second, score);
+    } else {
+      first = Math.max(first, score);
+    }
+  }
+
+  /**
+   * Return the template's score.
+   *
+   * @return the score, or ScoringPolicy.UNSCORED if no hit scored
+   */
+  int score() {
+    return scoring.pairAware() ? scoring.combine(first, second) : first;
+  }
+}
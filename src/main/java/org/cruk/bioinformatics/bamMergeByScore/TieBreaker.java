@@ -0,0 +1,93 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * Resolves ties between inputs by a TiePolicy. The choice depends only on the
+ * inputs tied and the read name, never on what was decided before, so it is
+ * the same whichever thread or shard makes it, and in whatever order: a
+ * sharded merge writes the same records as a single one, and there is no
+ * shared Random to contend for. HASH_RANDOM hashes the name with a seed (see
+ * NameHash), so a run can be repeated exactly by giving the same seed.
+ *
+ * Nothing is allocated; a TieBreaker is immutable and may be shared.
+ */
+final class TieBreaker {
+  /**
+   * Returned by choose() when every input tied keeps the read.
+   */
+  static final int KEEP_ALL = -2;
+  /**
+   * Returned by choose() when no input keeps the read.
+   */
+  static final int DROP = -1;
+
+  /**
+   * Ties go to the earliest input tied.
+   */
+  static final TieBreaker DEFAULT = new TieBreaker(TiePolicy.PRIMARY_FILE, -1, 0L);
+
+  protected final TiePolicy policy;
+  protected final int primary;
+  protected final long seed;
+
+  /**
+   * Constructor.
+   *
+   * @param policy how ties are resolved
+   * @param primary the input that wins ties under PRIMARY_FILE, from 0, or -1
+   *          for the earliest input tied
+   * @param seed the seed for HASH_RANDOM
+   */
+  TieBreaker(TiePolicy policy, int primary, long seed) {
+    this.policy = policy;
+    this.primary = primary;
+    this.seed = seed;
+  }
+
+  /**
+   * Return the policy.
+   *
+   * @return the policy
+   */
+  TiePolicy policy() {
+    return policy;
+  }
+
+  /**
+   * Choose which of the inputs tied keeps a read.
+   *
+   * @param tied the inputs tied, in increasing order
+   * @param n the number of inputs tied, at least two
+   * @param name buffer holding the read name
+   * @param off offset of the read name
+   * @param len length of the read name
+   * @return the input that keeps the read, KEEP_ALL or DROP
+   */
+  int choose(int[] tied, int n, byte[] name, int off, int len) {
+    switch (policy) {
+    case HASH_RANDOM:
+      return tied[(int) Long.remainderUnsigned(NameHash.hash64(name, off, len, seed), n)];
+    case KEEP_ALL:
+      return KEEP_ALL;
+    case DROP_AMBIGUOUS:
+      return DROP;
+    default:
+      for (int i = 0; i < n; i++) {
+        if (tied[i] == primary) {
+          return primary;
+        }
+      }
+      return tied[0];
+    }
+  }
+
+  public String toString() {
+    switch (policy) {
+    case HASH_RANDOM:
+      return policy + " (seed " + seed + ")";
+    case PRIMARY_FILE:
+      return primary < 0 ? policy.toString() : policy + " (input " + (primary + 1) + ")";
+    default:
+      return policy.toString();
+    }
+  }
+}
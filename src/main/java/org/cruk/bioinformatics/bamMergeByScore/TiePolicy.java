@@ -0,0 +1,42 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+/**
+ * What to do with a read whose best score is shared by more than one input.
+ * See TieBreaker, which applies a policy.
+ */
+enum TiePolicy {
+  /**
+   * The primary input keeps the read if it is among those tied; otherwise,
+   * the earliest of them does. With no primary input given, this is the
+   * earliest input tied (the original behaviour).
+   */
+  PRIMARY_FILE,
+  /**
+   * One of the inputs tied keeps the read, chosen by a seeded hash of the read
+   * name: random, but the same on every run with the same seed.
+   */
+  HASH_RANDOM,
+  /**
+   * Every input tied keeps its records of the read.
+   */
+  KEEP_ALL,
+  /**
+   * No input keeps the read.
+   */
+  DROP_AMBIGUOUS;
+
+  /**
+   * Look up a policy by its name, e.g. "hash-random", in any case.
+   *
+   * @param name the name
+   * @return the policy
+   * @throws IllegalArgumentException if there is no such policy
+   */
+  static TiePolicy fromName(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+
+  public String toString() {
+    return name().toLowerCase().replace('_', '-');
+  }
+}
@@ -0,0 +1,394 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Merge for inputs in any order (typically sorted by coordinate) that never
+ * moves a record out of its input's order. The first pass streams each input
+ * and reduces every record to a small entry in an ExternalNameSort: the packed
+ * name, the record's score, and its position in the file (its ordinal, with
+ * the second-of-pair flag in the low bit). The entries of every input are then
+ * merged in name order, as StreamingMerge merges the records themselves, and
+ * the winning input for each read is decided from the scores alone (ties by a
+ * TieBreaker). The second pass streams each input again in its own order and
+ * keeps the records of the reads it won, so "--split" outputs keep their
+ * inputs' sort order without being re-sorted.
+ *
+ * Winners are remembered as one bit per record per input, and the sorts spill
+ * to disk beyond the memory given, so memory use is small and bounded, unlike
+ * RandomAccessMerge's. The price is writing and reading back the entries, and
+ * reading each input twice.
+ */
+class TwoPassMerge implements Closeable {
+
+  protected Logger log = LogManager.getLogger(TwoPassMerge.class);
+  protected List<Path> inputs;
+  protected Path mergedOutput;
+  protected ExternalNameSort[] sorts = null;
+  protected BitSet[] winners = null;
+  protected ReadNameCodec codec = new ReadNameCodec();
+  protected MergeOutput output = null;
+  protected long readsMerged = 0;
+  protected final MergeMetrics metrics = MergeMetrics.global();
+  protected ScoringPolicy scoring = AlignerScoring.DEFAULT;
+  protected TieBreaker ties = TieBreaker.DEFAULT;
+  protected ExecutorService pool = WorkerPools.defaultPool();
+  protected int readAhead = ParallelBgzfInputStream.DEFAULT_READ_AHEAD;
+  protected ExecutorService writerPool = WorkerPools.defaultPool();
+  protected int compressionLevel = ParallelBamWriter.DEFAULT_COMPRESSION_LEVEL;
+  protected DeflaterFactory deflaterFactory = new DeflaterFactory();
+  protected int batchSize = RecordBatch.DEFAULT_SIZE;
+  protected int queueCapacity = SpscRing.DEFAULT_CAPACITY;
+  protected String commandLine = null;
+  protected List<String> contigPrefixes = null;
+  protected Path decisionLogFile = null;
+  protected DecisionLog decisions = null;
+  protected long sortMemory = Runtime.getRuntime().maxMemory() / 4;
+  protected Path sortTempDir = null;
+
+  /**
+   * Constructor just records the files involved.
+   *
+   * @param inputs the BAM files to merge
+   * @param mergedOutput the file to merge into, or null to write one filtered
+   *                     file per input
+   */
+  public TwoPassMerge(List<Path> inputs, Path mergedOutput) {
+    this.inputs = inputs;
+    this.mergedOutput = mergedOutput;
+  }
+
+  /**
+   * Set how hits are scored and combined.
+   *
+   * @param scoring the scoring policy
+   */
+  void setScoringPolicy(ScoringPolicy scoring) {
+    this.scoring = scoring;
+  }
+
+  /**
+   * Set how reads whose best score is shared by several inputs are resolved.
+   *
+   * @param ties the tie breaker
+   */
+  void setTieBreaker(TieBreaker ties) {
+    this.ties = ties;
+  }
+
+  /**
+   * Set the threads used to inflate the inputs, in both passes. Call before
+   * open().
+   *
+   * @param pool the threads to inflate on, or null to inflate on the merging
+   *             thread
+   * @param readAhead the number of blocks to inflate ahead of the reader
+   */
+  void setReaderThreads(ExecutorService pool, int readAhead) {
+    this.pool = pool;
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Set how the outputs are compressed (see MergeOutput.setCompression()).
+   * Call before open().
+   *
+   * @param pool the threads to deflate on, or null for the merging thread
+   * @param level the compression level, 0 to 9
+   * @param deflaterFactory where to get Deflaters from
+   */
+  void setCompression(ExecutorService pool, int level, DeflaterFactory deflaterFactory) {
+    this.writerPool = pool;
+    this.compressionLevel = level;
+    this.deflaterFactory = deflaterFactory;
+  }
+
+  /**
+   * Run the second pass as a pipeline: each input is read and each output is
+   * written on a thread of its own, the stages passing batches of records
+   * through bounded queues (see PipelinedReader and PipelinedWriter). Call
+   * before open().
+   *
+   * @param batchSize records per batch, or 0 to do everything on the merging
+   *          thread
+   * @param queueCapacity batches that may wait between two stages
+   */
+  void setPipeline(int batchSize, int queueCapacity) {
+    this.batchSize = batchSize;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set what goes into the output headers (see MergeOutput.setProgram()).
+   * Call before open().
+   *
+   * @param commandLine the command line for the merge's @PG line, or null
+   * @param contigPrefixes for a merged output, a prefix for the contig names
+   *          of each input, or null for none
+   */
+  void setProgram(String commandLine, List<String> contigPrefixes) {
+    this.commandLine = commandLine;
+    this.contigPrefixes = contigPrefixes;
+  }
+
+  /**
+   * Record the decision for every read in a DecisionLog, in name order as the
+   * reads are decided. Call before open().
+   *
+   * @param file the log file, or null for none
+   */
+  void setDecisionLog(Path file) {
+    this.decisionLogFile = file;
+  }
+
+  /**
+   * Set the memory for the first pass's sorts, and where they spill. The
+   * memory is shared by all inputs, since every input's entries must be held
+   * (or spilled) until the winners are decided. Call before open().
+   *
+   * @param maxMemory memory for all the sorts together
+   * @param tempDir directory for the runs, or null for java.io.tmpdir
+   */
+  void setSortMemory(long maxMemory, Path tempDir) {
+    this.sortMemory = maxMemory;
+    this.sortTempDir = tempDir;
+  }
+
+  /**
+   * Make the first pass over every input, then open the outputs.
+   *
+   * @throws FileNotFoundException if an input doesn't exist
+   * @throws IOException if an input can't be read or the runs written
+   */
+  void open() throws FileNotFoundException, IOException {
+    sorts = new ExternalNameSort[inputs.size()];
+    winners = new BitSet[inputs.size()];
+    List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(inputs.size());
+    Path tempDir = sortTempDir == null ? Paths.get(System.getProperty("java.io.tmpdir")) : sortTempDir;
+    for (int i = 0; i < inputs.size(); i++) {
+      Path p = inputs.get(i);
+      if (!Files.exists(p)) {
+        throw new FileNotFoundException("unable to find " + p.getFileName().toString());
+      }
+      long start = System.nanoTime();
+      sorts[i] = new ExternalNameSort(ReadNameOrder.NATURAL, sortMemory / inputs.size(), tempDir);
+      ParallelBamReader rdr = new ParallelBamReader(p, pool, readAhead);
+      try {
+        headers.add(rdr.getFileHeader());
+        RawBamRecord rec = new RawBamRecord();
+        long ordinal = 0;
+        while (rdr.next(rec)) {
+          if (ordinal == Integer.MAX_VALUE) {
+            throw new SAMFormatException(p.getFileName().toString() + " has too many records for a two-pass merge");
+          }
+          byte[] b = rec.buffer();
+          int len = rec.nameLength();
+          sorts[i].add(codec.encode(b, RawBamRecord.NAME_OFFSET, len), b, RawBamRecord.NAME_OFFSET, len,
+              ordinal << 1 | (rec.isSecondOfPair() ? 1 : 0), scoring.score(rec));
+          ordinal++;
+        }
+      } finally {
+        rdr.close();
+      }
+      sorts[i].finish();
+      winners[i] = new BitSet((int) sorts[i].size());
+      log.info("Indexed {}: {} records, {} runs on disk in {} ms", p, sorts[i].size(), sorts[i].runCount(),
+          (System.nanoTime() - start) / 1000000);
+    }
+    output = new MergeOutput(inputs, headers, mergedOutput, SAMFileHeader.SortOrder.unsorted);
+    output.setCompression(writerPool, compressionLevel, deflaterFactory);
+    output.setPipeline(batchSize, queueCapacity);
+    output.setProgram(commandLine, contigPrefixes);
+    output.open();
+    if (decisionLogFile != null) {
+      decisions = new DecisionLog(decisionLogFile, inputs, writerPool);
+      decisions.setQueueCapacity(queueCapacity);
+      decisions.open();
+    }
+  }
+
+  /**
+   * Decide the winners, then stream each input again, keeping the records of
+   * the reads it won.
+   *
+   * @return the number of distinct reads seen across all inputs
+   * @throws IOException if an input or a run can't be read
+   */
+  long merge() throws IOException {
+    decide();
+    for (int i = 0; i < inputs.size(); i++) {
+      PipelinedReader rdr = new PipelinedReader(new ParallelBamReader(inputs.get(i), pool, readAhead), batchSize,
+          queueCapacity);
+      try {
+        RawBamRecord rec = new RawBamRecord();
+        BitSet won = winners[i];
+        int ordinal = 0;
+        while (rdr.next(rec)) {
+          if (won.get(ordinal++)) {
+            output.write(i, rec);
+          }
+        }
+      } finally {
+        rdr.close();
+      }
+      sorts[i].close();
+    }
+    return readsMerged;
+  }
+
+  /**
+   * Merge the sorted entries of all inputs by name, and mark the records of
+   * each read in the input whose entries score best. As in StreamingMerge, a
+   * read's score in an input is its best hit, or with a pair-aware policy the
+   * combination of each mate's best; ties go to the earliest input.
+   *
+   * @throws IOException if a run can't be read
+   */
+  protected void decide() throws IOException {
+    final ExternalNameSort[] s = sorts;
+    PriorityQueue<Integer> queue = new PriorityQueue<Integer>(s.length + 1, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int c = ReadNameOrder.NATURAL.compare(s[a].key(), s[a].name(), 0, s[a].nameLength(), s[b].key(), s[b].name(),
+            0, s[b].nameLength());
+        return c != 0 ? c : Integer.compare(a, b);
+      }
+    });
+    boolean[] pending = new boolean[s.length];
+    for (int i = 0; i < s.length; i++) {
+      pending[i] = s[i].next();
+      if (pending[i]) {
+        queue.add(i);
+      }
+    }
+    int[] active = new int[s.length];
+    int[] tied = new int[s.length];
+    int[] scores = new int[s.length];
+    Arrays.fill(scores, DecisionLog.ABSENT);
+    long[][] ordinals = new long[s.length][16];
+    int[] counts = new int[s.length];
+    byte[] name = new byte[256];
+    TemplateScore template = new TemplateScore(scoring);
+    while (!queue.isEmpty()) {
+      int first = queue.poll();
+      int n = 0;
+      active[n++] = first;
+      long key = s[first].key();
+      int len = s[first].nameLength();
+      if (len > name.length) {
+        name = new byte[len];
+      }
+      System.arraycopy(s[first].name(), 0, name, 0, len);
+      while (!queue.isEmpty() && ReadNameCodec.sameName(key, name, 0, len, s[queue.peek()].key(),
+          s[queue.peek()].name(), 0, s[queue.peek()].nameLength())) {
+        active[n++] = queue.poll();
+      }
+      // the queue yields equal names in input order, so the inputs tied are
+      // in order
+      int t = 0;
+      int best = Integer.MIN_VALUE;
+      for (int j = 0; j < n; j++) {
+        int i = active[j];
+        template.clear();
+        counts[i] = 0;
+        do {
+          long o = s[i].offset();
+          template.add(s[i].score(), (o & 1) != 0);
+          if (counts[i] == ordinals[i].length) {
+            ordinals[i] = Arrays.copyOf(ordinals[i], counts[i] << 1);
+          }
+          ordinals[i][counts[i]++] = o >>> 1;
+          pending[i] = s[i].next();
+        } while (pending[i] && ReadNameCodec.sameName(key, name, 0, len, s[i].key(), s[i].name(), 0,
+            s[i].nameLength()));
+        int score = template.score();
+        scores[i] = score;
+        if (t == 0 || score > best) {
+          best = score;
+          t = 0;
+          tied[t++] = i;
+        } else if (score == best) {
+          tied[t++] = i;
+        }
+      }
+      int winner = tied[0];
+      if (t == 1) {
+        win(winner, ordinals, counts);
+      } else {
+        metrics.tied(ties.policy());
+        winner = ties.choose(tied, t, name, 0, len);
+        if (winner == TieBreaker.KEEP_ALL) {
+          for (int k = 0; k < t; k++) {
+            win(tied[k], ordinals, counts);
+          }
+        } else if (winner != TieBreaker.DROP) {
+          win(winner, ordinals, counts);
+        }
+      }
+      if (decisions != null) {
+        decisions.record(name, 0, len, scores, best, t, winner);
+      }
+      for (int j = 0; j < n; j++) {
+        scores[active[j]] = DecisionLog.ABSENT;
+        if (pending[active[j]]) {
+          queue.add(active[j]);
+        }
+      }
+      readsMerged++;
+      metrics.decided();
+    }
+  }
+
+  private void win(int winner, long[][] ordinals, int[] counts) {
+    for (int k = 0; k < counts[winner]; k++) {
+      winners[winner].set((int) ordinals[winner][k]);
+    }
+  }
+
+  /**
+   * Return the number of records written to all outputs.
+   *
+   * @return records written
+   */
+  long recordsWritten() {
+    return output.recordsWritten();
+  }
+
+  public void close() throws IOException {
+    if (decisions != null) {
+      decisions.close();
+      decisions = null;
+    }
+    if (output != null) {
+      output.close();
+      output = null;
+    }
+    if (sorts != null) {
+      for (ExternalNameSort s : sorts) {
+        if (s != null) {
+          s.close();
+        }
+      }
+      sorts = null;
+    }
+    winners = null;
+  }
+}
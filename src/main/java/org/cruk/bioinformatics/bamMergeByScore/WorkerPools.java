@@ -0,0 +1,119 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools for the CPU-bound parts of the work (inflating and deflating
+ * BGZF blocks). Pools are shared by all the files of a merge rather than
+ * created per file, so that the number of busy threads is bounded by the
+ * thread count however many inputs and outputs there are. The threads are
+ * daemons, so a pool that isn't shut down won't keep the JVM alive.
+ *
+ * The threads that read and write the files themselves (see PipelinedReader
+ * and PipelinedWriter) spend their time blocked on I/O, or waiting for the
+ * pool, so they are virtual threads (see startIoThread()): a merge of a dozen
+ * inputs into a dozen "--split" outputs then runs its two dozen I/O threads on
+ * a few carrier threads, rather than a platform thread and stack per file.
+ */
+final class WorkerPools {
+
+  /**
+   * The system property that sizes the JDK's pool of carrier threads for
+   * virtual threads; read when the first virtual thread starts.
+   */
+  static final String CARRIER_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+  static final int DEFAULT_IO_CARRIERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  private static ExecutorService defaultPool = null;
+
+  private WorkerPools() {
+  }
+
+  /**
+   * Create a fixed-size pool of daemon threads.
+   *
+   * @param threads the number of threads
+   * @param name prefix for the thread names
+   * @return the pool
+   */
+  static ExecutorService newPool(int threads, final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Return a pool with one thread per available processor, created on first
+   * use and shared by everything that isn't given a pool explicitly.
+   *
+   * @return the default pool
+   */
+  static synchronized ExecutorService defaultPool() {
+    if (defaultPool == null) {
+      defaultPool = newPool(Runtime.getRuntime().availableProcessors(), "bgzf");
+    }
+    return defaultPool;
+  }
+
+  /**
+   * Start a virtual thread for blocking file I/O.
+   *
+   * @param name the thread's name
+   * @param task what the thread is to do
+   * @return the thread, started
+   */
+  static Thread startIoThread(String name, Runnable task) {
+    return Thread.ofVirtual().name(name).start(task);
+  }
+
+  /**
+   * Set the number of carrier threads that virtual threads run on, unless it
+   * was set on the command line (-Djdk.virtualThreadScheduler.parallelism).
+   * Only effective before the first virtual thread starts.
+   *
+   * @param carriers the number of carrier threads
+   */
+  static void setIoCarriers(int carriers) {
+    if (System.getProperty(CARRIER_PROPERTY) == null) {
+      System.setProperty(CARRIER_PROPERTY, Integer.toString(carriers));
+    }
+  }
+
+  /**
+   * Wait for a task's result, rethrowing whatever it threw.
+   *
+   * @param f the task
+   * @param what description of the task, for the interrupted message
+   * @return the task's result
+   * @throws IOException if the task threw one, or the wait was interrupted
+   */
+  static <T> T await(Future<T> f, String what) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while " + what);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class AlignerScoringTest {
+
+  protected SAMFileHeader header() {
+    SAMFileHeader header = new SAMFileHeader();
+    header.addSequence(new SAMSequenceRecord("chr1", 100000));
+    return header;
+  }
+
+  /**
+   * Make a raw record with the given flags and AS.
+   */
+  protected RawBamRecord hit(int flags, int as) {
+    SAMFileHeader header = header();
+    SAMRecord rec = new SAMRecord(header);
+    rec.setReadName("r1");
+    rec.setFlags(flags);
+    rec.setReferenceName("chr1");
+    rec.setAlignmentStart(1);
+    rec.setCigarString("4M");
+    rec.setReadString("ACGT");
+    rec.setBaseQualityString("IIII");
+    rec.setAttribute("AS", as);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    BAMRecordCodec codec = new BAMRecordCodec(header);
+    codec.setOutputStream(os);
+    codec.encode(rec);
+    byte[] b = os.toByteArray();
+    RawBamRecord raw = new RawBamRecord();
+    raw.ensureCapacity(b.length);
+    System.arraycopy(b, 0, raw.buffer(), 0, b.length);
+    raw.setLength(b.length);
+    return raw;
+  }
+
+  protected int templateScore(ScoringPolicy p, RawBamRecord... recs) {
+    TemplateScore t = new TemplateScore(p);
+    for (RawBamRecord r : recs) {
+      t.add(p.score(r), r.isSecondOfPair());
+    }
+    return t.score();
+  }
+
+  @Test
+  public void testPresets() {
+    assertSame(AlignerScoring.BWA_MEM, AlignerScoring.forAligner("BWA-MEM"));
+    assertSame(AlignerScoring.STAR, AlignerScoring.forAligner("star"));
+    assertTrue(AlignerScoring.BOWTIE2.pairAware());
+    assertTrue(AlignerScoring.MINIMAP2.pairAware());
+    assertFalse(AlignerScoring.STAR.pairAware());
+    assertFalse(AlignerScoring.DEFAULT.pairAware());
+    assertEquals(ScoreModel.NM, AlignerScoring.BWA_MEM.withModel(ScoreModel.NM).model());
+    assertTrue(AlignerScoring.STAR.withPairAware(true).pairAware());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownAligner() {
+    AlignerScoring.forAligner("zork");
+  }
+
+  @Test
+  public void testCombine() {
+    ScoringPolicy p = AlignerScoring.BOWTIE2;
+    assertEquals(-7, p.combine(-3, -4));
+    assertEquals(-3, p.combine(-3, ScoringPolicy.UNSCORED));
+    assertEquals(-4, p.combine(ScoringPolicy.UNSCORED, -4));
+    assertEquals(ScoringPolicy.UNSCORED, p.combine(ScoringPolicy.UNSCORED, ScoringPolicy.UNSCORED));
+    assertTrue(ScoringPolicy.UNSCORED < -1000000);
+    assertTrue(ScoringPolicy.UNSCORED > RandomAccessMerge.MISSING);
+  }
+
+  @Test
+  public void testTemplateScore() {
+    // two hits for mate 1, one for mate 2
+    RawBamRecord[] g = { hit(0x41, 30), hit(0x141, 40), hit(0x81, 25) };
+    assertEquals(65, templateScore(AlignerScoring.BWA_MEM, g));
+    assertEquals(40, templateScore(AlignerScoring.STAR, g));
+    assertEquals(40, templateScore(AlignerScoring.DEFAULT, g));
+
+    // unpaired hits are never summed
+    assertEquals(12, templateScore(AlignerScoring.BWA_MEM, hit(0, 10), hit(0x100, 12)));
+    assertEquals(ScoringPolicy.UNSCORED, templateScore(AlignerScoring.BWA_MEM));
+  }
+
+  /**
+   * A ReadGroup scores its records as they are added, through a TemplateScore,
+   * and hands its records back for reuse once cleared.
+   */
+  @Test
+  public void testReadGroup() {
+    RawBamRecord[] hits = { hit(0x41, 30), hit(0x141, 40), hit(0x81, 25) };
+    ReadGroup g = new ReadGroup(AlignerScoring.BWA_MEM);
+    List<RawBamRecord> returned = new ArrayList<RawBamRecord>();
+    for (RawBamRecord h : hits) {
+      returned.add(g.swap(h));
+    }
+    assertEquals(3, g.size());
+    assertSame(hits[1], g.get(1));
+    assertEquals(65, g.score());
+    g.clear();
+    assertEquals(ScoringPolicy.UNSCORED, g.score());
+    assertSame(hits[0], g.swap(hits[2]));
+    assertEquals(25, g.score());
+    g = new ReadGroup(AlignerScoring.STAR);
+    for (RawBamRecord h : hits) {
+      g.swap(h);
+    }
+    assertEquals(40, g.score());
+  }
+}
@@ -0,0 +1,66 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+/**
+ * Small BAM files for merge tests.
+ */
+public class BamFixtures {
+
+  /**
+   * Write a small BAM file. Each read is given as "name:score"; a read may be
+   * repeated to make a group of hits. A name ending "/1" or "/2" makes a hit of
+   * the first or second mate of a pair (whose mate is unmapped, so that the
+   * hit needs no mate position), named without the suffix.
+   */
+  public static Path writeBam(Path p, String contig, SAMFileHeader.SortOrder so, String... reads) throws IOException {
+    SAMFileHeader header = new SAMFileHeader();
+    header.setSortOrder(so);
+    header.addSequence(new SAMSequenceRecord(contig, 100000));
+    SAMFileWriter w = new SAMFileWriterFactory().makeBAMWriter(header, true, p);
+    int pos = 1;
+    for (String read : reads) {
+      int colon = read.lastIndexOf(':');
+      SAMRecord rec = new SAMRecord(header);
+      String name = read.substring(0, colon);
+      if (name.endsWith("/1") || name.endsWith("/2")) {
+        rec.setFlags(name.endsWith("/1") ? 0x49 : 0x89);
+        name = name.substring(0, name.length() - 2);
+      }
+      rec.setReadName(name);
+      rec.setReferenceName(contig);
+      rec.setAlignmentStart(pos++);
+      rec.setCigarString("4M");
+      rec.setReadString("ACGT");
+      rec.setBaseQualityString("IIII");
+      rec.setAttribute("AS", Integer.valueOf(read.substring(colon + 1)));
+      w.addAlignment(rec);
+    }
+    w.close();
+    return p;
+  }
+
+  /**
+   * Read a BAM file back as "name:contig:score" strings.
+   */
+  public static List<String> readBack(Path p) throws IOException {
+    List<String> out = new ArrayList<String>();
+    SamReader r = SamReaderFactory.makeDefault().open(p);
+    for (SAMRecord rec : r) {
+      out.add(rec.getReadName() + ":" + rec.getReferenceName() + ":" + rec.getIntegerAttribute("AS"));
+    }
+    r.close();
+    return out;
+  }
+}
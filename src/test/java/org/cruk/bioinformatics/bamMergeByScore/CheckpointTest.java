@@ -0,0 +1,153 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class CheckpointTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected List<Path> generate(long reads) throws IOException {
+    SyntheticBamGenerator g = new SyntheticBamGenerator();
+    g.outputDir = tmp.getRoot().toPath();
+    g.reads = reads;
+    g.overlap = 0.7;
+    g.paired = true;
+    return g.generate();
+  }
+
+  protected List<String> records(Path p) throws IOException {
+    List<String> out = new ArrayList<String>();
+    SamReader r = SamReaderFactory.makeDefault().open(p);
+    for (SAMRecord rec : r) {
+      out.add(rec.getSAMString());
+    }
+    r.close();
+    return out;
+  }
+
+  protected List<String> decisions(Path p) throws IOException {
+    List<String> out = new ArrayList<String>();
+    DecisionLogReader r = new DecisionLogReader(p);
+    while (r.next()) {
+      out.add(r.name() + ":" + r.winner());
+    }
+    r.close();
+    return out;
+  }
+
+  /**
+   * A merge that stops after its second checkpoint, is closed (which writes
+   * out whatever it had queued, past the checkpoint), and is then resumed,
+   * writes the same records and decisions as one that ran straight through,
+   * with and without a pipeline.
+   */
+  @Test
+  public void testResume() throws IOException {
+    List<Path> inputs = generate(20000);
+    Path whole = tmp.getRoot().toPath().resolve("whole.bam");
+    StreamingMerge m = new StreamingMerge(inputs, whole);
+    m.setDecisionLog(tmp.getRoot().toPath().resolve("whole.bmdl"));
+    m.open();
+    long reads = m.merge();
+    m.close();
+    List<String> expected = records(whole);
+    List<String> expectedDecisions = decisions(tmp.getRoot().toPath().resolve("whole.bmdl"));
+
+    for (int batchSize : new int[] { RecordBatch.DEFAULT_SIZE, 0 }) {
+      Path out = tmp.getRoot().toPath().resolve("resumed" + batchSize + ".bam");
+      Path log = tmp.getRoot().toPath().resolve("resumed" + batchSize + ".bmdl");
+      Path cp = tmp.getRoot().toPath().resolve("resumed" + batchSize + ".checkpoint");
+      StreamingMerge broken = new StreamingMerge(inputs, out) {
+        int checkpoints = 0;
+
+        protected void checkpoint(RawBamRecord last) throws IOException {
+          super.checkpoint(last);
+          if (++checkpoints == 2) {
+            throw new IOException("node lost");
+          }
+        }
+      };
+      broken.setPipeline(batchSize, 2);
+      broken.setDecisionLog(log);
+      broken.setCheckpoint(cp, 0);
+      broken.open();
+      try {
+        broken.merge();
+        fail("merge wasn't interrupted");
+      } catch (IOException ioe) {
+        assertEquals("node lost", ioe.getMessage());
+      }
+      broken.close();
+      assertTrue(Files.exists(cp));
+      Checkpoint c = Checkpoint.read(cp);
+      assertEquals(2 * StreamingMerge.CHECKPOINT_CHECK, c.reads);
+      assertTrue(Files.size(out) > c.lengths[0]);
+
+      StreamingMerge resumed = new StreamingMerge(inputs, out);
+      resumed.setPipeline(batchSize, 2);
+      resumed.setDecisionLog(log);
+      resumed.setCheckpoint(cp, 3600);
+      resumed.setResume(true);
+      resumed.open();
+      assertEquals(reads, resumed.merge());
+      resumed.close();
+      assertFalse(Files.exists(cp));
+      assertEquals(expected, records(out));
+      assertEquals(expectedDecisions, decisions(log));
+    }
+  }
+
+  @Test
+  public void testCheckpointFile() throws IOException {
+    Path a = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("a.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:5");
+    Path b = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("b.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:7");
+    Path file = tmp.getRoot().toPath().resolve("merge.checkpoint");
+    new Checkpoint(ReadNameOrder.NATURAL, "a=1".getBytes(), "b:2 ".getBytes(), 12, Arrays.asList(a, b),
+        new long[] { 1L << 16, 5 }, new long[] { 1234 }).write(file);
+    Checkpoint c = Checkpoint.read(file);
+    assertEquals(ReadNameOrder.NATURAL, c.order);
+    assertEquals("a=1", c.lastName());
+    assertArrayEquals("b:2 ".getBytes(), c.next);
+    assertEquals(12, c.reads);
+    assertArrayEquals(new long[] { 1L << 16, 5 }, c.offsets);
+    assertArrayEquals(new long[] { 1234 }, c.lengths);
+    assertEquals(-1, c.decisionLogLength);
+    c.check(Arrays.asList(a, b));
+    try {
+      c.check(Arrays.asList(b, a));
+      fail("checkpoint applied to other inputs");
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage().contains("a.bam"));
+    }
+    Files.write(file, "order=NATURAL\n".getBytes());
+    try {
+      Checkpoint.read(file);
+      fail("read an incomplete checkpoint");
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage().contains("not a valid checkpoint"));
+    }
+  }
+}
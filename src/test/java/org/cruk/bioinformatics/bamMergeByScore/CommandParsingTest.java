@@ -1,5 +1,7 @@
 package org.cruk.bioinformatics.bamMergeByScore;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.hamcrest.CoreMatchers;
@@ -46,6 +48,115 @@ public class CommandParsingTest {
     assertTrue(true);
   }
 
+  @Test
+  public void testNumericOptions() {
+    String[] args = { "--split", "--primary", "1", "--threads", "3", "--compression-level", "1", "--progress", "5",
+        "--batch-size", "64", "--queue-capacity", "4", "--io-carriers", "2", "alpha", "bravo" };
+    int rc = merger.parseCmdLine(args);
+    assertEquals(0, rc);
+    assertEquals(1, merger.primary);
+    assertEquals(3, merger.threads);
+    assertEquals(1, merger.compressionLevel);
+    assertEquals(5, merger.progressSeconds);
+    assertEquals(64, merger.batchSize);
+    assertEquals(4, merger.queueCapacity);
+    assertEquals(2, merger.ioCarriers);
+  }
+
+  @Test
+  public void testThreadOptions() {
+    String[] args = { "--split", "-t", "2", "--read-ahead", "4", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals(2, merger.threads);
+    assertEquals(4, merger.readAhead);
+  }
+
+  @Test
+  public void testCompressionLevel() {
+    String[] args = { "--split", "-l", "1", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals(1, merger.compressionLevel);
+    String[] range = { "--split", "-l", "10", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(range));
+  }
+
+  @Test
+  public void testParseMemory() {
+    assertEquals(512L << 20, BamMergeByScore.parseMemory("512m"));
+    assertEquals(4L << 30, BamMergeByScore.parseMemory("4G"));
+    assertEquals(1000, BamMergeByScore.parseMemory("1000"));
+    String[] args = { "--split", "--sort-if-needed", "--random-access", "alpha" };
+    assertEquals(-1, merger.parseCmdLine(args));
+    String[] twoPass = { "--split", "--two-pass", "--random-access", "alpha" };
+    assertEquals(-1, merger.parseCmdLine(twoPass));
+    String[] cache = { "--split", "--index-cache", "alpha" };
+    assertEquals(-1, merger.parseCmdLine(cache));
+    String[] shards = { "--split", "--shards", "4", "--two-pass", "alpha" };
+    assertEquals(-1, merger.parseCmdLine(shards));
+  }
+
+  @Test
+  public void testTieOptions() {
+    String[] args = { "--split", "--tie-policy", "Keep-All", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals(TiePolicy.KEEP_ALL, merger.ties.policy());
+    String[] hash = { "--split", "--seed", "42", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(hash));
+    assertEquals(TiePolicy.HASH_RANDOM, merger.ties.policy());
+    assertEquals(42, merger.ties.seed);
+    String[] primary = { "--split", "--primary", "2", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(primary));
+    assertEquals(TiePolicy.PRIMARY_FILE, merger.ties.policy());
+    assertEquals(1, merger.ties.primary);
+    String[] conflict = { "--split", "--primary", "2", "--tie-policy", "drop-ambiguous", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(conflict));
+    String[] range = { "--split", "--primary", "3", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(range));
+    String[] unknown = { "--split", "--tie-policy", "coin-toss", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(unknown));
+  }
+
+  @Test
+  public void testDecisionLog() {
+    String[] args = { "--split", "--decision-log", "decisions.bmdl", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals("decisions.bmdl", merger.decisionLog);
+    String[] random = { "--split", "--random-access", "--decision-log", "decisions.bmdl", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(random));
+  }
+
+  @Test
+  public void testCheckpointOptions() {
+    String[] args = { "--split", "--checkpoint", "merge.checkpoint", "--checkpoint-interval", "60", "--resume",
+        "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals("merge.checkpoint", merger.checkpoint);
+    assertEquals(60, merger.checkpointSeconds);
+    assertTrue(merger.resume);
+    String[] alone = { "--split", "--resume", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(alone));
+    String[][] refused = { { "--random-access" }, { "--two-pass" }, { "--sort-if-needed" }, { "--shards", "4" } };
+    for (String[] mode : refused) {
+      List<String> other = new ArrayList<String>(Arrays.asList("--split", "--checkpoint", "merge.checkpoint"));
+      other.addAll(Arrays.asList(mode));
+      other.addAll(Arrays.asList("alpha", "bravo"));
+      assertEquals(mode[0], -1, merger.parseCmdLine(other.toArray(new String[other.size()])));
+      assertTrue(merger.options.getOption("checkpoint").getDescription().contains(mode[0]));
+    }
+  }
+
+  @Test
+  public void testContigPrefixes() {
+    String[] args = { "--output", "zork.bam", "--contig-prefixes", "hs_,mm_", "alpha", "bravo" };
+    assertEquals(0, merger.parseCmdLine(args));
+    assertEquals(Arrays.asList("hs_", "mm_"), merger.contigPrefixes);
+    assertEquals("bamMergeByScore --output zork.bam --contig-prefixes hs_,mm_ alpha bravo", merger.commandLine);
+    String[] split = { "--split", "--contig-prefixes", "hs_,mm_", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(split));
+    String[] count = { "--output", "zork.bam", "--contig-prefixes", "hs_", "alpha", "bravo" };
+    assertEquals(-1, merger.parseCmdLine(count));
+  }
+
   @Test
   public void testBasicCommand() {
     String[] args = { "--output", "zork.bam", "alpha", "bravo" };
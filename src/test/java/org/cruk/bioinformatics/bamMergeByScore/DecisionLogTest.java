@@ -0,0 +1,119 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+
+public class DecisionLogTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected final List<Path> inputs = Arrays.asList(Paths.get("human.bam"), Paths.get("mouse.bam"),
+      Paths.get("rat.bam"));
+
+  protected void record(DecisionLog log, String name, int best, int tied, int winner, int... scores) {
+    byte[] b = name.getBytes();
+    log.record(b, 0, b.length, scores, best, tied, winner);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Path file = tmp.getRoot().toPath().resolve("decisions.bmdl");
+    DecisionLog log = new DecisionLog(file, inputs, null);
+    log.open();
+    int a = DecisionLog.ABSENT;
+    int u = ScoringPolicy.UNSCORED;
+    record(log, "won", 30, 1, 0, 30, 20, a);
+    record(log, "tied", 25, 2, 2, 25, 10, 25);
+    record(log, "dropped", 25, 3, TieBreaker.DROP, 25, 25, 25);
+    record(log, "kept", 25, 2, TieBreaker.KEEP_ALL, 25, a, 25);
+    record(log, "unmapped", u, 2, 1, a, u, u);
+    log.close();
+    assertEquals(5, log.entries());
+
+    DecisionLogReader r = new DecisionLogReader(file);
+    assertEquals(Arrays.asList("human.bam", "mouse.bam", "rat.bam"), r.inputs());
+    String[] names = { "won", "tied", "dropped", "kept", "unmapped" };
+    DecisionLog.Outcome[] outcomes = { DecisionLog.Outcome.WON, DecisionLog.Outcome.TIED,
+        DecisionLog.Outcome.DROPPED, DecisionLog.Outcome.TIED, DecisionLog.Outcome.UNMAPPED };
+    int[] winners = { 0, 2, TieBreaker.DROP, TieBreaker.KEEP_ALL, 1 };
+    for (int i = 0; i < names.length; i++) {
+      assertTrue(r.next());
+      assertEquals(names[i], r.name());
+      assertEquals(outcomes[i], r.outcome());
+      assertEquals(winners[i], r.winner());
+    }
+    assertEquals(a, r.score(0));
+    assertEquals(u, r.score(1));
+    assertFalse(r.next());
+    r.close();
+
+    DecisionLogReader.Summary s = DecisionLogReader.summarise(file, 10);
+    assertEquals(5, s.reads);
+    assertEquals(2, s.count(DecisionLog.Outcome.TIED));
+    assertEquals(Arrays.asList(2L, 1L, 2L), Arrays.asList(s.kept[0], s.kept[1], s.kept[2]));
+    assertEquals(2, s.difference(0, 1, 15));
+    assertEquals(1, s.difference(0, 1, 0));
+    assertEquals(3, s.difference(0, 2, 0));
+    assertEquals(1, s.difference(1, 2, -10));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    s.print(new PrintStream(bytes, true));
+    String text = bytes.toString();
+    assertTrue(text.startsWith("reads\t5\nwon\t1\ntied\t2\ndropped\t1\nunmapped\t1\n"));
+    assertTrue(text.contains("score in human.bam less score in mouse.bam\t3 reads\n0\t1\n>=10\t2\n"));
+  }
+
+  /**
+   * Many more entries than fit in the chunks queued between the threads: the
+   * merging side must wait for the writer, and nothing may be lost.
+   */
+  @Test
+  public void testManyChunks() throws IOException {
+    Path file = tmp.getRoot().toPath().resolve("many.bmdl");
+    DecisionLog log = new DecisionLog(file, inputs, WorkerPools.defaultPool());
+    log.setQueueCapacity(1);
+    log.open();
+    int n = 200000;
+    for (int i = 0; i < n; i++) {
+      record(log, "read" + i, i % 50, 1, i % 3, i % 50, i % 7, DecisionLog.ABSENT);
+    }
+    log.close();
+    DecisionLogReader r = new DecisionLogReader(file);
+    for (int i = 0; i < n; i++) {
+      assertTrue(r.next());
+      assertEquals("read" + i, r.name());
+      assertEquals(i % 3, r.winner());
+      assertEquals(i % 7, r.score(1));
+    }
+    assertFalse(r.next());
+    r.close();
+  }
+
+  @Test
+  public void testNotALog() throws IOException {
+    Path bam = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("a.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10");
+    try {
+      new DecisionLogReader(bam);
+      fail("read a BAM file as a decision log");
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage().contains("not a decision log"));
+    }
+  }
+}
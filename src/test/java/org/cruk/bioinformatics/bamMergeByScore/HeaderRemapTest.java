@@ -0,0 +1,146 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class HeaderRemapTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected SAMFileHeader header(String sample, String... contigs) {
+    SAMFileHeader h = new SAMFileHeader();
+    h.setSortOrder(SAMFileHeader.SortOrder.queryname);
+    for (String c : contigs) {
+      h.addSequence(new SAMSequenceRecord(c, 1000));
+    }
+    SAMReadGroupRecord rg = new SAMReadGroupRecord("rg1");
+    rg.setSample(sample);
+    h.addReadGroup(rg);
+    return h;
+  }
+
+  /**
+   * Write one read, with its mate on the last contig, and read it back raw.
+   */
+  protected RawBamRecord rawRecord(SAMFileHeader h, String contig) throws IOException {
+    Path p = tmp.newFile().toPath();
+    SAMFileWriter w = new SAMFileWriterFactory().makeBAMWriter(h, true, p);
+    SAMRecord rec = new SAMRecord(h);
+    rec.setReadName("r1");
+    rec.setReferenceName(contig);
+    rec.setAlignmentStart(10);
+    rec.setReadPairedFlag(true);
+    rec.setMateReferenceName(h.getSequence(h.getSequenceDictionary().size() - 1).getSequenceName());
+    rec.setMateAlignmentStart(20);
+    rec.setCigarString("4M");
+    rec.setReadString("ACGT");
+    rec.setBaseQualityString("IIII");
+    rec.setAttribute("RG", "rg1");
+    rec.setAttribute("AS", 7);
+    w.addAlignment(rec);
+    w.close();
+    ParallelBamReader rdr = new ParallelBamReader(p);
+    RawBamRecord raw = new RawBamRecord();
+    assertTrue(rdr.next(raw));
+    rdr.close();
+    return raw;
+  }
+
+  @Test
+  public void testRemap() throws IOException {
+    SAMFileHeader human = header("h", "chr1", "chr2");
+    SAMFileHeader mouse = header("m", "mm1", "mm2", "mm3");
+    List<SAMFileHeader> headers = Arrays.asList(human, mouse);
+    HeaderMerger merger = new HeaderMerger(headers, SAMFileHeader.SortOrder.queryname);
+    merger.merge();
+    HeaderRemap remap = new HeaderRemap(merger, headers);
+    SAMFileHeader merged = remap.getMergedHeader();
+    assertEquals("rg1.2", merger.renamedReadGroups(1).get("rg1"));
+    assertTrue(merger.renamedReadGroups(0).isEmpty());
+
+    RawBamRecord raw = rawRecord(mouse, "mm2");
+    remap.apply(1, raw);
+    SAMRecord rec = raw.toSAMRecord(merged);
+    assertEquals("mm2", rec.getReferenceName());
+    assertEquals("mm3", rec.getMateReferenceName());
+    assertEquals(10, rec.getAlignmentStart());
+    assertEquals(Integer.valueOf(7), rec.getIntegerAttribute("AS"));
+    assertEquals("rg1.2", rec.getStringAttribute("RG"));
+    assertEquals(raw.length(), raw.getInt(0) + 4);
+
+    raw = rawRecord(human, "chr2");
+    remap.apply(0, raw);
+    rec = raw.toSAMRecord(merged);
+    assertEquals("chr2", rec.getReferenceName());
+    assertEquals("rg1", rec.getStringAttribute("RG"));
+  }
+
+  /**
+   * Contigs shared by name and length are merged; a clash of lengths renames
+   * the later input's contig after its label, and prefixes rename them all.
+   * Program chains are renamed with their IDs, and the merge adds its own.
+   */
+  @Test
+  public void testMergeHeaders() {
+    SAMFileHeader human = header("h", "chr1", "chrM");
+    human.setAttribute("SS", "queryname:natural");
+    SAMProgramRecord bwa = new SAMProgramRecord("bwa");
+    bwa.setCommandLine("bwa mem hg38.fa");
+    human.addProgramRecord(bwa);
+    human.addComment("from human");
+    SAMFileHeader mouse = header("m", "chr1", "chrM");
+    mouse.setAttribute("SS", "queryname:natural");
+    mouse.getSequence("chr1").setSequenceLength(2000);
+    bwa = new SAMProgramRecord("bwa");
+    bwa.setCommandLine("bwa mem mm39.fa");
+    mouse.addProgramRecord(bwa);
+    SAMProgramRecord dedup = new SAMProgramRecord("dedup");
+    dedup.setPreviousProgramGroupId("bwa");
+    mouse.addProgramRecord(dedup);
+    mouse.addComment("from human");
+    List<SAMFileHeader> headers = Arrays.asList(human, mouse);
+
+    HeaderMerger merger = new HeaderMerger(headers, SAMFileHeader.SortOrder.queryname);
+    merger.setLabels(Arrays.asList("human", "mouse"));
+    merger.setCommandLine("bamMergeByScore -o x.bam human.bam mouse.bam");
+    SAMFileHeader merged = merger.merge();
+    assertEquals(3, merged.getSequenceDictionary().size());
+    assertEquals("mouse_chr1", merged.getSequence(2).getSequenceName());
+    assertArrayEquals(new int[] { 0, 1 }, merger.referenceMap(0));
+    assertArrayEquals(new int[] { 2, 1 }, merger.referenceMap(1));
+    assertEquals("queryname:natural", merged.getAttribute("SS"));
+    assertEquals(1, merged.getComments().size());
+    assertEquals("bwa.2", merger.renamedPrograms(1).get("bwa"));
+    assertEquals("bwa.2", merged.getProgramRecord("dedup").getPreviousProgramGroupId());
+    SAMProgramRecord mine = merged.getProgramRecord(HeaderMerger.PROGRAM_NAME);
+    assertEquals("bamMergeByScore -o x.bam human.bam mouse.bam", mine.getCommandLine());
+    assertEquals("bwa", mine.getPreviousProgramGroupId());
+
+    merger = new HeaderMerger(headers, SAMFileHeader.SortOrder.unsorted);
+    merger.setContigPrefixes(Arrays.asList("hs_", "mm_"));
+    merged = merger.merge();
+    assertEquals(4, merged.getSequenceDictionary().size());
+    assertEquals("mm_chrM", merged.getSequence(3).getSequenceName());
+    assertArrayEquals(new int[] { 2, 3 }, merger.referenceMap(1));
+    assertEquals(null, merged.getAttribute("SS"));
+  }
+}
@@ -0,0 +1,63 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+
+public class MergeMetricsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testMergeMetrics() throws IOException, JMException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "c:5");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7");
+    Path json = tmp.getRoot().toPath().resolve("metrics.json");
+    String[] args = { "--split", "--metrics", json.toString(), "--threads", "2", human.toString(),
+        mouse.toString() };
+    assertEquals(0, new BamMergeByScore().run(args));
+
+    MergeMetrics m = MergeMetrics.global();
+    assertEquals(6, m.getRecordsRead());
+    assertEquals(Long.valueOf(3), m.getRecordsReadByInput().get(human.toAbsolutePath().toString()));
+    assertEquals(4, m.getDecisions());
+    assertEquals(4, m.getRecordsWritten());
+    assertTrue(m.getBytesInflated() > 0);
+    assertTrue(m.getBytesDeflated() > 0);
+    assertEquals(0, m.getInflateQueueDepth());
+    assertEquals(0, m.getDeflateQueueDepth());
+    // the pipeline is on by default, so batches pass through both rings
+    assertTrue(m.getPeakDecodeQueueDepth() > 0);
+    assertTrue(m.getPeakEncodeQueueDepth() > 0);
+    assertEquals(0, m.getDecodeQueueDepth());
+    assertEquals(0, m.getEncodeQueueDepth());
+
+    String text = new String(Files.readAllBytes(json), StandardCharsets.UTF_8);
+    assertTrue(text, text.contains(human.toAbsolutePath() + "\": 3"));
+    assertTrue(text, text.contains("\"decisions\": 4"));
+    assertTrue(text, text.contains("\"peakHeapBytes\": "));
+    assertTrue(text, text.contains("\"decode\": {\n    \"mergeWaitMillis\": "));
+    assertTrue(text, text.contains("\"encode\": {\n    \"mergeWaitMillis\": "));
+
+    Object decisions = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(MergeMetrics.OBJECT_NAME),
+        "Decisions");
+    assertEquals(Long.valueOf(4), decisions);
+  }
+}
@@ -0,0 +1,58 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.StringUtil;
+
+public class NameFilterTest {
+
+  private static long hash(String name) {
+    byte[] b = StringUtil.stringToBytes(name);
+    return NameFilter.hash(b, 0, b.length);
+  }
+
+  @Test
+  public void testFalsePositives() {
+    int n = 100000;
+    NameFilter f = new NameFilter(n);
+    for (int i = 0; i < n; i++) {
+      f.add(hash("K00252:335:HWMMGBBXX:2:1101:" + i + ":2545"));
+    }
+    for (int i = 0; i < n; i++) {
+      assertTrue(f.mightContain(hash("K00252:335:HWMMGBBXX:2:1101:" + i + ":2545")));
+    }
+    int positives = 0;
+    for (int i = 0; i < n; i++) {
+      if (f.mightContain(hash("K00252:335:HWMMGBBXX:3:1101:" + i + ":2545"))) {
+        positives++;
+      }
+    }
+    assertTrue("false positives: " + positives, positives < n * 3 / 100);
+    assertTrue(f.memory() <= n * NameFilter.BITS_PER_NAME / 8 + 64);
+  }
+
+  /**
+   * A filter made from an index's tables holds every read, packed or not.
+   */
+  @Test
+  public void testFromIndex() throws IOException {
+    SampleDataOffHeap data = new SampleDataOffHeap(Paths.get("src/test/testData/sampleData.bam"));
+    data.load();
+    NameFilter f = data.nameFilter();
+    SamReader rdr = SamReaderFactory.makeDefault().open(Paths.get("src/test/testData/sampleData.bam"));
+    for (SAMRecord rec : rdr) {
+      assertTrue(f.mightContain(hash(rec.getReadName())));
+    }
+    rdr.close();
+    assertFalse(f.mightContain(hash("Zork")));
+  }
+}
@@ -0,0 +1,101 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+public class ParallelBamReaderTest {
+
+  protected String sampleData = "src/test/testData/sampleData.bam";
+  protected String bigData = "src/test/testData/testBigBam.bam";
+
+  @Test
+  public void testStreamMatchesHtsjdk() throws IOException {
+    ExecutorService pool = WorkerPools.newPool(3, "test");
+    BlockCompressedInputStream expected = new BlockCompressedInputStream(new File(bigData));
+    ParallelBgzfInputStream actual = new ParallelBgzfInputStream(Paths.get(bigData), pool, 2);
+    byte[] a = new byte[7919];
+    byte[] b = new byte[7919];
+    long total = 0;
+    while (true) {
+      assertEquals(expected.getFilePointer(), actual.getFilePointer());
+      int n = expected.read(a, 0, a.length);
+      int got = 0;
+      while (n > 0 && got < n) {
+        int m = actual.read(b, got, n - got);
+        assertTrue(m > 0);
+        got += m;
+      }
+      if (n < 0) {
+        assertEquals(-1, actual.read(b, 0, b.length));
+        break;
+      }
+      for (int i = 0; i < n; i++) {
+        assertEquals(a[i], b[i]);
+      }
+      total += n;
+    }
+    assertEquals(total, actual.bytesInflated());
+    expected.close();
+    actual.close();
+    pool.shutdown();
+  }
+
+  @Test
+  public void testRecordsMatchSamReader() throws IOException {
+    for (ExecutorService pool : new ExecutorService[] { null, WorkerPools.defaultPool() }) {
+      SamReader expected = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT)
+          .open(Paths.get(bigData));
+      ParallelBamReader actual = new ParallelBamReader(Paths.get(bigData), pool, 4);
+      assertEquals(expected.getFileHeader(), actual.getFileHeader());
+      Iterator<SAMRecord> it = actual.iterator();
+      for (SAMRecord rec : expected) {
+        assertTrue(it.hasNext());
+        assertEquals(rec.getSAMString(), it.next().getSAMString());
+      }
+      assertFalse(it.hasNext());
+      assertNull(actual.next());
+      assertEquals(99928, actual.recordCount());
+      expected.close();
+      actual.close();
+    }
+  }
+
+  @Test(expected = SAMFormatException.class)
+  public void testNotBam() throws IOException {
+    new ParallelBamReader(Paths.get("src/test/testData/notABamFile.bam")).close();
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testNoFile() throws IOException {
+    Path p = Paths.get("src/test/testData/noSuchFile.bam");
+    new ParallelBamReader(p).close();
+  }
+
+  @Test
+  public void testLoadWithoutPool() throws IOException {
+    SampleDataOffHeap data = new SampleDataOffHeap(Paths.get(sampleData));
+    data.setReaderThreads(null, 1);
+    assertEquals(1000, data.load());
+    assertEquals(23, data.getScore("K00252:335:HWMMGBBXX:2:1101:23815:2527"));
+    data.release();
+  }
+}
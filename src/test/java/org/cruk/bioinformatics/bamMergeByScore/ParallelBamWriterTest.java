@@ -0,0 +1,128 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+public class ParallelBamWriterTest {
+
+  protected String bigData = "src/test/testData/testBigBam.bam";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected void copy(Path out, ExecutorService pool, int level) throws IOException {
+    SamReader in = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT)
+        .open(Paths.get(bigData));
+    ParallelBamWriter w = new ParallelBamWriter(out, in.getFileHeader(), pool, level, new DeflaterFactory());
+    for (SAMRecord rec : in) {
+      w.addAlignment(rec);
+    }
+    w.close();
+    in.close();
+  }
+
+  protected void assertSameRecords(Path out) throws IOException {
+    SamReader expected = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT)
+        .open(Paths.get(bigData));
+    SamReader actual = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT).open(out);
+    // the header is re-encoded at the current SAM version, as htsjdk's writer does
+    assertEquals(expected.getFileHeader().getSequenceDictionary(), actual.getFileHeader().getSequenceDictionary());
+    assertEquals(expected.getFileHeader().getSortOrder(), actual.getFileHeader().getSortOrder());
+    assertEquals(expected.getFileHeader().getProgramRecords(), actual.getFileHeader().getProgramRecords());
+    Iterator<SAMRecord> it = actual.iterator();
+    for (SAMRecord rec : expected) {
+      assertTrue(it.hasNext());
+      assertEquals(rec.getSAMString(), it.next().getSAMString());
+    }
+    assertFalse(it.hasNext());
+    expected.close();
+    actual.close();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Path out = tmp.getRoot().toPath().resolve("copy.bam");
+    ExecutorService pool = WorkerPools.newPool(4, "test");
+    copy(out, pool, 5);
+    pool.shutdown();
+    assertSameRecords(out);
+    assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+        BlockCompressedInputStream.checkTermination(out.toFile()));
+    // and through our own reader, which checks every block's CRC
+    ParallelBamReader rdr = new ParallelBamReader(out);
+    int n = 0;
+    while (rdr.next() != null) {
+      n++;
+    }
+    rdr.close();
+    assertEquals(99928, n);
+  }
+
+  @Test
+  public void testLevelsAndInline() throws IOException {
+    Path fast = tmp.getRoot().toPath().resolve("fast.bam");
+    Path stored = tmp.getRoot().toPath().resolve("stored.bam");
+    copy(fast, null, 1);
+    copy(stored, WorkerPools.defaultPool(), 0);
+    assertSameRecords(fast);
+    assertSameRecords(stored);
+    assertTrue(Files.size(stored) > Files.size(fast));
+  }
+
+  @Test
+  public void testIncompressible() throws IOException {
+    byte[] data = new byte[300000];
+    new Random(17).nextBytes(data);
+    File f = tmp.newFile("random.gz");
+    ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(f.toPath(), WorkerPools.defaultPool(), 9,
+        new DeflaterFactory());
+    out.write(data, 0, 1000);
+    out.write(data[1000]);
+    out.write(data, 1001, data.length - 1001);
+    out.close();
+    BlockCompressedInputStream in = new BlockCompressedInputStream(f);
+    byte[] back = new byte[data.length];
+    int got = 0;
+    while (got < back.length) {
+      int n = in.read(back, got, back.length - got);
+      assertTrue(n > 0);
+      got += n;
+    }
+    assertEquals(-1, in.read());
+    in.close();
+    assertArrayEquals(data, back);
+  }
+
+  @Test(expected = ClassNotFoundException.class)
+  public void testUnknownDeflater() throws ReflectiveOperationException {
+    BamMergeByScore.loadDeflaterFactory("no.such.DeflaterFactory");
+  }
+
+  @Test
+  public void testDefaultDeflater() throws ReflectiveOperationException {
+    assertEquals(DeflaterFactory.class,
+        BamMergeByScore.loadDeflaterFactory("htsjdk.samtools.util.zip.DeflaterFactory").getClass());
+  }
+}
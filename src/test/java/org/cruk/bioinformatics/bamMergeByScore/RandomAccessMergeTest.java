@@ -0,0 +1,98 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.StringUtil;
+
+public class RandomAccessMergeTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testUnsortedSplit() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "e:9", "b:12", "c:5", "a:10", "b:30");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.coordinate, "d:7", "e:9", "c:25", "b:20");
+    MergeMetrics.global().reset();
+    RandomAccessMerge m = new RandomAccessMerge(Arrays.asList(human, mouse), null);
+    m.open();
+    assertEquals(6, m.merge());
+    // "a" and "d" are each in one input only
+    assertEquals(2, m.uniqueRecords());
+    // one decision per read, however many records it has
+    assertEquals(5, MergeMetrics.global().getDecisions());
+    assertEquals(1, MergeMetrics.global().getTies());
+    m.close();
+    assertEquals(Arrays.asList("e:chr1:9", "b:chr1:12", "a:chr1:10", "b:chr1:30"),
+        BamFixtures.readBack(MergeOutput.splitOutputName(human)));
+    assertEquals(Arrays.asList("d:chr2:7", "c:chr2:25"), BamFixtures.readBack(MergeOutput.splitOutputName(mouse)));
+  }
+
+  /**
+   * A tie is counted once per read, whichever input's records are being
+   * streamed and however many records the read has: "t" is tied between all
+   * three inputs, with two records in each of the last two, and "u" between
+   * the last two only, after the first has a worse hit.
+   */
+  @Test
+  public void testTiesCountedPerRead() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "t:20", "u:5", "a:10");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.coordinate, "t:20", "u:12", "t:3", "u:8");
+    Path rat = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("rat.bam"), "chr3",
+        SAMFileHeader.SortOrder.coordinate, "u:12", "t:20", "u:1", "t:20");
+    for (TiePolicy policy : new TiePolicy[] { TiePolicy.KEEP_ALL, TiePolicy.DROP_AMBIGUOUS }) {
+      MergeMetrics.global().reset();
+      RandomAccessMerge m = new RandomAccessMerge(Arrays.asList(human, mouse, rat), null);
+      m.setTieBreaker(new TieBreaker(policy, -1, 0));
+      m.open();
+      m.merge();
+      m.close();
+      assertEquals(3, MergeMetrics.global().getDecisions());
+      assertEquals(2, MergeMetrics.global().getTies());
+      assertEquals(Long.valueOf(2), MergeMetrics.global().getTiesByPolicy().get(policy.toString()));
+    }
+  }
+
+  /**
+   * As testTiesCountedPerRead(), with Illumina names and mapped indices. The
+   * shared codec already holds another prefix, so the keys the merge makes
+   * must be translated to each index's own codec for visit() as for
+   * getScore().
+   */
+  @Test
+  public void testTiesCountedPerReadMapped() throws IOException {
+    String t = "K00252:335:HWMMGBBXX:2:1101:3204:2545";
+    String u = "K00252:335:HWMMGBBXX:2:1101:3204:2546";
+    String a = "K00252:335:HWMMGBBXX:2:1101:3204:2547";
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, t + ":20", u + ":5", a + ":10");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.coordinate, t + ":20", u + ":12", t + ":3", u + ":8");
+    Path rat = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("rat.bam"), "chr3",
+        SAMFileHeader.SortOrder.coordinate, u + ":12", t + ":20", u + ":1", t + ":20");
+    MergeMetrics.global().reset();
+    RandomAccessMerge m = new RandomAccessMerge(Arrays.asList(human, mouse, rat), null);
+    m.codec.encode("OTHER:1:FLOWCELL:1:1:1:1");
+    m.setIndexCache(true);
+    m.open();
+    m.merge();
+    m.close();
+    assertTrue(ReadNameCodec.isPacked(m.codec.encodeExisting(StringUtil.stringToBytes(t), 0, t.length())));
+    assertEquals(3, MergeMetrics.global().getDecisions());
+    assertEquals(2, MergeMetrics.global().getTies());
+  }
+}
@@ -0,0 +1,80 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+public class RawBamRecordTest {
+
+  protected String sampleData = "src/test/testData/sampleData.bam";
+  protected String bigData = "src/test/testData/testBigBam.bam";
+
+  /**
+   * Compare the raw records of a file with htsjdk's decoding of them.
+   *
+   * @return the total of the scores that came from MD rather than AS
+   */
+  protected long compare(String fn) throws IOException {
+    SamReader expected = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT)
+        .open(Paths.get(fn));
+    ParallelBamReader actual = new ParallelBamReader(Paths.get(fn));
+    RawBamRecord raw = new RawBamRecord();
+    long mdTotal = 0;
+    for (SAMRecord rec : expected) {
+      assertEquals(true, actual.next(raw));
+      assertEquals(rec.getReadName(), raw.readName());
+      assertEquals(rec.getFlags(), raw.flags());
+      assertEquals(rec.getReferenceIndex().intValue(), raw.referenceIndex());
+      assertEquals(rec.getAlignmentStart(), raw.position() + 1);
+      assertEquals(rec.getMateReferenceIndex().intValue(), raw.mateReferenceIndex());
+      Integer as = rec.getIntegerAttribute("AS");
+      if (as != null) {
+        assertEquals(as.intValue(), ScoreModel.AS.score(raw));
+      } else if (rec.getStringAttribute("MD") == null) {
+        assertEquals(ScoreModel.UNSCORED, ScoreModel.AS.score(raw));
+      } else {
+        mdTotal += ScoreModel.AS.score(raw);
+      }
+      Integer nm = rec.getIntegerAttribute("NM");
+      assertEquals(nm == null ? -1L : nm.longValue(), raw.intTag('N', 'M', -1));
+      assertEquals(rec.getSAMString(), raw.toSAMRecord(actual.getFileHeader()).getSAMString());
+    }
+    assertFalse(actual.next(raw));
+    expected.close();
+    actual.close();
+    return mdTotal;
+  }
+
+  @Test
+  public void testSampleData() throws IOException {
+    assertEquals(0L, compare(sampleData));
+  }
+
+  @Test
+  public void testBigBam() throws IOException {
+    // no AS tags here, so scores come from MD
+    assertEquals(4976371L, compare(bigData));
+  }
+
+  @Test
+  public void testCopyFrom() throws IOException {
+    ParallelBamReader rdr = new ParallelBamReader(Paths.get(sampleData));
+    RawBamRecord a = new RawBamRecord();
+    RawBamRecord b = new RawBamRecord();
+    rdr.next(a);
+    b.copyFrom(a);
+    rdr.next(a);
+    rdr.close();
+    assertEquals(b.toSAMRecord(rdr.getFileHeader()).getIntegerAttribute("AS").intValue(), ScoreModel.AS.score(b));
+    assertEquals(b.length(), b.getInt(0) + 4);
+  }
+}
@@ -0,0 +1,82 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import htsjdk.samtools.util.StringUtil;
+
+public class ReadNameCodecTest {
+
+  @Test
+  public void testRoundTrip() {
+    ReadNameCodec codec = new ReadNameCodec();
+    String[] names = { "K00252:335:HWMMGBBXX:2:1101:3204:2545", "HISEQ:165:C80FKANXX:7:2210:2245:74271",
+        "HWUSI-EAS100R:6:73:941:1973", "K00252:335:HWMMGBBXX:8:2228:131071:0" };
+    for (String name : names) {
+      long key = codec.encode(name);
+      assertTrue(name, ReadNameCodec.isPacked(key));
+      assertEquals(name, codec.decode(key));
+      byte[] buf = new byte[256];
+      assertEquals(name, new String(buf, 0, codec.decode(key, buf), StandardCharsets.US_ASCII));
+      assertEquals(key, codec.encode(name));
+    }
+    assertEquals(3, codec.prefixCount());
+  }
+
+  @Test
+  public void testFallback() {
+    ReadNameCodec codec = new ReadNameCodec();
+    String[] names = { "alpha", "a:1:2:3", "K00252:335:HWMMGBBXX:2:1101:3204:2545/1",
+        "K00252:335:HWMMGBBXX:2:1101:03204:2545", "K00252:335:HWMMGBBXX:16:1101:3204:2545",
+        "K00252:335:HWMMGBBXX:2:1101:131072:2545", ":1:2:3:4", "K00252:335:HWMMGBBXX:2:1101::2545" };
+    for (String name : names) {
+      assertFalse(name, ReadNameCodec.isPacked(codec.encode(name)));
+    }
+  }
+
+  @Test
+  public void testLookupDoesNotAddPrefix() {
+    ReadNameCodec codec = new ReadNameCodec();
+    assertFalse(ReadNameCodec.isPacked(codec.encodeExisting("K00252:335:HWMMGBBXX:2:1101:3204:2545")));
+    assertEquals(0, codec.prefixCount());
+  }
+
+  @Test
+  public void testNaturalOrder() {
+    ReadNameCodec codec = new ReadNameCodec();
+    Random rnd = new Random(7);
+    for (int i = 0; i < 10000; i++) {
+      String a = "K00252:335:HWMMGBBXX:" + (1 + rnd.nextInt(8)) + ":" + rnd.nextInt(3000) + ":" + rnd.nextInt(30000)
+          + ":" + rnd.nextInt(30000);
+      String b = "K00252:335:HWMMGBBXX:" + (1 + rnd.nextInt(8)) + ":" + rnd.nextInt(3000) + ":" + rnd.nextInt(30000)
+          + ":" + rnd.nextInt(30000);
+      byte[] ab = StringUtil.stringToBytes(a);
+      byte[] bb = StringUtil.stringToBytes(b);
+      long ka = codec.encode(a);
+      long kb = codec.encode(b);
+      assertEquals(a + " vs " + b, Integer.signum(ReadNameOrder.NATURAL.compare(ab, bb)),
+          Integer.signum(Long.compare(ka, kb)));
+      assertEquals(Integer.signum(ReadNameOrder.BYTE.compare(ab, bb)),
+          Integer.signum(ReadNameOrder.BYTE.compare(ka, ab, kb, bb)));
+      assertEquals(a.equals(b), ReadNameCodec.sameName(ka, ab, kb, bb));
+    }
+  }
+
+  @Test
+  public void testSameName() {
+    ReadNameCodec codec = new ReadNameCodec();
+    byte[] a = StringUtil.stringToBytes("alpha");
+    byte[] b = StringUtil.stringToBytes("K00252:335:HWMMGBBXX:2:1101:3204:2545");
+    long kb = codec.encode(b, 0, b.length);
+    assertTrue(ReadNameCodec.sameName(ReadNameCodec.RAW, a, ReadNameCodec.RAW, a.clone()));
+    assertFalse(ReadNameCodec.sameName(ReadNameCodec.RAW, a, kb, b));
+    assertNotEquals(ReadNameCodec.RAW, kb);
+  }
+}
@@ -0,0 +1,84 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMRecordQueryNameComparator;
+import htsjdk.samtools.util.StringUtil;
+
+public class ReadNameOrderTest {
+
+  protected int cmp(ReadNameOrder o, String a, String b) {
+    return Integer.signum(o.compare(StringUtil.stringToBytes(a), StringUtil.stringToBytes(b)));
+  }
+
+  @Test
+  public void testNatural() {
+    ReadNameOrder o = ReadNameOrder.NATURAL;
+    assertEquals(-1, cmp(o, "K00252:335:HWMMGBBXX:2:1101:3204:2545", "K00252:335:HWMMGBBXX:2:1101:21481:2527"));
+    assertEquals(-1, cmp(o, "r:9", "r:10"));
+    assertEquals(1, cmp(o, "r:10", "r:9"));
+    assertEquals(0, cmp(o, "r:10:a", "r:10:a"));
+    assertEquals(-1, cmp(o, "r:10", "r:10:a"));
+    assertEquals(-1, cmp(o, "r10", "r010"));
+    assertEquals(1, cmp(o, "r010", "r10"));
+    assertEquals(-1, cmp(o, "r01a", "r1b"));
+    assertEquals(-1, cmp(o, "a", "b"));
+    assertEquals(1, cmp(o, "ab", "a"));
+  }
+
+  @Test
+  public void testHtsjdkMatchesComparator() {
+    Random rnd = new Random(42);
+    String alphabet = "0123456789:ABab_é";
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder a = new StringBuilder();
+      StringBuilder b = new StringBuilder();
+      for (int j = rnd.nextInt(8); j > 0; j--) {
+        a.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+      }
+      for (int j = rnd.nextInt(8); j > 0; j--) {
+        b.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+      }
+      int expected = Integer.signum(SAMRecordQueryNameComparator.compareReadNames(a.toString(), b.toString()));
+      assertEquals(a + " vs " + b, expected, cmp(ReadNameOrder.HTSJDK, a.toString(), b.toString()));
+    }
+  }
+
+  @Test
+  public void testByte() {
+    ReadNameOrder o = ReadNameOrder.BYTE;
+    assertEquals(1, cmp(o, "r:9", "r:10"));
+    assertEquals(-1, cmp(o, "r:1", "r:10"));
+    assertTrue(o.agreesWith(ReadNameOrder.HTSJDK));
+    assertFalse(o.agreesWith(ReadNameOrder.NATURAL));
+  }
+
+  @Test
+  public void testFromHeader() {
+    SAMFileHeader h = new SAMFileHeader();
+    assertEquals(ReadNameOrder.HTSJDK, ReadNameOrder.fromHeader(h));
+    h.setSortOrder(SAMFileHeader.SortOrder.queryname);
+    assertEquals(ReadNameOrder.HTSJDK, ReadNameOrder.fromHeader(h));
+    SAMProgramRecord pg = new SAMProgramRecord("samtools");
+    pg.setProgramName("samtools");
+    pg.setCommandLine("samtools sort -n -o out.bam in.bam");
+    h.addProgramRecord(pg);
+    assertEquals(ReadNameOrder.NATURAL, ReadNameOrder.fromHeader(h));
+    h.setAttribute("SS", "queryname:lexicographical");
+    assertEquals(ReadNameOrder.BYTE, ReadNameOrder.fromHeader(h));
+    h.setAttribute("SS", "queryname:natural");
+    assertEquals(ReadNameOrder.NATURAL, ReadNameOrder.fromHeader(h));
+    for (ReadNameOrder o : ReadNameOrder.values()) {
+      h.setAttribute("SS", o.subSort());
+      assertTrue(o.agreesWith(ReadNameOrder.fromHeader(h)));
+    }
+  }
+}
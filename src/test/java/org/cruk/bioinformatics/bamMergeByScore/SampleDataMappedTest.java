@@ -0,0 +1,117 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.StringUtil;
+
+public class SampleDataMappedTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected Path copy(String fn) throws IOException {
+    Path p = tmp.getRoot().toPath().resolve(Paths.get(fn).getFileName());
+    Files.copy(Paths.get(fn), p);
+    return p;
+  }
+
+  /**
+   * Check every read of a file against an index built in memory. The shared
+   * codec already holds another prefix, so keys must be translated.
+   */
+  protected void assertSameScores(Path bam, SampleDataMapped mapped, ReadNameCodec codec) throws IOException {
+    SampleDataOffHeap heap = new SampleDataOffHeap(bam);
+    heap.load();
+    SamReader rdr = SamReaderFactory.makeDefault().open(bam);
+    for (SAMRecord rec : rdr) {
+      byte[] b = StringUtil.stringToBytes(rec.getReadName());
+      long key = codec.encodeExisting(b, 0, b.length);
+      assertEquals(heap.getScore(rec.getReadName()), mapped.getScore(key, b, 0, b.length, -1));
+      assertTrue(mapped.hasRead(rec.getReadName()));
+    }
+    rdr.close();
+    heap.release();
+  }
+
+  @Test
+  public void testBuildThenReuse() throws IOException {
+    Path bam = copy("src/test/testData/sampleData.bam");
+    ReadNameCodec codec = new ReadNameCodec();
+    codec.encode("OTHER:1:FLOWCELL:1:1:1:1");
+    SampleDataMapped data = new SampleDataMapped(bam);
+    data.setCodec(codec);
+    assertEquals(1000, data.load());
+    assertFalse(data.wasReused());
+    assertTrue(Files.exists(SampleDataMapped.indexPath(bam)));
+    assertSameScores(bam, data, codec);
+    assertFalse(data.hasRead("Zork"));
+
+    SampleDataMapped again = new SampleDataMapped(bam);
+    again.setCodec(codec);
+    assertEquals(1000, again.load());
+    assertTrue(again.wasReused());
+    assertEquals(data.distinctReads(), again.distinctReads());
+    assertSameScores(bam, again, codec);
+    assertEquals(23, again.getScore("K00252:335:HWMMGBBXX:2:1101:23815:2527"));
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+    Path bam = copy("src/test/testData/sampleData.bam");
+    new SampleDataMapped(bam).load();
+
+    Files.setLastModifiedTime(bam, FileTime.fromMillis(Files.getLastModifiedTime(bam).toMillis() - 60000));
+    SampleDataMapped touched = new SampleDataMapped(bam);
+    touched.load();
+    assertFalse(touched.wasReused());
+
+    SampleDataMapped rescored = new SampleDataMapped(bam);
+    rescored.setScoringPolicy(AlignerScoring.DEFAULT.withModel(ScoreModel.CIGAR));
+    rescored.load();
+    assertFalse(rescored.wasReused());
+
+    Files.write(SampleDataMapped.indexPath(bam), new byte[] { 1, 2, 3 });
+    SampleDataMapped corrupt = new SampleDataMapped(bam);
+    corrupt.load();
+    assertFalse(corrupt.wasReused());
+    assertEquals(1000, corrupt.size());
+  }
+
+  /**
+   * Names that don't pack, and a pair-aware policy, so that the index holds
+   * both kinds of table, twice.
+   */
+  @Test
+  public void testRawNamesPairAware() throws IOException {
+    Path bam = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("raw.bam"), "chr1",
+        SAMFileHeader.SortOrder.unsorted, "e:9", "b:12", "c:5", "b:30");
+    new SampleDataMapped(bam).load();
+    SampleDataMapped data = new SampleDataMapped(bam);
+    data.setScoringPolicy(AlignerScoring.BWA_MEM);
+    data.load();
+    assertFalse(data.wasReused());
+    data = new SampleDataMapped(bam);
+    data.setScoringPolicy(AlignerScoring.BWA_MEM);
+    data.load();
+    assertTrue(data.wasReused());
+    assertEquals(30, data.getScore("b"));
+    assertEquals(5, data.getScore("c"));
+    assertFalse(data.hasRead("a"));
+  }
+}
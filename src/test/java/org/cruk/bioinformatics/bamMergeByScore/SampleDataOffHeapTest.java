@@ -0,0 +1,101 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import htsjdk.samtools.util.StringUtil;
+
+public class SampleDataOffHeapTest {
+
+  protected String sampleData = "src/test/testData/sampleData.bam";
+  protected String bigData = "src/test/testData/testBigBam.bam";
+
+  protected SampleDataOffHeap load(String fn) {
+    Path dataP = Paths.get(fn);
+    SampleDataOffHeap data = new SampleDataOffHeap(dataP);
+    try {
+      data.load();
+    } catch (FileNotFoundException fne) {
+      fail("File not found exception: " + dataP.toString());
+    } catch (IOException io) {
+      fail("IO Exception: " + dataP.toString());
+    }
+    return data;
+  }
+
+  @Test
+  public void testSanity() {
+    SampleDataOffHeap data = load(sampleData);
+    assertEquals(1000, data.size());
+    assertFalse(data.hasRead("Zork"));
+    assertEquals(0, data.getScore("Zork"));
+  }
+
+  @Test
+  public void testHasRead() {
+    SampleDataOffHeap data = load(sampleData);
+    assertTrue(data.hasRead("K00252:335:HWMMGBBXX:2:1101:3204:2545"));
+  }
+
+  @Test
+  public void testVisit() {
+    SampleDataOffHeap data = load(sampleData);
+    byte[] b = StringUtil.stringToBytes("K00252:335:HWMMGBBXX:2:1101:23815:2527");
+    long key = data.codec.encodeExisting(b, 0, b.length);
+    assertTrue(data.visit(key, b, 0, b.length));
+    assertFalse(data.visit(key, b, 0, b.length));
+    byte[] absent = StringUtil.stringToBytes("Zork");
+    assertFalse(data.visit(data.codec.encodeExisting(absent, 0, absent.length), absent, 0, absent.length));
+    data.release();
+  }
+
+  @Test
+  public void testReadScore() {
+    SampleDataOffHeap data = load(sampleData);
+    assertEquals(23, data.getScore("K00252:335:HWMMGBBXX:2:1101:23815:2527"));
+  }
+
+  @Test
+  public void testBigBam() throws IOException {
+    SampleDataOffHeap data = load(bigData);
+    assertEquals(99928, data.size());
+    System.out.println("bigOffHeap: " + SampleDataTest.friendly(data.memory()) + " for " + data.distinctReads()
+        + " reads, " + data.memory() / data.distinctReads() + " bytes/read");
+    assertTrue(data.memory() / data.distinctReads() < 40);
+    // every hit's score must be at most the best stored for its read
+    ParallelBamReader rdr = new ParallelBamReader(Paths.get(bigData));
+    RawBamRecord rec = new RawBamRecord();
+    while (rdr.next(rec)) {
+      assertTrue(data.hasRead(rec.readName()));
+      assertTrue(AlignerScoring.DEFAULT.score(rec) <= data.getScore(rec.readName()));
+    }
+    rdr.close();
+  }
+
+  @Test
+  public void testGrowth() {
+    ScoreTable t = new ScoreTable();
+    for (int i = 0; i < 200000; i++) {
+      byte[] name = StringUtil.stringToBytes("read:" + i);
+      assertTrue(t.put(name, 0, name.length, i));
+    }
+    byte[] again = StringUtil.stringToBytes("read:17");
+    assertFalse(t.put(again, 0, again.length, 3));
+    assertEquals(200000, t.size());
+    for (int i = 0; i < 200000; i++) {
+      byte[] name = StringUtil.stringToBytes("read:" + i);
+      assertEquals(i, t.getScore(name, 0, name.length, -1));
+    }
+    byte[] absent = StringUtil.stringToBytes("read:200000");
+    assertEquals(-1, t.getScore(absent, 0, absent.length, -1));
+  }
+}
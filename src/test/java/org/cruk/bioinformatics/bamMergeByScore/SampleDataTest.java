@@ -10,10 +10,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import org.github.jamm.MemoryMeter;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
 
 public class SampleDataTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   protected String sampleData = "src/test/testData/sampleData.bam";
   protected String bigData = "src/test/testData/testBigBam.bam";
   protected String biggerData = "src/test/testData/testBiggerBam.bam";
@@ -79,6 +86,29 @@ public class SampleDataTest {
     assertEquals(23, data.getScore(readName));
   }
 
+  /**
+   * Later hits of a read must not overwrite a better earlier one, and with a
+   * pair-aware policy the best hit of each mate counts.
+   */
+  @Test
+  public void testTemplateScore() throws IOException {
+    Path p = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("hits.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:30", "a:12", "b/1:20", "b/1:25", "b/2:15", "b/2:9");
+    SampleData data = new SampleDataMap(p);
+    data.load();
+    assertEquals(30, data.getScore("a"));
+    assertEquals(25, data.getScore("b"));
+    data = new SampleDataMap(p);
+    data.setScoringPolicy(AlignerScoring.BWA_MEM);
+    data.load();
+    assertEquals(30, data.getScore("a"));
+    assertEquals(40, data.getScore("b"));
+    assertTrue(data.hasRead("b"));
+    data = new SampleDataTrie(p);
+    data.load();
+    assertEquals(30, data.getScore("a"));
+  }
+
   /*
   @Test
   public void testTrie() {
@@ -0,0 +1,141 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.StringUtil;
+
+public class ScoreModelTest {
+
+  protected String bigData = "src/test/testData/testBigBam.bam";
+
+  protected long scan(String md) {
+    byte[] b = StringUtil.stringToBytes(md);
+    return ScoreModel.scanMD(b, 0, b.length);
+  }
+
+  /**
+   * Make a 50-base raw record with the given MD tag, or none if md is null.
+   */
+  protected RawBamRecord withMD(String md) {
+    SAMFileHeader header = new SAMFileHeader();
+    header.addSequence(new SAMSequenceRecord("chr1", 100000));
+    SAMRecord rec = new SAMRecord(header);
+    rec.setReadName("r1");
+    rec.setReferenceName("chr1");
+    rec.setAlignmentStart(1);
+    rec.setCigarString("50M");
+    rec.setReadString(new String(new char[50]).replace('\0', 'A'));
+    rec.setBaseQualityString(new String(new char[50]).replace('\0', 'I'));
+    if (md != null) {
+      rec.setAttribute("MD", md);
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    BAMRecordCodec codec = new BAMRecordCodec(header);
+    codec.setOutputStream(os);
+    codec.encode(rec);
+    byte[] b = os.toByteArray();
+    RawBamRecord raw = new RawBamRecord();
+    raw.ensureCapacity(b.length);
+    System.arraycopy(b, 0, raw.buffer(), 0, b.length);
+    raw.setLength(b.length);
+    return raw;
+  }
+
+  @Test
+  public void testScanMD() {
+    assertEquals((49L << 32) | 1, scan("47T2"));
+    assertEquals((100L << 32), scan("100"));
+    assertEquals((15L << 32), scan("10^AC5"));
+    assertEquals((12L << 32) | 2, scan("3A0C9"));
+    assertEquals((8L << 32) | 1, scan("4^G0T4"));
+  }
+
+  @Test
+  public void testMDScore() {
+    assertEquals(49, ScoreModel.MD.score(withMD("47T2")));
+    assertEquals(15, ScoreModel.MD.score(withMD("10^AC5")));
+    assertEquals(12, ScoreModel.MD.score(withMD("3A0C9")));
+    assertEquals(ScoreModel.UNSCORED, ScoreModel.MD.score(withMD(null)));
+    // no AS tag, so AS falls back to MD
+    assertEquals(49, ScoreModel.AS.score(withMD("47T2")));
+  }
+
+  @Test
+  public void testFromName() {
+    assertEquals(ScoreModel.MAPQ_AS, ScoreModel.fromName("mapq-as"));
+    assertEquals(ScoreModel.CIGAR, ScoreModel.fromName("Cigar"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadName() {
+    ScoreModel.fromName("zork");
+  }
+
+  /**
+   * Check the raw-byte models against the same sums done on decoded records.
+   */
+  @Test
+  public void testModelsAgainstSAMRecord() throws IOException {
+    SamReader expected = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.LENIENT)
+        .open(Paths.get(bigData));
+    ParallelBamReader actual = new ParallelBamReader(Paths.get(bigData));
+    RawBamRecord raw = new RawBamRecord();
+    long mdTotal = 0;
+    int unscored = 0;
+    for (SAMRecord rec : expected) {
+      actual.next(raw);
+      String md = rec.getStringAttribute("MD");
+      int mdScore = ScoreModel.MD.score(raw);
+      if (md == null) {
+        assertEquals(ScoreModel.UNSCORED, mdScore);
+        unscored++;
+      } else {
+        mdTotal += mdScore;
+      }
+
+      if (rec.getReadUnmappedFlag()) {
+        assertEquals(ScoreModel.UNSCORED, ScoreModel.CIGAR.score(raw));
+        assertEquals(ScoreModel.UNSCORED, ScoreModel.NM.score(raw));
+        continue;
+      }
+      int aligned = 0;
+      int queryLength = 0;
+      for (CigarElement e : rec.getCigar().getCigarElements()) {
+        if (e.getOperator() == CigarOperator.M || e.getOperator() == CigarOperator.EQ) {
+          aligned += e.getLength();
+        }
+        if (e.getOperator().consumesReadBases()) {
+          queryLength += e.getLength();
+        }
+      }
+      if (md != null) {
+        aligned -= md.replaceAll("\\^[A-Z]+", "").replaceAll("[0-9]", "").length();
+      }
+      assertEquals(aligned, ScoreModel.CIGAR.score(raw));
+
+      Integer nm = rec.getIntegerAttribute("NM");
+      int len = rec.getReadLength() > 0 ? rec.getReadLength() : queryLength;
+      assertEquals(nm == null ? ScoreModel.UNSCORED : len - nm.intValue(), ScoreModel.NM.score(raw));
+      assertEquals(ScoreModel.UNSCORED, ScoreModel.MAPQ_AS.score(raw));
+    }
+    assertEquals(4976371L, mdTotal);
+    assertEquals(0, unscored);
+    expected.close();
+    actual.close();
+  }
+}
@@ -0,0 +1,139 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class ShardedMergeTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected List<Path> generate(long reads) throws IOException {
+    SyntheticBamGenerator g = new SyntheticBamGenerator();
+    g.outputDir = tmp.getRoot().toPath();
+    g.reads = reads;
+    g.overlap = 0.7;
+    g.paired = true;
+    return g.generate();
+  }
+
+  /**
+   * Every sample is a real record: reading from its offset gives a record with
+   * the sampled name.
+   */
+  @Test
+  public void testSamples() throws IOException {
+    Path p = generate(20000).get(0);
+    ParallelBamReader rdr = new ParallelBamReader(p);
+    List<NameSampler.Sample> samples = NameSampler.sample(p, 32, rdr.getFileHeader().getSequenceDictionary().size(),
+        rdr.getFilePointer());
+    assertTrue(samples.size() > 8);
+    RawBamRecord rec = new RawBamRecord();
+    for (NameSampler.Sample s : samples) {
+      rdr.seek(s.offset);
+      assertTrue(rdr.next(rec));
+      assertEquals(new String(s.name, "US-ASCII"), rec.readName());
+    }
+    rdr.close();
+  }
+
+  /**
+   * A sharded merge writes the same records, in the same order, as a single
+   * StreamingMerge, ties included, and leaves no parts behind.
+   */
+  @Test
+  public void testSameAsStreaming() throws IOException {
+    List<Path> inputs = generate(20000);
+    Path single = tmp.getRoot().toPath().resolve("single.bam");
+    TieBreaker ties = new TieBreaker(TiePolicy.HASH_RANDOM, -1, 11);
+    StreamingMerge m = new StreamingMerge(inputs, single);
+    m.setTieBreaker(ties);
+    m.setDecisionLog(tmp.getRoot().toPath().resolve("single.bmdl"));
+    m.open();
+    long reads = m.merge();
+    long records = m.recordsWritten();
+    m.close();
+
+    Path sharded = tmp.getRoot().toPath().resolve("sharded.bam");
+    ShardedMerge sm = new ShardedMerge(inputs, sharded, 4);
+    sm.setTieBreaker(ties);
+    sm.setDecisionLog(tmp.getRoot().toPath().resolve("sharded.bmdl"));
+    sm.open();
+    assertEquals(3, sm.splits().size());
+    assertEquals(reads, sm.merge());
+    assertEquals(records, sm.recordsWritten());
+    sm.close();
+
+    SamReader a = SamReaderFactory.makeDefault().open(single);
+    SamReader b = SamReaderFactory.makeDefault().open(sharded);
+    assertEquals(a.getFileHeader(), b.getFileHeader());
+    long n = 0;
+    java.util.Iterator<SAMRecord> it = b.iterator();
+    for (SAMRecord rec : a) {
+      assertEquals(rec.getSAMString(), it.next().getSAMString());
+      n++;
+    }
+    assertTrue(!it.hasNext());
+    a.close();
+    b.close();
+    assertEquals(records, n);
+    DecisionLogReader da = new DecisionLogReader(tmp.getRoot().toPath().resolve("single.bmdl"));
+    DecisionLogReader db = new DecisionLogReader(tmp.getRoot().toPath().resolve("sharded.bmdl"));
+    long decided = 0;
+    while (da.next()) {
+      assertTrue(db.next());
+      assertEquals(da.name(), db.name());
+      assertEquals(da.winner(), db.winner());
+      decided++;
+    }
+    assertTrue(!db.next());
+    da.close();
+    db.close();
+    assertEquals(reads, decided);
+    assertEquals(0, tmp.getRoot().toPath().toFile().list((d, name) -> name.contains(".part")).length);
+  }
+
+  @Test
+  public void testSplitOutputs() throws IOException {
+    List<Path> inputs = generate(5000);
+    ShardedMerge sm = new ShardedMerge(inputs, null, 3);
+    sm.open();
+    sm.merge();
+    sm.close();
+    long total = 0;
+    for (Path p : inputs) {
+      assertTrue(Files.exists(MergeOutput.splitOutputName(p)));
+      total += BamFixtures.readBack(MergeOutput.splitOutputName(p)).size();
+    }
+    assertEquals(sm.recordsWritten(), total);
+  }
+
+  @Test
+  public void testJoin() throws IOException {
+    Path out = tmp.getRoot().toPath().resolve("joined.bam");
+    byte[] eof = htsjdk.samtools.util.BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+    byte[] part = new byte[eof.length + 3];
+    part[0] = 1;
+    part[1] = 2;
+    part[2] = 3;
+    System.arraycopy(eof, 0, part, 3, eof.length);
+    Files.write(MergeOutput.partName(out, 0), part);
+    Files.write(MergeOutput.partName(out, 1), eof);
+    ShardedMerge.join(out, 2);
+    assertArrayEquals(part, Files.readAllBytes(out));
+  }
+}
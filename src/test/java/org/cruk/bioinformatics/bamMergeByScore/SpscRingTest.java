@@ -0,0 +1,125 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SpscRingTest {
+
+  @Test
+  public void testOfferAndPoll() {
+    SpscRing<Integer> ring = new SpscRing<Integer>(3);
+    assertEquals(4, ring.capacity());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4));
+    assertEquals(0, (int) ring.poll());
+    assertTrue(ring.offer(4));
+    for (int i = 1; i < 5; i++) {
+      assertEquals(i, (int) ring.poll());
+    }
+    assertNull(ring.poll());
+  }
+
+  @Test
+  public void testCloseDrains() throws IOException {
+    SpscRing<Integer> ring = new SpscRing<Integer>(2);
+    ring.put(1);
+    ring.fail(new IOException("boom"));
+    assertFalse(ring.put(2));
+    assertEquals(1, (int) ring.take());
+    assertNull(ring.take());
+    assertEquals("boom", ring.failure().getMessage());
+  }
+
+  /**
+   * Pass many elements through a tiny ring, so that both sides keep waiting
+   * on each other; they must arrive complete and in order.
+   */
+  @Test
+  public void testAcrossThreads() throws Exception {
+    final SpscRing<Long> ring = new SpscRing<Long>(2);
+    final long n = 200000;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread producer = new Thread(() -> {
+      try {
+        for (long i = 0; i < n; i++) {
+          ring.put(i);
+        }
+        ring.close();
+      } catch (Throwable t) {
+        error.set(t);
+      }
+    });
+    producer.start();
+    long expect = 0;
+    Long v;
+    while ((v = ring.take()) != null) {
+      assertEquals(expect++, (long) v);
+    }
+    producer.join();
+    assertNull(error.get());
+    assertEquals(n, expect);
+  }
+
+  @Test
+  public void testRecordBatch() {
+    RecordBatch b = new RecordBatch(2);
+    RawBamRecord rec = new RawBamRecord();
+    rec.ensureCapacity(2000);
+    for (int i = 0; i < 2000; i++) {
+      rec.buf[i] = (byte) i;
+    }
+    rec.setLength(2000);
+    b.add(rec);
+    rec.setLength(40);
+    b.add(rec);
+    assertTrue(b.isFull());
+    assertEquals(2040, b.bytes());
+    RawBamRecord out = new RawBamRecord();
+    b.get(1, out);
+    assertEquals(40, out.length());
+    assertEquals(39, out.buf[39]);
+    b.get(0, out);
+    assertEquals(2000, out.length());
+    assertEquals((byte) 1999, out.buf[1999]);
+    b.clear();
+    assertEquals(0, b.size());
+  }
+
+  /**
+   * Read a file through a decode thread with the smallest batches and queue,
+   * and directly; the records must match one for one.
+   */
+  @Test
+  public void testPipelinedReader() throws IOException {
+    Path big = Paths.get("src/test/testData/testBigBam.bam");
+    ParallelBamReader direct = new ParallelBamReader(big);
+    PipelinedReader piped = new PipelinedReader(new ParallelBamReader(big), 3, 1);
+    assertTrue(piped.thread.isVirtual());
+    RawBamRecord a = new RawBamRecord();
+    RawBamRecord b = new RawBamRecord();
+    long n = 0;
+    while (direct.next(a)) {
+      assertTrue(piped.next(b));
+      assertEquals(a.readName(), b.readName());
+      assertEquals(a.length(), b.length());
+      n++;
+    }
+    assertFalse(piped.next(b));
+    assertEquals(99928, n);
+    assertSame(piped.reader.getFileHeader(), piped.getFileHeader());
+    direct.close();
+    piped.close();
+  }
+}
@@ -0,0 +1,295 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class StreamingMergeTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testSplitOutputName() {
+    Path p = tmp.getRoot().toPath().resolve("alpha.bam");
+    assertEquals("alpha.filtered.bam", MergeOutput.splitOutputName(p).getFileName().toString());
+  }
+
+  @Test
+  public void testMergeSplit() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "b:12", "c:5", "e:9");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7", "e:9");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), null);
+    m.open();
+    assertEquals(5, m.merge());
+    m.close();
+    assertEquals(Arrays.asList("a:chr1:10", "b:chr1:30", "b:chr1:12", "e:chr1:9"),
+        BamFixtures.readBack(MergeOutput.splitOutputName(human)));
+    assertEquals(Arrays.asList("c:chr2:25", "d:chr2:7"), BamFixtures.readBack(MergeOutput.splitOutputName(mouse)));
+  }
+
+  @Test
+  public void testMergeOutput() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "c:5");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7");
+    Path out = tmp.getRoot().toPath().resolve("merged.bam");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), out);
+    m.open();
+    assertEquals(4, m.merge());
+    assertEquals(4, m.recordsWritten());
+    m.close();
+    assertEquals(Arrays.asList("a:chr1:10", "b:chr1:30", "c:chr2:25", "d:chr2:7"), BamFixtures.readBack(out));
+  }
+
+  /**
+   * Both mates and every hit of a read go to the input whose template scores
+   * best, summing the mates only under a pair-aware policy.
+   */
+  @Test
+  public void testPairedTemplate() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "p/1:20", "p/1:8", "p/2:20");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "p/1:30", "p/2:5");
+    for (ScoringPolicy policy : new ScoringPolicy[] { AlignerScoring.BWA_MEM, AlignerScoring.DEFAULT }) {
+      Path out = tmp.getRoot().toPath().resolve("merged-" + policy + ".bam");
+      StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), out);
+      m.setScoringPolicy(policy);
+      m.open();
+      assertEquals(1, m.merge());
+      m.close();
+      List<String> expected = policy.pairAware() ? Arrays.asList("p:chr1:20", "p:chr1:8", "p:chr1:20")
+          : Arrays.asList("p:chr2:30", "p:chr2:5");
+      assertEquals(expected, BamFixtures.readBack(out));
+    }
+  }
+
+  /**
+   * Reads tied between the inputs ("b" and "e") go by the tie policy; the
+   * reads one input wins outright are unaffected.
+   */
+  @Test
+  public void testTiePolicies() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "c:5", "e:9");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:30", "c:25", "e:9");
+    TieBreaker[] breakers = { new TieBreaker(TiePolicy.PRIMARY_FILE, 1, 0), new TieBreaker(TiePolicy.KEEP_ALL, -1, 0),
+        new TieBreaker(TiePolicy.DROP_AMBIGUOUS, -1, 0) };
+    List<List<String>> expected = Arrays.asList(Arrays.asList("a:chr1:10", "b:chr2:30", "c:chr2:25", "e:chr2:9"),
+        Arrays.asList("a:chr1:10", "b:chr1:30", "b:chr2:30", "c:chr2:25", "e:chr1:9", "e:chr2:9"),
+        Arrays.asList("a:chr1:10", "c:chr2:25"));
+    MergeMetrics metrics = MergeMetrics.global();
+    for (int i = 0; i < breakers.length; i++) {
+      metrics.reset();
+      Path out = tmp.getRoot().toPath().resolve("merged" + i + ".bam");
+      StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), out);
+      m.setTieBreaker(breakers[i]);
+      m.open();
+      assertEquals(4, m.merge());
+      m.close();
+      assertEquals(expected.get(i), BamFixtures.readBack(out));
+      assertEquals(2, metrics.getTies());
+      assertEquals(Long.valueOf(2), metrics.getTiesByPolicy().get(breakers[i].policy().toString()));
+    }
+  }
+
+  @Test
+  public void testDecisionLog() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "c:5", "e:9");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:30", "c:25", "e:9");
+    Path log = tmp.getRoot().toPath().resolve("decisions.bmdl");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), tmp.getRoot().toPath().resolve("merged.bam"));
+    m.setTieBreaker(new TieBreaker(TiePolicy.DROP_AMBIGUOUS, -1, 0));
+    m.setDecisionLog(log);
+    m.open();
+    m.merge();
+    m.close();
+    DecisionLogReader r = new DecisionLogReader(log);
+    assertEquals(Arrays.asList("human.bam", "mouse.bam"), r.inputs());
+    List<String> entries = new ArrayList<String>();
+    while (r.next()) {
+      String s0 = r.score(0) == DecisionLog.ABSENT ? "-" : Integer.toString(r.score(0));
+      String s1 = r.score(1) == DecisionLog.ABSENT ? "-" : Integer.toString(r.score(1));
+      entries.add(r.name() + ":" + r.outcome() + ":" + r.winner() + ":" + s0 + ":" + s1);
+    }
+    r.close();
+    assertEquals(Arrays.asList("a:WON:0:10:-", "b:DROPPED:-1:30:30", "c:WON:1:5:25", "e:DROPPED:-1:9:9"), entries);
+  }
+
+  /**
+   * A hashed choice depends on the seed and the name alone: the same on every
+   * run, and spread over the inputs tied.
+   */
+  @Test
+  public void testHashTies() {
+    TieBreaker a = new TieBreaker(TiePolicy.HASH_RANDOM, -1, 7);
+    TieBreaker b = new TieBreaker(TiePolicy.HASH_RANDOM, -1, 7);
+    int[] tied = { 0, 2, 3 };
+    int[] wins = new int[4];
+    for (int i = 0; i < 3000; i++) {
+      byte[] name = ("read:" + i).getBytes();
+      int w = a.choose(tied, 3, name, 0, name.length);
+      assertEquals(w, b.choose(tied, 3, name, 0, name.length));
+      wins[w]++;
+    }
+    assertEquals(0, wins[1]);
+    for (int i : tied) {
+      assertTrue(wins[i] > 800);
+    }
+  }
+
+  /**
+   * The same merge with the smallest batches and queues between the stages,
+   * and with no pipeline at all, gives the same output.
+   */
+  @Test
+  public void testPipeline() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.queryname, "a:10", "b:30", "b:12", "c:5");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7");
+    List<String> expected = Arrays.asList("a:chr1:10", "b:chr1:30", "b:chr1:12", "c:chr2:25", "d:chr2:7");
+    for (int batchSize : new int[] { 1, 0 }) {
+      Path out = tmp.getRoot().toPath().resolve("merged" + batchSize + ".bam");
+      StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), out);
+      m.setPipeline(batchSize, 1);
+      m.open();
+      assertEquals(4, m.merge());
+      m.close();
+      assertEquals(expected, BamFixtures.readBack(out));
+    }
+  }
+
+  @Test
+  public void testSortIfNeeded() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "c:5", "a:10", "b:30", "b:12");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7");
+    Path out = tmp.getRoot().toPath().resolve("merged.bam");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), out);
+    m.setSortIfNeeded(1 << 20, tmp.getRoot().toPath());
+    m.open();
+    assertEquals(4, m.merge());
+    m.close();
+    assertEquals(Arrays.asList("a:chr1:10", "b:chr1:30", "b:chr1:12", "c:chr2:25", "d:chr2:7"),
+        BamFixtures.readBack(out));
+  }
+
+  /**
+   * Split outputs of a file sorted on the way in are in name order, so their
+   * headers must say so rather than keep the input's coordinate order.
+   */
+  @Test
+  public void testSortIfNeededSplit() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "c:5", "a:10", "b:30", "b:12");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "b:20", "c:25", "d:7");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), null);
+    m.setSortIfNeeded(1 << 20, tmp.getRoot().toPath());
+    m.open();
+    assertEquals(4, m.merge());
+    m.close();
+    Path split = MergeOutput.splitOutputName(human);
+    assertEquals(Arrays.asList("a:chr1:10", "b:chr1:30", "b:chr1:12"), BamFixtures.readBack(split));
+    SamReader r = SamReaderFactory.makeDefault().open(split);
+    SAMFileHeader header = r.getFileHeader();
+    r.close();
+    assertEquals(SAMFileHeader.SortOrder.queryname, header.getSortOrder());
+    assertEquals("queryname:lexicographical", header.getAttribute("SS"));
+    assertTrue(ReadNameOrder.HTSJDK.agreesWith(ReadNameOrder.fromHeader(header)));
+  }
+
+  /**
+   * Sort a coordinate-sorted file in too little memory to hold it, so that the
+   * sort spills runs to disk and merges them back, and the records are read
+   * back in several batches.
+   */
+  @Test
+  public void testSortSpills() throws IOException {
+    Path big = Paths.get("src/test/testData/testBigBam.bam");
+    Path out = tmp.getRoot().toPath().resolve("sorted.bam");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(big), out);
+    m.setSortIfNeeded(ExternalNameSort.MIN_MEMORY, tmp.getRoot().toPath());
+    m.open();
+    assertTrue(((SortedReadCursor) m.cursors[0]).runCount() > 1);
+    m.merge();
+    assertTrue(((SortedReadCursor) m.cursors[0]).batchCount() > 1);
+    assertEquals(99928, m.recordsWritten());
+    m.close();
+
+    SamReader r = SamReaderFactory.makeDefault().open(out);
+    String last = null;
+    int n = 0;
+    for (SAMRecord rec : r) {
+      if (last != null) {
+        assertTrue(last.compareTo(rec.getReadName()) <= 0);
+      }
+      last = rec.getReadName();
+      n++;
+    }
+    r.close();
+    assertEquals(99928, n);
+    assertEquals(0, tmp.getRoot().toPath().toFile().list((d, name) -> name.endsWith(".run")).length);
+  }
+
+  @Test
+  public void testRejectsCoordinateSorted() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "a:10");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "a:20");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), null);
+    try {
+      m.open();
+      fail("Expected SAMFormatException");
+    } catch (SAMFormatException sfe) {
+      assertTrue(sfe.getMessage().contains("coordinate"));
+    } finally {
+      m.close();
+    }
+  }
+
+  @Test
+  public void testDetectsUnsortedInput() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.unsorted, "b:10", "a:10");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.queryname, "a:20", "b:20");
+    StreamingMerge m = new StreamingMerge(Arrays.asList(human, mouse), null);
+    m.open();
+    try {
+      m.merge();
+      fail("Expected SAMFormatException");
+    } catch (SAMFormatException sfe) {
+      assertTrue(sfe.getMessage().contains("not sorted by read name"));
+    } finally {
+      m.close();
+    }
+  }
+}
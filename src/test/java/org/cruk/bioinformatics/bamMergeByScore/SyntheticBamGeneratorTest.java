@@ -0,0 +1,119 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.StringUtil;
+
+public class SyntheticBamGeneratorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected SyntheticBamGenerator generator(long reads) throws IOException {
+    SyntheticBamGenerator g = new SyntheticBamGenerator();
+    g.outputDir = tmp.getRoot().toPath();
+    g.reads = reads;
+    return g;
+  }
+
+  /**
+   * Check that a file is sorted in the order its header declares, and return
+   * its distinct read names.
+   */
+  protected Set<String> checkSorted(Path p) throws IOException {
+    SamReader r = SamReaderFactory.makeDefault().open(p);
+    ReadNameOrder order = ReadNameOrder.fromHeader(r.getFileHeader());
+    Set<String> names = new HashSet<String>();
+    byte[] last = null;
+    for (SAMRecord rec : r) {
+      byte[] name = StringUtil.stringToBytes(rec.getReadName());
+      if (last != null) {
+        assertTrue(order.compare(last, 0, last.length, name, 0, name.length) <= 0);
+      }
+      last = name;
+      names.add(rec.getReadName());
+    }
+    r.close();
+    return names;
+  }
+
+  @Test
+  public void testNames() throws IOException {
+    SyntheticBamGenerator g = generator(0);
+    assertEquals("SYN:1:HSYNTHXX:1:1101:1000:1000", g.readName(0));
+    assertEquals("SYN:1:HSYNTHXX:1:1101:1001:1000", g.readName(50000));
+    g.pad = true;
+    assertEquals("SYN:1:HSYNTHXX:1:1101:01000:01001", g.readName(1));
+    g.nameFormat = "{tile}:{lane}:{x}:{y}";
+    assertEquals(-1, g.checkSettings());
+  }
+
+  @Test
+  public void testOverlapAndHits() throws IOException {
+    SyntheticBamGenerator g = generator(2000);
+    g.overlap = 1.0;
+    g.secondary = 2;
+    g.supplementary = 1;
+    g.paired = true;
+    List<Path> paths = g.generate();
+    assertEquals(2, paths.size());
+    Set<String> a = checkSorted(paths.get(0));
+    Set<String> b = checkSorted(paths.get(1));
+    assertEquals(2000, a.size());
+    assertEquals(a, b);
+
+    SamReader r = SamReaderFactory.makeDefault().open(paths.get(0));
+    int records = 0;
+    for (SAMRecord rec : r) {
+      records++;
+      assertTrue(rec.getReadPairedFlag());
+    }
+    r.close();
+    // two mates, each with a primary, one supplementary and two secondary hits
+    assertEquals(2000 * 2 * 4, records);
+  }
+
+  @Test
+  public void testPartialOverlapMerges() throws IOException {
+    SyntheticBamGenerator g = generator(5000);
+    g.overlap = 0.5;
+    g.inputs = 3;
+    g.unmapped = 0.1;
+    g.scores = SyntheticBamGenerator.Scores.parse("normal:-10:5");
+    List<Path> paths = g.generate();
+    Set<String> all = new HashSet<String>();
+    int total = 0;
+    for (Path p : paths) {
+      Set<String> names = checkSorted(p);
+      total += names.size();
+      all.addAll(names);
+    }
+    assertEquals(5000, all.size());
+    assertTrue(total > 7000 && total < 11000);
+
+    Path out = tmp.getRoot().toPath().resolve("merged.bam");
+    StreamingMerge merge = new StreamingMerge(paths, out);
+    merge.open();
+    assertEquals(5000, merge.merge());
+    merge.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadScores() {
+    SyntheticBamGenerator.Scores.parse("poisson:3");
+  }
+}
@@ -0,0 +1,80 @@
+package org.cruk.bioinformatics.bamMergeByScore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class TwoPassMergeTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Split outputs keep the records in their inputs' order; the winners are as
+   * in RandomAccessMergeTest.
+   */
+  @Test
+  public void testCoordinateSortedSplit() throws IOException {
+    Path human = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("human.bam"), "chr1",
+        SAMFileHeader.SortOrder.coordinate, "e:9", "b:12", "c:5", "a:10", "b:30");
+    Path mouse = BamFixtures.writeBam(tmp.getRoot().toPath().resolve("mouse.bam"), "chr2",
+        SAMFileHeader.SortOrder.coordinate, "d:7", "e:9", "c:25", "b:20");
+    TwoPassMerge m = new TwoPassMerge(Arrays.asList(human, mouse), null);
+    m.setSortMemory(1 << 20, tmp.getRoot().toPath());
+    m.open();
+    assertEquals(5, m.merge());
+    assertEquals(6, m.recordsWritten());
+    m.close();
+    assertEquals(Arrays.asList("e:chr1:9", "b:chr1:12", "a:chr1:10", "b:chr1:30"),
+        BamFixtures.readBack(MergeOutput.splitOutputName(human)));
+    assertEquals(Arrays.asList("d:chr2:7", "c:chr2:25"), BamFixtures.readBack(MergeOutput.splitOutputName(mouse)));
+  }
+
+  /**
+   * Merge a file with a copy of itself in too little memory to hold the
+   * index, so that the sorts spill: every read ties, so the first input keeps
+   * every record, in its original order, and the second keeps none.
+   */
+  @Test
+  public void testSpills() throws IOException {
+    Path big = Paths.get("src/test/testData/testBigBam.bam");
+    Path copy = tmp.getRoot().toPath().resolve("copy.bam");
+    Files.copy(big, copy);
+    Path first = tmp.getRoot().toPath().resolve("first.bam");
+    Files.copy(big, first);
+    TwoPassMerge m = new TwoPassMerge(Arrays.asList(first, copy), null);
+    m.setSortMemory(2 * ExternalNameSort.MIN_MEMORY, tmp.getRoot().toPath());
+    m.open();
+    assertTrue(m.sorts[0].runCount() > 1);
+    m.merge();
+    assertEquals(99928, m.recordsWritten());
+    m.close();
+
+    SamReader in = SamReaderFactory.makeDefault().open(big);
+    SamReader out = SamReaderFactory.makeDefault().open(MergeOutput.splitOutputName(first));
+    Iterator<SAMRecord> it = out.iterator();
+    for (SAMRecord rec : in) {
+      assertEquals(rec.getSAMString(), it.next().getSAMString());
+    }
+    assertTrue(!it.hasNext());
+    in.close();
+    out.close();
+    assertEquals(0, BamFixtures.readBack(MergeOutput.splitOutputName(copy)).size());
+    assertEquals(0, tmp.getRoot().toPath().toFile().list((d, name) -> name.endsWith(".run")).length);
+  }
+}